@@ -0,0 +1,240 @@
+package icecube.daq.juggler;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Start the long-running loops used by juggler's background workers
+ * (alert queues, threaded alerters, the component state task and local
+ * monitoring).
+ *
+ * By default each worker gets its own platform thread.  On a JVM which
+ * supports virtual threads (Java 21 and later), workers can instead run
+ * on virtual threads, which cost a small amount of heap rather than a
+ * native thread and stack while they're blocked.
+ *
+ * The initial mode is read from the <tt>icecube.daq.juggler.workerThreads</tt>
+ * system property (<tt>platform</tt> or <tt>virtual</tt>) and can be
+ * changed with <tt>setMode()</tt>.  Changes only affect workers started
+ * afterward.
+ *
+ * Virtual threads are always daemon threads, so workers which must
+ * keep the JVM alive (alert queues, the component state task) are
+ * still given platform threads in <tt>VIRTUAL</tt> mode.
+ */
+public final class WorkerThreads
+{
+    /** Logging object */
+    private static final Logger LOG = Logger.getLogger(WorkerThreads.class);
+
+    /** System property used to choose the initial mode */
+    public static final String MODE_PROPERTY =
+        "icecube.daq.juggler.workerThreads";
+
+    /**
+     * How workers are run
+     */
+    public enum Mode
+    {
+        /** Each worker has its own platform thread */
+        PLATFORM,
+        /** Each worker has its own virtual thread */
+        VIRTUAL;
+    }
+
+    /** <tt>Thread.ofVirtual()</tt> (<tt>null</tt> if not supported) */
+    private static final Method OF_VIRTUAL;
+    /** <tt>Thread.Builder.name(String)</tt> */
+    private static final Method BUILDER_NAME;
+    /** <tt>Thread.Builder.unstarted(Runnable)</tt> */
+    private static final Method BUILDER_UNSTARTED;
+
+    static {
+        Method ofVirtual;
+        Method builderName;
+        Method builderUnstarted;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+
+            Class builder = Class.forName("java.lang.Thread$Builder");
+            builderName = builder.getMethod("name", String.class);
+            builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+
+            // preview releases throw an exception unless enabled
+            ofVirtual.invoke(null);
+        } catch (Exception ex) {
+            ofVirtual = null;
+            builderName = null;
+            builderUnstarted = null;
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_UNSTARTED = builderUnstarted;
+    }
+
+    /** Current mode */
+    private static volatile Mode mode = getInitialMode();
+
+    private WorkerThreads()
+    {
+    }
+
+    /**
+     * Choose the initial mode from the system property.
+     *
+     * @return initial mode
+     */
+    private static Mode getInitialMode()
+    {
+        final String prop = System.getProperty(MODE_PROPERTY);
+        if (prop == null || prop.length() == 0) {
+            return Mode.PLATFORM;
+        }
+
+        Mode newMode;
+        try {
+            newMode = Mode.valueOf(prop.trim().toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            LOG.error("Bad " + MODE_PROPERTY + " value \"" + prop +
+                      "\"; using platform threads");
+            return Mode.PLATFORM;
+        }
+
+        if (newMode == Mode.VIRTUAL && !isVirtualSupported()) {
+            LOG.error("Virtual threads are not supported by this JVM;" +
+                      " using platform threads");
+            return Mode.PLATFORM;
+        }
+
+        return newMode;
+    }
+
+    /**
+     * Get the current mode
+     *
+     * @return current mode
+     */
+    public static Mode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * Does this JVM support virtual threads?
+     *
+     * @return <tt>true</tt> if <tt>VIRTUAL</tt> mode can be used
+     */
+    public static boolean isVirtualSupported()
+    {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Create an unstarted virtual thread.
+     *
+     * @param name thread name
+     * @param task code run by the thread
+     *
+     * @return new thread
+     */
+    private static Thread newVirtualThread(String name, Runnable task)
+    {
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = BUILDER_NAME.invoke(builder, name);
+            return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+        } catch (Exception ex) {
+            throw new Error("Cannot create virtual thread " + name, ex);
+        }
+    }
+
+    /**
+     * Set the mode used for workers started after this call.
+     *
+     * @param newMode new mode
+     *
+     * @throws Error if the mode is <tt>null</tt> or not supported
+     */
+    public static void setMode(Mode newMode)
+    {
+        if (newMode == null) {
+            throw new Error("Mode cannot be null");
+        } else if (newMode == Mode.VIRTUAL && !isVirtualSupported()) {
+            throw new Error("Virtual threads are not supported by this JVM");
+        }
+
+        mode = newMode;
+    }
+
+    /**
+     * Start a worker.
+     *
+     * @param name worker (thread) name
+     * @param daemon if <tt>true</tt>, the worker should not keep the JVM
+     *               alive (non-daemon workers always get a platform
+     *               thread, since virtual threads are daemons)
+     * @param task worker loop
+     *
+     * @return handle which completes when the worker loop returns
+     */
+    public static Future<?> start(String name, boolean daemon, Runnable task)
+    {
+        FutureTask<Object> future =
+            new FutureTask<Object>(new Worker(name, task), null);
+
+        if (mode == Mode.VIRTUAL && daemon) {
+            newVirtualThread(name, future).start();
+        } else {
+            Thread thread = new Thread(future, name);
+            thread.setDaemon(daemon);
+            thread.start();
+        }
+
+        return future;
+    }
+
+    /**
+     * Run a worker loop under the worker's name, logging anything it
+     * throws (the future would otherwise hide it).
+     */
+    private static class Worker
+        implements Runnable
+    {
+        private final String name;
+        private final Runnable task;
+
+        Worker(String name, Runnable task)
+        {
+            this.name = name;
+            this.task = task;
+        }
+
+        @Override
+        public void run()
+        {
+            final Thread cur = Thread.currentThread();
+            final String oldName = cur.getName();
+            if (!name.equals(oldName)) {
+                cur.setName(name);
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException rex) {
+                LOG.error("Worker " + name + " failed", rex);
+                throw rex;
+            } catch (Error err) {
+                LOG.error("Worker " + name + " failed", err);
+                throw err;
+            } finally {
+                if (!name.equals(oldName)) {
+                    cur.setName(oldName);
+                }
+            }
+        }
+    }
+}
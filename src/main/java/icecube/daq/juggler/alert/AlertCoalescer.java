@@ -0,0 +1,378 @@
+package icecube.daq.juggler.alert;
+
+import icecube.daq.payload.IUTCTime;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapse identical alerts (same name, priority and values) which are
+ * pushed within a time window.
+ *
+ * The first alert in a window is always sent normally.  Any identical
+ * alerts pushed before the window closes are only counted, and once the
+ * window closes the sender thread sends a single summary alert which
+ * includes the number of repeats and the times of the first and last
+ * occurrences.
+ */
+class AlertCoalescer
+{
+    /** Maximum number of distinct alerts being tracked at once */
+    static final int MAX_TRACKED = 10000;
+
+    /** Value key for number of repeats in a summary alert */
+    static final String REPEAT_COUNT = "repeat_count";
+    /** Value key for time of the first occurrence in a summary alert */
+    static final String FIRST_TIME = "first_time";
+    /** Value key for time of the last occurrence in a summary alert */
+    static final String LAST_TIME = "last_time";
+
+    /** Windows for alerts which have been seen recently */
+    private final ConcurrentHashMap<Key, Repeat> tracked =
+        new ConcurrentHashMap<Key, Repeat>();
+    /** Closed windows which contain repeats and are waiting to be sent */
+    private final ConcurrentLinkedQueue<Repeat> finished =
+        new ConcurrentLinkedQueue<Repeat>();
+
+    /** Window length in nanoseconds (<tt>0</tt> if coalescing is off) */
+    private volatile long windowNanos;
+    /** Time at which the next tracked window may close */
+    private volatile long nextScan;
+
+    /** Number of alerts which were folded into a summary */
+    private final AtomicLong numCoalesced = new AtomicLong();
+
+    /**
+     * Remove all tracked windows which have closed (or all of them, if
+     * <tt>all</tt> is <tt>true</tt>) and add the windows which contained
+     * repeats to <tt>out</tt>.
+     * This must only be called by the sender thread.
+     *
+     * @param out list of windows whose summaries should be sent
+     * @param all if <tt>true</tt>, close every window
+     *
+     * @return number of nanoseconds until the next window closes, or
+     *         <tt>0</tt> if nothing is being tracked
+     */
+    long flush(List<Repeat> out, boolean all)
+    {
+        Repeat rep;
+        while ((rep = finished.poll()) != null) {
+            out.add(rep);
+        }
+
+        if (tracked.isEmpty()) {
+            return 0L;
+        }
+
+        final long now = System.nanoTime();
+        final long window = windowNanos;
+        if (!all && window > 0 && now - nextScan < 0) {
+            return nextScan - now;
+        }
+
+        long next = now + window;
+        for (Iterator<Map.Entry<Key, Repeat>> iter =
+                 tracked.entrySet().iterator(); iter.hasNext(); )
+        {
+            final Map.Entry<Key, Repeat> entry = iter.next();
+
+            rep = entry.getValue();
+
+            final long end = rep.startNanos + window;
+            if (!all && window > 0 && end - now > 0) {
+                if (end - next < 0) {
+                    next = end;
+                }
+            } else if (tracked.remove(entry.getKey(), rep) &&
+                       rep.close() > 0)
+            {
+                out.add(rep);
+            }
+        }
+
+        nextScan = next;
+
+        if (tracked.isEmpty()) {
+            return 0L;
+        }
+
+        return Math.max(next - now, 1L);
+    }
+
+    /**
+     * Get the number of alerts which were folded into a summary
+     *
+     * @return number of coalesced alerts
+     */
+    long getNumCoalesced()
+    {
+        return numCoalesced.get();
+    }
+
+    /**
+     * Get the coalescing window
+     *
+     * @return window length in milliseconds (<tt>0</tt> if disabled)
+     */
+    long getWindow()
+    {
+        return windowNanos / 1000000L;
+    }
+
+    /**
+     * Are there any open windows or unsent summaries?
+     *
+     * @return <tt>true</tt> if there is nothing left to send
+     */
+    boolean isEmpty()
+    {
+        return tracked.isEmpty() && finished.isEmpty();
+    }
+
+    /**
+     * Is coalescing enabled?
+     *
+     * @return <tt>true</tt> if alerts should be checked for repeats
+     */
+    boolean isEnabled()
+    {
+        return windowNanos > 0;
+    }
+
+    /**
+     * Check whether this alert repeats one which was pushed earlier in
+     * the current window.
+     *
+     * @param varname alert name
+     * @param prio alert priority
+     * @param utc alert time
+     * @param values alert values
+     *
+     * @return <tt>true</tt> if the alert was folded into an earlier one
+     *         and should not be sent
+     */
+    boolean isRepeat(String varname, Alerter.Priority prio, IUTCTime utc,
+                     Map<String, Object> values)
+    {
+        final long window = windowNanos;
+        if (window <= 0) {
+            return false;
+        }
+
+        final Key key = new Key(varname, prio, values);
+        final long now = System.nanoTime();
+
+        while (true) {
+            final Repeat rep = tracked.get(key);
+            if (rep == null) {
+                if (tracked.size() >= MAX_TRACKED) {
+                    // too many distinct alerts, just send this one
+                    return false;
+                }
+
+                // the caller may reuse its map, so the saved key needs
+                // a copy of the values
+                final Key saved = key.copy();
+                if (tracked.putIfAbsent(saved, new Repeat(saved, now, utc)) ==
+                    null)
+                {
+                    return false;
+                }
+            } else if (now - rep.startNanos < window) {
+                if (rep.add(utc)) {
+                    numCoalesced.incrementAndGet();
+                    return true;
+                }
+
+                // window was closed by another thread
+            } else if (tracked.remove(key, rep) && rep.close() > 0) {
+                // hand summary to sender thread and start a new window
+                finished.add(rep);
+            }
+        }
+    }
+
+    /**
+     * Set the coalescing window.
+     *
+     * @param millis window length in milliseconds (<tt>0</tt> to disable)
+     */
+    void setWindow(long millis)
+    {
+        if (millis < 0) {
+            throw new Error("Bad coalescing window " + millis);
+        }
+
+        windowNanos = millis * 1000000L;
+
+        // make sure the sender thread rechecks windows with the new length
+        nextScan = System.nanoTime();
+    }
+
+    /**
+     * Identifies identical alerts
+     */
+    private static final class Key
+    {
+        private final String varname;
+        private final Alerter.Priority prio;
+        private final Map<String, Object> values;
+        private final int hash;
+
+        Key(String varname, Alerter.Priority prio, Map<String, Object> values)
+        {
+            this.varname = varname;
+            this.prio = prio;
+            this.values = values;
+
+            int tmpHash = prio.ordinal();
+            if (varname != null) {
+                tmpHash = tmpHash * 31 + varname.hashCode();
+            }
+            if (values != null) {
+                tmpHash = tmpHash * 31 + values.hashCode();
+            }
+            hash = tmpHash;
+        }
+
+        /**
+         * Make a key which doesn't share the values map with this one.
+         *
+         * @return new key
+         */
+        Key copy()
+        {
+            if (values == null) {
+                return this;
+            }
+
+            return new Key(varname, prio,
+                           new HashMap<String, Object>(values));
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj == this) {
+                return true;
+            } else if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) obj;
+            if (hash != other.hash || prio != other.prio) {
+                return false;
+            } else if (varname == null ? other.varname != null :
+                       !varname.equals(other.varname))
+            {
+                return false;
+            }
+
+            return values == null ? other.values == null :
+                values.equals(other.values);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+
+    /**
+     * Repeats of a single alert within one window
+     */
+    static final class Repeat
+    {
+        private final Key key;
+        private final long startNanos;
+        private final IUTCTime firstTime;
+        private volatile IUTCTime lastTime;
+        /** Number of repeats, or <tt>-1</tt> once the window is closed */
+        private final AtomicInteger count = new AtomicInteger();
+        /** Final number of repeats, set when the window is closed */
+        private int total;
+
+        Repeat(Key key, long startNanos, IUTCTime firstTime)
+        {
+            this.key = key;
+            this.startNanos = startNanos;
+            this.firstTime = firstTime;
+            this.lastTime = firstTime;
+        }
+
+        /**
+         * Count another repeat.
+         *
+         * @param utc time of the repeated alert
+         *
+         * @return <tt>false</tt> if the window has already been closed
+         */
+        boolean add(IUTCTime utc)
+        {
+            while (true) {
+                final int num = count.get();
+                if (num < 0) {
+                    return false;
+                }
+
+                if (count.compareAndSet(num, num + 1)) {
+                    // may lag slightly behind a concurrent close()
+                    lastTime = utc;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Close this window so no more repeats can be added.
+         *
+         * @return final number of repeats
+         */
+        int close()
+        {
+            final int num = count.getAndSet(-1);
+            if (num >= 0) {
+                total = num;
+            }
+            return num;
+        }
+
+        int getCount()
+        {
+            return total;
+        }
+
+        IUTCTime getFirstTime()
+        {
+            return firstTime;
+        }
+
+        IUTCTime getLastTime()
+        {
+            return lastTime;
+        }
+
+        Alerter.Priority getPriority()
+        {
+            return key.prio;
+        }
+
+        Map<String, Object> getValues()
+        {
+            return key.values;
+        }
+
+        String getVarname()
+        {
+            return key.varname;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package icecube.daq.juggler.alert;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decode messages sent by an alerter in any of the supported formats.
+ * CBOR messages are recognized by their leading self-described tag and
+ * everything else is treated as JSON.
+ *
+ * CBOR maps are returned as <tt>Map</tt>s, arrays as <tt>List</tt>s,
+ * integers as <tt>Long</tt>s, floating point numbers as <tt>Double</tt>s
+ * and byte strings as <tt>byte[]</tt>.  JSON messages are decoded by Gson.
+ */
+public final class AlertDecoder
+{
+    /** Gson objects are thread-safe */
+    private static final Gson GSON = new Gson();
+
+    /** Nesting deeper than this is assumed to be a corrupted message */
+    private static final int MAX_DEPTH = 64;
+
+    /** Message being decoded */
+    private final byte[] buf;
+    /** Offset of the next byte to decode */
+    private int pos;
+    /** Offset just past the end of the message */
+    private final int end;
+
+    private AlertDecoder(byte[] buf, int off, int len)
+    {
+        this.buf = buf;
+        this.pos = off;
+        this.end = off + len;
+    }
+
+    /**
+     * Decode a message.
+     *
+     * @param data encoded message
+     *
+     * @return decoded object
+     *
+     * @throws AlertException if the message cannot be decoded
+     */
+    public static Object decode(byte[] data)
+        throws AlertException
+    {
+        return decode(data, 0, data.length);
+    }
+
+    /**
+     * Decode a message.
+     *
+     * @param data buffer holding the encoded message
+     * @param off offset of the start of the message
+     * @param len message length
+     *
+     * @return decoded object
+     *
+     * @throws AlertException if the message cannot be decoded
+     */
+    public static Object decode(byte[] data, int off, int len)
+        throws AlertException
+    {
+        if (!isCBOR(data, off, len)) {
+            return decodeJSON(data, off, len);
+        }
+
+        AlertDecoder dec = new AlertDecoder(data, off, len);
+        final Object obj = dec.readValue(0);
+        if (dec.pos != dec.end) {
+            throw new AlertException("Found " + (dec.end - dec.pos) +
+                                     " extra bytes after CBOR message");
+        }
+
+        return obj;
+    }
+
+    private static Object decodeJSON(byte[] data, int off, int len)
+        throws AlertException
+    {
+        String json;
+        try {
+            json = new String(data, off, len, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new Error("UTF-8 is not supported", uee);
+        }
+
+        try {
+            return GSON.fromJson(json, Object.class);
+        } catch (JsonParseException jpe) {
+            throw new AlertException("Cannot decode JSON message", jpe);
+        }
+    }
+
+    /**
+     * Does this message start with the CBOR self-described tag?
+     *
+     * @param data buffer holding the encoded message
+     * @param off offset of the start of the message
+     * @param len message length
+     *
+     * @return <tt>true</tt> if this is a CBOR message
+     */
+    public static boolean isCBOR(byte[] data, int off, int len)
+    {
+        final byte[] magic = CBOREncoder.MAGIC;
+        if (len < magic.length) {
+            return false;
+        }
+
+        for (int i = 0; i < magic.length; i++) {
+            if (data[off + i] != magic[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int readByte()
+        throws AlertException
+    {
+        if (pos >= end) {
+            throw new AlertException("Truncated CBOR message");
+        }
+
+        return buf[pos++] & 0xff;
+    }
+
+    /**
+     * Read the argument which follows an initial byte.
+     *
+     * @param info low five bits of the initial byte
+     *
+     * @return argument value (unsigned)
+     */
+    private long readArgument(int info)
+        throws AlertException
+    {
+        if (info < 24) {
+            return info;
+        }
+
+        int numBytes;
+        switch (info) {
+        case 24:
+            numBytes = 1;
+            break;
+        case 25:
+            numBytes = 2;
+            break;
+        case 26:
+            numBytes = 4;
+            break;
+        case 27:
+            numBytes = 8;
+            break;
+        default:
+            throw new AlertException("Unsupported CBOR argument " + info);
+        }
+
+        long val = 0;
+        for (int i = 0; i < numBytes; i++) {
+            val = (val << 8) | readByte();
+        }
+
+        return val;
+    }
+
+    private byte[] readBytes(long num)
+        throws AlertException
+    {
+        if (num < 0 || num > end - pos) {
+            throw new AlertException("Truncated CBOR message");
+        }
+
+        byte[] bytes = new byte[(int) num];
+        System.arraycopy(buf, pos, bytes, 0, bytes.length);
+        pos += bytes.length;
+        return bytes;
+    }
+
+    /**
+     * Convert an IEEE 754 half-precision number.
+     *
+     * @param half 16-bit value
+     *
+     * @return double
+     */
+    private static double readHalf(int half)
+    {
+        final int exp = (half >> 10) & 0x1f;
+        final int mant = half & 0x3ff;
+
+        double val;
+        if (exp == 0) {
+            val = mant * Math.pow(2, -24);
+        } else if (exp != 31) {
+            val = (mant + 1024) * Math.pow(2, exp - 25);
+        } else if (mant == 0) {
+            val = Double.POSITIVE_INFINITY;
+        } else {
+            val = Double.NaN;
+        }
+
+        return (half & 0x8000) == 0 ? val : -val;
+    }
+
+    /**
+     * Decode the next data item.
+     *
+     * @param depth nesting level
+     *
+     * @return decoded object
+     */
+    private Object readValue(int depth)
+        throws AlertException
+    {
+        if (depth > MAX_DEPTH) {
+            throw new AlertException("CBOR message is nested too deeply");
+        }
+
+        final int initial = readByte();
+        final int major = initial >> 5;
+        final int info = initial & 0x1f;
+
+        if (info == 31) {
+            throw new AlertException("Indefinite-length CBOR items" +
+                                     " are not supported");
+        }
+
+        if (major == CBOREncoder.MAJOR_SIMPLE) {
+            switch (info) {
+            case CBOREncoder.SIMPLE_FALSE:
+                return Boolean.FALSE;
+            case CBOREncoder.SIMPLE_TRUE:
+                return Boolean.TRUE;
+            case CBOREncoder.SIMPLE_NULL:
+                return null;
+            case CBOREncoder.FLOAT16:
+                return readHalf((int) readArgument(info));
+            case CBOREncoder.FLOAT32:
+                return (double) Float.intBitsToFloat((int) readArgument(info));
+            case CBOREncoder.FLOAT64:
+                return Double.longBitsToDouble(readArgument(info));
+            default:
+                throw new AlertException("Unsupported CBOR simple value " +
+                                         info);
+            }
+        }
+
+        final long arg = readArgument(info);
+
+        switch (major) {
+        case CBOREncoder.MAJOR_UNSIGNED:
+            if (arg < 0) {
+                throw new AlertException("CBOR integer is too large");
+            }
+            return arg;
+        case CBOREncoder.MAJOR_NEGATIVE:
+            if (arg < 0) {
+                throw new AlertException("CBOR integer is too small");
+            }
+            return ~arg;
+        case CBOREncoder.MAJOR_BYTES:
+            return readBytes(arg);
+        case CBOREncoder.MAJOR_TEXT:
+            try {
+                return new String(readBytes(arg), "UTF-8");
+            } catch (UnsupportedEncodingException uee) {
+                throw new Error("UTF-8 is not supported", uee);
+            }
+        case CBOREncoder.MAJOR_ARRAY:
+            if (arg < 0 || arg > end - pos) {
+                throw new AlertException("Bad CBOR array length " + arg);
+            }
+
+            List<Object> list = new ArrayList<Object>((int) arg);
+            for (long i = 0; i < arg; i++) {
+                list.add(readValue(depth + 1));
+            }
+            return list;
+        case CBOREncoder.MAJOR_MAP:
+            if (arg < 0 || arg > end - pos) {
+                throw new AlertException("Bad CBOR map length " + arg);
+            }
+
+            Map<Object, Object> map = new HashMap<Object, Object>();
+            for (long i = 0; i < arg; i++) {
+                final Object key = readValue(depth + 1);
+                map.put(key, readValue(depth + 1));
+            }
+            return map;
+        case CBOREncoder.MAJOR_TAG:
+            final Object tagged = readValue(depth + 1);
+            if (arg == CBOREncoder.TAG_EMBEDDED_JSON) {
+                if (!(tagged instanceof byte[])) {
+                    throw new AlertException("Embedded JSON is not a" +
+                                             " byte string");
+                }
+
+                final byte[] json = (byte[]) tagged;
+                return decodeJSON(json, 0, json.length);
+            }
+
+            // other tags (including the self-described tag) are ignored
+            return tagged;
+        default:
+            throw new AlertException("Unknown CBOR major type " + major);
+        }
+    }
+}
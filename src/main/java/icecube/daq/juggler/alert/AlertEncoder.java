@@ -0,0 +1,213 @@
+package icecube.daq.juggler.alert;
+
+import java.util.Map;
+
+/**
+ * Base class for encoders which serialize alerts into a reusable byte
+ * buffer.  Several messages can be written to the buffer before it is
+ * sent; each one is terminated by <tt>endMessage()</tt>.
+ *
+ * Each thread gets its own encoder from <tt>getEncoder()</tt>, so no locks
+ * are needed while encoding.
+ */
+abstract class AlertEncoder
+{
+    /** Initial buffer size */
+    private static final int INITIAL_SIZE = 1024;
+    /** Buffers larger than this are discarded after each message */
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    /** Encoded bytes */
+    byte[] buf = new byte[INITIAL_SIZE];
+    /** Number of valid bytes in <tt>buf</tt> */
+    int len;
+
+    /** End offsets of each message written since the last reset */
+    private int[] ends = new int[16];
+    /** Number of valid entries in <tt>ends</tt> */
+    private int numEnds;
+
+    /**
+     * Throw away anything written since the last <tt>endMessage()</tt>
+     * (for example, after an object could not be encoded).
+     */
+    void discardMessage()
+    {
+        len = (numEnds == 0 ? 0 : ends[numEnds - 1]);
+    }
+
+    /**
+     * Mark the end of the current message.  Multiple messages can be
+     * written to the buffer and then retrieved with <tt>getStart()</tt>
+     * and <tt>getEnd()</tt>.
+     */
+    void endMessage()
+    {
+        if (numEnds == ends.length) {
+            int[] newEnds = new int[ends.length * 2];
+            System.arraycopy(ends, 0, newEnds, 0, numEnds);
+            ends = newEnds;
+        }
+
+        ends[numEnds++] = len;
+    }
+
+    /**
+     * Make room for <tt>extra</tt> more bytes.
+     *
+     * @param extra number of bytes about to be written
+     */
+    void ensureCapacity(int extra)
+    {
+        final int needed = len + extra;
+        if (needed > buf.length) {
+            int newLen = buf.length * 2;
+            if (newLen < needed) {
+                newLen = needed;
+            }
+
+            byte[] newBuf = new byte[newLen];
+            System.arraycopy(buf, 0, newBuf, 0, len);
+            buf = newBuf;
+        }
+    }
+
+    /**
+     * Get the encoded bytes.  Only the first <tt>getLength()</tt> bytes
+     * are valid, and the array will be reused by the next message.
+     *
+     * @return internal buffer
+     */
+    byte[] getBuffer()
+    {
+        return buf;
+    }
+
+    /**
+     * Get the current thread's encoder for the specified format.  The
+     * encoder is reset before it is returned.
+     *
+     * @param format message format
+     *
+     * @return encoder
+     */
+    static AlertEncoder getEncoder(Alerter.Format format)
+    {
+        switch (format) {
+        case CBOR:
+            return CBOREncoder.getEncoder();
+        case JSON:
+            return JSONEncoder.getEncoder();
+        default:
+            throw new Error("Unknown alert format " + format);
+        }
+    }
+
+    /**
+     * Get the offset just past the end of message <tt>num</tt>.
+     *
+     * @param num message number
+     *
+     * @return end offset
+     */
+    int getEnd(int num)
+    {
+        return ends[num];
+    }
+
+    /**
+     * Get the number of encoded bytes.
+     *
+     * @return number of bytes
+     */
+    int getLength()
+    {
+        return len;
+    }
+
+    /**
+     * Get the number of messages marked by <tt>endMessage()</tt>.
+     *
+     * @return number of messages
+     */
+    int getNumberOfMessages()
+    {
+        return numEnds;
+    }
+
+    /**
+     * Get the offset of the start of message <tt>num</tt>.
+     *
+     * @param num message number
+     *
+     * @return start offset
+     */
+    int getStart(int num)
+    {
+        if (num == 0) {
+            return 0;
+        }
+
+        return ends[num - 1];
+    }
+
+    /**
+     * Discard any encoded data.
+     */
+    void reset()
+    {
+        if (buf.length > MAX_RETAINED_SIZE) {
+            buf = new byte[INITIAL_SIZE];
+        }
+
+        len = 0;
+        numEnds = 0;
+    }
+
+    /**
+     * Return a copy of the encoded bytes.
+     *
+     * @return encoded bytes
+     */
+    byte[] toByteArray()
+    {
+        byte[] bytes = new byte[len];
+        System.arraycopy(buf, 0, bytes, 0, len);
+        return bytes;
+    }
+
+    void write(byte b)
+    {
+        if (len == buf.length) {
+            ensureCapacity(1);
+        }
+
+        buf[len++] = b;
+    }
+
+    void write(byte[] bytes)
+    {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buf, len, bytes.length);
+        len += bytes.length;
+    }
+
+    /**
+     * Write an alert envelope.
+     *
+     * @param service service name
+     * @param varname variable name
+     * @param prio priority
+     * @param dateStr date string
+     * @param values alert values (omitted if <tt>null</tt> or empty)
+     */
+    abstract void writeAlert(String service, String varname, int prio,
+                             String dateStr, Map<String, Object> values);
+
+    /**
+     * Write an arbitrary object as a complete message.
+     *
+     * @param obj object to encode
+     */
+    abstract void writeObject(Object obj);
+}
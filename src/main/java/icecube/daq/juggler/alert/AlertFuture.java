@@ -0,0 +1,172 @@
+package icecube.daq.juggler.alert;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion handle for an alert pushed with
+ * <tt>AlertQueue.pushAsync()</tt>.  The handle is complete once the alert
+ * has been sent or the queue has given up on it; it cannot be cancelled.
+ */
+public final class AlertFuture
+    implements Future<AlertFuture.Status>
+{
+    /**
+     * What happened to the alert
+     */
+    public enum Status
+    {
+        /** Still queued */
+        PENDING,
+        /** Handed to the alerter */
+        SENT,
+        /** Saved in an overflow journal, to be sent later */
+        SPILLED,
+        /** Discarded by a rate limit or collapsed into a summary alert */
+        SUPPRESSED,
+        /** Discarded because the queue was full */
+        DROPPED,
+        /** The alerter could not send it */
+        FAILED,
+        /** Discarded because the queue was stopped before it was sent */
+        ABANDONED;
+    }
+
+    /** Current status */
+    private Status status;
+
+    /**
+     * Create a handle for a queued alert
+     */
+    AlertFuture()
+    {
+        this(Status.PENDING);
+    }
+
+    /**
+     * Create a handle
+     *
+     * @param status initial status
+     */
+    AlertFuture(Status status)
+    {
+        this.status = status;
+    }
+
+    /**
+     * Alerts cannot be cancelled.
+     *
+     * @param mayInterruptIfRunning ignored
+     *
+     * @return <tt>false</tt>
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return false;
+    }
+
+    /**
+     * Record the final status and wake any waiting threads.  Later calls
+     * are ignored.
+     *
+     * @param newStatus final status
+     */
+    synchronized void complete(Status newStatus)
+    {
+        if (status == Status.PENDING) {
+            status = newStatus;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the alert has been handled.
+     *
+     * @return final status
+     *
+     * @throws InterruptedException if the wait was interrupted
+     */
+    @Override
+    public synchronized Status get()
+        throws InterruptedException
+    {
+        while (status == Status.PENDING) {
+            wait();
+        }
+
+        return status;
+    }
+
+    /**
+     * Wait until the alert has been handled.
+     *
+     * @param timeout maximum time to wait
+     * @param unit units for <tt>timeout</tt>
+     *
+     * @return final status
+     *
+     * @throws InterruptedException if the wait was interrupted
+     * @throws TimeoutException if the alert is still queued
+     */
+    @Override
+    public synchronized Status get(long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (status == Status.PENDING) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException("Alert is still queued");
+            }
+
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        return status;
+    }
+
+    /**
+     * Get the current status without waiting.
+     *
+     * @return current status
+     */
+    public synchronized Status getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * Alerts cannot be cancelled.
+     *
+     * @return <tt>false</tt>
+     */
+    @Override
+    public boolean isCancelled()
+    {
+        return false;
+    }
+
+    /**
+     * Has the alert been handled?
+     *
+     * @return <tt>true</tt> if the alert is no longer queued
+     */
+    @Override
+    public synchronized boolean isDone()
+    {
+        return status != Status.PENDING;
+    }
+
+    /**
+     * Return debugging string
+     *
+     * @return debugging string
+     */
+    @Override
+    public String toString()
+    {
+        return "AlertFuture[" + getStatus() + "]";
+    }
+}
@@ -0,0 +1,649 @@
+package icecube.daq.juggler.alert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only journal of serialized alerts, stored in a series of
+ * memory-mapped segment files.
+ *
+ * Each record is a 4-byte length followed by that many bytes of JSON.  A
+ * zero length marks the end of the data in a segment.  Records are read
+ * back in the order they were written; they are only removed from the
+ * journal once they have been <tt>commit()</tt>ed, and segment files are
+ * deleted as soon as every record in them has been committed.  The
+ * length of a committed record is negated, so it is skipped when
+ * segments left over from an earlier run are recovered.  A single record
+ * can also be committed with <tt>delivered()</tt>, so it is skipped
+ * after a <tt>rewind()</tt>.
+ *
+ * A record which keeps failing is eventually dropped (see
+ * <tt>failed()</tt>) so it can't hold up the records behind it.
+ */
+class AlertJournal
+{
+    private static final Logger LOG = Logger.getLogger(AlertJournal.class);
+
+    /** Default segment file size */
+    static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    /** Default maximum number of segment files */
+    static final int DEFAULT_MAX_SEGMENTS = 64;
+
+    private static final String PREFIX = "alerts-";
+    private static final String SUFFIX = ".jnl";
+
+    /** Size of the record length field */
+    private static final int HEADER_BYTES = 4;
+
+    /**
+     * Number of failed replays before records are replayed one at a time,
+     * and then before that single record is dropped
+     */
+    static final int MAX_REPLAY_FAILURES = 5;
+
+    /** <tt>sun.misc.Unsafe</tt> instance (<tt>null</tt> before Java 9) */
+    private static final Object UNSAFE;
+    /** <tt>Unsafe.invokeCleaner()</tt> (<tt>null</tt> before Java 9) */
+    private static final Method UNSAFE_CLEANER;
+    /** Set after unmapping fails so the error is only logged once */
+    private static volatile boolean unmapFailed;
+
+    static {
+        Object unsafe = null;
+        Method cleaner = null;
+        try {
+            final Class<?> cls = Class.forName("sun.misc.Unsafe");
+            cleaner = cls.getMethod("invokeCleaner", ByteBuffer.class);
+
+            final Field fld = cls.getDeclaredField("theUnsafe");
+            fld.setAccessible(true);
+            unsafe = fld.get(null);
+        } catch (Exception ex) {
+            // older JVM, fall back to the buffer's cleaner
+            cleaner = null;
+        }
+        UNSAFE = unsafe;
+        UNSAFE_CLEANER = cleaner;
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    /** Open segments, oldest first */
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+    /** Number used for the next segment file name */
+    private long nextSegmentNum;
+
+    /** Position of the first uncommitted record in the oldest segment */
+    private int readPos;
+    /** Segment containing the record after the last one read */
+    private int peekIndex;
+    /** Position of the record after the last one read */
+    private int peekPos;
+    /** Number of records read but not yet committed */
+    private int peekCount;
+    /** Records read but not yet committed, in the order they were read */
+    private final ArrayList<Pending> pending = new ArrayList<Pending>();
+    /** Number of replays which have failed since the last commit */
+    private int numFailures;
+
+    /** Number of uncommitted records */
+    private long numRecords;
+    /** Number of records which could not be written */
+    private long numDropped;
+
+    /** Set while alerts should be added to the journal */
+    private volatile boolean spilling;
+
+    /**
+     * Open a journal in <tt>directory</tt>, recovering any records
+     * left by an earlier run.
+     *
+     * @param directory journal directory
+     * @param segmentSize size of each segment file
+     * @param maxSegments maximum number of segment files
+     *
+     * @throws IOException if the journal cannot be opened
+     */
+    AlertJournal(File directory, int segmentSize, int maxSegments)
+        throws IOException
+    {
+        if (segmentSize <= HEADER_BYTES) {
+            throw new Error("Bad journal segment size " + segmentSize);
+        } else if (maxSegments < 1) {
+            throw new Error("Bad maximum number of journal segments " +
+                            maxSegments);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " +
+                                  directory);
+        }
+
+        recover();
+    }
+
+    /**
+     * Append a record.  If the journal is not already spilling and
+     * <tt>start</tt> is <tt>false</tt>, nothing is written.
+     *
+     * @param buf buffer containing the record
+     * @param off offset of the record
+     * @param len record length
+     * @param start if <tt>true</tt>, start spilling if necessary
+     *
+     * @return <tt>false</tt> if the journal is not spilling and the
+     *         record should be queued normally
+     */
+    synchronized boolean append(byte[] buf, int off, int len, boolean start)
+    {
+        if (!spilling) {
+            if (!start) {
+                return false;
+            }
+
+            spilling = true;
+            LOG.error("Spilling alerts to " + directory);
+        }
+
+        if (len == 0 || len > segmentSize - HEADER_BYTES) {
+            LOG.error("Cannot journal " + len + "-byte alert");
+            numDropped++;
+            return true;
+        }
+
+        Segment seg;
+        if (segments.size() == 0) {
+            seg = null;
+        } else {
+            seg = segments.get(segments.size() - 1);
+        }
+
+        if (seg == null || seg.writePos + HEADER_BYTES + len > seg.size) {
+            if (segments.size() >= maxSegments) {
+                numDropped++;
+                return true;
+            }
+
+            try {
+                seg = createSegment();
+            } catch (IOException ioe) {
+                LOG.error("Cannot create journal segment in " + directory,
+                          ioe);
+                numDropped++;
+                return true;
+            }
+        }
+
+        // write the data before the length so a partial write is ignored
+        seg.buf.position(seg.writePos + HEADER_BYTES);
+        seg.buf.put(buf, off, len);
+        seg.buf.putInt(seg.writePos, len);
+        seg.writePos += HEADER_BYTES + len;
+
+        numRecords++;
+        return true;
+    }
+
+    /**
+     * Remove all records which have been read from the journal.
+     */
+    synchronized void commit()
+    {
+        // delete all segments which have been completely read
+        for (int i = 0; i < peekIndex; i++) {
+            segments.remove(0).delete();
+        }
+
+        if (peekIndex > 0) {
+            readPos = 0;
+        }
+        if (peekCount > 0 && segments.size() > 0) {
+            markCommitted(segments.get(0), readPos, peekPos);
+        }
+
+        peekIndex = 0;
+        readPos = peekPos;
+
+        numRecords -= peekCount;
+        peekCount = 0;
+        pending.clear();
+        numFailures = 0;
+
+        if (numRecords == 0) {
+            // start over with an empty directory
+            while (segments.size() > 0) {
+                segments.remove(0).delete();
+            }
+            readPos = 0;
+            peekPos = 0;
+
+            if (spilling) {
+                spilling = false;
+                LOG.error("Finished replaying alerts from " + directory);
+            }
+        }
+    }
+
+    /**
+     * Commit a single record which was read since the last
+     * <tt>commit()</tt> or <tt>rewind()</tt>, so it will not be read
+     * again even if the others are rewound.
+     *
+     * @param alert record returned by <tt>read()</tt>
+     *
+     * @return <tt>false</tt> if the record did not come from this journal
+     */
+    synchronized boolean delivered(EncodedAlert alert)
+    {
+        for (int i = 0; i < pending.size(); i++) {
+            final Pending rec = pending.get(i);
+            if (rec.alert == alert) {
+                final int len = rec.seg.buf.getInt(rec.pos);
+                rec.seg.buf.putInt(rec.pos, -len);
+
+                pending.remove(i);
+                peekCount--;
+                numRecords--;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Note that the records read since the last <tt>commit()</tt> which
+     * were not <tt>delivered()</tt> could not be sent, and rewind so
+     * they will be read again.  After
+     * <tt>MAX_REPLAY_FAILURES</tt> failures, records are read one at a
+     * time; if a single record then fails <tt>MAX_REPLAY_FAILURES</tt>
+     * more times, it is dropped.
+     */
+    synchronized void failed()
+    {
+        if (peekCount == 0) {
+            // every record was delivered
+            commit();
+            return;
+        }
+
+        numFailures++;
+        if (numFailures >= 2 * MAX_REPLAY_FAILURES && peekCount == 1) {
+            LOG.error("Dropping alert from " + directory + " after " +
+                      numFailures + " failed attempts to send it");
+            numDropped++;
+            commit();
+            return;
+        }
+
+        rewind();
+    }
+
+    /**
+     * Create and map a new segment file.
+     *
+     * @return new segment
+     *
+     * @throws IOException if the segment cannot be created
+     */
+    private Segment createSegment()
+        throws IOException
+    {
+        final String name = String.format("%s%012d%s", PREFIX,
+                                          nextSegmentNum++, SUFFIX);
+
+        Segment seg = new Segment(new File(directory, name), segmentSize);
+        segments.add(seg);
+        return seg;
+    }
+
+    /**
+     * Get the journal directory
+     *
+     * @return directory
+     */
+    File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Get the number of records which could not be written
+     *
+     * @return number of dropped records
+     */
+    synchronized long getNumDropped()
+    {
+        return numDropped;
+    }
+
+    /**
+     * Get the number of records waiting to be replayed
+     *
+     * @return number of records
+     */
+    synchronized long getNumRecords()
+    {
+        return numRecords;
+    }
+
+    /**
+     * Is the journal currently accepting alerts?
+     *
+     * @return <tt>true</tt> if new alerts should be added to the journal
+     */
+    boolean isSpilling()
+    {
+        return spilling;
+    }
+
+    /**
+     * Negate the lengths of committed records so they are skipped if the
+     * segment is recovered by a later run.
+     *
+     * @param seg segment
+     * @param start position of the first committed record
+     * @param end position after the last committed record
+     */
+    private static void markCommitted(Segment seg, int start, int end)
+    {
+        int pos = start;
+        while (pos < end) {
+            final int len = seg.buf.getInt(pos);
+            if (len == 0) {
+                break;
+            }
+
+            // records may already have been committed by delivered()
+            if (len > 0) {
+                seg.buf.putInt(pos, -len);
+            }
+            pos += HEADER_BYTES + (len < 0 ? -len : len);
+        }
+    }
+
+    /**
+     * Read up to <tt>max</tt> records which have not been read since the
+     * last <tt>commit()</tt> or <tt>rewind()</tt>.
+     *
+     * @param out list of records
+     * @param max maximum number of records to read
+     *
+     * @return number of records read
+     */
+    synchronized int read(List<? super EncodedAlert> out, int max)
+    {
+        if (numFailures >= MAX_REPLAY_FAILURES && max > 1) {
+            // find out which record is failing
+            max = 1;
+        }
+
+        int num = 0;
+        while (num < max && peekIndex < segments.size()) {
+            final Segment seg = segments.get(peekIndex);
+
+            final int len;
+            if (peekPos + HEADER_BYTES > seg.writePos) {
+                len = 0;
+            } else {
+                len = seg.buf.getInt(peekPos);
+            }
+
+            if (len == 0) {
+                if (peekIndex == segments.size() - 1) {
+                    // caught up with the writer
+                    break;
+                }
+
+                peekIndex++;
+                peekPos = 0;
+                continue;
+            }
+
+            if (len < 0) {
+                // skip records committed by delivered()
+                peekPos += HEADER_BYTES - len;
+                continue;
+            }
+
+            byte[] bytes = new byte[len];
+            seg.buf.position(peekPos + HEADER_BYTES);
+            seg.buf.get(bytes);
+
+            final EncodedAlert alert = new EncodedAlert(bytes);
+            pending.add(new Pending(alert, seg, peekPos));
+            out.add(alert);
+
+            peekPos += HEADER_BYTES + len;
+            peekCount++;
+            num++;
+        }
+
+        if (num == 0 && peekCount == 0 && numRecords == 0 && spilling) {
+            // everything we tried to spill was dropped
+            commit();
+        }
+
+        return num;
+    }
+
+    /**
+     * Find and open segments left by an earlier run.
+     *
+     * @throws IOException if a segment cannot be opened
+     */
+    private void recover()
+        throws IOException
+    {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list journal directory " +
+                                  directory);
+        }
+
+        Arrays.sort(files);
+
+        for (File f : files) {
+            final String name = f.getName();
+            if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+                continue;
+            }
+
+            long num;
+            try {
+                num = Long.parseLong(name.substring(PREFIX.length(),
+                                                    name.length() -
+                                                    SUFFIX.length()));
+            } catch (NumberFormatException nfe) {
+                continue;
+            }
+
+            Segment seg = new Segment(f, (int) f.length());
+
+            // find the end of the valid records, skipping committed ones
+            int firstPos = -1;
+            int pos = 0;
+            while (pos + HEADER_BYTES <= seg.size) {
+                final int len = seg.buf.getInt(pos);
+                final int absLen = (len < 0 ? -len : len);
+                if (len == 0 || absLen < 0 ||
+                    pos + HEADER_BYTES + absLen > seg.size)
+                {
+                    break;
+                }
+
+                if (len > 0) {
+                    if (firstPos < 0) {
+                        firstPos = pos;
+                    }
+                    numRecords++;
+                }
+                pos += HEADER_BYTES + absLen;
+            }
+            seg.writePos = pos;
+
+            if (num >= nextSegmentNum) {
+                nextSegmentNum = num + 1;
+            }
+
+            if (segments.size() == 0) {
+                if (firstPos < 0) {
+                    // every record was committed
+                    seg.delete();
+                    continue;
+                }
+
+                readPos = firstPos;
+                peekPos = firstPos;
+            }
+
+            segments.add(seg);
+        }
+
+        if (numRecords == 0) {
+            while (segments.size() > 0) {
+                segments.remove(0).delete();
+            }
+            readPos = 0;
+            peekPos = 0;
+        } else {
+            LOG.error("Recovered " + numRecords + " alerts from " +
+                      directory);
+            spilling = true;
+        }
+    }
+
+    /**
+     * Forget all records read since the last <tt>commit()</tt> so they
+     * will be read again.
+     */
+    synchronized void rewind()
+    {
+        peekIndex = 0;
+        peekPos = readPos;
+        peekCount = 0;
+        pending.clear();
+    }
+
+    /**
+     * Journal description
+     *
+     * @return debugging string
+     */
+    @Override
+    public String toString()
+    {
+        return "AlertJournal[" + directory + "]";
+    }
+
+    /**
+     * Location of a record which has been read but not committed
+     */
+    private static final class Pending
+    {
+        private final EncodedAlert alert;
+        private final Segment seg;
+        private final int pos;
+
+        Pending(EncodedAlert alert, Segment seg, int pos)
+        {
+            this.alert = alert;
+            this.seg = seg;
+            this.pos = pos;
+        }
+    }
+
+    /**
+     * Memory-mapped journal file
+     */
+    private static final class Segment
+    {
+        private final File file;
+        private final int size;
+        private final MappedByteBuffer buf;
+        /** Position after the last record */
+        private int writePos;
+
+        Segment(File file, int size)
+            throws IOException
+        {
+            this.file = file;
+            this.size = size;
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+
+                buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                           0, size);
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Unmap and delete the segment file.  The segment must not be
+         * used after this.
+         */
+        void delete()
+        {
+            // the disk space isn't freed until the mapping is gone
+            unmap(buf);
+
+            if (!file.delete()) {
+                LOG.error("Cannot delete journal segment " + file);
+            }
+        }
+    }
+
+    /**
+     * Release a mapped buffer now instead of waiting for it to be
+     * garbage-collected.  The buffer must not be used after this.
+     *
+     * @param buf mapped buffer
+     */
+    private static void unmap(MappedByteBuffer buf)
+    {
+        if (unmapFailed) {
+            return;
+        }
+
+        try {
+            if (UNSAFE_CLEANER != null) {
+                UNSAFE_CLEANER.invoke(UNSAFE, buf);
+            } else {
+                // Java 8: ((sun.nio.ch.DirectBuffer) buf).cleaner().clean()
+                final Method getCleaner =
+                    buf.getClass().getMethod("cleaner");
+                getCleaner.setAccessible(true);
+                final Object cleaner = getCleaner.invoke(buf);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception ex) {
+            unmapFailed = true;
+            LOG.error("Cannot unmap journal segments; disk space will be" +
+                      " freed when they are garbage-collected", ex);
+        }
+    }
+}
@@ -1,18 +1,29 @@
 package icecube.daq.juggler.alert;
 
+import icecube.daq.juggler.WorkerThreads;
 import icecube.daq.payload.IUTCTime;
 import icecube.daq.payload.impl.UTCTime;
 
-import java.util.ArrayDeque;
-import java.util.Calendar;
-import java.util.Deque;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
 /**
- * Thread which queues and sends alerts
+ * Thread which queues and sends alerts.
+ *
+ * Each alert priority has its own bounded queue, drained by the sender
+ * thread in priority order.
  */
 public class AlertQueue
     implements Runnable, IAlertQueue
@@ -22,22 +33,92 @@ public class AlertQueue
     private static final Logger LOG = Logger.getLogger(AlertQueue.class);
 
     private static final int MAX_QUEUE_SIZE = 1000000;
+    /** Maximum number of alerts handed to the alerter at once */
+    private static final int MAX_BATCH_SIZE = 100;
+    /** Maximum number of high-priority (ITS and EMAIL) alerts */
+    private static final int MAX_URGENT_QUEUE_SIZE = 10000;
+    /** Maximum number of SCP alerts */
+    private static final int MAX_SCP_QUEUE_SIZE = 100000;
+    /** Maximum estimated size of queued DEBUG alerts */
+    private static final long MAX_QUEUE_BYTES = 128L * 1024L * 1024L;
+    /** Maximum estimated size of queued ITS or EMAIL alerts */
+    private static final long MAX_URGENT_QUEUE_BYTES = 16L * 1024L * 1024L;
+    /** Maximum estimated size of queued SCP alerts */
+    private static final long MAX_SCP_QUEUE_BYTES = 32L * 1024L * 1024L;
+    /** Time to wait before retrying journal replay after a send fails */
+    private static final long REPLAY_RETRY_NANOS = 1000000000L;
+    /** Time to wait before resending a batch which would have blocked */
+    private static final long BLOCKED_RETRY_MILLIS = 10L;
+    /** Longest time to park before checking the alerter again */
+    private static final long PARK_POLL_MILLIS = 100L;
+    /** Time to wait for the thread to exit after abandoning alerts */
+    private static final long ABANDON_WAIT_MILLIS = 1000L;
+    /** Time <tt>stopAndWait()</tt> waits for the thread to exit */
+    private static final long STOP_WAIT_MILLIS = 100000L;
+
+    /** Result of handing alerts to an alerter */
+    private enum SendResult
+    {
+        /** All alerts were sent */
+        SENT,
+        /** Some alerts could not be sent and were discarded */
+        FAILED,
+        /** Receiver is not keeping up; unsent alerts are still queued */
+        BLOCKED;
+    }
 
     private Alerter alerter;
     private String name;
 
-    private Thread thread;
-    private Deque queue = new ArrayDeque();
+    /** Guards thread start/stop */
+    private final Object threadLock = new Object();
+    /** Notified when the sender thread goes idle or exits */
+    private final Object flushLock = new Object();
+
+    /** Wakes the sender thread when alerts are added to any queue */
+    private final AlertWaiter waiter = new AlertWaiter();
+    /** Per-priority queues, highest priority first */
+    private final Lane[] lanes;
+    /** Ring buffers from all lanes, used when checking for empty queues */
+    private volatile AlertRingBuffer<?>[] rings;
+    /** Sum of all lane weights */
+    private final int totalWeight;
 
-    private long numSent;
-    private long numDropped;
+    /** Collapses repeated alerts (disabled by default) */
+    private final AlertCoalescer coalescer = new AlertCoalescer();
+    /** Per-varname rate limits (disabled by default) */
+    private final AlertRateLimiter limiter = new AlertRateLimiter();
+    /** Sends some alerts to other alerters (empty by default) */
+    private final AlertRouter router = new AlertRouter();
+    /** Handles for alerts pushed by <tt>pushAsync()</tt> */
+    private final Map<Map<String, Object>, AlertFuture> futures =
+        Collections.synchronizedMap(new IdentityHashMap<Map<String, Object>,
+                                    AlertFuture>());
 
-    private int maxQueueSize = MAX_QUEUE_SIZE;
-    private boolean queueFull;
+    private volatile long numSent;
+    /** Number of sends which would have blocked */
+    private volatile long numBlocked;
+    /** Number of times the sender parked while the receiver was down */
+    private volatile long numParked;
+    /** Number of alerts discarded because the queue was stopped */
+    private volatile long numAbandoned;
+    /**
+     * Time until a routed alerter whose alerts were held back by the
+     * last batch should be tried again (only used by the sender thread)
+     */
+    private long heldMillis;
+    /** Time from when each alert is queued until it has been sent */
+    private final AlertHistogram latency = new AlertHistogram();
+    /** Time spent by the alerter sending each batch */
+    private final AlertHistogram sendTime = new AlertHistogram();
+
+    private volatile int maxBatchSize = MAX_BATCH_SIZE;
 
     private volatile boolean idle = true;
     private volatile boolean stopping;
     private volatile boolean stopped = true;
+    /** Set when queued alerts should be discarded rather than sent */
+    private volatile boolean abandoning;
 
     /**
      * Create an AlertQueue with a thread named <tt>"AlertQueue"</tt>
@@ -60,331 +141,1865 @@ public class AlertQueue
     {
         this.name = name;
         this.alerter = alerter;
-    }
 
-    private Map<String, Object> buildMessage(String varname,
-                                             Alerter.Priority priority,
-                                             IUTCTime utc,
-                                             Map<String, Object> values)
-    {
-        final String dateStr = utc.toDateString();
+        final Alerter.Priority[] prios = Alerter.Priority.values();
 
-        String service;
-        if (alerter != null) {
-            service = alerter.getService();
-        } else {
-            service = Alerter.DEFAULT_SERVICE;
-        }
+        int weightSum = 0;
+        lanes = new Lane[prios.length];
+        for (int i = 0; i < prios.length; i++) {
+            // each priority gets twice the share of the one below it
+            final int weight = 1 << (prios.length - 1 - i);
 
-        HashMap<String, Object> map = new HashMap<String, Object>();
-        map.put("service", service);
-        map.put("varname", varname);
-        map.put("prio", priority.value());
-        map.put("t", dateStr);
-        if (values != null && values.size() > 0) {
-            map.put("value", values);
+            lanes[i] = new Lane(prios[i], weight, getDefaultSize(prios[i]),
+                                getDefaultBytes(prios[i]), waiter);
+            weightSum += weight;
         }
-        return map;
+        totalWeight = weightSum;
+
+        buildRings();
     }
 
     /**
-     * Get number of alerts dropped while the queue was full
+     * Discard the unsent batch and everything still queued, completing
+     * their handles.  Journaled alerts are left in their journals.
      *
-     * @return number of dropped alerts
+     * @param batch unsent alerts
+     * @param times scratch array used while draining the queues
      */
-    public long getNumDropped()
+    private void abandon(ArrayList<Object> batch, long[] times)
     {
-        return numDropped;
+        finishReplay(false);
+
+        long num = 0;
+        do {
+            for (Object obj : batch) {
+                if (obj instanceof Map) {
+                    num++;
+                }
+            }
+            completeFutures(batch, AlertFuture.Status.ABANDONED);
+            recycle(batch);
+            batch.clear();
+        } while (drainLanes(batch, times.length, times) > 0);
+
+        numAbandoned += num;
     }
 
     /**
-     * Get number of alerts queued for delivery
+     * Send alerts which match a priority and/or varname pattern to a
+     * different alerter.  Routes are checked in the order they were added
+     * and the first match wins; alerts which match no route are sent to
+     * the queue's own alerter.  Routed alerters are closed when the queue
+     * stops.
      *
-     * @return number of queued alerts
+     * @param prio alert priority (<tt>null</tt> to match all priorities)
+     * @param varnameGlob varname pattern (<tt>*</tt> matches any
+     *                    characters, <tt>?</tt> matches one character;
+     *                    <tt>null</tt> to match all varnames)
+     * @param dest alerter which receives matching alerts
      */
-    public int getNumQueued()
+    public void addRoute(Alerter.Priority prio, String varnameGlob,
+                         Alerter dest)
     {
-        return queue.size();
+        if (dest == null) {
+            throw new Error("Route alerter cannot be null");
+        }
+
+        router.addRoute(prio, varnameGlob, dest);
     }
 
     /**
-     * Get number of alerts successfully sent
-     *
-     * @return number of sent alerts
+     * Remember the current ring buffer for every lane.
      */
-    public long getNumSent()
+    private void buildRings()
     {
-        return numSent;
+        AlertRingBuffer<?>[] tmpRings = new AlertRingBuffer<?>[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            tmpRings[i] = lanes[i].ring;
+        }
+        rings = tmpRings;
     }
 
     /**
-     * Is the thread idle?
+     * Build an alert envelope from the pool of alert records.
      *
-     * @return <tt>true</tt> if the thread is waiting for alerts
+     * @param varname alert name
+     * @param priority alert priority
+     * @param utc alert time
+     * @param values alert values
+     *
+     * @return alert envelope
      */
-    public boolean isIdle()
+    private AlertRecord buildMessage(String varname,
+                                     Alerter.Priority priority,
+                                     IUTCTime utc,
+                                     Map<String, Object> values)
     {
-        return idle;
+        final String dateStr = AlertTimeFormatter.format(utc);
+
+        String service;
+        if (alerter != null) {
+            service = alerter.getService();
+        } else {
+            service = Alerter.DEFAULT_SERVICE;
+        }
+
+        return AlertRecord.acquire(this, service, varname, priority,
+                                   dateStr, values);
     }
 
     /**
-     * Is the thread stopped?
+     * Build the summary alert for a window of repeated alerts.
      *
-     * @return <tt>true</tt> if the thread is not running
+     * @param rep repeated alerts
+     *
+     * @return summary alert
      */
-    @Override
-    public boolean isStopped()
+    private AlertRecord buildSummary(AlertCoalescer.Repeat rep)
     {
-        return stopped;
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        if (rep.getValues() != null) {
+            values.putAll(rep.getValues());
+        }
+        values.put(AlertCoalescer.REPEAT_COUNT, rep.getCount());
+        values.put(AlertCoalescer.FIRST_TIME,
+                   AlertTimeFormatter.format(rep.getFirstTime()));
+        values.put(AlertCoalescer.LAST_TIME,
+                   AlertTimeFormatter.format(rep.getLastTime()));
+
+        return buildMessage(rep.getVarname(), rep.getPriority(),
+                            rep.getLastTime(), values);
     }
 
     /**
-     * Add <tt>obj</tt> to the queue of alerts to be sent
+     * Fill <tt>batch</tt> with queued alerts.  Each lane is first given a
+     * share of the batch proportional to its weight (highest priority
+     * first), then any remaining space goes to the highest-priority lanes
+     * which still have alerts.
      *
-     * @param map alert to be sent
+     * @param batch list of alerts to be sent
+     * @param max maximum number of alerts
+     * @param times time each alert was queued, indexed by batch position
      *
-     * @throws AlertException if there is a problem with the alerter or
-     *                        the thread is stopped
+     * @return number of alerts added to the batch
      */
-    @Override
-    public void push(Map<String, Object> map)
-        throws AlertException
+    private int drainLanes(ArrayList<Object> batch, int max, long[] times)
     {
-        if (alerter == null) {
-            throw new AlertException("Alerter has not been set");
-        } else if (stopping || stopped) {
-            throw new AlertException("Alert queue " + name +
-                                     " has not been started");
-        }
-
-        synchronized (queue) {
-            if (!queueFull) {
-                // if queue is "too large", stop adding stuff
-                queueFull = queue.size() >= maxQueueSize;
-                if (queueFull) {
-                    LOG.error("Disabled alert queue " + name + " containing " +
-                              queue.size() + " messages");
-                }
-            } else {
-                // if queue has shrunk enough, resume adding stuff
-                queueFull = queue.size() >= maxQueueSize / 2;
-                if (!queueFull) {
-                    LOG.error("Reenabled alert queue " + name +
-                              " containing " + queue.size() +
-                              " messages (dropped " + numDropped + ")");
-                }
+        int total = 0;
+        for (int i = 0; i < lanes.length && total < max; i++) {
+            int share = max * lanes[i].weight / totalWeight;
+            if (share < 1) {
+                share = 1;
+            } else if (share > max - total) {
+                share = max - total;
             }
 
-            if (queueFull) {
-                numDropped++;
-            } else {
-                queue.addLast(map);
-                queue.notify();
-            }
+            total += lanes[i].ring.drainTo(batch, share, times);
+        }
+
+        for (int i = 0; i < lanes.length && total < max; i++) {
+            total += lanes[i].ring.drainTo(batch, max - total, times);
         }
+
+        return total;
     }
 
     /**
-     * Add this alert to the queue of alerts to be sent
-     *
-     * @param varname alert name
-     * @param prio alert priority
-     * @param values alert values
+     * Remove all routes, so every alert is sent to the queue's own
+     * alerter.
+     */
+    public void clearRoutes()
+    {
+        router.clear();
+    }
+
+    /**
+     * Complete the handles for any alerts pushed by <tt>pushAsync()</tt>.
      *
-     * @throws AlertException if there is a problem with the alerter or
-     *                        the thread is stopped
+     * @param list alerts
+     * @param status final status
      */
-    @Override
-    public void push(String varname, Alerter.Priority prio,
-                     Map<String, Object> values)
-        throws AlertException
+    private void completeFutures(List<Object> list, AlertFuture.Status status)
     {
-        push(varname, prio, new UTCTime(), values);
+        if (futures.isEmpty()) {
+            return;
+        }
+
+        for (Object obj : list) {
+            final AlertFuture future = futures.remove(obj);
+            if (future != null) {
+                future.complete(status);
+            }
+        }
     }
 
     /**
-     * Add this alert to the queue of alerts to be sent
+     * Wait until all queued alerts (including any in overflow journals)
+     * have been sent, or until <tt>millis</tt> milliseconds have passed.
+     * Alerts held in an open coalescing window are not flushed.
      *
-     * @param varname alert name
-     * @param prio alert priority
-     * @param utcTime alert time
-     * @param values alert values
+     * @param millis maximum time to wait
      *
-     * @throws AlertException if there is a problem with the alerter or
-     *                        the thread is stopped
+     * @return number of alerts sent while waiting
      */
-    @Override
-    public void push(String varname, Alerter.Priority prio, IUTCTime utcTime,
-                     Map<String, Object> values)
-        throws AlertException
+    public long flush(long millis)
     {
-        if (utcTime == null) {
-            utcTime = new UTCTime();
+        final long before = numSent;
+        final long deadline = System.currentTimeMillis() + millis;
+
+        synchronized (flushLock) {
+            while (!stopped && !(idle && getNumQueued() == 0)) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                try {
+                    flushLock.wait(remaining);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
         }
 
-        push(buildMessage(varname, prio, utcTime, values));
+        return numSent - before;
     }
 
     /**
-     * Run the thread
+     * Queue summaries for all coalescing windows which have closed.
+     *
+     * @param summaries reusable list of closed windows
+     * @param all if <tt>true</tt>, close all windows
+     *
+     * @return number of nanoseconds until the next window closes, or
+     *         <tt>0</tt> if there are no open windows
      */
-    @Override
-    public void run()
+    private long flushRepeats(List<AlertCoalescer.Repeat> summaries,
+                              boolean all)
     {
-        stopped = false;
-        try {
-            runLoop();
-        } finally {
-            stopped = true;
+        final long waitNanos = coalescer.flush(summaries, all);
+        for (AlertCoalescer.Repeat rep : summaries) {
+            final AlertRecord rec = buildSummary(rep);
+            if (lanes[rep.getPriority().ordinal()].push(name, rec) !=
+                AlertFuture.Status.PENDING)
+            {
+                AlertRecord.release(this, rec);
+            }
         }
+        summaries.clear();
+
+        return waitNanos;
     }
 
     /**
-     * Main thread loop
+     * Commit or rewind all journal records which were added to the last
+     * batch.
+     *
+     * @param sent <tt>true</tt> if the batch was sent successfully
      */
-    private void runLoop()
+    private void finishReplay(boolean sent)
     {
-        while (!stopping || queue.size() > 0) {
-            Object obj;
-            synchronized (queue) {
-                if (queue.size() == 0 && !stopping) {
-                    try {
-                        idle = true;
-                        queue.wait();
-                    } catch (InterruptedException ie) {
-                        LOG.error("Interrupt while waiting for alert queue " +
-                                  name, ie);
-                    }
-                    idle = false;
-                }
-
-                if (queue.size() == 0) {
-                    obj = null;
+        for (int i = 0; i < lanes.length; i++) {
+            if (lanes[i].replaying) {
+                if (sent) {
+                    lanes[i].journal.commit();
                 } else {
-                    obj = queue.removeFirst();
+                    lanes[i].journal.rewind();
                 }
+                lanes[i].replaying = false;
             }
+        }
+    }
 
-            if (obj == null) {
-                // we woke up to an empty queue or were stopped when the
-                // queue was empty; go to top of loop
-                continue;
+    /**
+     * Tell the journals that the records added to the last batch could
+     * not be sent, so a record which always fails is eventually dropped.
+     * Records which were delivered by <tt>replayDelivered()</tt> are not
+     * replayed again.
+     */
+    private void failReplay()
+    {
+        for (int i = 0; i < lanes.length; i++) {
+            if (lanes[i].replaying) {
+                lanes[i].journal.failed();
+                lanes[i].replaying = false;
             }
+        }
+    }
 
-            try {
-                alerter.sendObject(obj);
-                numSent++;
-            } catch (AlertException ae) {
-                LOG.error("Alert queue " + name + " cannot send " + obj, ae);
+    /**
+     * Commit any journaled alerts in a list which has been sent, so they
+     * aren't replayed again if other alerts in the batch fail.
+     *
+     * @param list alerts which have been sent
+     */
+    private void replayDelivered(List<Object> list)
+    {
+        for (Object obj : list) {
+            if (obj instanceof EncodedAlert) {
+                for (int i = 0; i < lanes.length; i++) {
+                    if (lanes[i].replaying &&
+                        lanes[i].journal.delivered((EncodedAlert) obj))
+                    {
+                        break;
+                    }
+                }
             }
         }
+    }
 
-        if (alerter != null && alerter.isActive()) {
-            alerter.close();
+    /**
+     * Get the object responsible for sending alerts
+     *
+     * @return alerter
+     */
+    Alerter getAlerter()
+    {
+        return alerter;
+    }
+
+    /**
+     * Get the state of the alerter's receiver
+     *
+     * @return receiver state (<tt>null</tt> if the alerter does not track
+     *         its receiver)
+     */
+    public HealthReportingAlerter.State getAlerterState()
+    {
+        final Alerter tmpAlerter = alerter;
+        if (!(tmpAlerter instanceof HealthReportingAlerter)) {
+            return null;
         }
 
-        thread = null;
+        return ((HealthReportingAlerter) tmpAlerter).getState();
     }
 
     /**
-     * Set the object responsible for sending alerts
-     *
-     * @param alerter alerter object
+     * Get the number of times the alerter's receiver state has changed
      *
-     * @throws Error if alerter is null
+     * @return number of state changes (<tt>0</tt> if the alerter does not
+     *         track its receiver)
      */
-    public void setAlerter(Alerter alerter)
+    public long getAlerterStateChanges()
     {
-        if (alerter == null) {
-            throw new Error("Alerter cannot be null");
+        final Alerter tmpAlerter = alerter;
+        if (!(tmpAlerter instanceof HealthReportingAlerter)) {
+            return 0L;
         }
 
-        this.alerter = alerter;
+        return ((HealthReportingAlerter) tmpAlerter).getNumStateChanges();
     }
 
     /**
-     * Set the maximum queue size.
-     * NOTE: This is only used by unit tests
+     * Get the coalescing window
      *
-     * @param size maximum queue size
+     * @return window length in milliseconds (<tt>0</tt> if disabled)
      */
-    public void setMaxQueueSize(int size)
+    public long getCoalesceWindow()
     {
-        maxQueueSize = size;
+        return coalescer.getWindow();
     }
 
     /**
-     * Start the thread if it isn't already running
+     * Get the default maximum estimated size of queued alerts for a
+     * priority.
+     *
+     * @param prio alert priority
+     *
+     * @return maximum number of bytes
      */
-    @Override
-    public void start()
+    private static long getDefaultBytes(Alerter.Priority prio)
     {
-        synchronized (queue) {
-            if (!stopping && stopped) {
-                stopping = false;
-                stopped = false;
-
-                thread = new Thread(this);
-                thread.setName(name);
-                thread.start();
-            }
+        switch (prio) {
+        case ITS:
+        case EMAIL:
+            return MAX_URGENT_QUEUE_BYTES;
+        case SCP:
+            return MAX_SCP_QUEUE_BYTES;
+        default:
+            return MAX_QUEUE_BYTES;
         }
     }
 
     /**
-     * Stop the thread if it's running
+     * Get the default maximum number of queued alerts for a priority.
+     *
+     * @param prio alert priority
+     *
+     * @return maximum queue size
      */
-    @Override
-    public void stop()
+    private static int getDefaultSize(Alerter.Priority prio)
     {
-        synchronized (queue) {
-            if (!stopped) {
-                stopping = true;
-                queue.notify();
-            }
+        switch (prio) {
+        case ITS:
+        case EMAIL:
+            return MAX_URGENT_QUEUE_SIZE;
+        case SCP:
+            return MAX_SCP_QUEUE_SIZE;
+        default:
+            return MAX_QUEUE_SIZE;
         }
     }
 
     /**
-     * Tell the thread to stop and wait until it is fully stopped.
-     * NOTE: This is currently only used by unit tests.
+     * Get the largest number of alerts ever queued for a priority
      *
-     * @throws Error if the thread was not stopped
+     * @param prio alert priority
+     *
+     * @return high-water mark
      */
-    public void stopAndWait()
+    public int getHighWaterMark(Alerter.Priority prio)
     {
-        synchronized (queue) {
-            if (!stopped) {
-                stopping = true;
-                queue.notify();
+        return lanes[prio.ordinal()].highWater.get();
+    }
 
-                for (int i = 0; i < 1000; i++) {
-                    if (stopped) {
-                        break;
-                    }
+    /**
+     * Get the histogram of times from when alerts were queued until they
+     * were sent
+     *
+     * @return latency histogram
+     */
+    AlertHistogram getLatencyHistogram()
+    {
+        return latency;
+    }
 
-                    try {
-                        queue.wait(100);
-                    } catch (InterruptedException ie) {
-                        continue;
-                    }
+    /**
+     * Find the lane for an alert which was pushed as a map.  Maps without
+     * a valid <tt>prio</tt> entry are treated as DEBUG alerts.
+     *
+     * @param map alert
+     *
+     * @return lane
+     */
+    private Lane getLane(Map<String, Object> map)
+    {
+        if (map instanceof AlertRecord) {
+            return lanes[((AlertRecord) map).getPriority().ordinal()];
+        }
+
+        final Object val = map.get("prio");
+        if (val instanceof Number) {
+            final int prioVal = ((Number) val).intValue();
+            for (int i = 0; i < lanes.length; i++) {
+                if (lanes[i].prio.value() == prioVal) {
+                    return lanes[i];
                 }
             }
         }
 
-        if (!stopped) {
-            throw new Error("Cannot stop " + name + "; queue has " +
-                            queue.size() + " alerts, stopping is " +
-                            stopping);
+        return lanes[Alerter.Priority.DEBUG.ordinal()];
+    }
+
+    /**
+     * Get number of alerts which were collapsed into a summary alert
+     *
+     * @return number of coalesced alerts
+     */
+    public long getNumCoalesced()
+    {
+        return coalescer.getNumCoalesced();
+    }
+
+    /**
+     * Get number of alerts dropped while the queue was full
+     *
+     * @return number of dropped alerts
+     */
+    public long getNumDropped()
+    {
+        long total = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            total += lanes[i].getNumDropped();
         }
+        return total;
     }
 
     /**
-     * Thread name
+     * Get number of alerts of the specified priority which were dropped
+     * while their queue was full
+     *
+     * @param prio alert priority
+     *
+     * @return number of dropped alerts
      */
-    @Override
-    public String toString()
+    public long getNumDropped(Alerter.Priority prio)
     {
-        return name;
+        return lanes[prio.ordinal()].getNumDropped();
+    }
+
+    /**
+     * Get number of alerts queued for delivery (including any in an
+     * overflow journal)
+     *
+     * @return number of queued alerts
+     */
+    public int getNumQueued()
+    {
+        int total = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            total += lanes[i].ring.size() + lanes[i].getNumSpilled();
+        }
+        return total;
+    }
+
+    /**
+     * Get number of alerts of the specified priority queued for delivery
+     * (including any in an overflow journal)
+     *
+     * @param prio alert priority
+     *
+     * @return number of queued alerts
+     */
+    public int getNumQueued(Alerter.Priority prio)
+    {
+        final Lane lane = lanes[prio.ordinal()];
+        return lane.ring.size() + lane.getNumSpilled();
+    }
+
+    /**
+     * Get number of alerts discarded because the queue was stopped before
+     * they could be sent
+     *
+     * @return number of abandoned alerts
+     */
+    public long getNumAbandoned()
+    {
+        return numAbandoned;
+    }
+
+    /**
+     * Get number of batches which could not be sent because the receiver
+     * was not keeping up
+     *
+     * @return number of blocked sends
+     */
+    public long getNumBlocked()
+    {
+        return numBlocked;
+    }
+
+    /**
+     * Get number of times the sender thread parked because the receiver
+     * was down
+     *
+     * @return number of times the sender parked
+     */
+    public long getNumParked()
+    {
+        return numParked;
+    }
+
+    /**
+     * Get number of pushes discarded by rate limits
+     *
+     * @return number of suppressed pushes
+     */
+    public long getNumSuppressed()
+    {
+        return limiter.getNumSuppressed();
+    }
+
+    /**
+     * Get number of alerts waiting in overflow journals
+     *
+     * @return number of spilled alerts
+     */
+    public long getNumSpilled()
+    {
+        long total = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            total += lanes[i].getNumSpilled();
+        }
+        return total;
+    }
+
+    /**
+     * Get number of alerts successfully sent
+     *
+     * @return number of sent alerts
+     */
+    public long getNumSent()
+    {
+        return numSent;
+    }
+
+    /**
+     * Get the time before an alerter should be used again.
+     *
+     * @param dest alerter
+     *
+     * @return <tt>0</tt> unless the alerter's receiver is down
+     */
+    private static long getMillisUntilRetry(Alerter dest)
+    {
+        if (!(dest instanceof HealthReportingAlerter)) {
+            return 0L;
+        }
+
+        return ((HealthReportingAlerter) dest).getMillisUntilRetry();
+    }
+
+    /**
+     * Get the time the sender should park before using the alerters
+     * again.  If there are routes, the sender only parks while every
+     * alerter is down; alerts for a single routed alerter which is down
+     * are held by <tt>sendRouted()</tt>.
+     *
+     * @return <tt>0</tt> unless all the receivers are down
+     */
+    private long getParkMillis()
+    {
+        long millis = getMillisUntilRetry(alerter);
+        if (millis == 0 || router.isEmpty()) {
+            return millis;
+        }
+
+        for (Alerter dest : router.getAlerters()) {
+            final long destMillis = getMillisUntilRetry(dest);
+            if (destMillis == 0) {
+                return 0L;
+            } else if (destMillis < millis) {
+                millis = destMillis;
+            }
+        }
+
+        return millis;
+    }
+
+    /**
+     * Get the estimated size of all queued alerts (not including any in
+     * an overflow journal)
+     *
+     * @return number of bytes
+     */
+    public long getQueuedBytes()
+    {
+        long total = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            total += lanes[i].ring.getWeight();
+        }
+        return total;
+    }
+
+    /**
+     * Get the estimated size of all queued alerts of the specified
+     * priority (not including any in an overflow journal)
+     *
+     * @param prio alert priority
+     *
+     * @return number of bytes
+     */
+    public long getQueuedBytes(Alerter.Priority prio)
+    {
+        return lanes[prio.ordinal()].ring.getWeight();
+    }
+
+    /**
+     * Get the histogram of times the alerter took to send each batch
+     *
+     * @return send time histogram
+     */
+    AlertHistogram getSendTimeHistogram()
+    {
+        return sendTime;
+    }
+
+    /**
+     * Get the number of pushes discarded by rate limits for each varname
+     *
+     * @return map of varname to number of suppressed pushes
+     */
+    public Map<String, Long> getSuppressedCounts()
+    {
+        return limiter.getSuppressedCounts();
+    }
+
+    /**
+     * Is the thread idle?
+     *
+     * @return <tt>true</tt> if the thread is waiting for alerts
+     */
+    public boolean isIdle()
+    {
+        return idle;
+    }
+
+    /**
+     * Is the thread stopped?
+     *
+     * @return <tt>true</tt> if the thread is not running
+     */
+    @Override
+    public boolean isStopped()
+    {
+        return stopped;
+    }
+
+    /**
+     * Add <tt>obj</tt> to the queue of alerts to be sent
+     *
+     * @param map alert to be sent
+     *
+     * @throws AlertException if there is a problem with the alerter or
+     *                        the thread is stopped
+     */
+    @Override
+    public void push(Map<String, Object> map)
+        throws AlertException
+    {
+        push(getLane(map), map, null);
+    }
+
+    /**
+     * Add <tt>obj</tt> to the specified lane
+     *
+     * @param lane priority lane
+     * @param map alert to be sent
+     * @param future handle for the alert (may be <tt>null</tt>)
+     *
+     * @throws AlertException if there is a problem with the alerter or
+     *                        the thread is stopped
+     */
+    private void push(Lane lane, Map<String, Object> map,
+                      AlertFuture future)
+        throws AlertException
+    {
+        if (alerter == null) {
+            throw new AlertException("Alerter has not been set");
+        } else if (stopping || stopped) {
+            throw new AlertException("Alert queue " + name +
+                                     " has not been started");
+        }
+
+        if (future != null) {
+            // register the handle first since the alert may be sent at once
+            futures.put(map, future);
+        }
+
+        final AlertFuture.Status status = lane.push(name, map);
+        if (status != AlertFuture.Status.PENDING) {
+            if (future != null) {
+                futures.remove(map);
+                future.complete(status);
+            }
+
+            // alert was dropped or has already been serialized
+            // (records built by someone else are left to their owner)
+            AlertRecord.release(this, map);
+        }
+    }
+
+    /**
+     * Add this alert to the queue of alerts to be sent
+     *
+     * @param varname alert name
+     * @param prio alert priority
+     * @param values alert values
+     *
+     * @throws AlertException if there is a problem with the alerter or
+     *                        the thread is stopped
+     */
+    @Override
+    public void push(String varname, Alerter.Priority prio,
+                     Map<String, Object> values)
+        throws AlertException
+    {
+        if (!limiter.allow(varname, prio)) {
+            return;
+        }
+
+        pushAlert(varname, prio, new UTCTime(), values, null);
+    }
+
+    /**
+     * Add this alert to the queue of alerts to be sent
+     *
+     * @param varname alert name
+     * @param prio alert priority
+     * @param utcTime alert time
+     * @param values alert values
+     *
+     * @throws AlertException if there is a problem with the alerter or
+     *                        the thread is stopped
+     */
+    @Override
+    public void push(String varname, Alerter.Priority prio, IUTCTime utcTime,
+                     Map<String, Object> values)
+        throws AlertException
+    {
+        if (!limiter.allow(varname, prio)) {
+            return;
+        }
+
+        pushAlert(varname, prio, utcTime, values, null);
+    }
+
+    /**
+     * Add an alert which has passed the rate limits
+     *
+     * @param varname alert name
+     * @param prio alert priority
+     * @param utcTime alert time
+     * @param values alert values
+     * @param future handle for the alert (may be <tt>null</tt>)
+     *
+     * @throws AlertException if there is a problem with the alerter or
+     *                        the thread is stopped
+     */
+    private void pushAlert(String varname, Alerter.Priority prio,
+                           IUTCTime utcTime, Map<String, Object> values,
+                           AlertFuture future)
+        throws AlertException
+    {
+        if (utcTime == null) {
+            utcTime = new UTCTime();
+        }
+
+        if (coalescer.isEnabled() && !stopping && !stopped &&
+            coalescer.isRepeat(varname, prio, utcTime, values))
+        {
+            if (future != null) {
+                future.complete(AlertFuture.Status.SUPPRESSED);
+            }
+            return;
+        }
+
+        push(lanes[prio.ordinal()],
+             buildMessage(varname, prio, utcTime, values), future);
+    }
+
+    /**
+     * Add <tt>map</tt> to the queue of alerts to be sent and return a
+     * handle which reports what happened to it.
+     *
+     * @param map alert to be sent
+     *
+     * @return completion handle
+     *
+     * @throws AlertException if there is a problem with the alerter or
+     *                        the thread is stopped
+     */
+    public AlertFuture pushAsync(Map<String, Object> map)
+        throws AlertException
+    {
+        AlertFuture future = new AlertFuture();
+        push(getLane(map), map, future);
+        return future;
+    }
+
+    /**
+     * Add this alert to the queue of alerts to be sent and return a
+     * handle which reports what happened to it.
+     *
+     * @param varname alert name
+     * @param prio alert priority
+     * @param utcTime alert time (<tt>null</tt> for the current time)
+     * @param values alert values
+     *
+     * @return completion handle
+     *
+     * @throws AlertException if there is a problem with the alerter or
+     *                        the thread is stopped
+     */
+    public AlertFuture pushAsync(String varname, Alerter.Priority prio,
+                                 IUTCTime utcTime,
+                                 Map<String, Object> values)
+        throws AlertException
+    {
+        if (!limiter.allow(varname, prio)) {
+            return new AlertFuture(AlertFuture.Status.SUPPRESSED);
+        }
+
+        AlertFuture future = new AlertFuture();
+        pushAlert(varname, prio, utcTime, values, future);
+        return future;
+    }
+
+    /**
+     * Record how long the alerter took to send a batch and how long each
+     * alert waited to be sent.
+     *
+     * @param times time each alert was queued (<tt>0</tt> if unknown)
+     * @param num number of alerts sent
+     * @param start time the alerter was called
+     */
+    private void recordTimes(long[] times, int num, long start)
+    {
+        final long now = System.nanoTime();
+
+        sendTime.record(now - start);
+        for (int i = 0; i < num; i++) {
+            if (times[i] != 0) {
+                latency.record(now - times[i]);
+            }
+        }
+    }
+
+    /**
+     * Return any alert records built by this queue to the pool.
+     *
+     * @param list alerts which have been serialized or discarded
+     */
+    private void recycle(List<Object> list)
+    {
+        for (Object obj : list) {
+            AlertRecord.release(this, obj);
+        }
+    }
+
+    /**
+     * Add journaled alerts to the batch.  A lane's journal is only
+     * replayed once its queue is empty, so alerts are sent in the order
+     * they were pushed.
+     *
+     * @param batch list of alerts to be sent
+     * @param max maximum number of alerts to add
+     *
+     * @return number of alerts added to the batch
+     */
+    private int replayJournals(ArrayList<Object> batch, int max)
+    {
+        int total = 0;
+        for (int i = 0; i < lanes.length && total < max; i++) {
+            final AlertJournal jnl = lanes[i].journal;
+            if (jnl != null && lanes[i].ring.isEmpty()) {
+                final int num = jnl.read(batch, max - total);
+                if (num > 0) {
+                    lanes[i].replaying = true;
+                    total += num;
+                }
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Run the thread
+     */
+    @Override
+    public void run()
+    {
+        stopped = false;
+        try {
+            runLoop();
+        } finally {
+            stopped = true;
+
+            synchronized (flushLock) {
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Main thread loop.  A batch which the alerter could not send
+     * immediately is kept and retried, and the loop parks while the
+     * alerter reports that its receiver is down.
+     */
+    private void runLoop()
+    {
+        ArrayList<Object> batch = new ArrayList<Object>();
+        ArrayList<AlertCoalescer.Repeat> summaries =
+            new ArrayList<AlertCoalescer.Repeat>();
+        long[] times = new long[maxBatchSize];
+
+        long retryNanos = 0;
+        boolean blocked = false;
+        boolean parked = false;
+        while (!stopping || !AlertWaiter.allEmpty(rings) ||
+               !coalescer.isEmpty() || batch.size() > 0)
+        {
+            if (abandoning) {
+                abandon(batch, times);
+                break;
+            }
+
+            long waitNanos = flushRepeats(summaries, stopping);
+
+            final long parkMillis = getParkMillis();
+            if (parkMillis > 0) {
+                if (!parked) {
+                    LOG.error("Alert queue " + name + " is holding alerts; " +
+                              alerter + " is down");
+                    parked = true;
+                }
+
+                if (stopping) {
+                    // don't wait for the receiver, save everything
+                    if (batch.size() == 0) {
+                        drainLanes(batch, times.length, times);
+                    }
+                    if (batch.size() > 0) {
+                        saveBatch(batch);
+                        batch.clear();
+                        finishReplay(false);
+                    }
+
+                    continue;
+                }
+
+                numParked++;
+                idle = false;
+                try {
+                    Thread.sleep(Math.min(parkMillis, PARK_POLL_MILLIS));
+                } catch (InterruptedException ie) {
+                    // check the alerter again now
+                }
+
+                continue;
+            } else if (parked) {
+                LOG.error("Alert queue " + name + " resumed sending to " +
+                          alerter);
+                parked = false;
+            }
+
+            final int batchSize = maxBatchSize;
+            if (times.length < batchSize) {
+                times = Arrays.copyOf(times, batchSize);
+            }
+
+            int num;
+            if (batch.size() > 0) {
+                // resend the batch which would have blocked
+                num = batch.size();
+            } else {
+                num = drainLanes(batch, batchSize, times);
+                if (num < batchSize && retryNanos == 0 && !stopping) {
+                    final int replayed =
+                        replayJournals(batch, batchSize - num);
+
+                    // don't know when journaled alerts were queued
+                    Arrays.fill(times, num, num + replayed, 0L);
+                    num += replayed;
+                }
+            }
+
+            if (num == 0) {
+                // wait for more alerts unless we've been told to stop
+                if (!stopping) {
+                    if (retryNanos > 0 &&
+                        (waitNanos == 0 || retryNanos < waitNanos))
+                    {
+                        waitNanos = retryNanos;
+                    }
+
+                    idle = true;
+                    synchronized (flushLock) {
+                        flushLock.notifyAll();
+                    }
+
+                    waiter.await(rings, waitNanos);
+                    idle = false;
+
+                    retryNanos = 0;
+                }
+
+                continue;
+            }
+
+            final SendResult result;
+            if (router.isEmpty()) {
+                heldMillis = 0L;
+
+                final long start = System.nanoTime();
+                result = send(alerter, batch);
+                if (result == SendResult.SENT) {
+                    recordTimes(times, batch.size(), start);
+                }
+            } else {
+                result = sendRouted(batch, times);
+            }
+
+            if (result == SendResult.BLOCKED) {
+                idle = false;
+
+                final long sleepMillis;
+                if (heldMillis > 0) {
+                    // only alerts for receivers which are down were kept
+                    numParked++;
+                    sleepMillis = Math.min(heldMillis, PARK_POLL_MILLIS);
+                } else {
+                    numBlocked++;
+                    if (!blocked) {
+                        LOG.error("Alert queue " + name + " is waiting for" +
+                                  " a slow receiver");
+                        blocked = true;
+                    }
+                    sleepMillis = BLOCKED_RETRY_MILLIS;
+                }
+
+                if (!stopping) {
+                    // keep the batch and try again shortly
+                    try {
+                        Thread.sleep(sleepMillis);
+                    } catch (InterruptedException ie) {
+                        // try again now
+                    }
+
+                    continue;
+                }
+
+                saveBatch(batch);
+            } else if (blocked) {
+                LOG.error("Alert queue " + name + " receiver has caught up");
+                blocked = false;
+            }
+
+            batch.clear();
+
+            // journaled alerts are kept until they've been sent
+            final boolean sent = (result == SendResult.SENT);
+            if (result == SendResult.FAILED) {
+                failReplay();
+            } else {
+                finishReplay(sent);
+            }
+            retryNanos = (sent ? 0 : REPLAY_RETRY_NANOS);
+        }
+
+        if (alerter != null && alerter.isActive()) {
+            alerter.close();
+        }
+        for (Alerter dest : router.getAlerters()) {
+            if (dest != alerter && dest.isActive()) {
+                dest.close();
+            }
+        }
+    }
+
+    /**
+     * Hand a list of alerts to an alerter.
+     *
+     * @param dest alerter
+     * @param list alerts
+     *
+     * @return result
+     */
+    private SendResult send(Alerter dest, List<Object> list)
+    {
+        try {
+            if (list.size() == 1) {
+                dest.sendObject(list.get(0));
+            } else {
+                dest.sendObjects(list);
+            }
+        } catch (AlertWouldBlockException awbe) {
+            return SendResult.BLOCKED;
+        } catch (AlertException ae) {
+            if (list.size() == 1) {
+                LOG.error("Alert queue " + name + " cannot send " +
+                          list.get(0), ae);
+            } else {
+                LOG.error("Alert queue " + name + " cannot send " +
+                          list.size() + " alerts", ae);
+            }
+            completeFutures(list, AlertFuture.Status.FAILED);
+            if (dest instanceof SerializingAlerter) {
+                recycle(list);
+            }
+            return SendResult.FAILED;
+        }
+
+        numSent += list.size();
+        completeFutures(list, AlertFuture.Status.SENT);
+        if (dest instanceof SerializingAlerter) {
+            recycle(list);
+        }
+        return SendResult.SENT;
+    }
+
+    /**
+     * Send each alert in the batch to the alerter chosen by the routing
+     * table, keeping alerts for the same alerter in order.  If any
+     * alerter would block or its receiver is down, its alerts are left in
+     * the batch (and the matching queue times are moved along with them)
+     * to be sent again.  If only alerters which are down kept alerts,
+     * <tt>heldMillis</tt> is set to the time until one of them should
+     * be tried again.  Journaled alerts are committed as soon as their
+     * alerter has sent them.
+     *
+     * @param batch alerts to be sent
+     * @param times time each alert was queued (<tt>0</tt> if unknown)
+     *
+     * @return <tt>BLOCKED</tt> if any alerter would block, otherwise
+     *         <tt>FAILED</tt> if any alerter failed
+     */
+    private SendResult sendRouted(ArrayList<Object> batch, long[] times)
+    {
+        final int num = batch.size();
+
+        Alerter[] dests = new Alerter[num];
+        for (int i = 0; i < num; i++) {
+            dests[i] = router.route(batch.get(i), alerter);
+        }
+
+        boolean[] done = new boolean[num];
+        boolean[] keep = new boolean[num];
+
+        ArrayList<Object> group = new ArrayList<Object>();
+
+        long minHeld = 0;
+        boolean slow = false;
+
+        SendResult result = SendResult.SENT;
+        for (int i = 0; i < num; i++) {
+            if (done[i]) {
+                continue;
+            }
+
+            final Alerter dest = dests[i];
+
+            group.clear();
+            for (int j = i; j < num; j++) {
+                if (!done[j] && dests[j] == dest) {
+                    group.add(batch.get(j));
+                }
+            }
+
+            final long retryMillis = getMillisUntilRetry(dest);
+
+            final SendResult res;
+            final long now;
+            if (retryMillis > 0) {
+                // receiver is down, hold its alerts until the next probe
+                res = SendResult.BLOCKED;
+                now = 0L;
+                if (minHeld == 0 || retryMillis < minHeld) {
+                    minHeld = retryMillis;
+                }
+            } else {
+                final long start = System.nanoTime();
+                res = send(dest, group);
+                now = System.nanoTime();
+
+                if (res == SendResult.SENT) {
+                    sendTime.record(now - start);
+
+                    // don't replay these if another alerter fails
+                    replayDelivered(group);
+                } else if (res == SendResult.BLOCKED) {
+                    slow = true;
+                }
+            }
+
+            for (int j = i; j < num; j++) {
+                if (!done[j] && dests[j] == dest) {
+                    done[j] = true;
+                    if (res == SendResult.BLOCKED) {
+                        keep[j] = true;
+                    } else if (res == SendResult.SENT && times[j] != 0) {
+                        latency.record(now - times[j]);
+                    }
+                }
+            }
+
+            if (res == SendResult.BLOCKED) {
+                result = res;
+            } else if (res == SendResult.FAILED &&
+                       result == SendResult.SENT)
+            {
+                result = res;
+            }
+        }
+
+        if (result == SendResult.BLOCKED) {
+            // only keep alerts which still need to be sent
+            int kept = 0;
+            for (int i = 0; i < num; i++) {
+                if (keep[i]) {
+                    batch.set(kept, batch.get(i));
+                    times[kept] = times[i];
+                    kept++;
+                }
+            }
+            while (batch.size() > kept) {
+                batch.remove(batch.size() - 1);
+            }
+        }
+
+        // a slow receiver needs to be retried soon
+        heldMillis = (slow ? 0L : minHeld);
+
+        return result;
+    }
+
+    /**
+     * Save alerts from a batch which could not be sent in the overflow
+     * journals.  Journaled alerts in the batch are left in their journal.
+     *
+     * @param batch unsent alerts
+     */
+    private void saveBatch(List<Object> batch)
+    {
+        int numLost = 0;
+        for (Object obj : batch) {
+            if (obj instanceof Map) {
+                final Map<String, Object> map = (Map<String, Object>) obj;
+
+                AlertFuture.Status status;
+                if (getLane(map).save(map)) {
+                    status = AlertFuture.Status.SPILLED;
+                } else {
+                    status = AlertFuture.Status.DROPPED;
+                    numLost++;
+                }
+
+                final AlertFuture future = futures.remove(map);
+                if (future != null) {
+                    future.complete(status);
+                }
+
+                AlertRecord.release(this, map);
+            }
+        }
+
+        if (numLost > 0) {
+            LOG.error("Alert queue " + name + " dropped " + numLost +
+                      " unsent alerts");
+        }
+    }
+
+    /**
+     * Set the object responsible for sending alerts
+     *
+     * @param alerter alerter object
+     *
+     * @throws Error if alerter is null
+     */
+    public void setAlerter(Alerter alerter)
+    {
+        if (alerter == null) {
+            throw new Error("Alerter cannot be null");
+        }
+
+        this.alerter = alerter;
+    }
+
+    /**
+     * Set the coalescing window.  Identical alerts (same name, priority
+     * and values) pushed within this many milliseconds of the first one
+     * are not sent individually; instead, a single summary alert is sent
+     * when the window closes, with the number of repeats and the times of
+     * the first and last occurrences added to its values.
+     *
+     * @param millis window length in milliseconds (<tt>0</tt> to disable)
+     */
+    public void setCoalesceWindow(long millis)
+    {
+        coalescer.setWindow(millis);
+        waiter.wakeup();
+    }
+
+    /**
+     * Set the maximum number of queued alerts sent as a single batch.
+     *
+     * @param size maximum batch size
+     */
+    public void setMaxBatchSize(int size)
+    {
+        if (size < 1) {
+            throw new Error("Bad batch size " + size);
+        }
+
+        maxBatchSize = size;
+    }
+
+    /**
+     * Set the maximum estimated size of queued alerts for each priority.
+     *
+     * @param bytes maximum number of bytes for each priority
+     */
+    public void setMaxQueueBytes(long bytes)
+    {
+        for (Alerter.Priority prio : Alerter.Priority.values()) {
+            setMaxQueueBytes(prio, bytes);
+        }
+    }
+
+    /**
+     * Set the maximum estimated size of queued alerts for a single
+     * priority.
+     *
+     * @param prio alert priority
+     * @param bytes maximum number of bytes
+     */
+    public void setMaxQueueBytes(Alerter.Priority prio, long bytes)
+    {
+        if (bytes < 1) {
+            throw new Error("Bad queue byte limit " + bytes);
+        }
+
+        lanes[prio.ordinal()].maxBytes = bytes;
+    }
+
+    /**
+     * Set the maximum queue size for all priorities.
+     * NOTE: This is only used by unit tests
+     *
+     * @param size maximum queue size
+     */
+    public void setMaxQueueSize(int size)
+    {
+        for (Alerter.Priority prio : Alerter.Priority.values()) {
+            setMaxQueueSize(prio, size);
+        }
+    }
+
+    /**
+     * Set the maximum queue size for a single priority.
+     *
+     * @param prio alert priority
+     * @param size maximum queue size
+     */
+    public void setMaxQueueSize(Alerter.Priority prio, int size)
+    {
+        final Lane lane = lanes[prio.ordinal()];
+        if (!lane.ring.isEmpty()) {
+            throw new Error("Cannot resize non-empty " + prio +
+                            " alert queue " + name);
+        }
+
+        lane.resize(size, waiter);
+        buildRings();
+    }
+
+    /**
+     * Spill alerts to memory-mapped journals under <tt>directory</tt>
+     * (one subdirectory per priority) instead of dropping them when a
+     * queue is full.  Journaled alerts are replayed in order once the
+     * queue drains, and any left over from an earlier run are replayed
+     * after the thread starts.
+     *
+     * @param directory journal directory (<tt>null</tt> to drop alerts
+     *                  when the queue is full)
+     *
+     * @throws AlertException if a journal cannot be opened
+     */
+    public void setOverflowJournal(File directory)
+        throws AlertException
+    {
+        setOverflowJournal(directory, AlertJournal.DEFAULT_SEGMENT_SIZE,
+                           AlertJournal.DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Spill alerts to memory-mapped journals under <tt>directory</tt>
+     * (one subdirectory per priority) instead of dropping them when a
+     * queue is full.
+     *
+     * @param directory journal directory (<tt>null</tt> to drop alerts
+     *                  when the queue is full)
+     * @param segmentSize size of each journal file
+     * @param maxSegments maximum number of journal files per priority
+     *
+     * @throws AlertException if a journal cannot be opened
+     */
+    public void setOverflowJournal(File directory, int segmentSize,
+                                   int maxSegments)
+        throws AlertException
+    {
+        synchronized (threadLock) {
+            if (!stopped) {
+                throw new Error("Cannot change overflow journal while " +
+                                name + " is running");
+            }
+
+            for (int i = 0; i < lanes.length; i++) {
+                if (directory == null) {
+                    lanes[i].journal = null;
+                    continue;
+                }
+
+                final File dir =
+                    new File(directory, lanes[i].prio.toString());
+                try {
+                    lanes[i].journal =
+                        new AlertJournal(dir, segmentSize, maxSegments);
+                } catch (IOException ioe) {
+                    throw new AlertException("Cannot open alert journal " +
+                                             dir, ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Limit how often alerts with the specified priority may be pushed.
+     * Each varname gets its own limit; pushes over the limit are
+     * discarded.
+     *
+     * @param prio alert priority
+     * @param perSecond average number of pushes allowed per second for
+     *                  each varname (<tt>0</tt> to remove the limit)
+     * @param burst number of pushes allowed in a burst
+     */
+    public void setRateLimit(Alerter.Priority prio, double perSecond,
+                             int burst)
+    {
+        limiter.setLimit(prio, perSecond, burst);
+    }
+
+    /**
+     * Limit how often alerts with matching varnames may be pushed.
+     * Each varname gets its own limit; pushes over the limit are
+     * discarded.  Pattern limits override priority limits.
+     *
+     * @param varnameGlob varname pattern (<tt>*</tt> matches any
+     *                    characters, <tt>?</tt> matches one character)
+     * @param perSecond average number of pushes allowed per second for
+     *                  each varname (<tt>0</tt> to remove the limit)
+     * @param burst number of pushes allowed in a burst
+     */
+    public void setRateLimit(String varnameGlob, double perSecond, int burst)
+    {
+        limiter.setLimit(varnameGlob, perSecond, burst);
+    }
+
+    /**
+     * Start the thread if it isn't already running
+     */
+    @Override
+    public void start()
+    {
+        synchronized (threadLock) {
+            if (!stopping && stopped) {
+                stopping = false;
+                stopped = false;
+                abandoning = false;
+
+                WorkerThreads.start(name, false, this);
+            }
+        }
+    }
+
+    /**
+     * Stop the thread if it's running
+     */
+    @Override
+    public void stop()
+    {
+        synchronized (threadLock) {
+            if (!stopped) {
+                stopping = true;
+                waiter.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Stop the thread, giving it up to <tt>millis</tt> milliseconds to
+     * send any queued alerts.  Alerts which have not been sent by then are
+     * discarded (journaled alerts stay in their journals).
+     *
+     * @param millis maximum time to spend sending queued alerts
+     *
+     * @return number of alerts which were abandoned
+     */
+    public long stop(long millis)
+    {
+        final long before = numAbandoned;
+
+        synchronized (threadLock) {
+            if (stopped) {
+                return 0;
+            }
+
+            stopping = true;
+            waiter.wakeup();
+        }
+
+        waitForStop(millis);
+        if (!stopped) {
+            abandoning = true;
+            waiter.wakeup();
+
+            // the thread may be in the middle of a send
+            waitForStop(ABANDON_WAIT_MILLIS);
+        }
+
+        return numAbandoned - before;
+    }
+
+    /**
+     * Tell the thread to stop and wait until it is fully stopped.
+     * NOTE: This is currently only used by unit tests.
+     *
+     * @throws Error if the thread was not stopped
+     */
+    public void stopAndWait()
+    {
+        synchronized (threadLock) {
+            if (!stopped) {
+                stopping = true;
+                waiter.wakeup();
+            }
+        }
+
+        waitForStop(STOP_WAIT_MILLIS);
+
+        if (!stopped) {
+            throw new Error("Cannot stop " + name + "; queue has " +
+                            getNumQueued() + " alerts, stopping is " +
+                            stopping);
+        }
+    }
+
+    /**
+     * Wait for the thread to exit.
+     *
+     * @param millis maximum time to wait
+     */
+    private void waitForStop(long millis)
+    {
+        final long deadline = System.currentTimeMillis() + millis;
+        synchronized (flushLock) {
+            while (!stopped) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                try {
+                    flushLock.wait(remaining);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Thread name
+     */
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+
+    /**
+     * Bounded queue for a single alert priority
+     */
+    private static class Lane
+    {
+        /** Alert priority */
+        private final Alerter.Priority prio;
+        /** Relative share of each batch */
+        private final int weight;
+
+        /** Lock-free queue shared by all producers and the sender thread */
+        private volatile AlertRingBuffer<Map<String, Object>> ring;
+        /** Maximum number of queued alerts */
+        private volatile int maxSize;
+        /** Maximum estimated size of queued alerts */
+        private volatile long maxBytes;
+        /** Set when the queue filled up and hasn't drained enough yet */
+        private final AtomicBoolean full = new AtomicBoolean();
+
+        /** Number of alerts dropped while the queue was full */
+        private final AtomicLong numDropped = new AtomicLong();
+        /** Largest number of queued alerts */
+        private final AtomicInteger highWater = new AtomicInteger();
+
+        /** Overflow journal (<tt>null</tt> if overflow alerts are dropped) */
+        private volatile AlertJournal journal;
+        /** Set by the sender thread when the batch contains journal records */
+        private boolean replaying;
+
+        /** Used to wake the sender thread after an alert is journaled */
+        private AlertWaiter waiter;
+
+        /**
+         * Create a lane
+         *
+         * @param prio alert priority
+         * @param weight relative share of each batch
+         * @param maxSize maximum number of queued alerts
+         * @param maxBytes maximum estimated size of queued alerts
+         * @param waiter object used to wake the sender thread
+         */
+        Lane(Alerter.Priority prio, int weight, int maxSize, long maxBytes,
+             AlertWaiter waiter)
+        {
+            this.prio = prio;
+            this.weight = weight;
+            this.maxBytes = maxBytes;
+
+            resize(maxSize, waiter);
+        }
+
+        /**
+         * Get the number of alerts dropped by this lane (including any
+         * which could not be journaled)
+         *
+         * @return number of dropped alerts
+         */
+        long getNumDropped()
+        {
+            final AlertJournal jnl = journal;
+            if (jnl == null) {
+                return numDropped.get();
+            }
+
+            return numDropped.get() + jnl.getNumDropped();
+        }
+
+        /**
+         * Get the number of alerts waiting in the overflow journal
+         *
+         * @return number of journaled alerts
+         */
+        int getNumSpilled()
+        {
+            final AlertJournal jnl = journal;
+            if (jnl == null) {
+                return 0;
+            }
+
+            return (int) jnl.getNumRecords();
+        }
+
+        /**
+         * Add an alert to this lane, dropping it if the lane is full.
+         *
+         * @param queueName name of the alert queue (used in log messages)
+         * @param map alert
+         *
+         * @return <tt>PENDING</tt> if the alert was queued, otherwise
+         *         <tt>SPILLED</tt> or <tt>DROPPED</tt>
+         */
+        AlertFuture.Status push(String queueName, Map<String, Object> map)
+        {
+            final AlertJournal jnl = journal;
+            if (jnl != null) {
+                // once spilling starts, keep journaling until the
+                // journal has been replayed so alerts stay in order
+                if (jnl.isSpilling() && spill(jnl, map, false)) {
+                    return AlertFuture.Status.SPILLED;
+                }
+
+                final int bytes = AlertSizer.estimate(map);
+                if (ring.size() < maxSize &&
+                    ring.getWeight() + bytes <= maxBytes &&
+                    ring.offer(map, bytes))
+                {
+                    updateHighWater();
+                    return AlertFuture.Status.PENDING;
+                }
+
+                if (spill(jnl, map, true)) {
+                    return AlertFuture.Status.SPILLED;
+                }
+
+                return AlertFuture.Status.DROPPED;
+            }
+
+            final int bytes = AlertSizer.estimate(map);
+
+            final int size = ring.size();
+            final long queued = ring.getWeight();
+            if (!full.get()) {
+                // if queue is "too large", stop adding stuff
+                if ((size >= maxSize || queued + bytes > maxBytes) &&
+                    full.compareAndSet(false, true))
+                {
+                    LOG.error("Disabled alert queue " + queueName + "[" +
+                              prio + "] containing " + size + " messages");
+                }
+            } else {
+                // if queue has shrunk enough, resume adding stuff
+                if (size < maxSize / 2 && queued < maxBytes / 2 &&
+                    full.compareAndSet(true, false))
+                {
+                    LOG.error("Reenabled alert queue " + queueName + "[" +
+                              prio + "] containing " + size +
+                              " messages (dropped " + numDropped.get() +
+                              ")");
+                }
+            }
+
+            if (full.get() || !ring.offer(map, bytes)) {
+                numDropped.incrementAndGet();
+                return AlertFuture.Status.DROPPED;
+            }
+
+            updateHighWater();
+            return AlertFuture.Status.PENDING;
+        }
+
+        /**
+         * Save an alert which could not be sent in the overflow journal,
+         * or drop it if there is no journal.
+         *
+         * @param map alert
+         *
+         * @return <tt>false</tt> if the alert was dropped
+         */
+        boolean save(Map<String, Object> map)
+        {
+            final AlertJournal jnl = journal;
+            if (jnl == null) {
+                numDropped.incrementAndGet();
+                return false;
+            }
+
+            // the journal counts any alerts it cannot hold
+            return spill(jnl, map, true);
+        }
+
+        /**
+         * Serialize an alert and add it to the journal.
+         *
+         * @param jnl overflow journal
+         * @param map alert
+         * @param start if <tt>true</tt>, start spilling if necessary
+         *
+         * @return <tt>false</tt> if the journal has stopped spilling
+         */
+        private boolean spill(AlertJournal jnl, Map<String, Object> map,
+                              boolean start)
+        {
+            final JSONEncoder enc = JSONEncoder.getEncoder();
+            enc.writeObject(map);
+
+            if (!jnl.append(enc.getBuffer(), 0, enc.getLength(), start)) {
+                return false;
+            }
+
+            // the sender only checks the journal after draining the ring,
+            // so make sure it doesn't sleep through this alert
+            waiter.wakeup();
+            return true;
+        }
+
+        /**
+         * Update the high-water mark after an alert has been queued.
+         */
+        private void updateHighWater()
+        {
+            final int newSize = ring.size();
+            int hwm;
+            while (newSize > (hwm = highWater.get()) &&
+                   !highWater.compareAndSet(hwm, newSize))
+            {
+                // try again
+            }
+        }
+
+        /**
+         * Replace the (empty) ring buffer with one of a different size.
+         *
+         * @param size maximum number of queued alerts
+         * @param waiter object used to wake the sender thread
+         */
+        void resize(int size, AlertWaiter waiter)
+        {
+            ring = new AlertRingBuffer<Map<String, Object>>(size, waiter);
+            maxSize = size;
+
+            this.waiter = waiter;
+        }
     }
 }
@@ -0,0 +1,212 @@
+package icecube.daq.juggler.alert;
+
+import java.util.HashMap;
+
+/**
+ * Alert queue statistics.
+ *
+ * Times are reported as three-element arrays holding the median, the 99th
+ * percentile and the maximum (in microseconds) since the queue was created.
+ */
+public class AlertQueueStatistics
+    implements AlertQueueStatisticsMBean
+{
+    /** Monitored queue */
+    private final AlertQueue queue;
+
+    /**
+     * Create a monitor for an alert queue.
+     *
+     * @param queue alert queue
+     */
+    public AlertQueueStatistics(AlertQueue queue)
+    {
+        this.queue = queue;
+    }
+
+    /**
+     * Get the state of the alerter's receiver.
+     *
+     * @return <tt>CONNECTED</tt>, <tt>DEGRADED</tt> or <tt>DOWN</tt>
+     *         (<tt>UNKNOWN</tt> if the alerter doesn't track its receiver)
+     */
+    @Override
+    public String getAlerterState()
+    {
+        final HealthReportingAlerter.State state = queue.getAlerterState();
+        if (state == null) {
+            return "UNKNOWN";
+        }
+
+        return state.toString();
+    }
+
+    /**
+     * Get the number of times the alerter's receiver state has changed.
+     *
+     * @return number of state changes
+     */
+    @Override
+    public long getAlerterStateChanges()
+    {
+        return queue.getAlerterStateChanges();
+    }
+
+    /**
+     * Get the largest number of alerts queued for each priority.
+     *
+     * @return map of priority name to high-water mark
+     */
+    @Override
+    public HashMap<String, Integer> getHighWaterMarks()
+    {
+        HashMap<String, Integer> map = new HashMap<String, Integer>();
+        for (Alerter.Priority prio : Alerter.Priority.values()) {
+            map.put(prio.toString(), queue.getHighWaterMark(prio));
+        }
+        return map;
+    }
+
+    /**
+     * Get the time from when alerts are queued until they have been sent.
+     *
+     * @return median, 99th percentile and maximum latency in microseconds
+     */
+    @Override
+    public long[] getLatency()
+    {
+        return queue.getLatencyHistogram().getSummary();
+    }
+
+    /**
+     * Get the number of batches which could not be sent because the
+     * receiver was not keeping up.
+     *
+     * @return number of blocked sends
+     */
+    @Override
+    public long getNumBlocked()
+    {
+        return queue.getNumBlocked();
+    }
+
+    /**
+     * Get the number of alerts dropped for each priority.
+     *
+     * @return map of priority name to number of dropped alerts
+     */
+    @Override
+    public HashMap<String, Long> getNumDropped()
+    {
+        HashMap<String, Long> map = new HashMap<String, Long>();
+        for (Alerter.Priority prio : Alerter.Priority.values()) {
+            map.put(prio.toString(), queue.getNumDropped(prio));
+        }
+        return map;
+    }
+
+    /**
+     * Get the number of times the sender parked because the alerter's
+     * receiver was down.
+     *
+     * @return number of times the sender parked
+     */
+    @Override
+    public long getNumParked()
+    {
+        return queue.getNumParked();
+    }
+
+    /**
+     * Get the number of alerts waiting to be sent.
+     *
+     * @return number of queued alerts
+     */
+    @Override
+    public int getNumQueued()
+    {
+        return queue.getNumQueued();
+    }
+
+    /**
+     * Get the number of alerts sent.
+     *
+     * @return number of sent alerts
+     */
+    @Override
+    public long getNumSent()
+    {
+        return queue.getNumSent();
+    }
+
+    /**
+     * Get the number of alerts waiting in overflow journals.
+     *
+     * @return number of journaled alerts
+     */
+    @Override
+    public long getNumSpilled()
+    {
+        return queue.getNumSpilled();
+    }
+
+    /**
+     * Get the estimated size of all queued alerts.
+     *
+     * @return number of bytes
+     */
+    @Override
+    public long getQueuedBytes()
+    {
+        return queue.getQueuedBytes();
+    }
+
+    /**
+     * Get the time the alerter takes to send each batch of alerts.
+     *
+     * @return median, 99th percentile and maximum time in microseconds
+     */
+    @Override
+    public long[] getSendTime()
+    {
+        return queue.getSendTimeHistogram().getSummary();
+    }
+
+    /**
+     * Get the time the alerter takes to serialize each alert.
+     *
+     * @return median, 99th percentile and maximum time in microseconds
+     *         (all zero if the alerter doesn't measure it)
+     */
+    @Override
+    public long[] getSerializationTime()
+    {
+        final Alerter alerter = queue.getAlerter();
+
+        AlertHistogram hist;
+        if (alerter instanceof ZMQAlerter) {
+            hist = ((ZMQAlerter) alerter).getEncodeTimeHistogram();
+        } else if (alerter instanceof ZMQThreadedAlerter) {
+            hist = ((ZMQThreadedAlerter) alerter).getEncodeTimeHistogram();
+        } else {
+            return new long[3];
+        }
+
+        return hist.getSummary();
+    }
+
+    /**
+     * Return description of current statistics.
+     *
+     * @return description of current statistics
+     */
+    @Override
+    public String toString()
+    {
+        final long[] latency = getLatency();
+        return String.format("%d sent, %d queued, latency p50 %d us," +
+                             " p99 %d us, max %d us", getNumSent(),
+                             getNumQueued(), latency[0], latency[1],
+                             latency[2]);
+    }
+}
@@ -0,0 +1,23 @@
+package icecube.daq.juggler.alert;
+
+import java.util.HashMap;
+
+/**
+ * Alert queue monitor.
+ */
+public interface AlertQueueStatisticsMBean
+{
+    String getAlerterState();
+    long getAlerterStateChanges();
+    HashMap<String, Integer> getHighWaterMarks();
+    long[] getLatency();
+    long getNumBlocked();
+    HashMap<String, Long> getNumDropped();
+    long getNumParked();
+    int getNumQueued();
+    long getNumSent();
+    long getNumSpilled();
+    long getQueuedBytes();
+    long[] getSendTime();
+    long[] getSerializationTime();
+}
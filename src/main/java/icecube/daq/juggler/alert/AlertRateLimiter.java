@@ -0,0 +1,409 @@
+package icecube.daq.juggler.alert;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Per-varname token buckets which limit how often an alert may be pushed.
+ *
+ * Limits may be set for an entire priority or for all varnames matching a
+ * glob pattern (where <tt>*</tt> matches any number of characters and
+ * <tt>?</tt> matches a single character).  Pattern limits are checked in
+ * the order they were added and take precedence over priority limits.
+ *
+ * Each bucket is a single atomic "theoretical arrival time" (the generic
+ * cell rate algorithm), so checking a push which already has a bucket
+ * neither locks nor allocates.  Varnames without a limit are remembered
+ * too (up to <tt>MAX_TRACKED</tt> of them) so their patterns aren't
+ * rechecked on every push, but they don't use up space for limited
+ * varnames.  Once <tt>MAX_TRACKED</tt> limited varnames have been seen
+ * for a priority, any new ones share a single bucket for their limit,
+ * reported as <tt>OVERFLOW_NAME</tt>.
+ */
+class AlertRateLimiter
+{
+    /** Maximum number of varnames tracked for each priority */
+    static final int MAX_TRACKED = 10000;
+
+    /** Name used to report pushes suppressed by the overflow buckets */
+    static final String OVERFLOW_NAME = "(untracked)";
+
+    /** Bucket used for varnames without a limit */
+    private static final Bucket UNLIMITED = new Bucket(null);
+
+    /**
+     * Limits for each priority (<tt>null</tt> if unlimited).  The array
+     * is replaced rather than changed so it can be read without locking.
+     */
+    private volatile Limit[] prioLimits =
+        new Limit[Alerter.Priority.values().length];
+    /** Limits for varname patterns, in the order they were added */
+    private volatile Limit[] patternLimits = new Limit[0];
+
+    /** Per-priority maps of varname to bucket */
+    private volatile Tracked[] tracked;
+    /** Buckets shared by limited varnames which could not be tracked */
+    private volatile ConcurrentHashMap<Limit, Bucket> overflow;
+    /** Set when any limit has been configured */
+    private volatile boolean enabled;
+
+    /** Number of pushes rejected by varnames which are no longer tracked */
+    private final AtomicLong numForgotten = new AtomicLong();
+
+    AlertRateLimiter()
+    {
+        tracked = newTracked();
+        overflow = new ConcurrentHashMap<Limit, Bucket>();
+    }
+
+    /**
+     * Is this push allowed?
+     *
+     * @param varname alert name
+     * @param prio alert priority
+     *
+     * @return <tt>false</tt> if the push should be discarded
+     */
+    boolean allow(String varname, Alerter.Priority prio)
+    {
+        if (!enabled) {
+            return true;
+        }
+
+        final String key = (varname == null ? "" : varname);
+
+        final Tracked trk = tracked[prio.ordinal()];
+
+        Bucket bucket = trk.map.get(key);
+        if (bucket == null) {
+            bucket = newBucket(trk, key, prio);
+        }
+
+        return bucket.allow();
+    }
+
+    /**
+     * Convert a varname glob pattern to a regular expression.
+     *
+     * @param glob pattern which may contain <tt>*</tt> and <tt>?</tt>
+     *
+     * @return compiled pattern
+     */
+    static Pattern compileGlob(String glob)
+    {
+        StringBuilder buf = new StringBuilder();
+
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            final char ch = glob.charAt(i);
+            if (ch == '*' || ch == '?') {
+                if (start < i) {
+                    buf.append(Pattern.quote(glob.substring(start, i)));
+                }
+                buf.append(ch == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < glob.length()) {
+            buf.append(Pattern.quote(glob.substring(start)));
+        }
+
+        return Pattern.compile(buf.toString());
+    }
+
+    /**
+     * Find the limit which applies to a varname.
+     *
+     * @param varname alert name
+     * @param prio alert priority
+     *
+     * @return limit (<tt>null</tt> if pushes are unlimited)
+     */
+    private Limit findLimit(String varname, Alerter.Priority prio)
+    {
+        for (Limit limit : patternLimits) {
+            if (limit.pattern.matcher(varname).matches()) {
+                return limit;
+            }
+        }
+
+        return prioLimits[prio.ordinal()];
+    }
+
+    /**
+     * Get the number of suppressed pushes for each varname
+     *
+     * @return map of varname to number of suppressed pushes
+     */
+    Map<String, Long> getSuppressedCounts()
+    {
+        HashMap<String, Long> counts = new HashMap<String, Long>();
+        for (Tracked trk : tracked) {
+            for (Map.Entry<String, Bucket> entry : trk.map.entrySet()) {
+                final long num = entry.getValue().numSuppressed.get();
+                if (num > 0) {
+                    final Long prev = counts.get(entry.getKey());
+                    counts.put(entry.getKey(),
+                               prev == null ? num : prev + num);
+                }
+            }
+        }
+
+        long numOverflow = 0;
+        for (Bucket bucket : overflow.values()) {
+            numOverflow += bucket.numSuppressed.get();
+        }
+        if (numOverflow > 0) {
+            counts.put(OVERFLOW_NAME, numOverflow);
+        }
+
+        return counts;
+    }
+
+    /**
+     * Get the total number of suppressed pushes
+     *
+     * @return number of suppressed pushes
+     */
+    long getNumSuppressed()
+    {
+        return numForgotten.get() + sumSuppressed(tracked, overflow);
+    }
+
+    /**
+     * Find or create the bucket for a varname which isn't in its
+     * priority's map.
+     *
+     * @param trk buckets for the alert's priority
+     * @param varname alert name
+     * @param prio alert priority
+     *
+     * @return bucket
+     */
+    private Bucket newBucket(Tracked trk, String varname,
+                             Alerter.Priority prio)
+    {
+        final Limit limit = findLimit(varname, prio);
+        if (limit == null) {
+            // remember this so the patterns aren't checked next time
+            if (trk.numUnlimited.get() < MAX_TRACKED &&
+                trk.map.putIfAbsent(varname, UNLIMITED) == null)
+            {
+                trk.numUnlimited.incrementAndGet();
+            }
+            return UNLIMITED;
+        }
+
+        if (trk.numLimited.get() >= MAX_TRACKED) {
+            // too many varnames, share one bucket for this limit
+            final ConcurrentHashMap<Limit, Bucket> shared = overflow;
+
+            Bucket bucket = shared.get(limit);
+            if (bucket == null) {
+                bucket = new Bucket(limit);
+                final Bucket prev = shared.putIfAbsent(limit, bucket);
+                if (prev != null) {
+                    bucket = prev;
+                }
+            }
+            return bucket;
+        }
+
+        Bucket bucket = new Bucket(limit);
+        final Bucket prev = trk.map.putIfAbsent(varname, bucket);
+        if (prev != null) {
+            return prev;
+        }
+
+        trk.numLimited.incrementAndGet();
+        return bucket;
+    }
+
+    /**
+     * Create empty buckets for every priority.
+     *
+     * @return per-priority buckets
+     */
+    private static Tracked[] newTracked()
+    {
+        Tracked[] array = new Tracked[Alerter.Priority.values().length];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = new Tracked();
+        }
+        return array;
+    }
+
+    /**
+     * Throw away all buckets so they are rebuilt using the current limits.
+     */
+    private void reset()
+    {
+        numForgotten.addAndGet(sumSuppressed(tracked, overflow));
+
+        boolean found = patternLimits.length > 0;
+        for (int i = 0; !found && i < prioLimits.length; i++) {
+            found = prioLimits[i] != null;
+        }
+
+        tracked = newTracked();
+        overflow = new ConcurrentHashMap<Limit, Bucket>();
+        enabled = found;
+    }
+
+    /**
+     * Limit pushes for all varnames matching a pattern.
+     *
+     * @param glob varname pattern
+     * @param perSecond average number of pushes allowed per second
+     *                  (<tt>0</tt> to remove the limit)
+     * @param burst number of pushes allowed in a burst
+     */
+    synchronized void setLimit(String glob, double perSecond, int burst)
+    {
+        Limit[] tmpLimits = new Limit[patternLimits.length + 1];
+
+        int num = 0;
+        for (Limit limit : patternLimits) {
+            if (!limit.glob.equals(glob)) {
+                tmpLimits[num++] = limit;
+            }
+        }
+
+        if (perSecond > 0) {
+            tmpLimits[num++] = new Limit(glob, perSecond, burst);
+        }
+
+        patternLimits = new Limit[num];
+        System.arraycopy(tmpLimits, 0, patternLimits, 0, num);
+
+        reset();
+    }
+
+    /**
+     * Limit pushes for every varname with the specified priority.
+     *
+     * @param prio alert priority
+     * @param perSecond average number of pushes allowed per second
+     *                  (<tt>0</tt> to remove the limit)
+     * @param burst number of pushes allowed in a burst
+     */
+    synchronized void setLimit(Alerter.Priority prio, double perSecond,
+                               int burst)
+    {
+        Limit[] tmpLimits = prioLimits.clone();
+        if (perSecond > 0) {
+            tmpLimits[prio.ordinal()] = new Limit(null, perSecond, burst);
+        } else {
+            tmpLimits[prio.ordinal()] = null;
+        }
+        prioLimits = tmpLimits;
+
+        reset();
+    }
+
+    /**
+     * Add up the pushes rejected by a set of buckets.
+     *
+     * @param trkArray per-priority buckets
+     * @param shared overflow buckets
+     *
+     * @return number of suppressed pushes
+     */
+    private static long sumSuppressed(Tracked[] trkArray,
+                                      ConcurrentHashMap<Limit, Bucket> shared)
+    {
+        long total = 0;
+        for (Tracked trk : trkArray) {
+            for (Bucket bucket : trk.map.values()) {
+                total += bucket.numSuppressed.get();
+            }
+        }
+        for (Bucket bucket : shared.values()) {
+            total += bucket.numSuppressed.get();
+        }
+        return total;
+    }
+
+    /**
+     * Configured rate limit
+     */
+    private static final class Limit
+    {
+        private final String glob;
+        private final Pattern pattern;
+        /** Nanoseconds between pushes at the average rate */
+        private final long interval;
+        /** How far ahead of the average rate a burst may run */
+        private final long tolerance;
+
+        Limit(String glob, double perSecond, int burst)
+        {
+            if (burst < 1) {
+                throw new Error("Bad burst size " + burst);
+            }
+
+            this.glob = glob;
+            this.pattern = (glob == null ? null : compileGlob(glob));
+
+            interval = Math.max((long) (1000000000.0 / perSecond), 1L);
+            tolerance = interval * (burst - 1);
+        }
+    }
+
+    /**
+     * Token bucket for a single varname
+     */
+    private static final class Bucket
+    {
+        private final Limit limit;
+        /** Time at which the bucket will be full again */
+        private final AtomicLong arrival;
+        /** Number of rejected pushes */
+        private final AtomicLong numSuppressed = new AtomicLong();
+
+        Bucket(Limit limit)
+        {
+            this.limit = limit;
+            arrival = new AtomicLong(System.nanoTime());
+        }
+
+        boolean allow()
+        {
+            if (limit == null) {
+                return true;
+            }
+
+            final long now = System.nanoTime();
+            while (true) {
+                final long prev = arrival.get();
+                final long tat = (prev - now < 0 ? now : prev);
+                if (tat - now > limit.tolerance) {
+                    numSuppressed.incrementAndGet();
+                    return false;
+                }
+
+                if (arrival.compareAndSet(prev, tat + limit.interval)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Buckets for one priority
+     */
+    private static final class Tracked
+    {
+        /** Map of varname to bucket */
+        private final ConcurrentHashMap<String, Bucket> map =
+            new ConcurrentHashMap<String, Bucket>();
+        /** Number of varnames with a limit */
+        private final AtomicInteger numLimited = new AtomicInteger();
+        /** Number of varnames without a limit */
+        private final AtomicInteger numUnlimited = new AtomicInteger();
+    }
+}
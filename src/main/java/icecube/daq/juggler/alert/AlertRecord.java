@@ -0,0 +1,330 @@
+package icecube.daq.juggler.alert;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Alert envelope built by <tt>AlertQueue</tt>.
+ *
+ * Records hold the envelope fields directly instead of in a
+ * <tt>HashMap</tt> and are recycled through a small pool once the alert
+ * has been serialized, so pushing an alert doesn't allocate a new
+ * envelope.  A record is also a read-only <tt>Map</tt> with the same
+ * entries as the old envelope map (<tt>service</tt>, <tt>varname</tt>,
+ * <tt>prio</tt>, <tt>t</tt> and, if there are any values, <tt>value</tt>)
+ * so alerters which don't know about records still work.
+ *
+ * Records handed to an alerter which keeps them after
+ * <tt>sendObject()</tt> returns are never recycled.  Only the object
+ * which acquired a record may release it, so a record passed on to
+ * someone else's queue is left alone.
+ */
+public final class AlertRecord
+    extends AbstractMap<String, Object>
+{
+    /** Maximum number of idle records kept for reuse */
+    static final int POOL_SIZE = 1024;
+
+    private static final String SERVICE = "service";
+    private static final String VARNAME = "varname";
+    private static final String PRIORITY = "prio";
+    private static final String TIME = "t";
+    private static final String VALUE = "value";
+
+    /** Idle records */
+    private static final ArrayBlockingQueue<AlertRecord> POOL =
+        new ArrayBlockingQueue<AlertRecord>(POOL_SIZE);
+
+    /** Service name */
+    private String service;
+    /** Alert name */
+    private String varname;
+    /** Alert priority */
+    private Alerter.Priority prio;
+    /** Formatted alert time */
+    private String time;
+    /** Alert values (<tt>null</tt> if there are none) */
+    private Map<String, Object> values;
+
+    /** Object which acquired the record */
+    private Object owner;
+    /** Set while the record is in use, to catch double releases */
+    private boolean inUse;
+
+    /**
+     * Records are only created by <tt>acquire()</tt>.
+     */
+    private AlertRecord()
+    {
+    }
+
+    /**
+     * Get a record from the pool (or create one if the pool is empty).
+     *
+     * @param owner object which will release the record
+     * @param service service name
+     * @param varname alert name
+     * @param prio alert priority
+     * @param time formatted alert time
+     * @param values alert values (ignored if <tt>null</tt> or empty)
+     *
+     * @return filled-in record
+     */
+    static AlertRecord acquire(Object owner, String service,
+                               String varname, Alerter.Priority prio,
+                               String time, Map<String, Object> values)
+    {
+        AlertRecord rec = POOL.poll();
+        if (rec == null) {
+            rec = new AlertRecord();
+        }
+
+        rec.service = service;
+        rec.varname = varname;
+        rec.prio = prio;
+        rec.time = time;
+        rec.values = (values == null || values.size() == 0 ? null : values);
+        rec.owner = owner;
+        rec.inUse = true;
+
+        return rec;
+    }
+
+    /**
+     * Does the record contain the key?
+     *
+     * @param key map key
+     *
+     * @return <tt>true</tt> if the key is present
+     */
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return SERVICE.equals(key) || VARNAME.equals(key) ||
+            PRIORITY.equals(key) || TIME.equals(key) ||
+            (values != null && VALUE.equals(key));
+    }
+
+    /**
+     * Get a map view of the record.  This allocates a new set, so
+     * <tt>get()</tt> should be used to look up single entries.
+     *
+     * @return set of map entries
+     */
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet()
+    {
+        return new EntrySet();
+    }
+
+    /**
+     * Get the value for a key.
+     *
+     * @param key map key
+     *
+     * @return value (<tt>null</tt> if the key is not present)
+     */
+    @Override
+    public Object get(Object key)
+    {
+        if (SERVICE.equals(key)) {
+            return service;
+        } else if (VARNAME.equals(key)) {
+            return varname;
+        } else if (PRIORITY.equals(key)) {
+            return prio.value();
+        } else if (TIME.equals(key)) {
+            return time;
+        } else if (VALUE.equals(key)) {
+            return values;
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the key for an entry
+     *
+     * @param index entry index
+     *
+     * @return key
+     */
+    private String getKey(int index)
+    {
+        switch (index) {
+        case 0:
+            return SERVICE;
+        case 1:
+            return VARNAME;
+        case 2:
+            return PRIORITY;
+        case 3:
+            return TIME;
+        default:
+            return VALUE;
+        }
+    }
+
+    /**
+     * Get the number of idle records in the pool
+     *
+     * @return number of pooled records
+     */
+    static int getPoolSize()
+    {
+        return POOL.size();
+    }
+
+    /**
+     * Get the alert priority
+     *
+     * @return priority
+     */
+    public Alerter.Priority getPriority()
+    {
+        return prio;
+    }
+
+    /**
+     * Get the service name
+     *
+     * @return service name
+     */
+    public String getService()
+    {
+        return service;
+    }
+
+    /**
+     * Get the formatted alert time
+     *
+     * @return time string
+     */
+    public String getTime()
+    {
+        return time;
+    }
+
+    /**
+     * Get the alert values
+     *
+     * @return values (<tt>null</tt> if there are none)
+     */
+    public Map<String, Object> getValues()
+    {
+        return values;
+    }
+
+    /**
+     * Get the alert name
+     *
+     * @return alert name
+     */
+    public String getVarname()
+    {
+        return varname;
+    }
+
+    /**
+     * Is the record still in use?  Records which have been released
+     * must not be used.
+     *
+     * @return <tt>true</tt> if the record has not been released
+     */
+    boolean isInUse()
+    {
+        return inUse;
+    }
+
+    /**
+     * Return an object to the pool if it's a record acquired by
+     * <tt>owner</tt>.  The caller must not use the object afterward.
+     * Records which belong to someone else or which have already been
+     * released are ignored.
+     *
+     * @param owner object which acquired the record
+     * @param obj object which may be a record
+     */
+    static void release(Object owner, Object obj)
+    {
+        if (!(obj instanceof AlertRecord)) {
+            return;
+        }
+
+        AlertRecord rec = (AlertRecord) obj;
+        if (!rec.inUse || rec.owner != owner) {
+            return;
+        }
+
+        rec.inUse = false;
+        rec.owner = null;
+        rec.service = null;
+        rec.varname = null;
+        rec.prio = null;
+        rec.time = null;
+        rec.values = null;
+
+        POOL.offer(rec);
+    }
+
+    /**
+     * Get the number of map entries
+     *
+     * @return number of entries
+     */
+    @Override
+    public int size()
+    {
+        return values == null ? 4 : 5;
+    }
+
+    /**
+     * Read-only view of the record's entries
+     */
+    private class EntrySet
+        extends AbstractSet<Map.Entry<String, Object>>
+    {
+        @Override
+        public Iterator<Map.Entry<String, Object>> iterator()
+        {
+            return new Iterator<Map.Entry<String, Object>>() {
+                private int next;
+
+                @Override
+                public boolean hasNext()
+                {
+                    return next < size();
+                }
+
+                @Override
+                public Map.Entry<String, Object> next()
+                {
+                    if (next >= size()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    final String key = getKey(next++);
+                    return new AbstractMap.SimpleImmutableEntry<String,
+                        Object>(key, get(key));
+                }
+
+                @Override
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size()
+        {
+            return AlertRecord.this.size();
+        }
+    }
+}
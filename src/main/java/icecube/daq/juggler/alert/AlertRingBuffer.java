@@ -0,0 +1,369 @@
+package icecube.daq.juggler.alert;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free queue which accepts objects from any number of
+ * producer threads and hands them to a single consumer thread.
+ *
+ * Producers claim a slot by advancing the tail counter and then publish
+ * their object into that slot.  The consumer owns the head counter and
+ * parks on the buffer's <tt>AlertWaiter</tt> (which may be shared by
+ * several buffers) when there is nothing to do.
+ *
+ * The ring is divided into fixed-size chunks which are allocated the
+ * first time a producer reaches them and reused on every later pass, so
+ * a buffer with a large capacity only holds as much memory as its
+ * deepest backlog needed.
+ */
+class AlertRingBuffer<T>
+{
+    /** Largest number of slots in a chunk */
+    static final int MAX_CHUNK_SIZE = 1024;
+
+    /** Maximum number of entries */
+    private final int capacity;
+    /** Number of slots in each chunk (a power of two) */
+    private final int chunkSize;
+    /** Mask used to turn a sequence number into a slot index */
+    private final int mask;
+    /** Shift used to turn a sequence number into a chunk number */
+    private final int shift;
+    /** Chunks (<tt>null</tt> until a producer first needs them) */
+    private final AtomicReferenceArray<Chunk<T>> chunks;
+    /** Total estimated size of all buffered objects */
+    private final AtomicLong weight = new AtomicLong();
+
+    /** Sequence number of the next slot to be claimed by a producer */
+    private final AtomicLong tail = new AtomicLong();
+    /** Sequence number of the next slot to be read by the consumer */
+    private volatile long head;
+
+    /** Used to wake the consumer thread */
+    private final AlertWaiter waiter;
+
+    /**
+     * Create a ring buffer
+     *
+     * @param capacity maximum number of entries
+     * @param waiter object used to wake the consumer thread
+     */
+    AlertRingBuffer(int capacity, AlertWaiter waiter)
+    {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Bad capacity " + capacity);
+        }
+
+        int size = 1;
+        int bits = 0;
+        while (size < capacity && size < MAX_CHUNK_SIZE) {
+            size <<= 1;
+            bits++;
+        }
+
+        this.capacity = capacity;
+        chunkSize = size;
+        mask = size - 1;
+        shift = bits;
+
+        final int numChunks = (capacity + size - 1) / size;
+        chunks = new AtomicReferenceArray<Chunk<T>>(numChunks);
+
+        this.waiter = waiter;
+    }
+
+    /**
+     * Get the maximum number of entries
+     *
+     * @return capacity
+     */
+    int capacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Get the index of the chunk holding a slot.
+     *
+     * @param seq sequence number
+     *
+     * @return chunk index
+     */
+    private int chunkIndex(long seq)
+    {
+        return (int) ((seq >>> shift) % chunks.length());
+    }
+
+    /**
+     * Get the chunk holding a claimed slot.
+     * This must only be called by the consumer thread.
+     *
+     * @param seq sequence number of a claimed slot
+     *
+     * @return chunk holding <tt>seq</tt>
+     */
+    private Chunk<T> consumerChunk(long seq)
+    {
+        final int idx = chunkIndex(seq);
+
+        // the producer which claimed 'seq' may still be allocating it
+        Chunk<T> chunk;
+        while ((chunk = chunks.get(idx)) == null) {
+            Thread.yield();
+        }
+
+        return chunk;
+    }
+
+    /**
+     * Get the number of chunks which have been allocated
+     *
+     * @return number of chunks
+     */
+    int getNumChunks()
+    {
+        int num = 0;
+        for (int i = 0; i < chunks.length(); i++) {
+            if (chunks.get(i) != null) {
+                num++;
+            }
+        }
+        return num;
+    }
+
+    /**
+     * Move up to <tt>max</tt> of the oldest objects into <tt>dst</tt>.
+     * This must only be called by the consumer thread.
+     *
+     * @param dst destination collection
+     * @param max maximum number of objects to remove
+     *
+     * @return number of objects removed
+     */
+    int drainTo(Collection<? super T> dst, int max)
+    {
+        return drainTo(dst, max, null);
+    }
+
+    /**
+     * Move up to <tt>max</tt> of the oldest objects into <tt>dst</tt>,
+     * saving the time each one was added to the buffer.
+     * This must only be called by the consumer thread.
+     *
+     * @param dst destination collection
+     * @param max maximum number of objects to remove
+     * @param times if not <tt>null</tt>, the time each object was added is
+     *              stored at the index it will have in <tt>dst</tt> (the
+     *              array must be large enough)
+     *
+     * @return number of objects removed
+     */
+    int drainTo(Collection<? super T> dst, int max, long[] times)
+    {
+        final long seq = head;
+        final long avail = tail.get() - seq;
+        if (avail <= 0 || max <= 0) {
+            return 0;
+        }
+
+        final int num = (int) Math.min(avail, (long) max);
+
+        long drained = 0;
+        for (int i = 0; i < num; i++) {
+            final Chunk<T> chunk = consumerChunk(seq + i);
+            final int idx = (int) ((seq + i) & mask);
+
+            T obj;
+            while ((obj = chunk.slots.get(idx)) == null) {
+                Thread.yield();
+            }
+
+            drained += chunk.weights[idx];
+            if (times != null) {
+                times[dst.size()] = chunk.stamps[idx];
+            }
+            chunk.slots.lazySet(idx, null);
+            dst.add(obj);
+        }
+
+        // release all the drained slots at once
+        head = seq + num;
+        if (drained != 0) {
+            weight.addAndGet(-drained);
+        }
+
+        return num;
+    }
+
+    /**
+     * Get the total estimated size of all buffered objects
+     *
+     * @return total size
+     */
+    long getWeight()
+    {
+        return weight.get();
+    }
+
+    /**
+     * Is the buffer empty?
+     *
+     * @return <tt>true</tt> if there are no entries
+     */
+    boolean isEmpty()
+    {
+        return tail.get() == head;
+    }
+
+    /**
+     * Add an object to the buffer.
+     *
+     * @param obj object
+     *
+     * @return <tt>false</tt> if the buffer is full
+     */
+    boolean offer(T obj)
+    {
+        return offer(obj, 0);
+    }
+
+    /**
+     * Add an object to the buffer.
+     *
+     * @param obj object
+     * @param objWeight estimated size of the object
+     *
+     * @return <tt>false</tt> if the buffer is full
+     */
+    boolean offer(T obj, int objWeight)
+    {
+        if (obj == null) {
+            throw new NullPointerException("Cannot add null object");
+        }
+
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head >= capacity) {
+                return false;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        final Chunk<T> chunk = producerChunk(seq);
+        final int idx = (int) (seq & mask);
+
+        // weight and time must be visible before the object is published
+        chunk.weights[idx] = objWeight;
+        chunk.stamps[idx] = System.nanoTime();
+        if (objWeight != 0) {
+            weight.addAndGet(objWeight);
+        }
+
+        chunk.slots.lazySet(idx, obj);
+
+        waiter.published();
+
+        return true;
+    }
+
+    /**
+     * Remove the oldest object from the buffer.
+     * This must only be called by the consumer thread.
+     *
+     * @return oldest object or <tt>null</tt> if the buffer is empty
+     */
+    T poll()
+    {
+        final long seq = head;
+        if (seq == tail.get()) {
+            return null;
+        }
+
+        final Chunk<T> chunk = consumerChunk(seq);
+        final int idx = (int) (seq & mask);
+
+        // slot has been claimed but the producer may not have published
+        // its object yet
+        T obj;
+        while ((obj = chunk.slots.get(idx)) == null) {
+            Thread.yield();
+        }
+
+        final int objWeight = chunk.weights[idx];
+        chunk.slots.lazySet(idx, null);
+        head = seq + 1;
+        if (objWeight != 0) {
+            weight.addAndGet(-objWeight);
+        }
+
+        return obj;
+    }
+
+    /**
+     * Get the chunk holding a slot claimed by a producer, allocating it if
+     * this is the first time the ring has reached it.
+     *
+     * @param seq sequence number of the claimed slot
+     *
+     * @return chunk holding <tt>seq</tt>
+     */
+    private Chunk<T> producerChunk(long seq)
+    {
+        final int idx = chunkIndex(seq);
+
+        Chunk<T> chunk = chunks.get(idx);
+        if (chunk == null) {
+            chunk = new Chunk<T>(chunkSize);
+            if (!chunks.compareAndSet(idx, null, chunk)) {
+                chunk = chunks.get(idx);
+            }
+        }
+
+        return chunk;
+    }
+
+    /**
+     * Get the number of entries in the buffer
+     *
+     * @return number of entries
+     */
+    int size()
+    {
+        final long h = head;
+        final long size = tail.get() - h;
+        if (size < 0) {
+            return 0;
+        } else if (size > capacity) {
+            return capacity;
+        }
+
+        return (int) size;
+    }
+
+    /**
+     * Fixed-size block of slots
+     */
+    private static final class Chunk<T>
+    {
+        /** Buffer slots */
+        final AtomicReferenceArray<T> slots;
+        /** Estimated size of each slot's object */
+        final int[] weights;
+        /** Time (from <tt>System.nanoTime()</tt>) each slot was filled */
+        final long[] stamps;
+
+        /**
+         * Create a chunk
+         *
+         * @param size number of slots
+         */
+        Chunk(int size)
+        {
+            slots = new AtomicReferenceArray<T>(size);
+            weights = new int[size];
+            stamps = new long[size];
+        }
+    }
+}
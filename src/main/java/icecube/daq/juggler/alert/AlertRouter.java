@@ -0,0 +1,229 @@
+package icecube.daq.juggler.alert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Table which chooses the alerter for each alert from its priority and
+ * varname.
+ *
+ * Routes are checked in the order they were added and the first match
+ * wins; alerts which match no route go to the default alerter.  Varname
+ * patterns are compiled when the route is added and each (priority,
+ * varname) decision is cached, so routing a varname which has been seen
+ * before is a single hash lookup.
+ */
+class AlertRouter
+{
+    /** Maximum number of cached decisions for each priority */
+    static final int MAX_CACHED = 10000;
+
+    /** Routes, in the order they were added */
+    private volatile Route[] routes = new Route[0];
+    /** Per-priority maps of varname to chosen route */
+    private volatile ConcurrentHashMap<String, Route>[] cache;
+
+    AlertRouter()
+    {
+        cache = newCache();
+    }
+
+    /**
+     * Add a route.
+     *
+     * @param prio alert priority (<tt>null</tt> to match all priorities)
+     * @param glob varname pattern (<tt>null</tt> to match all varnames)
+     * @param alerter destination
+     */
+    synchronized void addRoute(Alerter.Priority prio, String glob,
+                               Alerter alerter)
+    {
+        Route[] tmp = new Route[routes.length + 1];
+        System.arraycopy(routes, 0, tmp, 0, routes.length);
+        tmp[routes.length] = new Route(prio, glob, alerter);
+
+        routes = tmp;
+        cache = newCache();
+    }
+
+    /**
+     * Remove all routes.
+     */
+    synchronized void clear()
+    {
+        routes = new Route[0];
+        cache = newCache();
+    }
+
+    /**
+     * Find the first route which matches an alert.
+     *
+     * @param prio alert priority
+     * @param varname alert name
+     *
+     * @return matching route (<tt>null</tt> if there is no match)
+     */
+    private Route findRoute(Alerter.Priority prio, String varname)
+    {
+        for (Route route : routes) {
+            if (route.matches(prio, varname)) {
+                return route;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the list of alerters which receive routed alerts.
+     *
+     * @return list of alerters
+     */
+    List<Alerter> getAlerters()
+    {
+        ArrayList<Alerter> list = new ArrayList<Alerter>();
+        for (Route route : routes) {
+            if (!list.contains(route.alerter)) {
+                list.add(route.alerter);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Are there any routes?
+     *
+     * @return <tt>true</tt> if alerts may be sent to other alerters
+     */
+    boolean isEmpty()
+    {
+        return routes.length == 0;
+    }
+
+    private static ConcurrentHashMap<String, Route>[] newCache()
+    {
+        final int num = Alerter.Priority.values().length;
+
+        ConcurrentHashMap<String, Route>[] maps =
+            (ConcurrentHashMap<String, Route>[]) new ConcurrentHashMap[num];
+        for (int i = 0; i < num; i++) {
+            maps[i] = new ConcurrentHashMap<String, Route>();
+        }
+        return maps;
+    }
+
+    /**
+     * Choose the alerter for an alert.
+     *
+     * @param prio alert priority
+     * @param varname alert name
+     * @param dflt alerter used if no route matches
+     *
+     * @return alerter
+     */
+    Alerter route(Alerter.Priority prio, String varname, Alerter dflt)
+    {
+        final String key = (varname == null ? "" : varname);
+
+        final ConcurrentHashMap<String, Route> map = cache[prio.ordinal()];
+
+        Route route = map.get(key);
+        if (route == null) {
+            route = findRoute(prio, key);
+            if (route == null) {
+                route = Route.DEFAULT;
+            }
+
+            if (map.size() < MAX_CACHED) {
+                map.put(key, route);
+            }
+        }
+
+        return route == Route.DEFAULT ? dflt : route.alerter;
+    }
+
+    /**
+     * Choose the alerter for a queued alert.  Maps are expected to hold
+     * <tt>varname</tt> and <tt>prio</tt> entries; serialized alerts are
+     * decoded to find them.  Alerts without a valid priority are treated
+     * as DEBUG alerts.
+     *
+     * @param obj queued alert
+     * @param dflt alerter used if no route matches
+     *
+     * @return alerter
+     */
+    Alerter route(Object obj, Alerter dflt)
+    {
+        if (routes.length == 0) {
+            return dflt;
+        }
+
+        if (obj instanceof AlertRecord) {
+            final AlertRecord rec = (AlertRecord) obj;
+            return route(rec.getPriority(), rec.getVarname(), dflt);
+        }
+
+        Object alert = obj;
+        if (alert instanceof EncodedAlert) {
+            final byte[] bytes = ((EncodedAlert) alert).getBytes();
+            try {
+                alert = AlertDecoder.decode(bytes);
+            } catch (AlertException ae) {
+                return dflt;
+            }
+        }
+
+        if (!(alert instanceof Map)) {
+            return dflt;
+        }
+
+        final Map map = (Map) alert;
+
+        Alerter.Priority prio = Alerter.Priority.DEBUG;
+        final Object prioVal = map.get("prio");
+        if (prioVal instanceof Number) {
+            final int val = ((Number) prioVal).intValue();
+            for (Alerter.Priority p : Alerter.Priority.values()) {
+                if (p.value() == val) {
+                    prio = p;
+                    break;
+                }
+            }
+        }
+
+        final Object varname = map.get("varname");
+        return route(prio, (varname instanceof String ? (String) varname :
+                            null), dflt);
+    }
+
+    /**
+     * A single entry in the routing table
+     */
+    private static final class Route
+    {
+        /** Placeholder for cached "no match" decisions */
+        static final Route DEFAULT = new Route(null, null, null);
+
+        private final Alerter.Priority prio;
+        private final Pattern pattern;
+        private final Alerter alerter;
+
+        Route(Alerter.Priority prio, String glob, Alerter alerter)
+        {
+            this.prio = prio;
+            this.pattern = (glob == null ? null :
+                            AlertRateLimiter.compileGlob(glob));
+            this.alerter = alerter;
+        }
+
+        boolean matches(Alerter.Priority prio, String varname)
+        {
+            return (this.prio == null || this.prio == prio) &&
+                (pattern == null || pattern.matcher(varname).matches());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package icecube.daq.juggler.alert;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Estimate the amount of heap used by a queued alert.
+ *
+ * The estimates assume a 64-bit JVM with compressed object pointers and
+ * are meant to be cheap rather than exact; they err on the high side for
+ * strings and containers, which make up most of an alert.
+ */
+final class AlertSizer
+{
+    /** Object header plus padding */
+    private static final int OBJECT_BYTES = 16;
+    /** Size of an object reference */
+    private static final int REF_BYTES = 8;
+    /** String object plus backing array header */
+    private static final int STRING_BYTES = 40;
+    /** HashMap object plus table header */
+    private static final int MAP_BYTES = 64;
+    /** HashMap node plus table slot */
+    private static final int MAP_ENTRY_BYTES = 40;
+    /** AlertRecord object and its fields */
+    private static final int RECORD_BYTES = 40;
+    /** ArrayList object plus backing array header */
+    private static final int LIST_BYTES = 40;
+    /** Estimate used for unknown objects */
+    private static final int UNKNOWN_BYTES = 64;
+
+    /** Containers nested deeper than this are not examined */
+    private static final int MAX_DEPTH = 16;
+
+    private AlertSizer()
+    {
+    }
+
+    /**
+     * Estimate the heap used by an object and everything it contains.
+     *
+     * @param obj object
+     *
+     * @return estimated number of bytes
+     */
+    static int estimate(Object obj)
+    {
+        return estimate(obj, 0);
+    }
+
+    private static int estimate(Object obj, int depth)
+    {
+        if (obj == null) {
+            return 0;
+        } else if (obj instanceof String) {
+            return STRING_BYTES + 2 * ((String) obj).length();
+        } else if (obj instanceof Long || obj instanceof Double) {
+            return OBJECT_BYTES + 8;
+        } else if (obj instanceof Number || obj instanceof Boolean ||
+                   obj instanceof Character)
+        {
+            return OBJECT_BYTES;
+        } else if (obj instanceof EncodedAlert) {
+            return OBJECT_BYTES * 2 + ((EncodedAlert) obj).getBytes().length;
+        } else if (obj instanceof AlertRecord) {
+            final AlertRecord rec = (AlertRecord) obj;
+            return RECORD_BYTES + estimate(rec.getService(), depth + 1) +
+                estimate(rec.getVarname(), depth + 1) +
+                estimate(rec.getTime(), depth + 1) +
+                estimate(rec.getValues(), depth + 1);
+        } else if (depth >= MAX_DEPTH) {
+            return UNKNOWN_BYTES;
+        } else if (obj instanceof Map) {
+            int total = MAP_BYTES;
+            for (Object o : ((Map) obj).entrySet()) {
+                Map.Entry entry = (Map.Entry) o;
+                total += MAP_ENTRY_BYTES + estimate(entry.getKey(), depth + 1) +
+                    estimate(entry.getValue(), depth + 1);
+            }
+            return total;
+        } else if (obj instanceof Collection) {
+            int total = LIST_BYTES;
+            for (Object elem : (Collection) obj) {
+                total += REF_BYTES + estimate(elem, depth + 1);
+            }
+            return total;
+        } else if (obj instanceof Object[]) {
+            int total = OBJECT_BYTES;
+            for (Object elem : (Object[]) obj) {
+                total += REF_BYTES + estimate(elem, depth + 1);
+            }
+            return total;
+        } else if (obj instanceof int[]) {
+            return OBJECT_BYTES + 4 * ((int[]) obj).length;
+        } else if (obj instanceof long[]) {
+            return OBJECT_BYTES + 8 * ((long[]) obj).length;
+        } else if (obj instanceof double[]) {
+            return OBJECT_BYTES + 8 * ((double[]) obj).length;
+        } else if (obj instanceof byte[]) {
+            return OBJECT_BYTES + ((byte[]) obj).length;
+        }
+
+        return UNKNOWN_BYTES;
+    }
+}
@@ -0,0 +1,193 @@
+package icecube.daq.juggler.alert;
+
+import icecube.daq.payload.IUTCTime;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Format alert timestamps without calling <tt>String.format()</tt> or
+ * <tt>IUTCTime.toDateString()</tt> for every alert.
+ *
+ * The date and time up to the second is cached (one entry for calendar
+ * dates and one for DAQ times), and only the sub-second digits are
+ * written for each alert.  The output is identical to
+ * <tt>String.format("%tF %tT.%tL000", date, date, date)</tt> for
+ * calendar dates and to <tt>toDateString()</tt> for DAQ times.
+ *
+ * All methods are thread-safe.
+ */
+final class AlertTimeFormatter
+{
+    /** Number of DAQ ticks per second */
+    private static final long TICKS_PER_SECOND = 10000000000L;
+    /** Number of sub-second digits in a DAQ date string */
+    private static final int TICK_DIGITS = 10;
+    /** DAQ time cache entries are rechecked after this many milliseconds */
+    private static final long UTC_EXPIRE_MILLIS = 1000L;
+
+    /** Most recent calendar date prefix */
+    private static volatile CalendarEntry calEntry;
+    /** Most recent DAQ time prefix */
+    private static volatile UTCEntry utcEntry;
+
+    /** Per-thread buffer used to build date strings */
+    private static final ThreadLocal<char[]> BUFFERS =
+        new ThreadLocal<char[]>() {
+            @Override
+            protected char[] initialValue()
+            {
+                return new char[64];
+            }
+        };
+
+    private AlertTimeFormatter()
+    {
+    }
+
+    /**
+     * Build a date string from a cached prefix and the sub-second value.
+     *
+     * @param prefix date and time up to (and including) the decimal point
+     * @param frac sub-second value
+     * @param digits number of sub-second digits
+     * @param zeros number of zeros appended to the sub-second digits
+     *
+     * @return date string
+     */
+    private static String build(String prefix, long frac, int digits,
+                                int zeros)
+    {
+        final int plen = prefix.length();
+        final int len = plen + digits + zeros;
+
+        char[] buf = BUFFERS.get();
+        if (buf.length < len) {
+            buf = new char[len];
+            BUFFERS.set(buf);
+        }
+
+        prefix.getChars(0, plen, buf, 0);
+
+        int pos = plen + digits;
+        for (int i = 0; i < digits; i++) {
+            buf[--pos] = (char) ('0' + (int) (frac % 10L));
+            frac /= 10L;
+        }
+
+        for (int i = plen + digits; i < len; i++) {
+            buf[i] = '0';
+        }
+
+        return new String(buf, 0, len);
+    }
+
+    /**
+     * Format a calendar date as <tt>YYYY-MM-DD HH:MM:SS.mmm000</tt>.
+     *
+     * @param date date and time
+     *
+     * @return date string
+     */
+    static String format(Calendar date)
+    {
+        // other calendar systems have their own idea of the year
+        if (date.getClass() != GregorianCalendar.class) {
+            return String.format("%tF %tT.%tL000", date, date, date);
+        }
+
+        final long millis = date.getTimeInMillis();
+        final long second = Math.floorDiv(millis, 1000L);
+        final int offset = date.get(Calendar.ZONE_OFFSET) +
+            date.get(Calendar.DST_OFFSET);
+
+        CalendarEntry entry = calEntry;
+        if (entry == null || entry.second != second ||
+            entry.offset != offset)
+        {
+            final String str =
+                String.format("%tF %tT.", date, date);
+            entry = new CalendarEntry(second, offset, str);
+            calEntry = entry;
+        }
+
+        return build(entry.prefix, Math.floorMod(millis, 1000L), 3, 3);
+    }
+
+    /**
+     * Format a DAQ time exactly as <tt>utcTime.toDateString()</tt> would.
+     *
+     * @param utcTime DAQ time
+     *
+     * @return date string
+     */
+    static String format(IUTCTime utcTime)
+    {
+        final long ticks = utcTime.longValue();
+        final long second = Math.floorDiv(ticks, TICKS_PER_SECOND);
+        final long now = System.currentTimeMillis();
+
+        UTCEntry entry = utcEntry;
+        if (entry != null && entry.second == second &&
+            entry.timeClass == utcTime.getClass() &&
+            now - entry.created < UTC_EXPIRE_MILLIS && now >= entry.created)
+        {
+            return build(entry.prefix,
+                         Math.floorMod(ticks, TICKS_PER_SECOND),
+                         TICK_DIGITS, 0);
+        }
+
+        final String str = utcTime.toDateString();
+
+        // only cache the prefix if we can reproduce the sub-second digits
+        final int dot = str.lastIndexOf('.');
+        if (dot < 0 || str.length() - dot - 1 != TICK_DIGITS) {
+            return str;
+        }
+
+        final String prefix = str.substring(0, dot + 1);
+        final long frac = Math.floorMod(ticks, TICKS_PER_SECOND);
+        if (build(prefix, frac, TICK_DIGITS, 0).equals(str)) {
+            utcEntry = new UTCEntry(utcTime.getClass(), second, prefix, now);
+        }
+
+        return str;
+    }
+
+    /**
+     * Cached calendar date prefix
+     */
+    private static final class CalendarEntry
+    {
+        private final long second;
+        private final int offset;
+        private final String prefix;
+
+        CalendarEntry(long second, int offset, String prefix)
+        {
+            this.second = second;
+            this.offset = offset;
+            this.prefix = prefix;
+        }
+    }
+
+    /**
+     * Cached DAQ time prefix
+     */
+    private static final class UTCEntry
+    {
+        private final Class<?> timeClass;
+        private final long second;
+        private final String prefix;
+        private final long created;
+
+        UTCEntry(Class<?> timeClass, long second, String prefix,
+                 long created)
+        {
+            this.timeClass = timeClass;
+            this.second = second;
+            this.prefix = prefix;
+            this.created = created;
+        }
+    }
+}
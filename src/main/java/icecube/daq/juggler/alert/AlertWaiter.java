@@ -0,0 +1,93 @@
+package icecube.daq.juggler.alert;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parks a single consumer thread until one of its ring buffers has data.
+ *
+ * Producers only read the waiting thread (and unpark it if it's set), so
+ * there is no shared write on the fast path.
+ */
+class AlertWaiter
+{
+    /** Consumer thread, set only while it is preparing to park */
+    private volatile Thread waiter;
+    /** Set by <tt>wakeup()</tt> so a racing <tt>await()</tt> won't park */
+    private volatile boolean signalled;
+
+    /**
+     * Wait until an object is added to one of the buffers or
+     * <tt>wakeup()</tt> is called.
+     * This must only be called by the consumer thread.
+     *
+     * @param bufs buffers which feed the consumer
+     */
+    void await(AlertRingBuffer<?>[] bufs)
+    {
+        await(bufs, 0L);
+    }
+
+    /**
+     * Wait until an object is added to one of the buffers,
+     * <tt>wakeup()</tt> is called, or the timeout expires.
+     * This must only be called by the consumer thread.
+     *
+     * @param bufs buffers which feed the consumer
+     * @param nanos maximum number of nanoseconds to wait
+     *              (<tt>0</tt> to wait forever)
+     */
+    void await(AlertRingBuffer<?>[] bufs, long nanos)
+    {
+        waiter = Thread.currentThread();
+        try {
+            if (!signalled && allEmpty(bufs)) {
+                if (nanos > 0) {
+                    LockSupport.parkNanos(this, nanos);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        } finally {
+            waiter = null;
+            signalled = false;
+        }
+    }
+
+    /**
+     * Are all the buffers empty?
+     *
+     * @param bufs buffers
+     *
+     * @return <tt>true</tt> if there is no data in any buffer
+     */
+    static boolean allEmpty(AlertRingBuffer<?>[] bufs)
+    {
+        for (int i = 0; i < bufs.length; i++) {
+            if (!bufs[i].isEmpty()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Called by producers after publishing an object.
+     */
+    void published()
+    {
+        final Thread thr = waiter;
+        if (thr != null) {
+            LockSupport.unpark(thr);
+        }
+    }
+
+    /**
+     * Wake the consumer thread even if there is no new data
+     */
+    void wakeup()
+    {
+        signalled = true;
+        published();
+    }
+}
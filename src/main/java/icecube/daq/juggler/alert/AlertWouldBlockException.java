@@ -0,0 +1,20 @@
+package icecube.daq.juggler.alert;
+
+/**
+ * Thrown when an alert could not be sent because the receiver is not
+ * keeping up.  Nothing was sent, so the caller may retry the same alerts
+ * later or save them somewhere else.
+ */
+public class AlertWouldBlockException
+    extends AlertException
+{
+    /**
+     * Create a would-block exception.
+     *
+     * @param msg error message
+     */
+    public AlertWouldBlockException(String msg)
+    {
+        super(msg);
+    }
+}
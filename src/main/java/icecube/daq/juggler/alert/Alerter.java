@@ -3,6 +3,7 @@ package icecube.daq.juggler.alert;
 import icecube.daq.payload.IUTCTime;
 
 import java.util.Calendar;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -37,6 +38,14 @@ public interface Alerter
         }
     };
 
+    /** Message format */
+    public enum Format {
+        /** JSON text (understood by all receivers) */
+        JSON,
+        /** Binary CBOR (RFC 8949), marked with the self-described tag */
+        CBOR;
+    };
+
     /**
      * Close any open files/sockets.
      */
@@ -57,13 +66,48 @@ public interface Alerter
     boolean isActive();
 
     /**
-     * Send a Java object (as a JSON string) to a 0MQ server.
+     * Send a Java object (encoded in the current format) to a 0MQ server.
      *
      * @param obj object to send
+     *
+     * @throws AlertWouldBlockException if the receiver is not keeping up
+     *                                  and nothing was sent
+     * @throws AlertException if the object could not be sent
      */
     void sendObject(Object obj)
         throws AlertException;
 
+    /**
+     * Send a batch of Java objects to a 0MQ server.  By default, each
+     * object is sent with <tt>sendObject()</tt>; alerters which can send
+     * a batch more efficiently should override this.
+     *
+     * @param list objects to send
+     *
+     * @throws AlertWouldBlockException if the receiver is not keeping up
+     *                                  and nothing was sent
+     * @throws AlertException if the objects could not be sent
+     */
+    default void sendObjects(List<?> list)
+        throws AlertException
+    {
+        int num = 0;
+        for (Object obj : list) {
+            try {
+                sendObject(obj);
+            } catch (AlertWouldBlockException awbe) {
+                if (num == 0) {
+                    throw awbe;
+                }
+
+                // part of the batch was sent, so it can't be retried as is
+                throw new AlertException("Only sent " + num + " of " +
+                                         list.size() + " objects", awbe);
+            }
+            num++;
+        }
+    }
+
     /**
      * Set monitoring server host and port
      *
@@ -74,4 +118,20 @@ public interface Alerter
      */
     void setAddress(String host, int port)
         throws AlertException;
+
+    /**
+     * Set the format used to encode messages.  By default only
+     * <tt>JSON</tt> is supported.
+     *
+     * @param format message format
+     *
+     * @throws Error if the format is not supported
+     */
+    default void setFormat(Format format)
+    {
+        if (format != Format.JSON) {
+            throw new Error("Format " + format + " is not supported by " +
+                            getClass().getName());
+        }
+    }
 }
@@ -0,0 +1,417 @@
+package icecube.daq.juggler.alert;
+
+import com.google.gson.Gson;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Streaming CBOR (RFC 8949) encoder which writes directly into a reusable
+ * buffer.  Messages hold the same values as the JSON produced by
+ * <tt>JSONEncoder</tt>, but integers, floating point numbers and byte
+ * arrays are written in binary and don't need to be formatted or parsed.
+ *
+ * Each message starts with the CBOR "self-described" tag so receivers can
+ * tell it apart from a JSON message.  Serialized JSON alerts (from the
+ * overflow journal) are sent as-is when they make up the whole message,
+ * and embedded as a JSON tag otherwise.  Values which aren't handled here
+ * (big numbers, arbitrary beans, etc.) are converted to JSON by Gson and
+ * embedded the same way.
+ */
+final class CBOREncoder
+    extends AlertEncoder
+{
+    /** CBOR major types */
+    static final int MAJOR_UNSIGNED = 0;
+    static final int MAJOR_NEGATIVE = 1;
+    static final int MAJOR_BYTES = 2;
+    static final int MAJOR_TEXT = 3;
+    static final int MAJOR_ARRAY = 4;
+    static final int MAJOR_MAP = 5;
+    static final int MAJOR_TAG = 6;
+    static final int MAJOR_SIMPLE = 7;
+
+    /** Simple values */
+    static final int SIMPLE_FALSE = 20;
+    static final int SIMPLE_TRUE = 21;
+    static final int SIMPLE_NULL = 22;
+    static final int FLOAT16 = 25;
+    static final int FLOAT32 = 26;
+    static final int FLOAT64 = 27;
+
+    /** Tag which marks the start of a CBOR message */
+    static final int TAG_SELF_DESCRIBED = 55799;
+    /** Tag for a byte string holding UTF-8 encoded JSON */
+    static final int TAG_EMBEDDED_JSON = 262;
+
+    /** Encoded self-described tag, used to recognize CBOR messages */
+    static final byte[] MAGIC =
+        new byte[] { (byte) 0xd9, (byte) 0xd9, (byte) 0xf7 };
+
+    /** Envelope field names */
+    private static final String SERVICE = "service";
+    private static final String VARNAME = "varname";
+    private static final String PRIORITY = "prio";
+    private static final String TIME = "t";
+    private static final String VALUE = "value";
+
+    /** Fallback for unusual values (Gson objects are thread-safe) */
+    private static final Gson GSON = new Gson();
+
+    /** Per-thread encoders */
+    private static final ThreadLocal<CBOREncoder> ENCODERS =
+        new ThreadLocal<CBOREncoder>() {
+            @Override
+            protected CBOREncoder initialValue()
+            {
+                return new CBOREncoder();
+            }
+        };
+
+    /**
+     * Use <tt>getEncoder()</tt> to get this thread's encoder.
+     */
+    private CBOREncoder()
+    {
+    }
+
+    /**
+     * Get the encoder for the current thread.  The encoder is reset before
+     * it is returned.
+     *
+     * @return encoder
+     */
+    static CBOREncoder getEncoder()
+    {
+        CBOREncoder enc = ENCODERS.get();
+        enc.reset();
+        return enc;
+    }
+
+    /**
+     * Get the number of bytes needed to encode a string as UTF-8.
+     *
+     * @param str string
+     *
+     * @return number of bytes
+     */
+    private static int utf8Length(String str)
+    {
+        final int strLen = str.length();
+
+        int num = 0;
+        for (int i = 0; i < strLen; i++) {
+            final char ch = str.charAt(i);
+            if (ch < 0x80) {
+                num++;
+            } else if (ch < 0x800) {
+                num += 2;
+            } else if (Character.isHighSurrogate(ch) && i + 1 < strLen &&
+                       Character.isLowSurrogate(str.charAt(i + 1)))
+            {
+                num += 4;
+                i++;
+            } else if (Character.isSurrogate(ch)) {
+                num++;
+            } else {
+                num += 3;
+            }
+        }
+
+        return num;
+    }
+
+    /**
+     * Write an alert envelope.  The message holds the same fields as the
+     * JSON written by <tt>JSONEncoder</tt>.
+     *
+     * @param service service name
+     * @param varname variable name
+     * @param prio priority
+     * @param dateStr date string
+     * @param values alert values (omitted if <tt>null</tt> or empty)
+     */
+    @Override
+    void writeAlert(String service, String varname, int prio,
+                    String dateStr, Map<String, Object> values)
+    {
+        final boolean hasValues = values != null && values.size() > 0;
+
+        int numFields = 1;
+        if (service != null) numFields++;
+        if (varname != null) numFields++;
+        if (dateStr != null) numFields++;
+        if (hasValues) numFields++;
+
+        write(MAGIC);
+        writeHead(MAJOR_MAP, numFields);
+
+        if (service != null) {
+            writeString(SERVICE);
+            writeString(service);
+        }
+        if (varname != null) {
+            writeString(VARNAME);
+            writeString(varname);
+        }
+        writeString(PRIORITY);
+        writeLong(prio);
+        if (dateStr != null) {
+            writeString(TIME);
+            writeString(dateStr);
+        }
+        if (hasValues) {
+            writeString(VALUE);
+            writeMap(values);
+        }
+    }
+
+    /**
+     * Write an array of objects.
+     *
+     * @param array array object
+     */
+    private void writeArray(Object array)
+    {
+        final int arrayLen = Array.getLength(array);
+
+        writeHead(MAJOR_ARRAY, arrayLen);
+        if (array instanceof int[]) {
+            final int[] ia = (int[]) array;
+            for (int i = 0; i < arrayLen; i++) {
+                writeLong(ia[i]);
+            }
+        } else if (array instanceof long[]) {
+            final long[] la = (long[]) array;
+            for (int i = 0; i < arrayLen; i++) {
+                writeLong(la[i]);
+            }
+        } else if (array instanceof double[]) {
+            final double[] da = (double[]) array;
+            for (int i = 0; i < arrayLen; i++) {
+                writeDouble(da[i]);
+            }
+        } else {
+            for (int i = 0; i < arrayLen; i++) {
+                writeValue(Array.get(array, i));
+            }
+        }
+    }
+
+    /**
+     * Write a floating point number, using single precision if no
+     * information would be lost.
+     *
+     * @param val value
+     */
+    private void writeDouble(double val)
+    {
+        final float fval = (float) val;
+        if (fval == val) {
+            final int bits = Float.floatToIntBits(fval);
+            ensureCapacity(5);
+            buf[len++] = (byte) ((MAJOR_SIMPLE << 5) | FLOAT32);
+            buf[len++] = (byte) (bits >> 24);
+            buf[len++] = (byte) (bits >> 16);
+            buf[len++] = (byte) (bits >> 8);
+            buf[len++] = (byte) bits;
+        } else {
+            final long bits = Double.doubleToLongBits(val);
+            ensureCapacity(9);
+            buf[len++] = (byte) ((MAJOR_SIMPLE << 5) | FLOAT64);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[len++] = (byte) (bits >> shift);
+            }
+        }
+    }
+
+    /**
+     * Write a UTF-8 encoded JSON document as a tagged byte string.
+     *
+     * @param json UTF-8 encoded JSON
+     */
+    private void writeEmbeddedJSON(byte[] json)
+    {
+        writeHead(MAJOR_TAG, TAG_EMBEDDED_JSON);
+        writeHead(MAJOR_BYTES, json.length);
+        write(json);
+    }
+
+    /**
+     * Write the initial byte (and any following length bytes) for a
+     * data item.
+     *
+     * @param major major type
+     * @param val argument (treated as unsigned)
+     */
+    private void writeHead(int major, long val)
+    {
+        ensureCapacity(9);
+
+        final int type = major << 5;
+        if (val >= 0 && val < 24) {
+            buf[len++] = (byte) (type | (int) val);
+        } else if (val >= 0 && val <= 0xffL) {
+            buf[len++] = (byte) (type | 24);
+            buf[len++] = (byte) val;
+        } else if (val >= 0 && val <= 0xffffL) {
+            buf[len++] = (byte) (type | 25);
+            buf[len++] = (byte) (val >> 8);
+            buf[len++] = (byte) val;
+        } else if (val >= 0 && val <= 0xffffffffL) {
+            buf[len++] = (byte) (type | 26);
+            buf[len++] = (byte) (val >> 24);
+            buf[len++] = (byte) (val >> 16);
+            buf[len++] = (byte) (val >> 8);
+            buf[len++] = (byte) val;
+        } else {
+            buf[len++] = (byte) (type | 27);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[len++] = (byte) (val >> shift);
+            }
+        }
+    }
+
+    private void writeLong(long val)
+    {
+        if (val >= 0) {
+            writeHead(MAJOR_UNSIGNED, val);
+        } else {
+            writeHead(MAJOR_NEGATIVE, ~val);
+        }
+    }
+
+    private void writeMap(Map map)
+    {
+        // entries with null values are dropped, just like in JSON messages
+        int num = 0;
+        for (Object obj : map.values()) {
+            if (obj != null) {
+                num++;
+            }
+        }
+
+        writeHead(MAJOR_MAP, num);
+        for (Object obj : map.entrySet()) {
+            final Map.Entry entry = (Map.Entry) obj;
+            if (entry.getValue() == null) {
+                continue;
+            }
+
+            writeString(String.valueOf(entry.getKey()));
+            writeValue(entry.getValue());
+        }
+    }
+
+    /**
+     * Write an arbitrary object as a complete message.
+     *
+     * @param obj object to encode
+     */
+    @Override
+    void writeObject(Object obj)
+    {
+        if (obj instanceof EncodedAlert) {
+            // already serialized as JSON, which receivers also understand
+            write(((EncodedAlert) obj).getBytes());
+            return;
+        } else if (obj instanceof AlertRecord) {
+            final AlertRecord rec = (AlertRecord) obj;
+            writeAlert(rec.getService(), rec.getVarname(),
+                       rec.getPriority().value(), rec.getTime(),
+                       rec.getValues());
+            return;
+        }
+
+        write(MAGIC);
+        writeValue(obj);
+    }
+
+    private void writeSimple(int val)
+    {
+        write((byte) ((MAJOR_SIMPLE << 5) | val));
+    }
+
+    private void writeString(String str)
+    {
+        final int strLen = str.length();
+
+        writeHead(MAJOR_TEXT, utf8Length(str));
+        ensureCapacity(strLen * 3);
+
+        for (int i = 0; i < strLen; i++) {
+            final char ch = str.charAt(i);
+            if (ch < 0x80) {
+                buf[len++] = (byte) ch;
+            } else if (ch < 0x800) {
+                buf[len++] = (byte) (0xc0 | (ch >> 6));
+                buf[len++] = (byte) (0x80 | (ch & 0x3f));
+            } else if (Character.isHighSurrogate(ch) && i + 1 < strLen &&
+                       Character.isLowSurrogate(str.charAt(i + 1)))
+            {
+                final int cp = Character.toCodePoint(ch, str.charAt(++i));
+                buf[len++] = (byte) (0xf0 | (cp >> 18));
+                buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[len++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(ch)) {
+                // unpaired surrogate, replaced just like String.getBytes()
+                buf[len++] = (byte) '?';
+            } else {
+                buf[len++] = (byte) (0xe0 | (ch >> 12));
+                buf[len++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                buf[len++] = (byte) (0x80 | (ch & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * Write a single value.
+     *
+     * @param obj value
+     */
+    private void writeValue(Object obj)
+    {
+        if (obj == null) {
+            writeSimple(SIMPLE_NULL);
+        } else if (obj instanceof String) {
+            writeString((String) obj);
+        } else if (obj instanceof Integer || obj instanceof Long ||
+                   obj instanceof Short || obj instanceof Byte)
+        {
+            writeLong(((Number) obj).longValue());
+        } else if (obj instanceof Double || obj instanceof Float) {
+            writeDouble(((Number) obj).doubleValue());
+        } else if (obj instanceof Boolean) {
+            writeSimple(((Boolean) obj).booleanValue() ?
+                        SIMPLE_TRUE : SIMPLE_FALSE);
+        } else if (obj instanceof Character) {
+            writeString(obj.toString());
+        } else if (obj instanceof Map) {
+            writeMap((Map) obj);
+        } else if (obj instanceof Collection) {
+            final Collection coll = (Collection) obj;
+            writeHead(MAJOR_ARRAY, coll.size());
+            for (Object elem : coll) {
+                writeValue(elem);
+            }
+        } else if (obj instanceof byte[]) {
+            final byte[] bytes = (byte[]) obj;
+            writeHead(MAJOR_BYTES, bytes.length);
+            write(bytes);
+        } else if (obj.getClass().isArray()) {
+            writeArray(obj);
+        } else if (obj instanceof EncodedAlert) {
+            writeEmbeddedJSON(((EncodedAlert) obj).getBytes());
+        } else if (obj instanceof Enum) {
+            writeString(((Enum) obj).name());
+        } else {
+            try {
+                writeEmbeddedJSON(GSON.toJson(obj).getBytes("UTF-8"));
+            } catch (java.io.UnsupportedEncodingException uee) {
+                throw new Error("UTF-8 is not supported", uee);
+            }
+        }
+    }
+}
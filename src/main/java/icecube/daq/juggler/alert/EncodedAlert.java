@@ -0,0 +1,47 @@
+package icecube.daq.juggler.alert;
+
+/**
+ * An alert which has already been serialized as JSON (for example, one
+ * which was read back from an overflow journal).  Alerters copy the bytes
+ * directly into the outgoing message.
+ */
+final class EncodedAlert
+{
+    /** UTF-8 encoded JSON */
+    private final byte[] bytes;
+
+    /**
+     * Wrap a serialized alert
+     *
+     * @param bytes UTF-8 encoded JSON
+     */
+    EncodedAlert(byte[] bytes)
+    {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Get the serialized alert
+     *
+     * @return UTF-8 encoded JSON
+     */
+    byte[] getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Get the alert as a string
+     *
+     * @return JSON string
+     */
+    @Override
+    public String toString()
+    {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException uee) {
+            throw new Error("UTF-8 is not supported", uee);
+        }
+    }
+}
@@ -0,0 +1,660 @@
+package icecube.daq.juggler.alert;
+
+import icecube.daq.juggler.WorkerThreads;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Send the same alerts to several alerters (for example, IceCube Live and
+ * a local archiver).
+ *
+ * Each alert is serialized once, as JSON which every receiver understands,
+ * and the bytes are handed to every endpoint.  Each endpoint has its own
+ * bounded queue and thread, so a slow or broken receiver cannot hold up
+ * the others or the caller; alerts which arrive while an endpoint's queue
+ * is full are dropped for that endpoint only.
+ *
+ * <tt>close()</tt> waits up to <tt>setCloseTimeout()</tt> milliseconds
+ * for the endpoints to send their queued alerts.  After that, endpoints
+ * which are still busy are interrupted and any alerts they haven't sent
+ * are abandoned (see <tt>getNumAbandoned()</tt>).
+ */
+public class FanOutAlerter
+    implements SerializingAlerter
+{
+    /** Logging object */
+    private static final Logger LOG = Logger.getLogger(FanOutAlerter.class);
+
+    /** Default maximum number of alerts queued for each endpoint */
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+    /** Default time <tt>close()</tt> spends sending queued alerts */
+    public static final long DEFAULT_CLOSE_MILLIS = 5000L;
+
+    /** Maximum number of alerts handed to an endpoint at once */
+    private static final int MAX_BATCH_SIZE = 100;
+    /** How often endpoint threads check whether they've been stopped */
+    private static final long POLL_MILLIS = 1000L;
+    /** Time to wait before resending a batch which would have blocked */
+    private static final long BLOCKED_RETRY_MILLIS = 10L;
+    /** An endpoint has failed after this many sends fail in a row */
+    private static final int MAX_FAILURES = 3;
+    /** Time to wait for an interrupted endpoint to stop */
+    private static final long ABANDON_WAIT_MILLIS = 1000L;
+
+    /**
+     * Endpoint health
+     */
+    public enum Health
+    {
+        /** Alerts are being delivered */
+        HEALTHY,
+        /** Receiver is not keeping up, so alerts are backing up */
+        SLOW,
+        /** Recent sends have all failed */
+        FAILED;
+    }
+
+    /** Service name */
+    protected String service;
+
+    /** Maximum number of alerts queued for each endpoint */
+    private final int queueSize;
+    /** Alerters which receive every alert */
+    private final CopyOnWriteArrayList<Endpoint> endpoints =
+        new CopyOnWriteArrayList<Endpoint>();
+    /** Set after the alerter has been closed */
+    private volatile boolean closed;
+    /** Maximum time <tt>close()</tt> spends sending queued alerts */
+    private volatile long closeMillis = DEFAULT_CLOSE_MILLIS;
+
+    /**
+     * Create an alerter
+     */
+    public FanOutAlerter()
+    {
+        this(DEFAULT_SERVICE);
+    }
+
+    /**
+     * Create an alerter
+     *
+     * @param service service name
+     */
+    public FanOutAlerter(String service)
+    {
+        this(service, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Create an alerter
+     *
+     * @param service service name
+     * @param queueSize maximum number of alerts queued for each endpoint
+     */
+    public FanOutAlerter(String service, int queueSize)
+    {
+        if (queueSize < 1) {
+            throw new Error("Bad queue size " + queueSize);
+        }
+
+        this.service = service;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Add an alerter which will receive all subsequent alerts.
+     *
+     * @param alerter endpoint alerter
+     *
+     * @return endpoint index
+     */
+    public int addAlerter(Alerter alerter)
+    {
+        if (alerter == null) {
+            throw new Error("Alerter cannot be null");
+        } else if (closed) {
+            throw new Error("Cannot add alerter after close");
+        }
+
+        Endpoint ep = new Endpoint(alerter, queueSize);
+        ep.worker = WorkerThreads.start("FanOut-" + alerter, true, ep);
+
+        synchronized (endpoints) {
+            endpoints.add(ep);
+            return endpoints.size() - 1;
+        }
+    }
+
+    /**
+     * Send any queued alerts, then close all endpoint alerters.  Endpoints
+     * which haven't finished before the close timeout expires are
+     * interrupted and their unsent alerts are abandoned.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+
+        for (Endpoint ep : endpoints) {
+            ep.running = false;
+        }
+
+        final long deadline = System.currentTimeMillis() + closeMillis;
+        for (Endpoint ep : endpoints) {
+            if (!waitForEndpoint(ep, deadline - System.currentTimeMillis())) {
+                ep.abandon();
+
+                if (!waitForEndpoint(ep, ABANDON_WAIT_MILLIS)) {
+                    LOG.error("Alert endpoint " + ep.alerter +
+                              " did not stop; abandoning it");
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the alerter for an endpoint
+     *
+     * @param index endpoint index
+     *
+     * @return endpoint alerter
+     */
+    public Alerter getAlerter(int index)
+    {
+        return endpoints.get(index).alerter;
+    }
+
+    /**
+     * Get the number of alerts which an endpoint had not sent when it
+     * was abandoned by <tt>close()</tt>
+     *
+     * @param index endpoint index
+     *
+     * @return number of abandoned alerts
+     */
+    public long getNumAbandoned(int index)
+    {
+        return endpoints.get(index).numAbandoned.get();
+    }
+
+    /**
+     * Get the health of an endpoint
+     *
+     * @param index endpoint index
+     *
+     * @return endpoint health
+     */
+    public Health getHealth(int index)
+    {
+        return endpoints.get(index).getHealth();
+    }
+
+    /**
+     * Get the number of alerts dropped because an endpoint's queue was
+     * full
+     *
+     * @param index endpoint index
+     *
+     * @return number of dropped alerts
+     */
+    public long getNumDropped(int index)
+    {
+        return endpoints.get(index).numDropped.get();
+    }
+
+    /**
+     * Get the number of endpoints
+     *
+     * @return number of endpoints
+     */
+    public int getNumEndpoints()
+    {
+        return endpoints.size();
+    }
+
+    /**
+     * Get the number of alerts which an endpoint could not send
+     *
+     * @param index endpoint index
+     *
+     * @return number of failed alerts
+     */
+    public long getNumFailed(int index)
+    {
+        return endpoints.get(index).numFailed.get();
+    }
+
+    /**
+     * Get the number of alerts waiting to be sent to an endpoint
+     *
+     * @param index endpoint index
+     *
+     * @return number of queued alerts
+     */
+    public int getNumQueued(int index)
+    {
+        return endpoints.get(index).queue.size();
+    }
+
+    /**
+     * Get the number of alerts sent to an endpoint
+     *
+     * @param index endpoint index
+     *
+     * @return number of sent alerts
+     */
+    public long getNumSent(int index)
+    {
+        return endpoints.get(index).numSent.get();
+    }
+
+    /**
+     * Get the service name
+     *
+     * @return service name
+     */
+    @Override
+    public String getService()
+    {
+        return service;
+    }
+
+    /**
+     * If <tt>true</tt>, alerts will be sent to one or more recipients.
+     *
+     * @return <tt>true</tt> if any endpoint will send messages
+     */
+    @Override
+    public boolean isActive()
+    {
+        if (closed) {
+            return false;
+        }
+
+        for (Endpoint ep : endpoints) {
+            if (ep.alerter.isActive()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Serialize an object unless it has already been serialized.
+     *
+     * @param enc JSON encoder
+     * @param obj object to serialize
+     *
+     * @return serialized object
+     */
+    private static EncodedAlert encode(JSONEncoder enc, Object obj)
+    {
+        if (obj instanceof EncodedAlert) {
+            return (EncodedAlert) obj;
+        }
+
+        enc.reset();
+        enc.writeObject(obj);
+        return new EncodedAlert(enc.toByteArray());
+    }
+
+    /**
+     * Serialize a Java object once and queue it for every endpoint.
+     *
+     * @param obj object to send
+     *
+     * @throws AlertException if the alerter has been closed
+     */
+    @Override
+    public void sendObject(Object obj)
+        throws AlertException
+    {
+        if (closed) {
+            throw new AlertException("Alerter has been closed");
+        }
+
+        final EncodedAlert alert = encode(JSONEncoder.getEncoder(), obj);
+        for (Endpoint ep : endpoints) {
+            ep.enqueue(alert);
+        }
+    }
+
+    /**
+     * Serialize a batch of Java objects once and queue them for every
+     * endpoint.
+     *
+     * @param list objects to send
+     *
+     * @throws AlertException if the alerter has been closed
+     */
+    @Override
+    public void sendObjects(List<?> list)
+        throws AlertException
+    {
+        if (closed) {
+            throw new AlertException("Alerter has been closed");
+        }
+
+        final JSONEncoder enc = JSONEncoder.getEncoder();
+
+        EncodedAlert[] alerts = new EncodedAlert[list.size()];
+        for (int i = 0; i < alerts.length; i++) {
+            alerts[i] = encode(enc, list.get(i));
+        }
+
+        for (Endpoint ep : endpoints) {
+            for (int i = 0; i < alerts.length; i++) {
+                ep.enqueue(alerts[i]);
+            }
+        }
+    }
+
+    /**
+     * Endpoint addresses are set on the individual alerters.
+     *
+     * @param host ignored
+     * @param port ignored
+     *
+     * @throws AlertException always
+     */
+    @Override
+    public void setAddress(String host, int port)
+        throws AlertException
+    {
+        throw new AlertException("Set the address of each endpoint" +
+                                 " alerter instead");
+    }
+
+    /**
+     * Set the maximum time <tt>close()</tt> spends sending queued alerts
+     * before abandoning them.
+     *
+     * @param millis milliseconds
+     */
+    public void setCloseTimeout(long millis)
+    {
+        if (millis < 0) {
+            throw new Error("Bad close timeout " + millis);
+        }
+
+        closeMillis = millis;
+    }
+
+    /**
+     * Alerts are always serialized as JSON so the same bytes can be sent
+     * to every endpoint, so the format is passed to the endpoint alerters
+     * for anything they serialize themselves.
+     *
+     * @param format message format
+     */
+    @Override
+    public void setFormat(Format format)
+    {
+        if (format == null) {
+            throw new Error("Format cannot be null");
+        }
+
+        for (Endpoint ep : endpoints) {
+            ep.alerter.setFormat(format);
+        }
+    }
+
+    /**
+     * Return debugging string
+     *
+     * @return debugging string
+     */
+    @Override
+    public String toString()
+    {
+        return "FanOutAlerter" + endpoints;
+    }
+
+    /**
+     * Wait for an endpoint's worker to finish.
+     *
+     * @param ep endpoint
+     * @param millis maximum time to wait
+     *
+     * @return <tt>false</tt> if the endpoint is still running
+     */
+    private static boolean waitForEndpoint(Endpoint ep, long millis)
+    {
+        if (millis <= 0) {
+            return ep.worker.isDone();
+        }
+
+        try {
+            ep.worker.get(millis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ee) {
+            // already logged by the worker
+        } catch (InterruptedException ie) {
+            // give up
+        } catch (TimeoutException te) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Queue and worker loop for a single endpoint alerter
+     */
+    private static class Endpoint
+        implements Runnable
+    {
+        /** Endpoint alerter */
+        private final Alerter alerter;
+        /** Alerts waiting to be sent */
+        private final ArrayBlockingQueue<EncodedAlert> queue;
+        /** Set while the endpoint is accepting alerts */
+        private volatile boolean running = true;
+        /** Set once <tt>close()</tt> has given up on queued alerts */
+        private volatile boolean abandoning;
+        /** Handle for the worker loop */
+        private Future<?> worker;
+        /** Thread running the worker loop */
+        private volatile Thread thread;
+
+        /** Number of sends which have failed in a row */
+        private volatile int numFailures;
+        /** Set while the receiver is not keeping up */
+        private volatile boolean blocked;
+
+        /** Number of alerts sent */
+        private final AtomicLong numSent = new AtomicLong();
+        /** Number of alerts discarded because the queue was full */
+        private final AtomicLong numDropped = new AtomicLong();
+        /** Number of alerts which could not be sent */
+        private final AtomicLong numFailed = new AtomicLong();
+        /** Number of alerts discarded when the endpoint was abandoned */
+        private final AtomicLong numAbandoned = new AtomicLong();
+
+        /**
+         * Create an endpoint
+         *
+         * @param alerter endpoint alerter
+         * @param queueSize maximum number of queued alerts
+         */
+        Endpoint(Alerter alerter, int queueSize)
+        {
+            this.alerter = alerter;
+
+            queue = new ArrayBlockingQueue<EncodedAlert>(queueSize);
+        }
+
+        /**
+         * Stop sending queued alerts and interrupt any send in progress.
+         */
+        void abandon()
+        {
+            abandoning = true;
+
+            final Thread tmpThread = thread;
+            if (tmpThread != null) {
+                tmpThread.interrupt();
+            }
+        }
+
+        /**
+         * Hand a batch to the endpoint alerter, retrying while the
+         * receiver is not keeping up.
+         *
+         * @param batch serialized alerts
+         */
+        private void deliver(List<EncodedAlert> batch)
+        {
+            while (true) {
+                try {
+                    if (batch.size() == 1) {
+                        alerter.sendObject(batch.get(0));
+                    } else {
+                        alerter.sendObjects(batch);
+                    }
+                } catch (AlertWouldBlockException awbe) {
+                    blocked = true;
+                    if (abandoning) {
+                        numAbandoned.addAndGet(batch.size());
+                        return;
+                    } else if (!running) {
+                        numFailed.addAndGet(batch.size());
+                        return;
+                    }
+
+                    try {
+                        Thread.sleep(BLOCKED_RETRY_MILLIS);
+                    } catch (InterruptedException ie) {
+                        // try again now
+                    }
+
+                    continue;
+                } catch (AlertException ae) {
+                    blocked = false;
+                    if (abandoning) {
+                        numAbandoned.addAndGet(batch.size());
+                        return;
+                    }
+
+                    numFailed.addAndGet(batch.size());
+                    if (++numFailures == MAX_FAILURES) {
+                        LOG.error("Alert endpoint " + alerter +
+                                  " has failed", ae);
+                    }
+                    return;
+                }
+
+                if (numFailures >= MAX_FAILURES) {
+                    LOG.error("Alert endpoint " + alerter +
+                              " has recovered");
+                }
+
+                blocked = false;
+                numFailures = 0;
+                numSent.addAndGet(batch.size());
+                return;
+            }
+        }
+
+        /**
+         * Add an alert to the queue, dropping it if the queue is full.
+         *
+         * @param alert serialized alert
+         */
+        void enqueue(EncodedAlert alert)
+        {
+            if (!queue.offer(alert)) {
+                numDropped.incrementAndGet();
+            }
+        }
+
+        /**
+         * Get the endpoint's health
+         *
+         * @return health
+         */
+        Health getHealth()
+        {
+            if (numFailures >= MAX_FAILURES) {
+                return Health.FAILED;
+            } else if (blocked ||
+                       queue.remainingCapacity() < queue.size())
+            {
+                return Health.SLOW;
+            }
+
+            return Health.HEALTHY;
+        }
+
+        /**
+         * Send queued alerts until the fan-out alerter is closed, then
+         * close the endpoint alerter.
+         */
+        @Override
+        public void run()
+        {
+            thread = Thread.currentThread();
+
+            ArrayList<EncodedAlert> batch =
+                new ArrayList<EncodedAlert>(MAX_BATCH_SIZE);
+
+            try {
+                while (running || !queue.isEmpty()) {
+                    if (abandoning) {
+                        final int num = queue.size();
+                        queue.clear();
+                        numAbandoned.addAndGet(num);
+                        break;
+                    }
+
+                    EncodedAlert first;
+                    try {
+                        first = queue.poll(POLL_MILLIS,
+                                           TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ie) {
+                        continue;
+                    }
+
+                    if (first == null) {
+                        continue;
+                    }
+
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+                    deliver(batch);
+                    batch.clear();
+                }
+            } finally {
+                running = false;
+                thread = null;
+
+                // don't leave the interrupt for whoever runs next
+                Thread.interrupted();
+
+                alerter.close();
+            }
+        }
+
+        /**
+         * Return debugging string
+         *
+         * @return debugging string
+         */
+        @Override
+        public String toString()
+        {
+            return alerter.toString();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package icecube.daq.juggler.alert;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Append alerts to a local file.
+ *
+ * JSON alerts are written one per line; CBOR alerts are simply
+ * concatenated (a CBOR sequence), since every message starts with the
+ * CBOR self-described tag.  Each call serializes all its alerts into a
+ * single buffer which is written with one system call, so this is a cheap
+ * destination for high-volume debugging and monitoring alerts.
+ */
+public class FileAlerter
+    implements SerializingAlerter
+{
+    /** Service name */
+    protected String service;
+
+    /** File being written */
+    private final File file;
+    /** Output channel (<tt>null</tt> after the alerter is closed) */
+    private FileChannel channel;
+    /** Message format */
+    private volatile Format format = Format.JSON;
+
+    /**
+     * Create an alerter which appends to a file
+     *
+     * @param file output file
+     *
+     * @throws AlertException if the file cannot be opened
+     */
+    public FileAlerter(File file)
+        throws AlertException
+    {
+        this(DEFAULT_SERVICE, file);
+    }
+
+    /**
+     * Create an alerter which appends to a file
+     *
+     * @param service service name
+     * @param file output file
+     *
+     * @throws AlertException if the file cannot be opened
+     */
+    public FileAlerter(String service, File file)
+        throws AlertException
+    {
+        this.service = service;
+        this.file = file;
+
+        try {
+            channel = new FileOutputStream(file, true).getChannel();
+        } catch (IOException ioe) {
+            throw new AlertException("Cannot open alert file " + file, ioe);
+        }
+    }
+
+    /**
+     * Close the file.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                // ignore errors on close
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Get the file being written
+     *
+     * @return output file
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Get the format used to encode messages.
+     *
+     * @return message format
+     */
+    public Format getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * Get the service name
+     *
+     * @return service name
+     */
+    @Override
+    public String getService()
+    {
+        return service;
+    }
+
+    /**
+     * If <tt>true</tt>, alerts will be written to the file.
+     *
+     * @return <tt>true</tt> if the file is open
+     */
+    @Override
+    public synchronized boolean isActive()
+    {
+        return channel != null;
+    }
+
+    /**
+     * Append a Java object (encoded in the current format) to the file.
+     *
+     * @param obj object to send
+     */
+    @Override
+    public void sendObject(Object obj)
+        throws AlertException
+    {
+        final AlertEncoder enc = AlertEncoder.getEncoder(format);
+        writeMessage(enc, obj);
+
+        write(enc);
+    }
+
+    /**
+     * Append a batch of Java objects to the file.
+     *
+     * @param list objects to send
+     */
+    @Override
+    public void sendObjects(List<?> list)
+        throws AlertException
+    {
+        if (list.size() == 0) {
+            return;
+        }
+
+        final AlertEncoder enc = AlertEncoder.getEncoder(format);
+        for (Object obj : list) {
+            writeMessage(enc, obj);
+        }
+
+        write(enc);
+    }
+
+    /**
+     * Alerts are written to a file, not sent to a server.
+     *
+     * @param host ignored
+     * @param port ignored
+     *
+     * @throws AlertException always
+     */
+    @Override
+    public void setAddress(String host, int port)
+        throws AlertException
+    {
+        throw new AlertException("Cannot set address for file alerter");
+    }
+
+    /**
+     * Set the format used to encode messages.
+     *
+     * @param format message format
+     */
+    @Override
+    public void setFormat(Format format)
+    {
+        if (format == null) {
+            throw new Error("Format cannot be null");
+        }
+
+        this.format = format;
+    }
+
+    /**
+     * Return debugging string
+     *
+     * @return debugging string
+     */
+    @Override
+    public String toString()
+    {
+        return "FileAlerter[" + file + "]";
+    }
+
+    /**
+     * Write all encoded messages to the file.
+     *
+     * @param enc encoder holding one or more messages
+     */
+    private synchronized void write(AlertEncoder enc)
+        throws AlertException
+    {
+        if (channel == null) {
+            throw new AlertException("Alert file " + file + " is closed");
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(enc.getBuffer(), 0, enc.getLength());
+        try {
+            while (bb.hasRemaining()) {
+                channel.write(bb);
+            }
+        } catch (IOException ioe) {
+            throw new AlertException("Cannot write to alert file " + file,
+                                     ioe);
+        }
+    }
+
+    /**
+     * Encode a single message, followed by a newline if it's JSON.
+     *
+     * @param enc encoder
+     * @param obj object to encode
+     */
+    private void writeMessage(AlertEncoder enc, Object obj)
+    {
+        final int start = enc.getLength();
+        enc.writeObject(obj);
+        if (!AlertDecoder.isCBOR(enc.getBuffer(), start,
+                                 enc.getLength() - start))
+        {
+            enc.write((byte) '\n');
+        }
+        enc.endMessage();
+    }
+}
@@ -0,0 +1,48 @@
+package icecube.daq.juggler.alert;
+
+/**
+ * Alerter which tracks whether its receiver is reachable.
+ *
+ * <tt>AlertQueue</tt> stops handing alerts to one of these while its
+ * receiver is down and only tries again once <tt>getMillisUntilRetry()</tt>
+ * reaches zero, so it doesn't spend time serializing alerts which can't
+ * be delivered.
+ */
+public interface HealthReportingAlerter
+    extends Alerter
+{
+    /**
+     * Receiver state
+     */
+    enum State
+    {
+        /** Alerts are being delivered */
+        CONNECTED,
+        /** Recent sends have failed or would have blocked */
+        DEGRADED,
+        /** Sends have failed for a while; only occasional probes are sent */
+        DOWN;
+    }
+
+    /**
+     * Get the time until the alerter should be used again.
+     *
+     * @return <tt>0</tt> unless the receiver is down and the next probe
+     *         is not yet due
+     */
+    long getMillisUntilRetry();
+
+    /**
+     * Get the number of times the receiver state has changed.
+     *
+     * @return number of state changes
+     */
+    long getNumStateChanges();
+
+    /**
+     * Get the receiver state.
+     *
+     * @return current state
+     */
+    State getState();
+}
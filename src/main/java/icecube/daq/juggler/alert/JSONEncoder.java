@@ -0,0 +1,388 @@
+package icecube.daq.juggler.alert;
+
+import com.google.gson.Gson;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming JSON encoder which writes UTF-8 bytes directly into a reusable
+ * buffer.  Output is byte-for-byte identical to <tt>Gson.toJson()</tt>
+ * (with Gson's default settings) encoded as UTF-8.
+ *
+ * Values which aren't handled here (floats, big numbers, enums, arbitrary
+ * beans, etc.) are handed off to Gson.
+ */
+final class JSONEncoder
+    extends AlertEncoder
+{
+    /** Envelope field names */
+    private static final String SERVICE = "service";
+    private static final String VARNAME = "varname";
+    private static final String PRIORITY = "prio";
+    private static final String TIME = "t";
+    private static final String VALUE = "value";
+
+    /**
+     * Order in which Gson writes the envelope fields.  Gson writes
+     * HashMaps in iteration order, so ask a HashMap rather than guessing.
+     */
+    private static final String[] ENVELOPE_ORDER;
+
+    static {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put(SERVICE, null);
+        map.put(VARNAME, null);
+        map.put(PRIORITY, null);
+        map.put(TIME, null);
+        map.put(VALUE, null);
+        ENVELOPE_ORDER = map.keySet().toArray(new String[map.size()]);
+    }
+
+    /**
+     * Escape sequences for ASCII characters, matching Gson's HTML-safe
+     * JsonWriter.
+     */
+    private static final byte[][] REPLACEMENT_CHARS = new byte[128][];
+
+    static {
+        for (int i = 0; i <= 0x1f; i++) {
+            REPLACEMENT_CHARS[i] = String.format("\\u%04x", i).getBytes();
+        }
+        REPLACEMENT_CHARS['"'] = "\\\"".getBytes();
+        REPLACEMENT_CHARS['\\'] = "\\\\".getBytes();
+        REPLACEMENT_CHARS['\t'] = "\\t".getBytes();
+        REPLACEMENT_CHARS['\b'] = "\\b".getBytes();
+        REPLACEMENT_CHARS['\n'] = "\\n".getBytes();
+        REPLACEMENT_CHARS['\r'] = "\\r".getBytes();
+        REPLACEMENT_CHARS['\f'] = "\\f".getBytes();
+        REPLACEMENT_CHARS['<'] = "\\u003c".getBytes();
+        REPLACEMENT_CHARS['>'] = "\\u003e".getBytes();
+        REPLACEMENT_CHARS['&'] = "\\u0026".getBytes();
+        REPLACEMENT_CHARS['='] = "\\u003d".getBytes();
+        REPLACEMENT_CHARS['\''] = "\\u0027".getBytes();
+    }
+
+    private static final byte[] LINE_SEPARATOR = "\\u2028".getBytes();
+    private static final byte[] PARAGRAPH_SEPARATOR = "\\u2029".getBytes();
+    private static final byte[] NULL = "null".getBytes();
+    private static final byte[] TRUE = "true".getBytes();
+    private static final byte[] FALSE = "false".getBytes();
+    private static final byte[] MIN_LONG =
+        Long.toString(Long.MIN_VALUE).getBytes();
+
+    /** Fallback for unusual values (Gson objects are thread-safe) */
+    private static final Gson GSON = new Gson();
+
+    /** Per-thread encoders */
+    private static final ThreadLocal<JSONEncoder> ENCODERS =
+        new ThreadLocal<JSONEncoder>() {
+            @Override
+            protected JSONEncoder initialValue()
+            {
+                return new JSONEncoder();
+            }
+        };
+
+    /** Scratch space used to format integers */
+    private final byte[] digits = new byte[20];
+
+    /**
+     * Use <tt>getEncoder()</tt> to get this thread's encoder.
+     */
+    private JSONEncoder()
+    {
+    }
+
+    /**
+     * Get the encoder for the current thread.  The encoder is reset before
+     * it is returned.
+     *
+     * @return encoder
+     */
+    static JSONEncoder getEncoder()
+    {
+        JSONEncoder enc = ENCODERS.get();
+        enc.reset();
+        return enc;
+    }
+
+    /**
+     * Return the encoded data as a string.
+     *
+     * @return JSON string
+     */
+    @Override
+    public String toString()
+    {
+        try {
+            return new String(buf, 0, len, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException uee) {
+            throw new Error("UTF-8 is not supported", uee);
+        }
+    }
+
+    /**
+     * Write an alert envelope.  This produces the same output as building
+     * the envelope <tt>HashMap</tt> and passing it to Gson.
+     *
+     * @param service service name
+     * @param varname variable name
+     * @param prio priority
+     * @param dateStr date string
+     * @param values alert values (omitted if <tt>null</tt> or empty)
+     */
+    @Override
+    void writeAlert(String service, String varname, int prio,
+                    String dateStr, Map<String, Object> values)
+    {
+        final boolean hasValues = values != null && values.size() > 0;
+
+        write((byte) '{');
+
+        boolean needComma = false;
+        for (int i = 0; i < ENVELOPE_ORDER.length; i++) {
+            final String key = ENVELOPE_ORDER[i];
+
+            // Gson drops map entries with null values
+            if (key == SERVICE) {
+                if (service != null) {
+                    needComma = writeName(key, needComma);
+                    writeString(service);
+                }
+            } else if (key == VARNAME) {
+                if (varname != null) {
+                    needComma = writeName(key, needComma);
+                    writeString(varname);
+                }
+            } else if (key == PRIORITY) {
+                needComma = writeName(key, needComma);
+                writeLong(prio);
+            } else if (key == TIME) {
+                if (dateStr != null) {
+                    needComma = writeName(key, needComma);
+                    writeString(dateStr);
+                }
+            } else if (key == VALUE) {
+                if (hasValues) {
+                    needComma = writeName(key, needComma);
+                    writeMap(values);
+                }
+            }
+        }
+
+        write((byte) '}');
+    }
+
+    /**
+     * Write a string which is known to contain only ASCII characters
+     * which don't need escaping.
+     *
+     * @param str string
+     */
+    private void writeAscii(String str)
+    {
+        final int strLen = str.length();
+        ensureCapacity(strLen);
+        for (int i = 0; i < strLen; i++) {
+            buf[len++] = (byte) str.charAt(i);
+        }
+    }
+
+    private void writeLong(long val)
+    {
+        if (val == Long.MIN_VALUE) {
+            write(MIN_LONG);
+            return;
+        }
+
+        ensureCapacity(20);
+
+        if (val < 0) {
+            buf[len++] = (byte) '-';
+            val = -val;
+        }
+
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + (int) (val % 10));
+            val /= 10;
+        } while (val != 0);
+
+        final int num = digits.length - pos;
+        System.arraycopy(digits, pos, buf, len, num);
+        len += num;
+    }
+
+    private void writeMap(Map map)
+    {
+        write((byte) '{');
+
+        boolean needComma = false;
+        for (Object obj : map.entrySet()) {
+            final Map.Entry entry = (Map.Entry) obj;
+
+            // Gson drops map entries with null values
+            if (entry.getValue() == null) {
+                continue;
+            }
+
+            needComma = writeName(String.valueOf(entry.getKey()), needComma);
+            writeObject(entry.getValue());
+        }
+
+        write((byte) '}');
+    }
+
+    /**
+     * Write an object field name
+     *
+     * @param name field name
+     * @param needComma <tt>true</tt> if this is not the first field
+     *
+     * @return <tt>true</tt> (subsequent fields need a comma)
+     */
+    private boolean writeName(String name, boolean needComma)
+    {
+        if (needComma) {
+            write((byte) ',');
+        }
+        writeString(name);
+        write((byte) ':');
+        return true;
+    }
+
+    /**
+     * Write an arbitrary object.
+     *
+     * @param obj object to encode
+     */
+    @Override
+    void writeObject(Object obj)
+    {
+        if (obj == null) {
+            write(NULL);
+        } else if (obj instanceof String) {
+            writeString((String) obj);
+        } else if (obj instanceof EncodedAlert) {
+            write(((EncodedAlert) obj).getBytes());
+        } else if (obj instanceof AlertRecord) {
+            final AlertRecord rec = (AlertRecord) obj;
+            writeAlert(rec.getService(), rec.getVarname(),
+                       rec.getPriority().value(), rec.getTime(),
+                       rec.getValues());
+        } else if (obj instanceof Integer || obj instanceof Long ||
+                   obj instanceof Short || obj instanceof Byte)
+        {
+            writeLong(((Number) obj).longValue());
+        } else if (obj instanceof Double) {
+            final double dval = ((Double) obj).doubleValue();
+            if (Double.isNaN(dval) || Double.isInfinite(dval)) {
+                // let Gson complain about it
+                writeWithGson(obj);
+            } else {
+                writeAscii(Double.toString(dval));
+            }
+        } else if (obj instanceof Boolean) {
+            write(((Boolean) obj).booleanValue() ? TRUE : FALSE);
+        } else if (obj instanceof Character) {
+            writeString(obj.toString());
+        } else if (obj instanceof Map) {
+            writeMap((Map) obj);
+        } else if (obj instanceof Collection) {
+            write((byte) '[');
+            boolean needComma = false;
+            for (Object elem : (Collection) obj) {
+                if (needComma) {
+                    write((byte) ',');
+                }
+                writeObject(elem);
+                needComma = true;
+            }
+            write((byte) ']');
+        } else if (obj instanceof Object[] || obj instanceof int[] ||
+                   obj instanceof long[] || obj instanceof double[] ||
+                   obj instanceof short[] || obj instanceof byte[] ||
+                   obj instanceof boolean[])
+        {
+            write((byte) '[');
+            final int arrayLen = Array.getLength(obj);
+            for (int i = 0; i < arrayLen; i++) {
+                if (i > 0) {
+                    write((byte) ',');
+                }
+                if (obj instanceof int[]) {
+                    writeLong(((int[]) obj)[i]);
+                } else if (obj instanceof long[]) {
+                    writeLong(((long[]) obj)[i]);
+                } else {
+                    writeObject(Array.get(obj, i));
+                }
+            }
+            write((byte) ']');
+        } else {
+            writeWithGson(obj);
+        }
+    }
+
+    private void writeString(String str)
+    {
+        final int strLen = str.length();
+
+        // worst case is a 6-byte escape for every character
+        ensureCapacity(strLen * 6 + 2);
+
+        buf[len++] = (byte) '"';
+        for (int i = 0; i < strLen; i++) {
+            final char ch = str.charAt(i);
+            if (ch < 0x80) {
+                final byte[] repl = REPLACEMENT_CHARS[ch];
+                if (repl == null) {
+                    buf[len++] = (byte) ch;
+                } else {
+                    System.arraycopy(repl, 0, buf, len, repl.length);
+                    len += repl.length;
+                }
+            } else if (ch < 0x800) {
+                buf[len++] = (byte) (0xc0 | (ch >> 6));
+                buf[len++] = (byte) (0x80 | (ch & 0x3f));
+            } else if (ch == '\u2028') {
+                System.arraycopy(LINE_SEPARATOR, 0, buf, len,
+                                 LINE_SEPARATOR.length);
+                len += LINE_SEPARATOR.length;
+            } else if (ch == '\u2029') {
+                System.arraycopy(PARAGRAPH_SEPARATOR, 0, buf, len,
+                                 PARAGRAPH_SEPARATOR.length);
+                len += PARAGRAPH_SEPARATOR.length;
+            } else if (Character.isHighSurrogate(ch) && i + 1 < strLen &&
+                       Character.isLowSurrogate(str.charAt(i + 1)))
+            {
+                final int cp = Character.toCodePoint(ch, str.charAt(++i));
+                buf[len++] = (byte) (0xf0 | (cp >> 18));
+                buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[len++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(ch)) {
+                // unpaired surrogate, replaced just like String.getBytes()
+                buf[len++] = (byte) '?';
+            } else {
+                buf[len++] = (byte) (0xe0 | (ch >> 12));
+                buf[len++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                buf[len++] = (byte) (0x80 | (ch & 0x3f));
+            }
+        }
+        buf[len++] = (byte) '"';
+    }
+
+    private void writeWithGson(Object obj)
+    {
+        final String json = GSON.toJson(obj);
+        try {
+            write(json.getBytes("UTF-8"));
+        } catch (java.io.UnsupportedEncodingException uee) {
+            throw new Error("UTF-8 is not supported", uee);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package icecube.daq.juggler.alert;
+
+/**
+ * Marker for alerters which serialize every object before
+ * <tt>sendObject()</tt> or <tt>sendObjects()</tt> returns and never keep
+ * a reference to it, so the caller is free to reuse the object.
+ * <tt>AlertQueue</tt> only recycles its alert records after handing them
+ * to one of these.
+ */
+public interface SerializingAlerter
+    extends Alerter
+{
+}
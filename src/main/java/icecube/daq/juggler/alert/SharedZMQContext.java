@@ -0,0 +1,113 @@
+package icecube.daq.juggler.alert;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+
+/**
+ * Single 0MQ context shared by every alerter in the JVM.
+ *
+ * The context is created when the first socket is needed and terminated
+ * when the last user releases it, so components which never send alerts
+ * never start any 0MQ I/O threads.
+ */
+public final class SharedZMQContext
+{
+    /** System property used to override the number of I/O threads */
+    public static final String IO_THREADS_PROPERTY =
+        "icecube.daq.juggler.zmqIOThreads";
+
+    /** Default number of 0MQ I/O threads */
+    public static final int DEFAULT_IO_THREADS = 1;
+
+    /** Number of I/O threads used when the context is created */
+    private static int ioThreads =
+        Integer.getInteger(IO_THREADS_PROPERTY, DEFAULT_IO_THREADS);
+
+    /** Shared context (<tt>null</tt> if nobody is using it) */
+    private static Context context;
+    /** Number of users of the shared context */
+    private static int refCount;
+
+    private SharedZMQContext()
+    {
+    }
+
+    /**
+     * Get the shared context, creating it if necessary.  Every call must
+     * be balanced by a call to <tt>release()</tt>.
+     *
+     * @return shared context
+     */
+    static synchronized Context acquire()
+    {
+        if (context == null) {
+            context = ZMQ.context(ioThreads);
+        }
+
+        refCount++;
+        return context;
+    }
+
+    /**
+     * Get the number of I/O threads used when the context is created
+     *
+     * @return number of I/O threads
+     */
+    public static synchronized int getIOThreads()
+    {
+        return ioThreads;
+    }
+
+    /**
+     * Get the number of users of the shared context
+     *
+     * @return reference count
+     */
+    public static synchronized int getReferenceCount()
+    {
+        return refCount;
+    }
+
+    /**
+     * Is there a live shared context?
+     *
+     * @return <tt>true</tt> if the context has been created
+     */
+    public static synchronized boolean isCreated()
+    {
+        return context != null;
+    }
+
+    /**
+     * Release the shared context.  The context is terminated when the
+     * last user releases it, so all of the caller's sockets must already
+     * be closed.
+     */
+    static synchronized void release()
+    {
+        if (refCount <= 0) {
+            throw new Error("Shared 0MQ context has not been acquired");
+        }
+
+        refCount--;
+        if (refCount == 0) {
+            context.term();
+            context = null;
+        }
+    }
+
+    /**
+     * Set the number of I/O threads.  This only takes effect the next time
+     * the shared context is created.
+     *
+     * @param num number of I/O threads
+     */
+    public static synchronized void setIOThreads(int num)
+    {
+        if (num < 1) {
+            throw new Error("Bad number of 0MQ I/O threads " + num);
+        }
+
+        ioThreads = num;
+    }
+}
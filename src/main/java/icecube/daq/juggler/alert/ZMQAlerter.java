@@ -1,13 +1,12 @@
 package icecube.daq.juggler.alert;
 
-import com.google.gson.Gson;
-
 import icecube.daq.payload.IUTCTime;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
@@ -19,14 +18,45 @@ import org.zeromq.ZMQException;
 
 /**
  * Handle DAQ alerts
+ *
+ * Sends never wait for a slow receiver longer than the send timeout
+ * (by default they don't wait at all).  If 0MQ has already queued
+ * <tt>sendHighWaterMark</tt> messages for the receiver, the send throws
+ * <tt>AlertWouldBlockException</tt> so the caller can retry or save the
+ * alerts (see <tt>setSendLimits()</tt>).
+ *
+ * The alerter also tracks the receiver's health.  A send which fails or
+ * would block marks the receiver <tt>DEGRADED</tt>; if sends keep failing
+ * for more than a second, it is marked <tt>DOWN</tt>.  While the receiver
+ * is down, sends throw <tt>AlertWouldBlockException</tt> without encoding
+ * anything, except for an occasional probe.  The time between probes
+ * starts at <tt>INITIAL_RETRY_MILLIS</tt> and doubles after each failed
+ * probe, up to <tt>MAX_RETRY_MILLIS</tt>.  The first successful send marks
+ * the receiver <tt>CONNECTED</tt> again.
+ *
+ * If 0MQ reports an error or a batch is cut off part-way through, the
+ * socket may hold part of a message, so it is recreated before the next
+ * send whatever the receiver's state.
  */
 public class ZMQAlerter
-    implements Alerter
+    implements HealthReportingAlerter, SerializingAlerter
 {
     /** Logging object */
     private static final Logger LOG = Logger.getLogger(ZMQAlerter.class);
-    /** Number of 0MQ I/O threads */
-    private static final int NUMBER_OF_THREADS = 5;
+
+    /** Default number of messages 0MQ will queue for the receiver */
+    public static final int DEFAULT_SEND_HWM = 1000;
+    /** Default time to wait for the receiver (don't wait) */
+    public static final int DEFAULT_SEND_TIMEOUT = 0;
+    /** Time to wait before the first probe of a receiver which is down */
+    public static final long INITIAL_RETRY_MILLIS = 100L;
+    /** Longest time to wait between probes */
+    public static final long MAX_RETRY_MILLIS = 30000L;
+
+    /** Number of failures in a row before the receiver can be down */
+    private static final int MAX_FAILURES = 3;
+    /** Failures must continue this long before the receiver is down */
+    private static final long DOWN_AFTER_MILLIS = 1000L;
 
     /** Service name */
     protected String service;
@@ -38,14 +68,40 @@ public class ZMQAlerter
     /** Cached 0MQ URL */
     private String zmqURL;
 
-    /** Google JSON conversion object */
-    private Gson gson = new Gson();
-    /** 0MQ context */
+    /** Shared 0MQ context (<tt>null</tt> until the first socket is made) */
     private Context context;
+    /** Set after the alerter has been closed */
+    private boolean closed;
     /** 0MQ socket */
     private Socket socket;
     /** Have we logged an error after the socket was closed? */
     private boolean socketWarned;
+    /** If <tt>true</tt>, send batches as a single JSON array */
+    private boolean batchAsArray;
+    /** Message format */
+    private volatile Format format = Format.JSON;
+    /** Maximum number of messages queued by 0MQ for the receiver */
+    private int sendHWM = DEFAULT_SEND_HWM;
+    /** Milliseconds to wait for the receiver (<tt>0</tt> to never wait) */
+    private int sendTimeout = DEFAULT_SEND_TIMEOUT;
+
+    /** Receiver state */
+    private State state = State.CONNECTED;
+    /** Number of sends which have failed in a row */
+    private int numFailures;
+    /** Time of the first failure in the current run of failures */
+    private long firstFailureTime;
+    /** Time to wait after the next failed probe */
+    private long retryMillis = INITIAL_RETRY_MILLIS;
+    /** Time when the next probe is due */
+    private long nextRetryTime;
+    /** Number of state changes */
+    private long numStateChanges;
+    /** Set after a failed send so the socket is recreated */
+    private boolean needReconnect;
+
+    /** Time spent encoding each message */
+    private final AlertHistogram encodeTime = new AlertHistogram();
 
     /**
      * Create an alerter
@@ -63,8 +119,6 @@ public class ZMQAlerter
     public ZMQAlerter(String service)
     {
         this.service = service;
-
-        context = ZMQ.context(NUMBER_OF_THREADS);
     }
 
     /**
@@ -81,10 +135,146 @@ public class ZMQAlerter
             }
 
             if (context != null) {
-                context.term();
+                SharedZMQContext.release();
                 context = null;
             }
+
+            closed = true;
+        }
+    }
+
+    /**
+     * Throw an exception if the receiver is down and a probe is not yet
+     * due.  If an earlier send failed, the socket is recreated so a
+     * partly sent message isn't completed by this one.
+     *
+     * @throws AlertException if the receiver is down or the socket
+     *                        cannot be recreated
+     */
+    private void checkDown()
+        throws AlertException
+    {
+        synchronized (this) {
+            if (state == State.DOWN &&
+                System.currentTimeMillis() < nextRetryTime)
+            {
+                throw new AlertWouldBlockException("0MQ host \"" + zmqURL +
+                                                   "\" is down");
+            }
+
+            if (needReconnect && socket != null) {
+                connect();
+            }
+        }
+    }
+
+    /**
+     * Create a new socket and connect it to the receiver.  Must be called
+     * while synchronized on this object.
+     *
+     * @throws AlertException if the socket cannot be created
+     */
+    private void connect()
+        throws AlertException
+    {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+
+        if (context == null) {
+            context = SharedZMQContext.acquire();
+        }
+
+        try {
+            socket = context.socket(ZMQ.PUSH);
+        } catch (ZMQException ze) {
+            throw new AlertException("Cannot create 0MQ socket", ze);
+        }
+
+        // limits must be set before connecting
+        socket.setSndHWM(sendHWM);
+        socket.setSendTimeOut(sendTimeout);
+
+        // let 0MQ back off the same way between reconnection attempts
+        socket.setReconnectIVL((int) INITIAL_RETRY_MILLIS);
+        socket.setReconnectIVLMax((int) MAX_RETRY_MILLIS);
+
+        socket.connect(zmqURL);
+
+        // sockets time out after .1 second
+        socket.setLinger(100);
+
+        needReconnect = false;
+    }
+
+    /**
+     * Get the histogram of times spent encoding each message
+     *
+     * @return encoding time histogram
+     */
+    AlertHistogram getEncodeTimeHistogram()
+    {
+        return encodeTime;
+    }
+
+    /**
+     * Get the format used to encode messages.
+     *
+     * @return message format
+     */
+    public Format getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * Get the time until the next probe of a receiver which is down.
+     *
+     * @return <tt>0</tt> unless the receiver is down and the next probe
+     *         is not yet due
+     */
+    @Override
+    public synchronized long getMillisUntilRetry()
+    {
+        if (state != State.DOWN) {
+            return 0L;
         }
+
+        final long remaining = nextRetryTime - System.currentTimeMillis();
+        return remaining < 0L ? 0L : remaining;
+    }
+
+    /**
+     * Get the number of times the receiver state has changed.
+     *
+     * @return number of state changes
+     */
+    @Override
+    public synchronized long getNumStateChanges()
+    {
+        return numStateChanges;
+    }
+
+    /**
+     * Get the maximum number of messages 0MQ will queue for the receiver
+     *
+     * @return send high-water mark
+     */
+    public int getSendHighWaterMark()
+    {
+        return sendHWM;
+    }
+
+    /**
+     * Get the time to wait for a slow receiver before giving up
+     *
+     * @return send timeout in milliseconds (<tt>0</tt> if sends never
+     *         wait)
+     */
+    public int getSendTimeout()
+    {
+        return sendTimeout;
     }
 
     /**
@@ -98,6 +288,17 @@ public class ZMQAlerter
         return service;
     }
 
+    /**
+     * Get the receiver state.
+     *
+     * @return current state
+     */
+    @Override
+    public synchronized State getState()
+    {
+        return state;
+    }
+
     /**
      * If <tt>true</tt>, alerts will be sent to one or more recipients.
      *
@@ -106,7 +307,7 @@ public class ZMQAlerter
     @Override
     public boolean isActive()
     {
-        return zmqHost != null && context != null;
+        return zmqHost != null && !closed;
     }
 
     private HashMap<String, Object> makeAlertValues(String condition,
@@ -126,6 +327,79 @@ public class ZMQAlerter
         return values;
     }
 
+    /**
+     * Record a failed or blocked send.  Must be called while synchronized
+     * on this object.
+     *
+     * @param now current time in milliseconds
+     */
+    void recordFailure(long now)
+    {
+        if (numFailures++ == 0) {
+            firstFailureTime = now;
+        }
+
+        if (state == State.DOWN) {
+            // probe failed, so wait longer before the next one
+            scheduleRetry(now);
+        } else if (numFailures >= MAX_FAILURES &&
+                   now - firstFailureTime >= DOWN_AFTER_MILLIS)
+        {
+            LOG.error("0MQ host \"" + zmqURL + "\" is down after " +
+                      numFailures + " failed sends; retrying in " +
+                      retryMillis + " ms");
+            setState(State.DOWN);
+            scheduleRetry(now);
+        } else {
+            setState(State.DEGRADED);
+        }
+    }
+
+    /**
+     * Record a successful send.  Must be called while synchronized on
+     * this object.
+     */
+    void recordSuccess()
+    {
+        if (state != State.CONNECTED) {
+            if (state == State.DOWN) {
+                LOG.error("0MQ host \"" + zmqURL + "\" is back up");
+            }
+
+            setState(State.CONNECTED);
+        }
+
+        numFailures = 0;
+        retryMillis = INITIAL_RETRY_MILLIS;
+    }
+
+    /**
+     * Reset the receiver state after the socket has been replaced.
+     * Must be called while synchronized on this object.
+     */
+    private void resetState()
+    {
+        setState(State.CONNECTED);
+        numFailures = 0;
+        retryMillis = INITIAL_RETRY_MILLIS;
+        nextRetryTime = 0L;
+    }
+
+    /**
+     * Schedule the next probe and back off further for the one after.
+     *
+     * @param now current time in milliseconds
+     */
+    private void scheduleRetry(long now)
+    {
+        nextRetryTime = now + retryMillis;
+
+        retryMillis *= 2;
+        if (retryMillis > MAX_RETRY_MILLIS) {
+            retryMillis = MAX_RETRY_MILLIS;
+        }
+    }
+
     /**
      * Send a message to IceCube Live.
      *
@@ -152,9 +426,7 @@ public class ZMQAlerter
                      Map<String, Object> values)
         throws AlertException
     {
-        final String dateStr =
-            String.format("%tF %tT.%tL000", date, date, date);
-        send(varname, priority, dateStr, values);
+        send(varname, priority, AlertTimeFormatter.format(date), values);
     }
 
     /**
@@ -169,7 +441,8 @@ public class ZMQAlerter
                      Map<String, Object> values)
         throws AlertException
     {
-        send(varname, priority, utcTime.toDateString(), values);
+        send(varname, priority, AlertTimeFormatter.format(utcTime),
+             values);
     }
 
     /**
@@ -184,20 +457,20 @@ public class ZMQAlerter
                       Map<String, Object> values)
         throws AlertException
     {
-        HashMap<String, Object> map = new HashMap<String, Object>();
-        map.put("service", service);
-        map.put("varname", varname);
-        map.put("prio", priority.value());
-        map.put("t", dateStr);
-        if (values.size() > 0) {
-            map.put("value", values);
-        }
+        checkDown();
+
+        final long start = System.nanoTime();
+
+        final AlertEncoder enc = AlertEncoder.getEncoder(format);
+        enc.writeAlert(service, varname, priority.value(), dateStr, values);
+
+        encodeTime.record(System.nanoTime() - start);
 
-        sendObject(map);
+        sendEncoded(enc, varname);
     }
 
     /**
-     * Send a Java object (as a JSON string) to a 0MQ server.
+     * Send a Java object (encoded in the current format) to a 0MQ server.
      *
      * @param obj object to send
      */
@@ -205,12 +478,52 @@ public class ZMQAlerter
     public void sendObject(Object obj)
         throws AlertException
     {
-        String json;
-        synchronized (gson) {
-            json = gson.toJson(obj);
+        checkDown();
+
+        final long start = System.nanoTime();
+
+        final AlertEncoder enc = AlertEncoder.getEncoder(format);
+        enc.writeObject(obj);
+
+        encodeTime.record(System.nanoTime() - start);
+
+        sendEncoded(enc, obj);
+    }
+
+    /**
+     * Send a batch of Java objects to a 0MQ server, either as a multipart
+     * message with one encoded object per part or, if the receiver has
+     * asked for it, as a single array.
+     *
+     * @param list objects to send
+     */
+    @Override
+    public void sendObjects(List<?> list)
+        throws AlertException
+    {
+        if (list.size() == 0) {
+            return;
         }
 
-        byte[] bytes = json.toString().getBytes();
+        checkDown();
+
+        final AlertEncoder enc = AlertEncoder.getEncoder(format);
+        if (batchAsArray) {
+            final long start = System.nanoTime();
+            enc.writeObject(list);
+            enc.endMessage();
+            encodeTime.record(System.nanoTime() - start);
+        } else {
+            long start = System.nanoTime();
+            for (Object obj : list) {
+                enc.writeObject(obj);
+                enc.endMessage();
+
+                final long now = System.nanoTime();
+                encodeTime.record(now - start);
+                start = now;
+            }
+        }
 
         synchronized (this) {
             if (socket == null) {
@@ -219,18 +532,104 @@ public class ZMQAlerter
                     socketWarned = true;
                 }
             } else {
+                final byte[] buf = enc.getBuffer();
+                final int last = enc.getNumberOfMessages() - 1;
                 try {
-                    socket.send(bytes, 0);
+                    for (int i = 0; i <= last; i++) {
+                        final int start = enc.getStart(i);
+                        if (!sendPart(buf, start, enc.getEnd(i) - start,
+                                      (i < last ? ZMQ.SNDMORE : 0)))
+                        {
+                            recordFailure(System.currentTimeMillis());
+
+                            // 0MQ accepts all parts of a message once
+                            // the first has been queued
+                            if (i == 0) {
+                                throw wouldBlock(list.size() + " alerts");
+                            }
+
+                            // don't finish this batch with the next one
+                            needReconnect = true;
+                            throw new AlertException("Sent only " + i +
+                                                     " of " + list.size() +
+                                                     " alerts to 0MQ host" +
+                                                     " \"" + zmqURL + "\"");
+                        }
+                    }
                 } catch (ZMQException ze) {
+                    recordFailure(System.currentTimeMillis());
+                    needReconnect = true;
+
+                    final String msg =
+                        String.format("Cannot send %d alerts to 0MQ" +
+                                      " host \"%s\"", list.size(), zmqURL);
+                    throw new AlertException(msg, ze);
+                }
+
+                recordSuccess();
+            }
+        }
+    }
+
+    /**
+     * Send the encoded message to the 0MQ server.
+     *
+     * @param enc encoder holding a single message
+     * @param obj object which was encoded (used in error messages)
+     */
+    private void sendEncoded(AlertEncoder enc, Object obj)
+        throws AlertException
+    {
+        synchronized (this) {
+            if (socket == null) {
+                if (!socketWarned) {
+                    LOG.error("Cannot send alert; socket has been closed");
+                    socketWarned = true;
+                }
+            } else {
+                boolean sent;
+                try {
+                    sent = sendPart(enc.getBuffer(), 0, enc.getLength(), 0);
+                } catch (ZMQException ze) {
+                    recordFailure(System.currentTimeMillis());
+                    needReconnect = true;
+
                     final String msg =
                         String.format("Cannot send \"%s\" to 0MQ host \"%s\"",
                                       obj, zmqURL);
                     throw new AlertException(msg, ze);
                 }
+
+                if (!sent) {
+                    recordFailure(System.currentTimeMillis());
+                    throw wouldBlock("\"" + obj + "\"");
+                }
+
+                recordSuccess();
             }
         }
     }
 
+    /**
+     * Queue one part of a message without waiting longer than the send
+     * timeout.  Must be called while synchronized on this object.
+     *
+     * @param buf buffer holding the message
+     * @param off offset of the start of the message
+     * @param len message length
+     * @param flags 0MQ send flags
+     *
+     * @return <tt>false</tt> if the receiver is not keeping up
+     */
+    private boolean sendPart(byte[] buf, int off, int len, int flags)
+    {
+        if (sendTimeout == 0) {
+            flags |= ZMQ.DONTWAIT;
+        }
+
+        return socket.send(buf, off, len, flags);
+    }
+
     /**
      * Send an alert.
      *
@@ -332,27 +731,92 @@ public class ZMQAlerter
             zmqURL = "tcp://" + zmqHost.getHostAddress() + ":" +
                 zmqPort;
 
-            if (context == null) {
-                throw new AlertException("Context is null" +
-                                         " (alerter was closed?)");
-            }
-
-            try {
-                socket = context.socket(ZMQ.PUSH);
-            } catch (ZMQException ze) {
-                throw new AlertException("Cannot create 0MQ socket", ze);
+            if (closed) {
+                throw new AlertException("Alerter was closed");
             }
 
-            socket.connect(zmqURL);
-
-            // sockets time out after .1 second
-            socket.setLinger(100);
+            connect();
+            resetState();
 
             // haven't yet whined about socket being closed
             socketWarned = false;
         }
     }
 
+    /**
+     * Should batches of alerts be sent as a single JSON array rather than
+     * as a multipart message?  This should only be enabled if the receiver
+     * knows how to unpack arrays.
+     *
+     * @param val <tt>true</tt> to send batches as a JSON array
+     */
+    public void setBatchAsArray(boolean val)
+    {
+        batchAsArray = val;
+    }
+
+    /**
+     * Set the format used to encode messages.  Each CBOR message starts
+     * with the CBOR self-described tag so receivers can tell it apart from
+     * JSON, and <tt>AlertDecoder</tt> understands both formats.
+     *
+     * @param format message format
+     */
+    @Override
+    public void setFormat(Format format)
+    {
+        if (format == null) {
+            throw new Error("Format cannot be null");
+        }
+
+        this.format = format;
+    }
+
+    /**
+     * Limit how long a send can wait for a slow receiver.  0MQ queues up
+     * to <tt>highWaterMark</tt> messages for the receiver; once that many
+     * are waiting, a send waits up to <tt>timeoutMillis</tt> for room and
+     * then throws <tt>AlertWouldBlockException</tt> without sending
+     * anything.  A new high-water mark only applies to sockets created by
+     * later calls to <tt>setAddress()</tt>.
+     *
+     * @param highWaterMark maximum number of messages queued by 0MQ
+     *                      (<tt>0</tt> for no limit)
+     * @param timeoutMillis milliseconds to wait for room (<tt>0</tt> to
+     *                      never wait)
+     */
+    public void setSendLimits(int highWaterMark, int timeoutMillis)
+    {
+        if (highWaterMark < 0) {
+            throw new Error("Bad send high-water mark " + highWaterMark);
+        } else if (timeoutMillis < 0) {
+            throw new Error("Bad send timeout " + timeoutMillis);
+        }
+
+        synchronized (this) {
+            sendHWM = highWaterMark;
+            sendTimeout = timeoutMillis;
+
+            if (socket != null) {
+                socket.setSendTimeOut(sendTimeout);
+            }
+        }
+    }
+
+    /**
+     * Change the receiver state.  Must be called while synchronized on
+     * this object.
+     *
+     * @param newState new state
+     */
+    private void setState(State newState)
+    {
+        if (state != newState) {
+            state = newState;
+            numStateChanges++;
+        }
+    }
+
     /**
      * Return debugging string
      *
@@ -364,4 +828,19 @@ public class ZMQAlerter
         return String.format("ZMQAlerter[%s]",
                              zmqURL == null ? "" : zmqURL);
     }
+
+    /**
+     * Build the exception thrown when the receiver is not keeping up.
+     *
+     * @param descr description of the unsent alert(s)
+     *
+     * @return new exception
+     */
+    private AlertWouldBlockException wouldBlock(String descr)
+    {
+        return new AlertWouldBlockException("Cannot send " + descr +
+                                            " to 0MQ host \"" + zmqURL +
+                                            "\"; " + sendHWM +
+                                            " messages are already queued");
+    }
 }
@@ -1,41 +1,159 @@
 package icecube.daq.juggler.alert;
 
-import com.google.gson.Gson;
-
+import icecube.daq.juggler.WorkerThreads;
 import icecube.daq.payload.IUTCTime;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
 
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Context;
 import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMQException;
 
 /**
- * Handle alerts
+ * Asynchronous alerter.  Callers only add alerts to a bounded queue;
+ * the alerter's own thread serializes them and sends them to a 0MQ server.
+ *
+ * When the queue is full, alerts are handled according to the
+ * overflow policy (see <tt>setOverflowPolicy()</tt>).  A batch passed to
+ * <tt>sendObjects()</tt> is queued all at once or not at all, except
+ * that <tt>DROP_OLDEST</tt> may drop the oldest alerts in a batch which
+ * is larger than the queue.
+ *
+ * Sends are limited the same way as <tt>ZMQAlerter</tt> sends (see
+ * <tt>setSendLimits()</tt>).  If the receiver is not keeping up, the
+ * thread keeps retrying the current alert, so the queue fills and the
+ * overflow policy decides what happens to new alerts.
+ *
+ * <tt>close()</tt> keeps sending queued alerts for up to
+ * <tt>setCloseTimeout()</tt> milliseconds.  After that, any alerts which
+ * haven't been sent are abandoned (see <tt>getNumAbandoned()</tt>) so a
+ * dead receiver cannot hang the caller.
+ *
+ * The thread must be started with <tt>start()</tt> before alerts can be
+ * sent.  Unless <tt>WorkerThreads</tt> is using platform threads, the
+ * sending loop runs on a virtual or shared thread rather than on this
+ * <tt>Thread</tt> object, so <tt>close()</tt> should be used to wait for
+ * it instead of <tt>join()</tt>.
  */
 public class ZMQThreadedAlerter
     extends Thread
     implements Alerter
 {
-    /** Number of ZeroMQ I/O threads */
-    private static final int NUMBER_OF_THREADS = 5;
+    /** Logging object */
+    private static final Logger LOG =
+        Logger.getLogger(ZMQThreadedAlerter.class);
+
+    /** Default maximum number of queued alerts */
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+    /** Default time to wait for space in the queue */
+    public static final long DEFAULT_BLOCK_MILLIS = 1000L;
+    /** Default time <tt>close()</tt> spends sending queued alerts */
+    public static final long DEFAULT_CLOSE_MILLIS = 5000L;
+
+    /** Maximum number of alerts serialized and sent at once */
+    private static final int MAX_BATCH_SIZE = 100;
+    /** How often the thread checks whether it's been stopped */
+    private static final long POLL_MILLIS = 1000L;
+    /** Time to wait before retrying a send which would have blocked */
+    private static final long BLOCKED_RETRY_MILLIS = 10L;
+
+    /**
+     * What to do with new alerts when the queue is full
+     */
+    public enum OverflowPolicy
+    {
+        /** Wait for space in the queue, failing after a timeout */
+        BLOCK,
+        /**
+         * Discard the new alert and throw
+         * <tt>AlertWouldBlockException</tt>
+         */
+        DROP_NEWEST,
+        /** Discard the oldest queued alert to make room */
+        DROP_OLDEST;
+    }
 
     /** Service name */
     protected String service;
 
-    /** Google JSON conversion object */
-    private Gson gson = new Gson();
+    /** Alerts waiting to be sent */
+    private final ArrayBlockingQueue<Message> queue;
+    /** Maximum number of queued alerts */
+    private final int queueSize;
+    /** Held while adding alerts so a batch is queued all at once */
+    private final Object enqueueLock = new Object();
 
-    private BlockingQueue fMsgQueue;
-
-    private volatile String fLiveAddr;
+    /** Address of 0MQ server */
+    private volatile String liveAddr;
+    /** Set while the thread is accepting alerts */
     private volatile boolean running;
+    /** Sending loop, if it's not running on this thread */
+    private volatile Future<?> worker;
+    /** Maximum time <tt>close()</tt> spends sending queued alerts */
+    private volatile long closeMillis = DEFAULT_CLOSE_MILLIS;
+    /** <tt>System.nanoTime()</tt> after which unsent alerts are abandoned */
+    private volatile long closeDeadline;
+
+    /** 0MQ context (only used by the sending loop) */
+    private Context context;
+    /** 0MQ socket (only used by the sending loop) */
+    private Socket socket;
+    /** Address used by the current socket */
+    private String curAddr;
+    /** High-water mark used by the current socket */
+    private int curHWM;
+    /** Send timeout used by the current socket */
+    private int curTimeout;
+
+    /** Message format */
+    private volatile Format format = Format.JSON;
+    /** Maximum number of messages queued by 0MQ for the receiver */
+    private volatile int sendHWM = ZMQAlerter.DEFAULT_SEND_HWM;
+    /** Milliseconds to wait for the receiver (<tt>0</tt> to never wait) */
+    private volatile int sendTimeout = ZMQAlerter.DEFAULT_SEND_TIMEOUT;
+
+    /** Queue overflow policy */
+    private volatile OverflowPolicy policy = OverflowPolicy.BLOCK;
+    /** Maximum time to wait for space in the queue */
+    private volatile long blockNanos =
+        TimeUnit.MILLISECONDS.toNanos(DEFAULT_BLOCK_MILLIS);
+
+    /** Number of alerts sent */
+    private final AtomicLong numSent = new AtomicLong();
+    /** Number of alerts discarded because the queue was full */
+    private final AtomicLong numDropped = new AtomicLong();
+    /** Number of alerts which could not be serialized or sent */
+    private final AtomicLong numFailed = new AtomicLong();
+    /** Number of alerts which had to wait for a slow receiver */
+    private final AtomicLong numBlocked = new AtomicLong();
+    /** Number of alerts still unsent when the close timeout expired */
+    private final AtomicLong numAbandoned = new AtomicLong();
+
+    /** Total time sent alerts spent in the queue */
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    /** Longest time an alert spent in the queue */
+    private volatile long maxQueueNanos;
+    /** Total time spent sending alerts */
+    private final AtomicLong totalSendNanos = new AtomicLong();
+    /** Longest time needed to send a single alert */
+    private volatile long maxSendNanos;
+    /** Time spent encoding each alert */
+    private final AlertHistogram encodeTime = new AlertHistogram();
 
     /**
      * Create an alerter
@@ -51,23 +169,345 @@ public class ZMQThreadedAlerter
      * @param service service name
      */
     public ZMQThreadedAlerter(String service)
+    {
+        this(service, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Create an alerter
+     *
+     * @param service service name
+     * @param queueSize maximum number of queued alerts
+     */
+    public ZMQThreadedAlerter(String service, int queueSize)
     {
         this.service = service;
-	this.fMsgQueue = new LinkedBlockingQueue();
-	this.fLiveAddr = null;
-	this.running=false;
+        this.queueSize = queueSize;
+
+        queue = new ArrayBlockingQueue<Message>(queueSize);
+
+        setName("ZMQThreadedAlerter");
+        setDaemon(true);
     }
 
+    /**
+     * Stop the thread after sending any queued alerts.  Alerts which
+     * cannot be sent before the close timeout expires are abandoned.
+     */
+    @Override
+    public void close()
+    {
+        final long millis = closeMillis;
+        closeDeadline = System.nanoTime() +
+            TimeUnit.MILLISECONDS.toNanos(millis);
+        running = false;
+
+        // a send in progress may wait for the send timeout
+        final long waitMillis = millis + sendTimeout + POLL_MILLIS;
+
+        final Future<?> tmpWorker = worker;
+        if (tmpWorker != null) {
+            try {
+                tmpWorker.get(waitMillis, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException ee) {
+                // already logged
+            } catch (InterruptedException ie) {
+                // give up
+            } catch (TimeoutException te) {
+                LOG.error("Alerter " + getName() + " did not stop within " +
+                          waitMillis + " ms");
+            }
+        } else if (isAlive()) {
+            try {
+                join(waitMillis);
+            } catch (InterruptedException ie) {
+                // give up
+            }
+
+            if (isAlive()) {
+                LOG.error("Alerter " + getName() + " did not stop within " +
+                          waitMillis + " ms");
+            }
+        }
+    }
 
     /**
-     * If <tt>true</tt>, alerts will be sent to one or more recipients.
+     * Close the current socket.
+     */
+    private void closeSocket()
+    {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    /**
+     * Add an alert to the queue, applying the overflow policy if the
+     * queue is full.
      *
-     * @return <tt>true</tt> if this alerter will send messages
+     * @param msg alert
+     *
+     * @throws AlertException if the alerter is not running or the alert
+     *                        could not be queued in time
      */
-    @Override
-    public boolean isActive()
+    private void enqueue(Message msg)
+        throws AlertException
+    {
+        checkRunning();
+
+        synchronized (enqueueLock) {
+            if (queue.offer(msg)) {
+                return;
+            }
+
+            switch (policy) {
+            case DROP_NEWEST:
+                numDropped.incrementAndGet();
+                throw new AlertWouldBlockException("Queue is full; dropped " +
+                                                   describe(msg));
+            case DROP_OLDEST:
+                while (!queue.offer(msg)) {
+                    if (queue.poll() != null) {
+                        numDropped.incrementAndGet();
+                    }
+                }
+                break;
+            default:
+                boolean added;
+                try {
+                    added = queue.offer(msg, blockNanos,
+                                        TimeUnit.NANOSECONDS);
+                } catch (InterruptedException ie) {
+                    added = false;
+                }
+
+                if (!added) {
+                    numDropped.incrementAndGet();
+                    throw new AlertException("Timed out waiting to queue " +
+                                             describe(msg));
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Add a batch of alerts to the queue.  Unless the overflow policy is
+     * <tt>DROP_OLDEST</tt>, either all the alerts are queued or none are.
+     *
+     * @param msgs alerts
+     *
+     * @throws AlertException if the alerter is not running or the alerts
+     *                        could not be queued
+     */
+    private void enqueue(List<Message> msgs)
+        throws AlertException
+    {
+        checkRunning();
+
+        final int num = msgs.size();
+
+        synchronized (enqueueLock) {
+            int skip = 0;
+            if (queue.remainingCapacity() < num) {
+                switch (policy) {
+                case DROP_NEWEST:
+                    numDropped.addAndGet(num);
+                    throw new AlertWouldBlockException("Queue is full;" +
+                                                       " dropped " + num +
+                                                       " alerts");
+                case DROP_OLDEST:
+                    // drop the oldest alerts in the batch if it won't fit
+                    skip = Math.max(0, num - queueSize);
+                    numDropped.addAndGet(skip);
+
+                    while (queue.remainingCapacity() < num - skip) {
+                        if (queue.poll() != null) {
+                            numDropped.incrementAndGet();
+                        }
+                    }
+                    break;
+                default:
+                    if (num > queueSize) {
+                        numDropped.addAndGet(num);
+                        throw new AlertException("Cannot queue " + num +
+                                                 " alerts; queue only" +
+                                                 " holds " + queueSize);
+                    } else if (!waitForRoom(num)) {
+                        numDropped.addAndGet(num);
+                        throw new AlertException("Timed out waiting to" +
+                                                 " queue " + num +
+                                                 " alerts");
+                    }
+                    break;
+                }
+            }
+
+            // only the sending loop takes alerts, so these will fit
+            for (int i = skip; i < num; i++) {
+                queue.add(msgs.get(i));
+            }
+        }
+    }
+
+    /**
+     * Throw an exception if alerts cannot be queued.
+     *
+     * @throws AlertException if the alerter is not running
+     */
+    private void checkRunning()
+        throws AlertException
+    {
+        if (liveAddr == null) {
+            throw new AlertException("Address has not been set");
+        } else if (!running) {
+            throw new AlertException("Alerter is not running");
+        }
+    }
+
+    /**
+     * Get the name of a queued alert for error messages.
+     *
+     * @param msg alert
+     *
+     * @return alert name
+     */
+    private static String describe(Message msg)
+    {
+        return msg.varname == null ? "alert" : msg.varname;
+    }
+
+    /**
+     * Get the average time sent alerts spent in the queue
+     *
+     * @return average latency in microseconds
+     */
+    public long getAverageQueueLatency()
+    {
+        final long sent = numSent.get();
+        if (sent == 0) {
+            return 0;
+        }
+
+        return totalQueueNanos.get() / sent / 1000L;
+    }
+
+    /**
+     * Get the average time needed to send an alert
+     *
+     * @return average send time in microseconds
+     */
+    public long getAverageSendTime()
+    {
+        final long sent = numSent.get();
+        if (sent == 0) {
+            return 0;
+        }
+
+        return totalSendNanos.get() / sent / 1000L;
+    }
+
+    /**
+     * Get the histogram of times spent encoding each alert
+     *
+     * @return encoding time histogram
+     */
+    AlertHistogram getEncodeTimeHistogram()
+    {
+        return encodeTime;
+    }
+
+    /**
+     * Get the format used to encode messages.
+     *
+     * @return message format
+     */
+    public Format getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * Get the longest time an alert spent in the queue
+     *
+     * @return maximum latency in microseconds
+     */
+    public long getMaxQueueLatency()
     {
-        return running;
+        return maxQueueNanos / 1000L;
+    }
+
+    /**
+     * Get the longest time needed to send an alert
+     *
+     * @return maximum send time in microseconds
+     */
+    public long getMaxSendTime()
+    {
+        return maxSendNanos / 1000L;
+    }
+
+    /**
+     * Get the number of alerts which were still unsent when the close
+     * timeout expired
+     *
+     * @return number of abandoned alerts
+     */
+    public long getNumAbandoned()
+    {
+        return numAbandoned.get();
+    }
+
+    /**
+     * Get the number of alerts which could not be sent immediately because
+     * the receiver was not keeping up
+     *
+     * @return number of blocked alerts
+     */
+    public long getNumBlocked()
+    {
+        return numBlocked.get();
+    }
+
+    /**
+     * Get the number of alerts discarded because the queue was full
+     *
+     * @return number of dropped alerts
+     */
+    public long getNumDropped()
+    {
+        return numDropped.get();
+    }
+
+    /**
+     * Get the number of alerts which could not be serialized or sent
+     *
+     * @return number of failed alerts
+     */
+    public long getNumFailed()
+    {
+        return numFailed.get();
+    }
+
+    /**
+     * Get the number of queued alerts
+     *
+     * @return number of queued alerts
+     */
+    public int getNumQueued()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of alerts sent
+     *
+     * @return number of sent alerts
+     */
+    public long getNumSent()
+    {
+        return numSent.get();
     }
 
     /**
@@ -81,6 +521,142 @@ public class ZMQThreadedAlerter
         return service;
     }
 
+    /**
+     * If <tt>true</tt>, alerts will be sent to one or more recipients.
+     *
+     * @return <tt>true</tt> if this alerter will send messages
+     */
+    @Override
+    public boolean isActive()
+    {
+        return running && liveAddr != null;
+    }
+
+    private static HashMap<String, Object>
+        makeAlertValues(String condition, String notify,
+                        Map<String, Object> vars)
+    {
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        if (condition != null && condition.length() > 0) {
+            values.put("condition", condition);
+        }
+        if (notify != null && notify.length() > 0) {
+            values.put("notify", notify);
+        }
+        if (vars != null && vars.size() > 0) {
+            values.put("vars", vars);
+        }
+        return values;
+    }
+
+    /**
+     * Remember the maximum of a value.
+     *
+     * @param cur current maximum
+     * @param val new value
+     *
+     * @return new maximum
+     */
+    private static long max(long cur, long val)
+    {
+        return val > cur ? val : cur;
+    }
+
+    /**
+     * Has the close timeout expired?
+     *
+     * @return <tt>true</tt> if unsent alerts should be abandoned
+     */
+    private boolean isAbandoning()
+    {
+        return !running && System.nanoTime() - closeDeadline >= 0;
+    }
+
+    /**
+     * Get a socket which uses the current address and send limits,
+     * creating a new one if necessary.  This is only called by the sending
+     * loop.
+     *
+     * @return 0MQ socket
+     */
+    private Socket openSocket()
+    {
+        final String addr = liveAddr;
+        final int hwm = sendHWM;
+        final int timeout = sendTimeout;
+        if (socket == null || !addr.equals(curAddr) ||
+            hwm != curHWM || timeout != curTimeout)
+        {
+            closeSocket();
+
+            if (context == null) {
+                context = SharedZMQContext.acquire();
+            }
+
+            socket = context.socket(ZMQ.PUSH);
+
+            // limits must be set before connecting
+            socket.setSndHWM(hwm);
+            socket.setSendTimeOut(timeout);
+
+            socket.connect(addr);
+            socket.setLinger(100);
+            curAddr = addr;
+            curHWM = hwm;
+            curTimeout = timeout;
+        }
+
+        return socket;
+    }
+
+    /**
+     * Serialize and send queued alerts until the alerter is closed.
+     */
+    @Override
+    public void run()
+    {
+        ArrayList<Message> batch = new ArrayList<Message>(MAX_BATCH_SIZE);
+
+        try {
+            while (running || !queue.isEmpty()) {
+                if (isAbandoning()) {
+                    final int num = queue.size();
+                    queue.clear();
+                    numAbandoned.addAndGet(num);
+                    LOG.error("Abandoned " + num + " alerts which could not" +
+                              " be sent to " + liveAddr + " before the" +
+                              " alerter was closed");
+                    break;
+                }
+
+                Message first;
+                try {
+                    first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie) {
+                    continue;
+                }
+
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+                sendBatch(batch);
+                batch.clear();
+            }
+        } finally {
+            running = false;
+
+            closeSocket();
+            if (context != null) {
+                SharedZMQContext.release();
+                context = null;
+            }
+        }
+    }
+
     /**
      * Send a message to IceCube Live.
      *
@@ -96,7 +672,8 @@ public class ZMQThreadedAlerter
     }
 
     /**
-     * Send a message to IceCube Live.
+     * Send a message to IceCube Live.  The date is formatted by the
+     * alerter thread, so it must not be modified after this call.
      *
      * @param varname variable name
      * @param priority priority level
@@ -107,7 +684,7 @@ public class ZMQThreadedAlerter
                      Map<String, Object> values)
         throws AlertException
     {
-        throw new Error("Unimplemented");
+        enqueue(new Message(varname, priority, date, values));
     }
 
     /**
@@ -122,7 +699,40 @@ public class ZMQThreadedAlerter
                      Map<String, Object> values)
         throws AlertException
     {
-        throw new Error("Unimplemented");
+        enqueue(new Message(varname, priority, utcTime, values));
+    }
+
+    /**
+     * Send an alert.
+     *
+     * @param priority priority level
+     * @param condition I3Live condition
+     * @param vars map of variable names to values
+     *
+     * @throws AlertException if there is a problem with one of the parameters
+     */
+    public void sendAlert(Priority priority, String condition,
+                          Map<String, Object> vars)
+        throws AlertException
+    {
+        sendAlert(priority, condition, null, vars);
+    }
+
+    /**
+     * Send an alert.
+     *
+     * @param priority priority level
+     * @param condition I3Live condition
+     * @param notify list of email addresses which receive notification
+     * @param vars map of variable names to values
+     *
+     * @throws AlertException if there is a problem with one of the parameters
+     */
+    public void sendAlert(Priority priority, String condition, String notify,
+                          Map<String, Object> vars)
+        throws AlertException
+    {
+        sendAlert(Calendar.getInstance(), priority, condition, notify, vars);
     }
 
     /**
@@ -140,28 +750,8 @@ public class ZMQThreadedAlerter
                           String notify, Map<String, Object> vars)
         throws AlertException
     {
-	HashMap values = new HashMap();
-	if (condition != null && condition.length() > 0) {
-	    values.put("condition", condition);
-	}
-	if (notify != null && notify.length() > 0) {
-	    values.put("notify", notify);
-	}
-	if (vars != null && vars.size() > 0) {
-	    values.put("vars", vars);
-	}
-
-	HashMap map = new HashMap();
-	map.put("service", service);
-	map.put("varname", "alert");
-	map.put("prio", priority.value());
-	map.put("t", String.format("%tF %tT.%tL000", date, date, date));
-	if (values.size() > 0) {
-	    map.put("value", values);
-	}
-
-	sendObject(map);
-
+        send("alert", priority, date, makeAlertValues(condition, notify,
+                                                      vars));
     }
 
     /**
@@ -180,94 +770,165 @@ public class ZMQThreadedAlerter
                           Map<String, Object> vars)
         throws AlertException
     {
+        send("alert", priority, utcTime, makeAlertValues(condition, notify,
+                                                         vars));
     }
 
     /**
-     * Send a Java object (as a JSON string) to a 0MQ server.
+     * Serialize and send a batch of alerts.
      *
-     * @param obj object to send
+     * @param batch queued alerts
      */
-    @Override
-    public void sendObject(Object obj)
-        throws AlertException
+    private void sendBatch(List<Message> batch)
     {
-	if (fLiveAddr==null) {
-	    throw new AlertException("sendLive called before setAddr!");
-	}
+        final long dequeued = System.nanoTime();
+
+        final AlertEncoder enc = AlertEncoder.getEncoder(format);
+        long encStart = dequeued;
+        for (Message msg : batch) {
+            try {
+                msg.encode(enc, service);
+            } catch (RuntimeException rex) {
+                LOG.error("Cannot serialize " + msg, rex);
+                numFailed.incrementAndGet();
+                enc.discardMessage();
+                encStart = System.nanoTime();
+                continue;
+            }
+
+            enc.endMessage();
+
+            final long encEnd = System.nanoTime();
+            encodeTime.record(encEnd - encStart);
+            encStart = encEnd;
+
+            final long waited = dequeued - msg.queuedNanos;
+            totalQueueNanos.addAndGet(waited);
+            maxQueueNanos = max(maxQueueNanos, waited);
+        }
+
+        final byte[] buf = enc.getBuffer();
+        final int numMsgs = enc.getNumberOfMessages();
+        int numUnsent = 0;
+        for (int i = 0; i < numMsgs; i++) {
+            if (isAbandoning()) {
+                numUnsent += numMsgs - i;
+                break;
+            }
+
+            final long start = System.nanoTime();
+
+            final int off = enc.getStart(i);
+            boolean sent;
+            try {
+                sent = sendMessage(openSocket(), buf, off,
+                                   enc.getEnd(i) - off);
+            } catch (ZMQException ze) {
+                LOG.error("Cannot send alert to " + liveAddr, ze);
+                numFailed.incrementAndGet();
+
+                // don't reuse a socket which has failed
+                closeSocket();
+                continue;
+            }
+
+            if (!sent) {
+                numUnsent++;
+                continue;
+            }
 
-	if (!running) {
-	    throw new AlertException("alerter already closed");
-	}
+            final long elapsed = System.nanoTime() - start;
+            totalSendNanos.addAndGet(elapsed);
+            maxSendNanos = max(maxSendNanos, elapsed);
 
-	String json = gson.toJson(obj);
+            numSent.incrementAndGet();
+        }
 
-	synchronized(this) {
-	    try {
-		fMsgQueue.put(json);
-	    } catch (InterruptedException e) {
-		// the message queue size is
-		// MAX_INT
-	    }
-	    this.notify();
-	}
+        if (numUnsent > 0) {
+            numAbandoned.addAndGet(numUnsent);
+            LOG.error("Closed alerter before " + numUnsent + " alerts could" +
+                      " be sent to " + liveAddr);
+        }
     }
 
     /**
-     * Send an alert.
+     * Send a single message, retrying while the receiver is not keeping
+     * up.  Gives up if the close timeout expires before the message is
+     * sent.
      *
-     * @param priority priority level
-     * @param condition I3Live condition
-     * @param vars map of variable names to values
+     * @param sock 0MQ socket
+     * @param buf buffer holding the message
+     * @param off offset of the start of the message
+     * @param len message length
      *
-     * @throws AlertException if there is a problem with one of the parameters
+     * @return <tt>false</tt> if the message was not sent
      */
-    public void sendAlert(Priority priority, String condition,
-                          Map<String, Object> vars)
-        throws AlertException
+    private boolean sendMessage(Socket sock, byte[] buf, int off, int len)
     {
-        sendAlert(priority, condition, null, vars);
+        final int flags = (curTimeout == 0 ? ZMQ.DONTWAIT : 0);
+
+        boolean blocked = false;
+        while (!sock.send(buf, off, len, flags)) {
+            if (!blocked) {
+                numBlocked.incrementAndGet();
+                blocked = true;
+            }
+
+            if (isAbandoning()) {
+                return false;
+            }
+
+            try {
+                Thread.sleep(BLOCKED_RETRY_MILLIS);
+            } catch (InterruptedException ie) {
+                // try again
+            }
+        }
+
+        return true;
     }
 
     /**
-     * Send an alert.
+     * Queue a Java object to be sent (encoded in the current format) to a
+     * 0MQ server.  The object is serialized by the alerter thread, so it
+     * must not be modified after this call.
      *
-     * @param priority priority level
-     * @param condition I3Live condition
-     * @param notify list of email addresses which receive notification
-     * @param vars map of variable names to values
-     *
-     * @throws AlertException if there is a problem with one of the parameters
+     * @param obj object to send
      */
-    public void sendAlert(Priority priority, String condition, String notify,
-                          Map<String, Object> vars)
+    @Override
+    public void sendObject(Object obj)
         throws AlertException
     {
-        sendAlert(Calendar.getInstance(), priority, condition, notify, vars);
+        enqueue(new Message(obj));
     }
 
-
     /**
-     * Close any open files/sockets.
+     * Queue a batch of Java objects to be sent to a 0MQ server.  The
+     * batch is queued all at once, so if the queue doesn't have room for
+     * all of it, nothing is queued and an exception is thrown (see
+     * <tt>OverflowPolicy</tt>).
+     *
+     * @param list objects to send
+     *
+     * @throws AlertWouldBlockException if the batch was dropped because
+     *                                  the queue is full
+     * @throws AlertException if the batch could not be queued in time
      */
     @Override
-    public void close()
+    public void sendObjects(List<?> list)
+        throws AlertException
     {
-	// multiple threads can call alert
-	// and I see no guarentee that alert will not
-	// be called after close, so make
-	// that operation thread safe
-	synchronized(this) {
-	    this.running=false;
-	    this.notify();
-	}
+        if (list.size() == 0) {
+            return;
+        }
 
-	try {
-	    this.join();
-	} catch (InterruptedException e) {
-	    // pass
-	}
-    }
+        ArrayList<Message> msgs = new ArrayList<Message>(list.size());
+        for (Object obj : list) {
+            msgs.add(new Message(obj));
+        }
 
+        enqueue(msgs);
+    }
 
     /**
      * Set IceCube Live host and port
@@ -280,98 +941,215 @@ public class ZMQThreadedAlerter
     public void setAddress(String host, int port)
         throws AlertException
     {
-	/** I3Live host */
-	InetAddress liveAddr;
-	/** I3Live port */
-	int livePort;
-
+        InetAddress addr;
         try {
-            liveAddr = InetAddress.getByName(host);
+            addr = InetAddress.getByName(host);
         } catch (UnknownHostException uhe) {
             throw new AlertException("Cannot set I3Live host \"" + host + "\"",
                                      uhe);
         }
 
-        if (liveAddr == null) {
+        if (addr == null) {
             throw new AlertException("I3Live host \"" + host +
                                      "\" returned null address");
         }
 
-        livePort = port;
+        liveAddr = "tcp://" + addr.getHostAddress() + ":" + port;
+    }
+
+    /**
+     * Set the format used to encode messages.  This takes effect for
+     * alerts which have not yet been serialized by the alerter thread.
+     *
+     * @param format message format
+     */
+    @Override
+    public void setFormat(Format format)
+    {
+        if (format == null) {
+            throw new Error("Format cannot be null");
+        }
+
+        this.format = format;
+    }
+
+    /**
+     * Set the maximum time <tt>close()</tt> spends sending queued alerts
+     * before abandoning them.
+     *
+     * @param millis milliseconds
+     */
+    public void setCloseTimeout(long millis)
+    {
+        if (millis < 0) {
+            throw new Error("Bad close timeout " + millis);
+        }
+
+        closeMillis = millis;
+    }
+
+    /**
+     * Set the action taken when an alert is sent while the queue is full.
+     *
+     * @param policy overflow policy
+     * @param blockMillis for <tt>BLOCK</tt>, the maximum time to wait for
+     *                    space in the queue
+     */
+    public void setOverflowPolicy(OverflowPolicy policy, long blockMillis)
+    {
+        if (policy == null) {
+            throw new Error("Overflow policy cannot be null");
+        }
+
+        this.policy = policy;
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+    }
 
-	synchronized(this) {
-	    fLiveAddr = "tcp://" + liveAddr.getHostAddress() + ":" +
-		livePort;
-	}
+    /**
+     * Limit how long a send can wait for a slow receiver.  0MQ queues up
+     * to <tt>highWaterMark</tt> messages for the receiver; once that many
+     * are waiting, each send waits up to <tt>timeoutMillis</tt> for room
+     * before the thread pauses and tries again.
+     *
+     * @param highWaterMark maximum number of messages queued by 0MQ
+     *                      (<tt>0</tt> for no limit)
+     * @param timeoutMillis milliseconds to wait for room (<tt>0</tt> to
+     *                      never wait)
+     */
+    public void setSendLimits(int highWaterMark, int timeoutMillis)
+    {
+        if (highWaterMark < 0) {
+            throw new Error("Bad send high-water mark " + highWaterMark);
+        } else if (timeoutMillis < 0) {
+            throw new Error("Bad send timeout " + timeoutMillis);
+        }
 
+        sendHWM = highWaterMark;
+        sendTimeout = timeoutMillis;
     }
 
+    /**
+     * Make sure <tt>running</tt> is set before the caller can queue alerts,
+     * then start the sending loop in the current <tt>WorkerThreads</tt>
+     * mode.
+     */
+    @Override
+    public void start()
+    {
+        if (worker != null) {
+            throw new IllegalThreadStateException("Alerter was already" +
+                                                  " started");
+        }
+
+        running = true;
+        if (WorkerThreads.getMode() == WorkerThreads.Mode.PLATFORM) {
+            super.start();
+        } else {
+            worker = WorkerThreads.start(getName(), true, this);
+        }
+    }
+
+    /**
+     * Wait up to the <tt>BLOCK</tt> timeout for the sending loop to make
+     * room in the queue.  Must be called while holding
+     * <tt>enqueueLock</tt>.
+     *
+     * @param num number of alerts which need to fit
+     *
+     * @return <tt>false</tt> if there still isn't enough room
+     */
+    private boolean waitForRoom(int num)
+    {
+        final long deadline = System.nanoTime() + blockNanos;
+        while (queue.remainingCapacity() < num) {
+            if (System.nanoTime() - deadline >= 0 || !running) {
+                return false;
+            }
+
+            try {
+                Thread.sleep(BLOCKED_RETRY_MILLIS);
+            } catch (InterruptedException ie) {
+                return false;
+            }
+        }
+
+        return true;
+    }
 
+    /**
+     * Return debugging string
+     *
+     * @return debugging string
+     */
     @Override
-    public void run() {
-	boolean update_socket=false;
-
-	running = true;
-
-	Context context = ZMQ.context(NUMBER_OF_THREADS);
-	Socket socket = null;
-	String myAddr = null;
-
-	try {
-	    while(true) {
-
-		synchronized(this) {
-		    try {
-			this.wait();
-		    } catch (InterruptedException e) {
-			// ignore in this case
-		    }
-
-		    if (!this.running) {
-			return;
-		    }
-
-		    if (fLiveAddr==null) {
-			// loop back and wait again
-			continue;
-		    }
-
-		    if (myAddr == null || !myAddr.equals(fLiveAddr)) {
-			myAddr=fLiveAddr;
-			update_socket=true;
-		    }
-		}
-
-		if(update_socket) {
-		    if (socket!=null) {
-			socket.close();
-		    }
-
-		    socket = context.socket(ZMQ.PUSH);
-		    socket.connect(myAddr);
-		    socket.setLinger(100);
-		    update_socket=false;
-		}
-
-		String msg = (String)fMsgQueue.poll();
-		while(msg!=null) {
-		    // got an item from the queue
-		    byte[] bytes = msg.toString().getBytes();
-		    socket.send(bytes,0);
-
-		    msg = (String)fMsgQueue.poll();
-		}
-	    }
-	} finally {
-	    if (socket!=null) {
-		socket.close();
-		socket=null;
-	    }
-	    if(context!=null) {
-		context.term();
-		context = null;
-	    }
-	}
+    public String toString()
+    {
+        return String.format("ZMQThreadedAlerter[%s]",
+                             liveAddr == null ? "" : liveAddr);
     }
 
+    /**
+     * Queued alert
+     */
+    private static final class Message
+    {
+        private final String varname;
+        private final Priority priority;
+        /** <tt>Calendar</tt> or <tt>IUTCTime</tt> */
+        private final Object time;
+        /** Alert values, or the raw object to be sent */
+        private final Object obj;
+        /** Time the alert was queued */
+        private final long queuedNanos;
+
+        Message(Object obj)
+        {
+            this(null, null, null, obj);
+        }
+
+        Message(String varname, Priority priority, Object time, Object obj)
+        {
+            this.varname = varname;
+            this.priority = priority;
+            this.time = time;
+            this.obj = obj;
+
+            queuedNanos = System.nanoTime();
+        }
+
+        /**
+         * Serialize this alert.
+         *
+         * @param enc encoder
+         * @param service service name
+         */
+        @SuppressWarnings("unchecked")
+        void encode(AlertEncoder enc, String service)
+        {
+            if (priority == null) {
+                enc.writeObject(obj);
+                return;
+            }
+
+            String dateStr;
+            if (time instanceof IUTCTime) {
+                dateStr = AlertTimeFormatter.format((IUTCTime) time);
+            } else {
+                dateStr = AlertTimeFormatter.format((Calendar) time);
+            }
+
+            enc.writeAlert(service, varname, priority.value(), dateStr,
+                           (Map<String, Object>) obj);
+        }
+
+        @Override
+        public String toString()
+        {
+            if (priority == null) {
+                return String.valueOf(obj);
+            }
+
+            return varname + "@" + priority;
+        }
+    }
 }
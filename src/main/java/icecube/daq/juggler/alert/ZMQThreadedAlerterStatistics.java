@@ -0,0 +1,174 @@
+package icecube.daq.juggler.alert;
+
+/**
+ * Threaded 0MQ alerter statistics.
+ *
+ * Times are reported in microseconds.
+ */
+public class ZMQThreadedAlerterStatistics
+    implements ZMQThreadedAlerterStatisticsMBean
+{
+    /** Monitored alerter */
+    private volatile ZMQThreadedAlerter alerter;
+
+    /**
+     * Create a monitor for a threaded alerter.
+     *
+     * @param alerter threaded alerter
+     */
+    public ZMQThreadedAlerterStatistics(ZMQThreadedAlerter alerter)
+    {
+        setAlerter(alerter);
+    }
+
+    /**
+     * Get the average time sent alerts spent in the queue.
+     *
+     * @return average latency in microseconds
+     */
+    @Override
+    public long getAverageQueueLatency()
+    {
+        return alerter.getAverageQueueLatency();
+    }
+
+    /**
+     * Get the average time needed to send an alert.
+     *
+     * @return average send time in microseconds
+     */
+    @Override
+    public long getAverageSendTime()
+    {
+        return alerter.getAverageSendTime();
+    }
+
+    /**
+     * Get the longest time an alert spent in the queue.
+     *
+     * @return maximum latency in microseconds
+     */
+    @Override
+    public long getMaxQueueLatency()
+    {
+        return alerter.getMaxQueueLatency();
+    }
+
+    /**
+     * Get the longest time needed to send an alert.
+     *
+     * @return maximum send time in microseconds
+     */
+    @Override
+    public long getMaxSendTime()
+    {
+        return alerter.getMaxSendTime();
+    }
+
+    /**
+     * Get the number of alerts which were still unsent when the close
+     * timeout expired.
+     *
+     * @return number of abandoned alerts
+     */
+    @Override
+    public long getNumAbandoned()
+    {
+        return alerter.getNumAbandoned();
+    }
+
+    /**
+     * Get the number of alerts which could not be sent immediately
+     * because the receiver was not keeping up.
+     *
+     * @return number of blocked alerts
+     */
+    @Override
+    public long getNumBlocked()
+    {
+        return alerter.getNumBlocked();
+    }
+
+    /**
+     * Get the number of alerts discarded because the queue was full.
+     *
+     * @return number of dropped alerts
+     */
+    @Override
+    public long getNumDropped()
+    {
+        return alerter.getNumDropped();
+    }
+
+    /**
+     * Get the number of alerts which could not be serialized or sent.
+     *
+     * @return number of failed alerts
+     */
+    @Override
+    public long getNumFailed()
+    {
+        return alerter.getNumFailed();
+    }
+
+    /**
+     * Get the number of alerts waiting to be sent.
+     *
+     * @return number of queued alerts
+     */
+    @Override
+    public int getNumQueued()
+    {
+        return alerter.getNumQueued();
+    }
+
+    /**
+     * Get the number of alerts sent.
+     *
+     * @return number of sent alerts
+     */
+    @Override
+    public long getNumSent()
+    {
+        return alerter.getNumSent();
+    }
+
+    /**
+     * Get the time the alerter takes to serialize each alert.
+     *
+     * @return median, 99th percentile and maximum time in microseconds
+     */
+    @Override
+    public long[] getSerializationTime()
+    {
+        return alerter.getEncodeTimeHistogram().getSummary();
+    }
+
+    /**
+     * Monitor a different alerter (used when a component's alerter is
+     * replaced, since the MBean can only be registered once).
+     *
+     * @param alerter threaded alerter
+     */
+    public void setAlerter(ZMQThreadedAlerter alerter)
+    {
+        if (alerter == null) {
+            throw new Error("Alerter cannot be null");
+        }
+
+        this.alerter = alerter;
+    }
+
+    /**
+     * Return description of current statistics.
+     *
+     * @return description of current statistics
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("%d sent, %d queued, %d dropped, %d failed",
+                             getNumSent(), getNumQueued(), getNumDropped(),
+                             getNumFailed());
+    }
+}
@@ -0,0 +1,19 @@
+package icecube.daq.juggler.alert;
+
+/**
+ * Threaded 0MQ alerter monitor.
+ */
+public interface ZMQThreadedAlerterStatisticsMBean
+{
+    long getAverageQueueLatency();
+    long getAverageSendTime();
+    long getMaxQueueLatency();
+    long getMaxSendTime();
+    long getNumAbandoned();
+    long getNumBlocked();
+    long getNumDropped();
+    long getNumFailed();
+    int getNumQueued();
+    long getNumSent();
+    long[] getSerializationTime();
+}
@@ -8,14 +8,19 @@ import icecube.daq.io.SimpleOutputEngine;
 import icecube.daq.io.SimpleStreamReader;
 import icecube.daq.io.SpliceableStreamReader;
 import icecube.daq.io.SpliceableSimpleReader;
+import icecube.daq.juggler.WorkerThreads;
 import icecube.daq.juggler.alert.AlertException;
 import icecube.daq.juggler.alert.AlertQueue;
+import icecube.daq.juggler.alert.AlertQueueStatistics;
 import icecube.daq.juggler.alert.Alerter;
 import icecube.daq.juggler.alert.ZMQAlerter;
+import icecube.daq.juggler.alert.ZMQThreadedAlerter;
+import icecube.daq.juggler.alert.ZMQThreadedAlerterStatistics;
 import icecube.daq.juggler.mbean.LocalMonitor;
 import icecube.daq.juggler.mbean.MBeanAgent;
 import icecube.daq.juggler.mbean.MBeanAgentException;
 import icecube.daq.juggler.mbean.MBeanWrapper;
+import icecube.daq.juggler.mbean.TCPStatistics;
 import icecube.daq.payload.IByteBufferCache;
 import icecube.daq.splicer.Splicer;
 import icecube.daq.util.FlasherboardConfiguration;
@@ -59,6 +64,9 @@ public abstract class DAQComponent
 {
     private static final Logger LOG = Logger.getLogger(DAQComponent.class);
 
+    /** Maximum time spent sending queued alerts when shutting down */
+    private static final long ALERT_STOP_MILLIS = 2000L;
+
     /** Methods names for PayloadReader MBean */
     private static final String[] inputReaderMethods = new String[] {
         "BytesReceived",
@@ -105,6 +113,8 @@ public abstract class DAQComponent
 
     /** Local monitoring, is enabled */
     private LocalMonitor moniLocal;
+    /** TCP statistics for input connections */
+    private TCPStatistics tcpStats;
 
     /** Thread which transitions between states */
     private StateTask stateTask;
@@ -114,6 +124,10 @@ public abstract class DAQComponent
     private Alerter alerter;
     /** Alert queue */
     private AlertQueue alertQueue;
+    /** Per-priority byte budget for the alert queue (0 for the default) */
+    private long alertQueueBytes;
+    /** Monitor for a threaded alerter (<tt>null</tt> until one is set) */
+    private ZMQThreadedAlerterStatistics threadedAlerterStats;
 
     /** Current run number */
     private int runNumber;
@@ -131,9 +145,7 @@ public abstract class DAQComponent
 
         stateTask = new StateTask(this);
 
-        Thread thread = new Thread(stateTask);
-        thread.setName("StateTask");
-        thread.start();
+        WorkerThreads.start("StateTask", false, stateTask);
 
         while (!stateTask.isRunning()) {
             try {
@@ -265,6 +277,11 @@ public abstract class DAQComponent
     {
         addConnector(new DAQInputConnector(type, engine, optional));
 
+        if (tcpStats == null) {
+            tcpStats = new TCPStatistics();
+            addMBean("tcpStats", tcpStats);
+        }
+
         if (engine instanceof SpliceableSimpleReader) {
             addMBean(type, new MBeanWrapper(engine,
                                             spliceableInputReaderMethods));
@@ -407,9 +424,7 @@ public abstract class DAQComponent
     public void closeAll()
         throws IOException
     {
-        if (alertQueue != null) {
-            alertQueue.stop();
-        }
+        stopAlertQueue();
     }
 
     /**
@@ -619,6 +634,11 @@ public abstract class DAQComponent
     {
         if (alertQueue == null) {
             alertQueue = new AlertQueue(getAlerter());
+            if (alertQueueBytes > 0) {
+                alertQueue.setMaxQueueBytes(alertQueueBytes);
+            }
+
+            addMBean("alertQueue", new AlertQueueStatistics(alertQueue));
         }
 
         // Since caller needs an AlertQueue, we can assume they want it running
@@ -717,6 +737,32 @@ public abstract class DAQComponent
         return id;
     }
 
+    /**
+     * Get the ports used by the input connectors' servers.
+     *
+     * @return list of ports
+     */
+    private int[] getInputPorts()
+    {
+        int num = 0;
+        for (DAQConnector conn : connectors) {
+            if (conn.isInput()) {
+                num++;
+            }
+        }
+
+        int[] ports = new int[num];
+
+        int idx = 0;
+        for (DAQConnector conn : connectors) {
+            if (conn.isInput()) {
+                ports[idx++] = conn.getPort();
+            }
+        }
+
+        return ports;
+    }
+
     /**
      * Get the log level for this component.
      *
@@ -1027,6 +1073,21 @@ public abstract class DAQComponent
         return needDestroy;
     }
 
+    /**
+     * Set the maximum estimated size of the alerts queued for each
+     * priority.
+     *
+     * @param bytes maximum number of bytes
+     */
+    public void setAlertQueueBytes(long bytes)
+    {
+        alertQueueBytes = bytes;
+
+        if (alertQueue != null) {
+            alertQueue.setMaxQueueBytes(bytes);
+        }
+    }
+
     /**
      * Set the address to which alerts are sent.
      *
@@ -1058,6 +1119,17 @@ public abstract class DAQComponent
         }
 
         this.alerter = alerter;
+
+        if (alerter instanceof ZMQThreadedAlerter) {
+            final ZMQThreadedAlerter threaded = (ZMQThreadedAlerter) alerter;
+            if (threadedAlerterStats == null) {
+                threadedAlerterStats =
+                    new ZMQThreadedAlerterStatistics(threaded);
+                addMBean("threadedAlerter", threadedAlerterStats);
+            } else {
+                threadedAlerterStats.setAlerter(threaded);
+            }
+        }
     }
 
     /**
@@ -1225,6 +1297,10 @@ public abstract class DAQComponent
             }
         }
 
+        if (tcpStats != null) {
+            tcpStats.setInputPorts(getInputPorts());
+        }
+
         if (compEx != null) {
             throw compEx;
         }
@@ -1328,6 +1404,21 @@ public abstract class DAQComponent
         // Override me!
     }
 
+    /**
+     * Give the alert queue a limited time to send queued alerts, then
+     * stop it.
+     */
+    private void stopAlertQueue()
+    {
+        if (alertQueue != null && !alertQueue.isStopped()) {
+            final long abandoned = alertQueue.stop(ALERT_STOP_MILLIS);
+            if (abandoned > 0) {
+                LOG.error("Abandoned " + abandoned + " alerts while" +
+                          " stopping " + getName());
+            }
+        }
+    }
+
     /**
      * Stop the MBean agent associated with this component.
      *
@@ -1376,6 +1467,8 @@ public abstract class DAQComponent
             stateTask.stop();
             taskDestroyed = true;
         }
+
+        stopAlertQueue();
     }
 
     /**
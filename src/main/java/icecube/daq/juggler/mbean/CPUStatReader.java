@@ -0,0 +1,194 @@
+package icecube.daq.juggler.mbean;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Parse the CPU lines from <tt>/proc/stat</tt> into reusable arrays.
+ *
+ * Entry 0 holds the system-wide times and entries 1 and up hold the
+ * times for each core.  Each entry has these times (in clock ticks):
+ * <ol>
+ * <li>user
+ * <li>nice
+ * <li>system
+ * <li>idle
+ * <li>iowait
+ * <li>irq
+ * <li>softirq
+ * <li>steal
+ * </ol>
+ *
+ * Guest and guest_nice times are skipped, since the kernel already
+ * includes them in the user and nice times (<tt>top</tt> and
+ * <tt>mpstat</tt> leave them out of the total for the same reason).
+ *
+ * The arrays are overwritten by each call to <tt>update()</tt>.
+ */
+final class CPUStatReader
+{
+    /** Number of times in each entry */
+    static final int NUM_TIMES = 8;
+    /** Minimum number of times on a valid CPU line (before steal) */
+    private static final int MIN_TIMES = NUM_TIMES - 1;
+
+    /** Prefix for CPU lines */
+    private static final String CPU_PREFIX = "cpu";
+
+    /** File reader */
+    private final ProcFileReader reader;
+
+    /** Entry names */
+    private String[] names = new String[0];
+    /** Times for each entry */
+    private long[][] times = new long[0][];
+    /** Number of valid entries */
+    private int numEntries;
+
+    /**
+     * Create a reader.
+     *
+     * @param file <tt>/proc/stat</tt> file
+     */
+    CPUStatReader(File file)
+    {
+        reader = new ProcFileReader(file);
+    }
+
+    /**
+     * Close the file.
+     */
+    void close()
+    {
+        reader.close();
+    }
+
+    /**
+     * Make sure there's room for <tt>num</tt> entries.
+     *
+     * @param num number of entries
+     */
+    private void ensureCapacity(int num)
+    {
+        if (num <= times.length) {
+            return;
+        }
+
+        final int oldLen = times.length;
+        names = Arrays.copyOf(names, num);
+        times = Arrays.copyOf(times, num);
+        for (int i = oldLen; i < num; i++) {
+            times[i] = new long[NUM_TIMES];
+        }
+    }
+
+    /**
+     * Get the name of an entry.
+     *
+     * @param idx entry index
+     *
+     * @return <tt>cpu</tt> for the system-wide entry or
+     *         <tt>cpu<i>N</i></tt> for a core
+     */
+    String getName(int idx)
+    {
+        return names[idx];
+    }
+
+    /**
+     * Get the number of entries read by the last <tt>update()</tt>.
+     *
+     * @return number of entries (one more than the number of cores)
+     */
+    int getNumEntries()
+    {
+        return numEntries;
+    }
+
+    /**
+     * Get the times for an entry.  The array is reused by the next
+     * <tt>update()</tt>.
+     *
+     * @param idx entry index
+     *
+     * @return array of <tt>NUM_TIMES</tt> times
+     */
+    long[] getTimes(int idx)
+    {
+        return times[idx];
+    }
+
+    /**
+     * Re-read the file.
+     *
+     * @return <tt>false</tt> if a CPU line is malformed or there are no
+     *         CPU lines
+     *
+     * @throws IOException if the file cannot be read
+     */
+    boolean update()
+        throws IOException
+    {
+        reader.read();
+
+        int num = 0;
+        do {
+            if (!reader.startsWith(CPU_PREFIX)) {
+                if (num > 0) {
+                    // CPU lines come first
+                    break;
+                }
+
+                continue;
+            }
+
+            ensureCapacity(num + 1);
+
+            final int start = reader.getPosition();
+            final int len = reader.skipToken(' ');
+            if (!reader.matches(start, len, names[num])) {
+                names[num] = reader.getString(start, len);
+            }
+
+            final long[] vals = times[num];
+            Arrays.fill(vals, 0L);
+
+            int idx = 0;
+            while (!reader.atLineEnd()) {
+                final long val = reader.nextLong();
+                if (val == ProcFileReader.NO_VALUE) {
+                    numEntries = num;
+                    return false;
+                }
+
+                // guest times are already counted as user and nice time
+                if (idx < NUM_TIMES) {
+                    vals[idx] = val;
+                }
+                idx++;
+            }
+
+            if (idx < MIN_TIMES) {
+                numEntries = num;
+                return false;
+            }
+
+            num++;
+        } while (reader.skipLine());
+
+        numEntries = num;
+        return num > 0;
+    }
+
+    /**
+     * Return the file name.
+     *
+     * @return file name
+     */
+    @Override
+    public String toString()
+    {
+        return "CPUStatReader[" + reader + "]";
+    }
+}
@@ -0,0 +1,447 @@
+package icecube.daq.juggler.mbean;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Per-device disk I/O statistics, computed from the counters in
+ * <tt>/proc/diskstats</tt>.
+ *
+ * Each attribute maps device names (<tt>sda</tt>, <tt>sda1</tt>,
+ * <tt>nvme0n1</tt>, etc.) to a value averaged over the time since the
+ * previous sample, using the same definitions as <tt>iostat -x</tt>.
+ * Loop and RAM disks, and devices which have never done any I/O, are left
+ * out.  All the attributes come from a single sample, which is taken when
+ * an attribute is requested at least 100 ms after the previous sample, so
+ * the attributes read by one monitoring pass are consistent.  Attributes
+ * are <tt>null</tt> until there are two samples.
+ */
+public class DiskStatistics
+    implements DiskStatisticsMBean
+{
+    private static final Logger LOG = Logger.getLogger(DiskStatistics.class);
+
+    /** Path to disk statistics file */
+    public static File DISKSTATS_FILE = new File("/proc/diskstats");
+
+    /** Size of the sectors counted in /proc/diskstats */
+    private static final long SECTOR_BYTES = 512L;
+
+    /** Reads completed */
+    private static final int READS = 0;
+    /** Sectors read */
+    private static final int SECTORS_READ = 2;
+    /** Milliseconds spent reading */
+    private static final int MS_READING = 3;
+    /** Writes completed */
+    private static final int WRITES = 4;
+    /** Sectors written */
+    private static final int SECTORS_WRITTEN = 6;
+    /** Milliseconds spent writing */
+    private static final int MS_WRITING = 7;
+    /** I/Os currently in progress (not a counter) */
+    private static final int IN_PROGRESS = 8;
+    /** Milliseconds spent doing I/O */
+    private static final int MS_ACTIVE = 9;
+    /** Weighted milliseconds spent doing I/O */
+    private static final int MS_WEIGHTED = 10;
+    /** Number of fields used (newer kernels add discard and flush fields) */
+    private static final int NUM_FIELDS = 11;
+
+    /** Computed read bytes per second */
+    static final int RATE_READ_BYTES = 0;
+    /** Computed write bytes per second */
+    static final int RATE_WRITE_BYTES = 1;
+    /** Computed reads per second */
+    static final int RATE_READS = 2;
+    /** Computed writes per second */
+    static final int RATE_WRITES = 3;
+    /** Computed average number of queued requests */
+    static final int RATE_QUEUE_DEPTH = 4;
+    /** Computed average milliseconds per request */
+    static final int RATE_AWAIT = 5;
+    /** Computed percentage of time the device was busy */
+    static final int RATE_UTILIZATION = 6;
+    /** Number of computed values */
+    private static final int NUM_RATES = 7;
+
+    /** Device names which are always ignored */
+    private static final String[] IGNORED_PREFIXES = { "loop", "ram" };
+
+    /** File reader (<tt>null</tt> until the first sample) */
+    private ProcFileReader reader;
+    /** Set to <tt>true</tt> after reporting a missing file */
+    private boolean warnedMissing;
+
+    /** Device names from the latest sample */
+    private String[] names = new String[0];
+    /** Counters from the latest sample */
+    private long[][] counters = new long[0][];
+    /** Number of devices in the latest sample */
+    private int numDevices;
+
+    /** Previous sample */
+    private SampleHistory history = new SampleHistory();
+
+    /** Devices with computed values */
+    private String[] rateNames = new String[0];
+    /** Computed values for each device */
+    private double[][] rates = new double[0][];
+    /** In-progress I/Os for each device */
+    private long[] inProgress = new long[0];
+    /** Number of devices with computed values */
+    private int numRates;
+    /** Have values been computed from two samples? */
+    private boolean hasRates;
+
+    /**
+     * Make sure there's room for <tt>num</tt> devices.
+     *
+     * @param num number of devices
+     */
+    private void ensureCapacity(int num)
+    {
+        if (num <= counters.length) {
+            return;
+        }
+
+        final int oldLen = counters.length;
+        names = Arrays.copyOf(names, num);
+        counters = Arrays.copyOf(counters, num);
+        rateNames = Arrays.copyOf(rateNames, num);
+        rates = Arrays.copyOf(rates, num);
+        inProgress = Arrays.copyOf(inProgress, num);
+        for (int i = oldLen; i < num; i++) {
+            counters[i] = new long[NUM_FIELDS];
+            rates[i] = new double[NUM_RATES];
+        }
+    }
+
+    /**
+     * Get the average time each read or write took, including time spent
+     * in the queue.
+     *
+     * @return map of device name to milliseconds
+     */
+    @Override
+    public HashMap<String, Double> getAwaitMillis()
+    {
+        return getRates(RATE_AWAIT, System.nanoTime());
+    }
+
+    /**
+     * Get the number of I/Os in progress when the last sample was taken.
+     *
+     * @return map of device name to number of I/Os
+     */
+    @Override
+    public synchronized HashMap<String, Long> getIOsInProgress()
+    {
+        if (!update(System.nanoTime()) || !hasRates) {
+            return null;
+        }
+
+        HashMap<String, Long> map = new HashMap<String, Long>();
+        for (int i = 0; i < numRates; i++) {
+            map.put(rateNames[i], inProgress[i]);
+        }
+
+        return map;
+    }
+
+    /**
+     * Get the average number of requests queued or in progress.
+     *
+     * @return map of device name to queue depth
+     */
+    @Override
+    public HashMap<String, Double> getQueueDepth()
+    {
+        return getRates(RATE_QUEUE_DEPTH, System.nanoTime());
+    }
+
+    /**
+     * Get one computed value for all devices.
+     *
+     * @param column <tt>RATE_*</tt> column
+     * @param now current <tt>System.nanoTime()</tt>
+     *
+     * @return map of device name to value
+     */
+    synchronized HashMap<String, Double> getRates(int column, long now)
+    {
+        if (!update(now) || !hasRates) {
+            return null;
+        }
+
+        HashMap<String, Double> map = new HashMap<String, Double>();
+        for (int i = 0; i < numRates; i++) {
+            map.put(rateNames[i], rates[i][column]);
+        }
+
+        return map;
+    }
+
+    /**
+     * Get the number of bytes read per second.
+     *
+     * @return map of device name to bytes per second
+     */
+    @Override
+    public HashMap<String, Double> getReadBytesPerSecond()
+    {
+        return getRates(RATE_READ_BYTES, System.nanoTime());
+    }
+
+    /**
+     * Get the number of reads completed per second.
+     *
+     * @return map of device name to reads per second
+     */
+    @Override
+    public HashMap<String, Double> getReadsPerSecond()
+    {
+        return getRates(RATE_READS, System.nanoTime());
+    }
+
+    /**
+     * Get the percentage of time the device was busy.  Devices which
+     * handle requests in parallel (RAID arrays, SSDs) can be busy all the
+     * time without being saturated.
+     *
+     * @return map of device name to percentage
+     */
+    @Override
+    public HashMap<String, Double> getUtilization()
+    {
+        return getRates(RATE_UTILIZATION, System.nanoTime());
+    }
+
+    /**
+     * Get the number of bytes written per second.
+     *
+     * @return map of device name to bytes per second
+     */
+    @Override
+    public HashMap<String, Double> getWriteBytesPerSecond()
+    {
+        return getRates(RATE_WRITE_BYTES, System.nanoTime());
+    }
+
+    /**
+     * Get the number of writes completed per second.
+     *
+     * @return map of device name to writes per second
+     */
+    @Override
+    public HashMap<String, Double> getWritesPerSecond()
+    {
+        return getRates(RATE_WRITES, System.nanoTime());
+    }
+
+    /**
+     * Should this device be left out?
+     *
+     * @param idx device index
+     *
+     * @return <tt>true</tt> if the device is ignored
+     */
+    private boolean isIgnored(int idx)
+    {
+        for (int i = 0; i < IGNORED_PREFIXES.length; i++) {
+            if (names[idx].startsWith(IGNORED_PREFIXES[i])) {
+                return true;
+            }
+        }
+
+        final long[] vals = counters[idx];
+        return vals[READS] == 0 && vals[WRITES] == 0 &&
+            vals[IN_PROGRESS] == 0;
+    }
+
+    /**
+     * Read the current counters.
+     *
+     * @return <tt>false</tt> if the file could not be read or parsed
+     */
+    private boolean readCounters()
+    {
+        if (reader == null) {
+            if (!DISKSTATS_FILE.exists()) {
+                if (!warnedMissing) {
+                    LOG.error("Couldn't open " + DISKSTATS_FILE + " on OS: " +
+                              System.getProperty("os.name"));
+                    warnedMissing = true;
+                }
+                return false;
+            }
+
+            reader = new ProcFileReader(DISKSTATS_FILE);
+        }
+
+        try {
+            reader.read();
+        } catch (IOException ioe) {
+            LOG.error("Problem reading " + DISKSTATS_FILE, ioe);
+            return false;
+        }
+
+        int num = 0;
+        do {
+            if (reader.atLineEnd()) {
+                continue;
+            }
+
+            // skip major and minor device numbers
+            if (reader.nextLong() == ProcFileReader.NO_VALUE ||
+                reader.nextLong() == ProcFileReader.NO_VALUE)
+            {
+                LOG.error("Bad device number in " + DISKSTATS_FILE);
+                numDevices = 0;
+                return false;
+            }
+
+            ensureCapacity(num + 1);
+
+            reader.skipBlanks();
+            final int start = reader.getPosition();
+            final int len = reader.skipToken(' ');
+            if (!reader.matches(start, len, names[num])) {
+                names[num] = reader.getString(start, len);
+            }
+
+            final long[] vals = counters[num];
+            for (int i = 0; i < NUM_FIELDS; i++) {
+                vals[i] = reader.nextLong();
+                if (vals[i] == ProcFileReader.NO_VALUE) {
+                    LOG.error("Bad statistics for " + names[num] + " in " +
+                              DISKSTATS_FILE);
+                    numDevices = 0;
+                    return false;
+                }
+            }
+
+            num++;
+        } while (reader.skipLine());
+
+        numDevices = num;
+        return true;
+    }
+
+    /**
+     * Take a new sample, unless the previous one is recent.
+     *
+     * @param now current <tt>System.nanoTime()</tt>
+     *
+     * @return <tt>false</tt> if the statistics are not available
+     */
+    private boolean update(long now)
+    {
+        if (history.hasSample() &&
+            now - history.getTime() < SystemStatistics.MIN_RATE_NANOS)
+        {
+            return true;
+        }
+
+        if (!readCounters()) {
+            return false;
+        }
+
+        final boolean hasPrev = history.hasSample();
+        final double secs = (double) (now - history.getTime()) / 1.0E9;
+        final double millis = secs * 1000.0;
+
+        int num = 0;
+        for (int i = 0; i < numDevices; i++) {
+            final long[] cur = counters[i];
+            final int prevIdx = history.find(names[i], i);
+
+            if (hasPrev && prevIdx >= 0 && !isIgnored(i)) {
+                final long[] prev = history.getValues(prevIdx);
+                final double[] vals = rates[num];
+
+                final long reads = delta(prev, cur, READS);
+                final long writes = delta(prev, cur, WRITES);
+                final long ioMillis = delta(prev, cur, MS_READING) +
+                    delta(prev, cur, MS_WRITING);
+
+                vals[RATE_READ_BYTES] = (double)
+                    (delta(prev, cur, SECTORS_READ) * SECTOR_BYTES) / secs;
+                vals[RATE_WRITE_BYTES] = (double)
+                    (delta(prev, cur, SECTORS_WRITTEN) * SECTOR_BYTES) / secs;
+                vals[RATE_READS] = (double) reads / secs;
+                vals[RATE_WRITES] = (double) writes / secs;
+                vals[RATE_QUEUE_DEPTH] =
+                    (double) delta(prev, cur, MS_WEIGHTED) / millis;
+                if (reads + writes == 0) {
+                    vals[RATE_AWAIT] = 0.0;
+                } else {
+                    vals[RATE_AWAIT] =
+                        (double) ioMillis / (double) (reads + writes);
+                }
+                vals[RATE_UTILIZATION] =
+                    Math.min(100.0, 100.0 * (double) delta(prev, cur,
+                                                           MS_ACTIVE) /
+                             millis);
+
+                rateNames[num] = names[i];
+                inProgress[num] = cur[IN_PROGRESS];
+                num++;
+            }
+
+            history.save(i, names[i], cur);
+        }
+
+        history.setSample(numDevices, now);
+        numRates = num;
+        hasRates = hasPrev;
+
+        return true;
+    }
+
+    /**
+     * Get the change in one counter.
+     *
+     * @param prev previous counters
+     * @param cur current counters
+     * @param idx counter index
+     *
+     * @return change in the counter
+     */
+    private static long delta(long[] prev, long[] cur, int idx)
+    {
+        return SampleHistory.counterDelta(prev[idx], cur[idx]);
+    }
+
+    /**
+     * Return description of current statistics.
+     *
+     * @return description of current statistics
+     */
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder buf = new StringBuilder("disks: {");
+        for (int i = 0; i < numRates; i++) {
+            if (i > 0) {
+                buf.append(", ");
+            }
+
+            final double[] vals = rates[i];
+            buf.append(String.format("%s: [r %.0f/s %.0f B/s, w %.0f/s" +
+                                     " %.0f B/s, queue %.2f, await %.2f ms," +
+                                     " util %.1f%%]", rateNames[i],
+                                     vals[RATE_READS], vals[RATE_READ_BYTES],
+                                     vals[RATE_WRITES],
+                                     vals[RATE_WRITE_BYTES],
+                                     vals[RATE_QUEUE_DEPTH], vals[RATE_AWAIT],
+                                     vals[RATE_UTILIZATION]));
+        }
+
+        return buf.append("}").toString();
+    }
+}
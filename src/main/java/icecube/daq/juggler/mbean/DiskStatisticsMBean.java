@@ -0,0 +1,18 @@
+package icecube.daq.juggler.mbean;
+
+import java.util.HashMap;
+
+/**
+ * Disk I/O statistics monitor.
+ */
+public interface DiskStatisticsMBean
+{
+    HashMap<String, Double> getAwaitMillis();
+    HashMap<String, Long> getIOsInProgress();
+    HashMap<String, Double> getQueueDepth();
+    HashMap<String, Double> getReadBytesPerSecond();
+    HashMap<String, Double> getReadsPerSecond();
+    HashMap<String, Double> getUtilization();
+    HashMap<String, Double> getWriteBytesPerSecond();
+    HashMap<String, Double> getWritesPerSecond();
+}
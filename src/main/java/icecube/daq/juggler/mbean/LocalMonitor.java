@@ -1,5 +1,7 @@
 package icecube.daq.juggler.mbean;
 
+import icecube.daq.juggler.WorkerThreads;
+
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
@@ -167,9 +169,8 @@ public class LocalMonitor
 
     public void startMonitoring()
     {
-        Thread thread = new Thread(this);
-        thread.setName(compName + "#" + compNum + "-Monitoring");
-        thread.start();
+        WorkerThreads.start(compName + "#" + compNum + "-Monitoring", false,
+                            this);
     }
 
     public void stopMonitoring()
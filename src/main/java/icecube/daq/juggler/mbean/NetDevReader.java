@@ -0,0 +1,250 @@
+package icecube.daq.juggler.mbean;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Parse <tt>/proc/net/dev</tt> into reusable arrays of counters.
+ *
+ * The counter names are taken from the second header line, which lists
+ * the receive counters followed by the transmit counters.  Each
+ * interface's array holds the receive counters followed by the transmit
+ * counters, in the same order.  The arrays are overwritten by each call
+ * to <tt>update()</tt>, and interface names are only copied out of the
+ * buffer when an interface first appears.
+ */
+final class NetDevReader
+{
+    /** Number of header lines */
+    private static final int NUM_HEADER_LINES = 2;
+
+    /** File reader */
+    private final ProcFileReader reader;
+
+    /** Receive counter names */
+    private String[] rxNames;
+    /** Transmit counter names */
+    private String[] txNames;
+
+    /** Interface names */
+    private String[] names = new String[0];
+    /** Counters for each interface */
+    private long[][] counters = new long[0][];
+    /** Number of valid interfaces */
+    private int numInterfaces;
+
+    /**
+     * Create a reader.
+     *
+     * @param file <tt>/proc/net/dev</tt> file
+     */
+    NetDevReader(File file)
+    {
+        reader = new ProcFileReader(file);
+    }
+
+    /**
+     * Close the file.
+     */
+    void close()
+    {
+        reader.close();
+    }
+
+    /**
+     * Make sure there's room for <tt>num</tt> interfaces.
+     *
+     * @param num number of interfaces
+     */
+    private void ensureCapacity(int num)
+    {
+        if (num <= counters.length) {
+            return;
+        }
+
+        final int oldLen = counters.length;
+        names = Arrays.copyOf(names, num);
+        counters = Arrays.copyOf(counters, num);
+        for (int i = oldLen; i < num; i++) {
+            counters[i] = new long[rxNames.length + txNames.length];
+        }
+    }
+
+    /**
+     * Get the counters for an interface.  The array is reused by the next
+     * <tt>update()</tt>.
+     *
+     * @param idx interface index
+     *
+     * @return receive counters followed by transmit counters
+     */
+    long[] getCounters(int idx)
+    {
+        return counters[idx];
+    }
+
+    /**
+     * Get the name of an interface.
+     *
+     * @param idx interface index
+     *
+     * @return interface name
+     */
+    String getName(int idx)
+    {
+        return names[idx];
+    }
+
+    /**
+     * Get the number of interfaces read by the last <tt>update()</tt>.
+     *
+     * @return number of interfaces
+     */
+    int getNumInterfaces()
+    {
+        return numInterfaces;
+    }
+
+    /**
+     * Get the receive counter names.
+     *
+     * @return counter names (<tt>null</tt> before the first
+     *         <tt>update()</tt>)
+     */
+    String[] getReceiveNames()
+    {
+        return rxNames;
+    }
+
+    /**
+     * Get the transmit counter names.
+     *
+     * @return counter names (<tt>null</tt> before the first
+     *         <tt>update()</tt>)
+     */
+    String[] getTransmitNames()
+    {
+        return txNames;
+    }
+
+    /**
+     * Parse the counter names from the second header line, which looks
+     * like "<tt> face |bytes packets ...|bytes packets ...</tt>".
+     *
+     * @return <tt>false</tt> if the line is malformed
+     */
+    private boolean parseHeader()
+    {
+        ArrayList<String> rxList = new ArrayList<String>();
+        ArrayList<String> txList = new ArrayList<String>();
+
+        // skip the "face" column and the bar which follows it
+        reader.skipBlanks();
+        reader.skipToken('|');
+        reader.skipBlanks();
+        if (reader.matches(reader.getPosition(), 1, "|")) {
+            reader.skipToken('|');
+        }
+
+        ArrayList<String> list = rxList;
+        while (!reader.atLineEnd()) {
+            final int start = reader.getPosition();
+            if (reader.matches(start, 1, "|")) {
+                if (list == txList) {
+                    return false;
+                }
+
+                list = txList;
+                reader.skipToken('|');
+                continue;
+            }
+
+            final int len = reader.skipToken('|');
+            list.add(reader.getString(start, len));
+
+            // a bar right after a name separates receive from transmit
+            if (reader.getPosition() > start + len) {
+                list = txList;
+            }
+        }
+
+        if (rxList.size() == 0 || txList.size() == 0) {
+            return false;
+        }
+
+        rxNames = rxList.toArray(new String[rxList.size()]);
+        txNames = txList.toArray(new String[txList.size()]);
+        return true;
+    }
+
+    /**
+     * Re-read the file.
+     *
+     * @return <tt>false</tt> if the file is malformed
+     *
+     * @throws IOException if the file cannot be read
+     */
+    boolean update()
+        throws IOException
+    {
+        reader.read();
+
+        // the header only needs to be parsed once
+        reader.skipLine();
+        if (rxNames == null && !parseHeader()) {
+            numInterfaces = 0;
+            return false;
+        }
+        if (!reader.skipLine()) {
+            // no interfaces
+            numInterfaces = 0;
+            return true;
+        }
+
+        final int numCounters = rxNames.length + txNames.length;
+
+        int num = 0;
+        do {
+            if (reader.atLineEnd()) {
+                continue;
+            }
+
+            ensureCapacity(num + 1);
+
+            final int start = reader.getPosition();
+            final int len = reader.skipToken(':');
+            if (!reader.matches(start, len, names[num])) {
+                names[num] = reader.getString(start, len);
+            }
+
+            final long[] vals = counters[num];
+            for (int i = 0; i < numCounters; i++) {
+                final long val = reader.nextLong();
+                if (val == ProcFileReader.NO_VALUE) {
+                    numInterfaces = num;
+                    return false;
+                }
+
+                vals[i] = val;
+            }
+
+            num++;
+        } while (reader.skipLine());
+
+        numInterfaces = num;
+        return true;
+    }
+
+    /**
+     * Return the file name.
+     *
+     * @return file name
+     */
+    @Override
+    public String toString()
+    {
+        return "NetDevReader[" + reader + "]";
+    }
+}
@@ -0,0 +1,153 @@
+package icecube.daq.juggler.mbean;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Parse one section of <tt>/proc/net/snmp</tt> or <tt>/proc/net/netstat</tt>
+ * into a reusable array of counters.
+ *
+ * Each section is a pair of lines starting with the same prefix
+ * (e.g. "<tt>Tcp:</tt>" or "<tt>TcpExt:</tt>"), the first holding the
+ * counter names and the second holding the values.  The names are parsed
+ * by the first <tt>update()</tt> and the values are overwritten by each
+ * call after that.  Counters which may be negative (like <tt>MaxConn</tt>)
+ * are reported as <tt>ProcFileReader.NO_VALUE</tt>.
+ */
+final class NetStatReader
+{
+    /** File reader */
+    private final ProcFileReader reader;
+    /** Section prefix, including the trailing colon */
+    private final String prefix;
+
+    /** Counter names */
+    private String[] names;
+    /** Counter values */
+    private long[] values;
+
+    /**
+     * Create a reader.
+     *
+     * @param file <tt>/proc/net/snmp</tt> or <tt>/proc/net/netstat</tt>
+     * @param section section name (e.g. "<tt>Tcp</tt>")
+     */
+    NetStatReader(File file, String section)
+    {
+        reader = new ProcFileReader(file);
+        prefix = section + ":";
+    }
+
+    /**
+     * Close the file.
+     */
+    void close()
+    {
+        reader.close();
+    }
+
+    /**
+     * Find a counter.
+     *
+     * @param name counter name
+     *
+     * @return counter index (<tt>-1</tt> if the kernel doesn't report it
+     *         or the names haven't been read)
+     */
+    int indexOf(String name)
+    {
+        if (names != null) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Get the counter values.  The array is reused by the next
+     * <tt>update()</tt>.
+     *
+     * @return counter values (<tt>null</tt> before the first
+     *         <tt>update()</tt>)
+     */
+    long[] getValues()
+    {
+        return values;
+    }
+
+    /**
+     * Parse the counter names from the section's first line.
+     */
+    private void parseNames()
+    {
+        ArrayList<String> list = new ArrayList<String>();
+        while (!reader.atLineEnd()) {
+            final int start = reader.getPosition();
+            final int len = reader.skipToken(' ');
+            list.add(reader.getString(start, len));
+        }
+
+        names = list.toArray(new String[list.size()]);
+        values = new long[names.length];
+    }
+
+    /**
+     * Re-read the file.
+     *
+     * @return <tt>false</tt> if the section is missing or malformed
+     *
+     * @throws IOException if the file cannot be read
+     */
+    boolean update()
+        throws IOException
+    {
+        reader.read();
+
+        while (!reader.startsWith(prefix)) {
+            if (!reader.skipLine()) {
+                return false;
+            }
+        }
+
+        // the names only need to be parsed once
+        reader.skipToken(' ');
+        if (names == null) {
+            parseNames();
+        }
+
+        if (!reader.skipLine() || !reader.startsWith(prefix)) {
+            return false;
+        }
+
+        reader.skipToken(' ');
+        for (int i = 0; i < values.length; i++) {
+            values[i] = reader.nextLong();
+            if (values[i] == ProcFileReader.NO_VALUE) {
+                if (reader.atLineEnd()) {
+                    return false;
+                }
+
+                // skip negative values
+                reader.skipToken(' ');
+            }
+        }
+
+        return reader.atLineEnd();
+    }
+
+    /**
+     * Return the file name and section.
+     *
+     * @return description
+     */
+    @Override
+    public String toString()
+    {
+        return "NetStatReader[" + reader + " " + prefix + "]";
+    }
+}
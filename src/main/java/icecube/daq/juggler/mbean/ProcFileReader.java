@@ -0,0 +1,377 @@
+package icecube.daq.juggler.mbean;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read a <tt>/proc</tt> file into a reusable buffer and parse it in place.
+ *
+ * The file is opened once and re-read from the start on each call to
+ * <tt>read()</tt> (the kernel regenerates the contents for each read), so
+ * polling doesn't create any objects unless the file outgrows the buffer.
+ * A cursor walks through the buffer a line and a field at a time.
+ */
+final class ProcFileReader
+{
+    /** Initial buffer size */
+    private static final int INITIAL_SIZE = 8192;
+
+    /** Value returned by <tt>nextLong()</tt> if there's no number */
+    static final long NO_VALUE = -1L;
+
+    /** File being read */
+    private final File file;
+
+    /** Open file (<tt>null</tt> until the first read) */
+    private RandomAccessFile raf;
+    /** Channel used to read the file */
+    private FileChannel chan;
+
+    /** File contents */
+    private ByteBuffer buf;
+    /** Number of valid bytes in the buffer */
+    private int limit;
+    /** Cursor position */
+    private int pos;
+
+    /**
+     * Create a reader.
+     *
+     * @param file <tt>/proc</tt> file
+     */
+    ProcFileReader(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Is the cursor at the end of the current line (ignoring trailing
+     * blanks)?
+     *
+     * @return <tt>true</tt> if there are no more fields on this line
+     */
+    boolean atLineEnd()
+    {
+        skipBlanks();
+        return pos >= limit || buf.get(pos) == '\n';
+    }
+
+    /**
+     * Close the file.
+     */
+    void close()
+    {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ioe) {
+                // ignore errors on close
+            }
+
+            raf = null;
+            chan = null;
+        }
+    }
+
+    /**
+     * Get the file being read.
+     *
+     * @return file
+     */
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Get the cursor position.
+     *
+     * @return index into the buffer
+     */
+    int getPosition()
+    {
+        return pos;
+    }
+
+    /**
+     * Copy part of the buffer into a string.  This allocates, so it should
+     * only be used for values which are saved, like new interface names.
+     *
+     * @param start index of the first byte
+     * @param len number of bytes
+     *
+     * @return new string
+     */
+    String getString(int start, int len)
+    {
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char) (buf.get(start + i) & 0xff);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Double the size of the buffer, keeping its contents.
+     */
+    private void grow()
+    {
+        ByteBuffer newBuf = ByteBuffer.allocateDirect(buf.capacity() * 2);
+        buf.flip();
+        newBuf.put(buf);
+        buf = newBuf;
+    }
+
+    /**
+     * Parse hexadecimal digits in the buffer.
+     *
+     * @param start index of the first digit
+     * @param len number of digits (no more than 16)
+     *
+     * @return parsed value (<tt>NO_VALUE</tt> if there is a non-hex digit)
+     */
+    long hexValue(int start, int len)
+    {
+        if (start + len > limit) {
+            return NO_VALUE;
+        }
+
+        long val = 0L;
+        for (int i = 0; i < len; i++) {
+            final int digit = hexDigit(buf.get(start + i));
+            if (digit < 0) {
+                return NO_VALUE;
+            }
+
+            val = (val << 4) | digit;
+        }
+
+        return val;
+    }
+
+    /**
+     * Convert a hexadecimal digit.
+     *
+     * @param ch character
+     *
+     * @return digit value (<tt>-1</tt> if it is not a hex digit)
+     */
+    private static int hexDigit(int ch)
+    {
+        if (ch >= '0' && ch <= '9') {
+            return ch - '0';
+        } else if (ch >= 'A' && ch <= 'F') {
+            return ch - 'A' + 10;
+        } else if (ch >= 'a' && ch <= 'f') {
+            return ch - 'a' + 10;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Does the buffer hold <tt>str</tt> at this position?
+     *
+     * @param start index of the first byte
+     * @param len number of bytes
+     * @param str string to compare (<tt>null</tt> never matches)
+     *
+     * @return <tt>true</tt> if the bytes match the string
+     */
+    boolean matches(int start, int len, String str)
+    {
+        if (str == null || str.length() != len || start + len > limit) {
+            return false;
+        }
+
+        for (int i = 0; i < len; i++) {
+            if ((buf.get(start + i) & 0xff) != str.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Parse the next unsigned hexadecimal number on this line.
+     *
+     * @return parsed value (<tt>NO_VALUE</tt> if the next field is not a
+     *         number, in which case the cursor is not moved past it)
+     */
+    long nextHex()
+    {
+        skipBlanks();
+
+        final int start = pos;
+        while (pos < limit && hexDigit(buf.get(pos)) >= 0) {
+            pos++;
+        }
+
+        if (pos == start || pos - start > 16) {
+            pos = start;
+            return NO_VALUE;
+        }
+
+        return hexValue(start, pos - start);
+    }
+
+    /**
+     * Parse the next unsigned decimal number on this line.
+     *
+     * @return parsed value (<tt>NO_VALUE</tt> if the next field is not a
+     *         number, in which case the cursor is not moved past it)
+     */
+    long nextLong()
+    {
+        skipBlanks();
+
+        long val = 0L;
+        final int start = pos;
+        while (pos < limit) {
+            final int ch = buf.get(pos);
+            if (ch < '0' || ch > '9') {
+                break;
+            }
+
+            val = val * 10L + (ch - '0');
+            pos++;
+        }
+
+        if (pos == start) {
+            return NO_VALUE;
+        }
+
+        return val;
+    }
+
+    /**
+     * Re-read the file and move the cursor to the start.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    void read()
+        throws IOException
+    {
+        if (chan == null) {
+            raf = new RandomAccessFile(file, "r");
+            chan = raf.getChannel();
+        }
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(INITIAL_SIZE);
+        }
+
+        buf.clear();
+
+        long filePos = 0L;
+        while (true) {
+            if (!buf.hasRemaining()) {
+                grow();
+            }
+
+            final int num;
+            try {
+                num = chan.read(buf, filePos);
+            } catch (IOException ioe) {
+                // reopen the file next time
+                close();
+                throw ioe;
+            }
+
+            if (num < 0) {
+                break;
+            }
+
+            filePos += num;
+        }
+
+        limit = buf.position();
+        pos = 0;
+    }
+
+    /**
+     * Move the cursor past any spaces or tabs.
+     */
+    void skipBlanks()
+    {
+        while (pos < limit) {
+            final int ch = buf.get(pos);
+            if (ch != ' ' && ch != '\t') {
+                break;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Move the cursor to the start of the next line.
+     *
+     * @return <tt>false</tt> if there are no more lines
+     */
+    boolean skipLine()
+    {
+        while (pos < limit && buf.get(pos) != '\n') {
+            pos++;
+        }
+        if (pos < limit) {
+            pos++;
+        }
+
+        return pos < limit;
+    }
+
+    /**
+     * Move the cursor past the field which starts at the cursor.  The
+     * field ends at a blank, a newline or <tt>delim</tt>, and a trailing
+     * delimiter is also skipped.  Call <tt>skipBlanks()</tt> first if
+     * the field may be preceded by blanks.
+     *
+     * @param delim additional delimiter (use a blank if there is none)
+     *
+     * @return length of the field
+     */
+    int skipToken(char delim)
+    {
+        final int start = pos;
+        while (pos < limit) {
+            final int ch = buf.get(pos);
+            if (ch == ' ' || ch == '\t' || ch == '\n' || ch == delim) {
+                break;
+            }
+            pos++;
+        }
+
+        final int len = pos - start;
+        if (pos < limit && buf.get(pos) == delim) {
+            pos++;
+        }
+
+        return len;
+    }
+
+    /**
+     * Does the current line start with <tt>prefix</tt>?
+     *
+     * @param prefix expected prefix
+     *
+     * @return <tt>true</tt> if the bytes at the cursor match the prefix
+     */
+    boolean startsWith(String prefix)
+    {
+        return matches(pos, prefix.length(), prefix);
+    }
+
+    /**
+     * Return the file name.
+     *
+     * @return file name
+     */
+    @Override
+    public String toString()
+    {
+        return file.toString();
+    }
+}
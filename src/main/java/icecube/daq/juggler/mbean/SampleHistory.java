@@ -0,0 +1,173 @@
+package icecube.daq.juggler.mbean;
+
+import java.util.Arrays;
+
+/**
+ * Previous sample of a set of named counters, used to turn cumulative
+ * <tt>/proc</tt> counters into deltas and rates.
+ *
+ * Entries are looked up by name, since CPUs and interfaces can come and
+ * go between samples.  A new sample is saved into a second set of arrays
+ * (so entries which moved can still be found while it's being saved) and
+ * the two sets are swapped by <tt>setSample()</tt>.  The arrays are
+ * reused, so saving a sample doesn't create any objects once the history
+ * has grown to fit.
+ */
+final class SampleHistory
+{
+    /** Largest value of a 32-bit counter */
+    private static final long MAX_32BIT = 0xffffffffL;
+    /**
+     * A backward step is only a 32-bit wrap if the previous value was
+     * within this distance of the top of the range and the current value
+     * is within this distance of zero
+     */
+    private static final long WRAP_MARGIN = 1L << 30;
+
+    /** Entry names */
+    private String[] names = new String[0];
+    /** Values for each entry */
+    private long[][] values = new long[0][];
+    /** Entry names for the sample being saved */
+    private String[] nextNames = new String[0];
+    /** Values for the sample being saved */
+    private long[][] nextValues = new long[0][];
+    /** Number of saved entries */
+    private int numEntries;
+    /** <tt>System.nanoTime()</tt> when the sample was taken */
+    private long time;
+    /** Has a sample been saved? */
+    private boolean saved;
+
+    /**
+     * Get the change in a counter which only increases.
+     *
+     * If the counter went backward from near the top of the 32-bit range
+     * to near zero, it's treated as a wrapped 32-bit counter (as some
+     * drivers and 32-bit kernels report).  Any other backward step is
+     * treated as a reset (e.g. when the interface was recreated), in which
+     * case the new value is the amount counted since the reset.
+     *
+     * @param prev previous value
+     * @param cur current value
+     *
+     * @return change in the counter
+     */
+    static long counterDelta(long prev, long cur)
+    {
+        if (cur >= prev) {
+            return cur - prev;
+        }
+
+        if (prev <= MAX_32BIT && prev > MAX_32BIT - WRAP_MARGIN &&
+            cur < WRAP_MARGIN)
+        {
+            return cur + (MAX_32BIT + 1L) - prev;
+        }
+
+        return cur;
+    }
+
+    /**
+     * Find a saved entry.
+     *
+     * @param name entry name
+     * @param hint index where the entry was last time (checked first)
+     *
+     * @return entry index (<tt>-1</tt> if it's not found)
+     */
+    int find(String name, int hint)
+    {
+        if (hint >= 0 && hint < numEntries && name.equals(names[hint])) {
+            return hint;
+        }
+
+        for (int i = 0; i < numEntries; i++) {
+            if (name.equals(names[i])) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Get the values for a saved entry.
+     *
+     * @param idx entry index
+     *
+     * @return saved values
+     */
+    long[] getValues(int idx)
+    {
+        return values[idx];
+    }
+
+    /**
+     * Get the time the sample was taken.
+     *
+     * @return <tt>System.nanoTime()</tt> value
+     */
+    long getTime()
+    {
+        return time;
+    }
+
+    /**
+     * Has a sample been saved?
+     *
+     * @return <tt>true</tt> if there is a previous sample
+     */
+    boolean hasSample()
+    {
+        return saved;
+    }
+
+    /**
+     * Save one entry of a new sample.  The previous sample can still be
+     * read until <tt>setSample()</tt> is called.
+     *
+     * @param idx entry index
+     * @param name entry name
+     * @param vals values to copy
+     */
+    void save(int idx, String name, long[] vals)
+    {
+        if (idx >= nextValues.length) {
+            final int oldLen = nextValues.length;
+            nextNames = Arrays.copyOf(nextNames, idx + 1);
+            nextValues = Arrays.copyOf(nextValues, idx + 1);
+            for (int i = oldLen; i <= idx; i++) {
+                nextValues[i] = new long[vals.length];
+            }
+        }
+
+        if (nextValues[idx].length != vals.length) {
+            nextValues[idx] = new long[vals.length];
+        }
+
+        nextNames[idx] = name;
+        System.arraycopy(vals, 0, nextValues[idx], 0, vals.length);
+    }
+
+    /**
+     * Finish saving a new sample, which replaces the previous one.
+     *
+     * @param num number of entries saved
+     * @param nanos <tt>System.nanoTime()</tt> when the sample was taken
+     */
+    void setSample(int num, long nanos)
+    {
+        final String[] tmpNames = names;
+        names = nextNames;
+        nextNames = tmpNames;
+
+        final long[][] tmpValues = values;
+        values = nextValues;
+        nextValues = tmpValues;
+
+        numEntries = num;
+        time = nanos;
+        saved = true;
+    }
+}
@@ -7,6 +7,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.lang.management.ManagementFactory;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -20,6 +23,12 @@ import org.apache.log4j.Logger;
 
 /**
  * System statistics
+ *
+ * On Linux, load averages, free disk space and the process memory map are
+ * read directly from <tt>/proc</tt> (and from <tt>FileStore</tt> for the
+ * disk space) rather than by running <tt>uptime</tt>, <tt>df</tt> and
+ * <tt>pmap</tt>, since forking a large JVM can take tens of milliseconds.
+ * The commands are still used on systems without the <tt>/proc</tt> files.
  */
 public class SystemStatistics
     implements SystemStatisticsMBean
@@ -57,25 +66,284 @@ public class SystemStatistics
     /** Path to network devices */
     public static String PND_FILENAME = "/proc/net/dev";
 
-    /** Network IO reading stuff */
-    private Pattern barPattern   = Pattern.compile("\\|");
-    private Pattern dataPattern  = Pattern.compile("[:\\s]+");
+    /** Pattern used to split /proc lines */
     private Pattern spacePattern = Pattern.compile("\\s+");
 
     /** Path to CPU statistics file */
     public static File STAT_FILE = new File("/proc/stat");
 
+    /** Path to load average file */
+    public static File LOADAVG_FILE = new File("/proc/loadavg");
+    /** Path to list of mounted filesystems */
+    public static File MOUNTS_FILE = new File("/proc/self/mounts");
+    /** Path to process memory map */
+    public static File MAPS_FILE = new File("/proc/self/maps");
+    /** Path to process status */
+    public static File STATUS_FILE = new File("/proc/self/status");
+    /** Path to process memory totals (Linux 4.14 and later) */
+    public static File SMAPS_ROLLUP_FILE = new File("/proc/self/smaps_rollup");
+
+    /** Filesystem types which <tt>df -l</tt> treats as remote */
+    private static final String[] REMOTE_TYPES = {
+        "afs", "cifs", "ncpfs", "smb3", "smbfs",
+    };
+
+    /** Index of idle time in CPU statistics */
+    private static final int CPU_IDLE = 3;
+    /** Index of iowait time in CPU statistics */
+    private static final int CPU_IOWAIT = 4;
+
     /** Does this system have a /proc/stat file? */
     private boolean hasProcStat;
+    /** Was the last /proc/stat read bad? */
+    private boolean badProcStat;
+    /** /proc/stat parser (created when it's first needed) */
+    private CPUStatReader cpuReader;
+    /** /proc/net/dev parser (created when it's first needed) */
+    private NetDevReader netReader;
+
+    /**
+     * Rates are not recomputed for requests closer together than this;
+     * the previous result is returned instead
+     */
+    static final long MIN_RATE_NANOS = 100000000L;
+
+    /** Previous CPU times */
+    private SampleHistory cpuHistory = new SampleHistory();
+    /** Most recent CPU usage */
+    private HashMap<String, Double> cpuUsage;
+    /** Previous network counters */
+    private SampleHistory netHistory = new SampleHistory();
+    /** Most recent network rates */
+    private HashMap<String, Double> netRates;
+    /** Does this system have a /proc/loadavg file? */
+    private boolean hasLoadAvg;
+    /** Does this system have a /proc/self/mounts file? */
+    private boolean hasMounts;
+    /** Does this system have a /proc/self/maps file? */
+    private boolean hasMaps;
+
+    /**
+     * Cached <tt>FileStore</tt> for each mount point (looking one up
+     * reads the whole mount table, but querying it only needs a
+     * <tt>statvfs</tt>)
+     */
+    private HashMap<String, FileStore> stores =
+        new HashMap<String, FileStore>();
+
     /**
      * Simple constructor.
      */
     public SystemStatistics()
+    {
+        this(false);
+    }
+
+    /**
+     * Create a statistics object which may run the external commands
+     * even when the <tt>/proc</tt> files are available.
+     *
+     * @param runCommands if <tt>true</tt>, always run <tt>uptime</tt>,
+     *                    <tt>df</tt> and <tt>pmap</tt>
+     */
+    SystemStatistics(boolean runCommands)
     {
         hasProcStat = STAT_FILE.exists();
+        hasLoadAvg = !runCommands && LOADAVG_FILE.exists();
+        hasMounts = !runCommands && MOUNTS_FILE.exists();
+        hasMaps = !runCommands && MAPS_FILE.exists();
     }
 
+    /**
+     * Get the space available to unprivileged users on each local
+     * filesystem.
+     *
+     * @return map of mount point to available kilobytes
+     */
     public HashMap getAvailableDiskSpace()
+    {
+        if (hasMounts) {
+            return readMounts();
+        }
+
+        return runDF();
+    }
+
+    /**
+     * Get the space available on each local filesystem from
+     * <tt>/proc/self/mounts</tt> and <tt>FileStore</tt>, leaving out the
+     * same filesystems as <tt>df -P -l</tt>.
+     *
+     * @return map of mount point to available kilobytes
+     */
+    private HashMap readMounts()
+    {
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new FileReader(MOUNTS_FILE));
+        } catch (FileNotFoundException fnfe) {
+            LOG.error("Couldn't open " + MOUNTS_FILE);
+            hasMounts = false;
+            return runDF();
+        }
+
+        // devices which are mounted in several places are only listed once
+        HashMap<String, String> devMap = new HashMap<String, String>();
+        ArrayList<String> mountPts = new ArrayList<String>();
+        try {
+            while (true) {
+                String line;
+                try {
+                    line = reader.readLine();
+                } catch (IOException ioe) {
+                    LOG.error("Couldn't read " + MOUNTS_FILE, ioe);
+                    break;
+                }
+
+                if (line == null) {
+                    break;
+                }
+
+                final String[] flds = spacePattern.split(line);
+                if (flds.length < 3 || isRemote(flds[0], flds[2])) {
+                    continue;
+                }
+
+                final String mountPt = unescapeMountPoint(flds[1]);
+                if (!flds[0].startsWith("/")) {
+                    mountPts.add(mountPt);
+                    continue;
+                }
+
+                final String prev = devMap.get(flds[0]);
+                if (prev == null) {
+                    devMap.put(flds[0], mountPt);
+                    mountPts.add(mountPt);
+                } else if (mountPt.length() < prev.length()) {
+                    devMap.put(flds[0], mountPt);
+                    mountPts.set(mountPts.indexOf(prev), mountPt);
+                }
+            }
+        } finally {
+            try {
+                reader.close();
+            } catch (Throwable thr) {
+                // ignore errors on close
+            }
+        }
+
+        HashMap<String, FileStore> newStores =
+            new HashMap<String, FileStore>();
+
+        HashMap map = null;
+        for (String mountPt : mountPts) {
+            long total;
+            long avail;
+            try {
+                FileStore store = stores.get(mountPt);
+                if (store == null) {
+                    store = Files.getFileStore(Paths.get(mountPt));
+                }
+                newStores.put(mountPt, store);
+
+                total = store.getTotalSpace();
+                avail = store.getUsableSpace();
+            } catch (IOException ioe) {
+                // 'df' also skips filesystems it cannot examine
+                continue;
+            } catch (SecurityException sex) {
+                continue;
+            }
+
+            // pseudo-filesystems like /proc have no blocks
+            if (total == 0) {
+                continue;
+            }
+
+            if (map == null) {
+                map = new HashMap();
+            }
+
+            map.put(mountPt, Long.valueOf(avail / 1024L));
+        }
+
+        // forget filesystems which have been unmounted
+        stores = newStores;
+
+        if (map == null) {
+            LOG.error("No local filesystems found in " + MOUNTS_FILE);
+        }
+
+        return map;
+    }
+
+    /**
+     * Is this a network filesystem?  (This uses the same test as
+     * <tt>df</tt>.)
+     *
+     * @param device mounted device
+     * @param fsType filesystem type
+     *
+     * @return <tt>true</tt> if the filesystem is remote
+     */
+    private static boolean isRemote(String device, String fsType)
+    {
+        if (device.indexOf(':') >= 0 || device.startsWith("//")) {
+            return true;
+        }
+
+        for (int i = 0; i < REMOTE_TYPES.length; i++) {
+            if (REMOTE_TYPES[i].equals(fsType)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Decode the octal escapes (<tt>\040</tt> for a space, etc.) used
+     * for mount points in <tt>/proc/self/mounts</tt>.
+     *
+     * @param str escaped mount point
+     *
+     * @return mount point
+     */
+    private static String unescapeMountPoint(String str)
+    {
+        if (str.indexOf('\\') < 0) {
+            return str;
+        }
+
+        StringBuilder buf = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); i++) {
+            final char ch = str.charAt(i);
+            if (ch == '\\' && i + 3 < str.length() &&
+                isOctal(str.charAt(i + 1)) && isOctal(str.charAt(i + 2)) &&
+                isOctal(str.charAt(i + 3)))
+            {
+                buf.append((char) Integer.parseInt(str.substring(i + 1,
+                                                                 i + 4), 8));
+                i += 3;
+            } else {
+                buf.append(ch);
+            }
+        }
+
+        return buf.toString();
+    }
+
+    private static boolean isOctal(char ch)
+    {
+        return ch >= '0' && ch <= '7';
+    }
+
+    /**
+     * Get the space available on each local filesystem from <tt>df</tt>.
+     *
+     * @return map of mount point to available kilobytes
+     */
+    private HashMap runDF()
     {
         Process proc;
         try {
@@ -196,133 +464,170 @@ public class SystemStatistics
      * @return array of CPU times
      */
     @Override
-    public Map<String, long[]> getCPUStatistics()
+    public synchronized Map<String, long[]> getCPUStatistics()
     {
-        if (!hasProcStat) {
+        if (!updateCPUStatistics()) {
             return null;
         }
 
-        BufferedReader reader;
-        try {
-            reader = new BufferedReader(new FileReader(STAT_FILE));
-        } catch (FileNotFoundException fnfe) {
-            LOG.error("Couldn't open " + STAT_FILE + " on OS: " +
-                      System.getProperty("os.name"));
-            return null;
-        }
-
-        Pattern white = Pattern.compile("\\s+");
-
         Map<String, long[]> tmpMap = new HashMap<String, long[]>();
+        for (int i = 0; i < cpuReader.getNumEntries(); i++) {
+            tmpMap.put(cpuReader.getName(i), cpuReader.getTimes(i).clone());
+        }
 
-        boolean badLine = false;
-        while (true) {
-            String line;
-            try {
-                line = reader.readLine();
-            } catch (IOException ioe) {
-                LOG.error("Problem reading CPU stats", ioe);
-                continue;
-            }
-
-            if (line == null) {
-                break;
-            }
+        return tmpMap;
+    }
 
-            if (!line.startsWith("cpu")) {
-                continue;
-            }
+    /**
+     * Get the percentage of time each CPU was busy since the previous
+     * call.  Busy time is everything except idle and iowait time.
+     * Since this compares clock ticks rather than wall-clock time, it
+     * isn't thrown off by variations in the polling interval.
+     *
+     * @return map of <tt>cpu</tt> (all CPUs) and <tt>cpu<i>N</i></tt> to
+     *         percentages (<tt>null</tt> on the first call or if the
+     *         statistics are not available)
+     */
+    @Override
+    public HashMap<String, Double> getCPUUsage()
+    {
+        return getCPUUsage(System.nanoTime());
+    }
 
-            final int knownFields = 7;
-            final String[] fields = white.split(line);
-            if (fields.length < knownFields + 1) {
-                if (badLine) {
-                    LOG.error("Giving up on CPU statistics after line" +
-                          " \"" + line.trim() + "\"");
-                    hasProcStat = false;
-                    break;
-                }
+    /**
+     * Get the percentage of time each CPU was busy since the previous
+     * sample.
+     *
+     * @param now current <tt>System.nanoTime()</tt>
+     *
+     * @return map of CPU name to percentage
+     */
+    synchronized HashMap<String, Double> getCPUUsage(long now)
+    {
+        if (cpuHistory.hasSample() &&
+            now - cpuHistory.getTime() < MIN_RATE_NANOS)
+        {
+            return cpuUsage;
+        }
 
-                LOG.error("Expected at least " + (knownFields + 1) +
-                          " fields in CPU statistics line \"" +
-                          line.trim() + "\"");
-                badLine = true;
-                continue;
-            }
+        if (!updateCPUStatistics()) {
+            return null;
+        }
 
-            long[] values = new long[knownFields + 1];
-            for (int i = 0; i < fields.length; i++) {
-                boolean badOne = false;
-                if (i == 0) {
-                    // validate the "cpu" or "cpu##" value; first entry should
-                    //   be "cpu", followed by "cpu0", "cpu1", etc.
-                    if (fields[0].length() == 3) {
-                        // this must be the system-wide 'cpu' line
-                        if (tmpMap.size() != 0) {
-                            LOG.error("System-wide 'cpu' entry seen after" +
-                                      " other CPU entries");
-                            badOne = true;
-                        }
-                    } else {
-                        // this entry is one of the CPU cores
-                        try {
-                            final String numStr = fields[0].substring(3);
-                            final int num = Integer.parseInt(numStr);
-                            if (num + 1 != tmpMap.size()) {
-                                LOG.error("Expected \"cpu" +
-                                          (tmpMap.size() - 1) +
-                                          "\", not \"" + fields[0] +
-                                          "\" in \"" + line.trim() + "\"");
-                                badOne = true;
-                            }
-                        } catch (Throwable thr) {
-                            LOG.error("Bad CPU statistics line \"" +
-                                      line.trim() + "\"", thr);
-                            badOne = true;
-                        }
-                    }
-                } else {
-                    long value;
-                    try {
-                        value = Long.parseLong(fields[i]);
-                    } catch (NumberFormatException nfe) {
-                        LOG.error("Bad CPU statistics field #" + i + " \"" +
-                                  fields[i] + "\" in \"" + line.trim() +
-                                  "\"");
-                        value = -1;
-                        badOne = true;
-                    }
+        HashMap<String, Double> map = null;
+        if (cpuHistory.hasSample()) {
+            map = new HashMap<String, Double>();
+        }
 
-                    if (!badOne) {
-                        // unknown values get added to the final value
-                        if (i - 1 < values.length) {
-                            values[i - 1] = value;
-                        } else {
-                            values[values.length - 1] += value;
-                        }
+        final int num = cpuReader.getNumEntries();
+        for (int i = 0; i < num; i++) {
+            final String name = cpuReader.getName(i);
+            final long[] cur = cpuReader.getTimes(i);
+
+            final int prevIdx = cpuHistory.find(name, i);
+            if (map != null && prevIdx >= 0) {
+                final long[] prev = cpuHistory.getValues(prevIdx);
+
+                long total = 0;
+                long idle = 0;
+                for (int j = 0; j < cur.length; j++) {
+                    // some kernels let iowait go backward, so ignore drops
+                    final long delta = cur[j] > prev[j] ? cur[j] - prev[j] : 0;
+                    total += delta;
+                    if (j == CPU_IDLE || j == CPU_IOWAIT) {
+                        idle += delta;
                     }
                 }
 
-                if (!badOne) {
-                    // ignore single-line failues
-                    badLine = false;
-                } else if (!badLine) {
-                    // give them one chance to fail
-                    badLine = true;
+                double pct;
+                if (total == 0) {
+                    pct = 0.0;
                 } else {
-                    // two strikes and you're out!
-                    break;
+                    pct = 100.0 * (double) (total - idle) / (double) total;
                 }
+                map.put(name, pct);
             }
 
-            tmpMap.put(fields[0], values);
+            cpuHistory.save(i, name, cur);
         }
+        cpuHistory.setSample(num, now);
 
-        return tmpMap;
+        cpuUsage = map;
+        return map;
     }
 
     @Override
     public double[] getLoadAverage()
+    {
+        if (hasLoadAvg) {
+            return readLoadAverage();
+        }
+
+        return runUptime();
+    }
+
+    /**
+     * Read the 1, 5 and 15 minute load averages from
+     * <tt>/proc/loadavg</tt>.
+     *
+     * @return array of load averages
+     */
+    private double[] readLoadAverage()
+    {
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new FileReader(LOADAVG_FILE));
+        } catch (FileNotFoundException fnfe) {
+            LOG.error("Couldn't open " + LOADAVG_FILE);
+            hasLoadAvg = false;
+            return runUptime();
+        }
+
+        String line;
+        try {
+            line = reader.readLine();
+        } catch (IOException ioe) {
+            LOG.error("Couldn't read " + LOADAVG_FILE, ioe);
+            return null;
+        } finally {
+            try {
+                reader.close();
+            } catch (Throwable thr) {
+                // ignore errors on close
+            }
+        }
+
+        if (line == null) {
+            LOG.error("No load average found in " + LOADAVG_FILE);
+            return null;
+        }
+
+        final String[] flds = spacePattern.split(line.trim());
+        if (flds.length < 3) {
+            LOG.error("Bogus " + LOADAVG_FILE + " line \"" + line + "\"");
+            return null;
+        }
+
+        double[] array = new double[3];
+        for (int i = 0; i < array.length; i++) {
+            try {
+                array[i] = Double.parseDouble(flds[i]);
+            } catch (NumberFormatException nfe) {
+                LOG.error("Couldn't parse load average #" + i + " \"" +
+                          flds[i] + "\" from \"" + line + "\"", nfe);
+                array[i] = 0.0;
+            }
+        }
+
+        return array;
+    }
+
+    /**
+     * Get the load averages from <tt>uptime</tt>.
+     *
+     * @return array of load averages
+     */
+    private double[] runUptime()
     {
         Process proc;
         try {
@@ -402,80 +707,154 @@ public class SystemStatistics
      *
      * @return TreeMap of network IO name/value stats
      */
-    public TreeMap<String, String> getNetworkIO()
+    public synchronized TreeMap<String, String> getNetworkIO()
     {
-        TreeMap<String, String> map = null;
-        boolean past_header = false;
-        String line = null;
-        String[] header;
-        String[] rx_headers = null;
-        String[] tx_headers = null;
-        String[] data;
-
-        // Network IO reading set-up
-        BufferedReader PNDreader;
-        try {
-            PNDreader = new BufferedReader(new FileReader(PND_FILENAME));
-        } catch (FileNotFoundException fnfe) {
-            LOG.error("Couldn't open " + PND_FILENAME + " on OS: " +
-                      System.getProperty("os.name"));
+        if (!updateNetworkIO()) {
             return null;
         }
 
-        while (true) {
-            try {
-                line = PNDreader.readLine();
-            } catch (IOException ioe) {
-                LOG.error("Problem reading io stats", ioe);
-            }
-
-            if (line == null) {
-                break;
-            }
-
-            // Parse header looking for RX and TX headers
-            if (!past_header) {
-                if (line.startsWith("Inter-|")) {
-                    continue;
-                } else if (line.startsWith(" face |")) {
-                    header = barPattern.split(line);
-                    rx_headers = spacePattern.split(header[1]);
-                    tx_headers = spacePattern.split(header[2]);
-                } else {
-                    LOG.error("Bogus " + PND_FILENAME +
-                              "  line: \"" + line + "\"");
-                }
-                past_header = true;
-                continue;
-            }
+        final String[] rxNames = netReader.getReceiveNames();
+        final String[] txNames = netReader.getTransmitNames();
 
+        TreeMap<String, String> map = null;
+        for (int i = 0; i < netReader.getNumInterfaces(); i++) {
             if (map == null) {
                 map = new TreeMap<String, String>();
             }
-            data = dataPattern.split(line.trim());
-            String iface = data[0];
-            int rx_i;
-            int tx_i;
-            // The recieve data for this interface
-            for (rx_i = 0; rx_i < rx_headers.length; rx_i++) {
-                map.put(iface + "_rx_" + rx_headers[rx_i], data[rx_i + 1]);
+
+            final String iface = netReader.getName(i);
+            final long[] vals = netReader.getCounters(i);
+            for (int j = 0; j < rxNames.length; j++) {
+                map.put(iface + "_rx_" + rxNames[j], Long.toString(vals[j]));
             }
-            // The transmit data for this interface
-            for (tx_i = 0; tx_i < tx_headers.length; tx_i++) {
-                map.put(iface + "_tx_" + tx_headers[tx_i],
-                        data[rx_i + tx_i + 1]);
+            for (int j = 0; j < txNames.length; j++) {
+                map.put(iface + "_tx_" + txNames[j],
+                        Long.toString(vals[rxNames.length + j]));
             }
         }
 
-        try {
-            PNDreader.close();
-        } catch (Throwable thr) {
-            // ignore errors on close
+        return map;
+    }
+
+    /**
+     * Get the bytes and packets per second received and sent by each
+     * network interface since the previous call.  Rates are computed from
+     * the measured time between samples, and counters which wrapped or
+     * were reset are handled.
+     *
+     * @return map of <tt><i>iface</i>_rx_bytes</tt>,
+     *         <tt><i>iface</i>_rx_packets</tt>,
+     *         <tt><i>iface</i>_tx_bytes</tt> and
+     *         <tt><i>iface</i>_tx_packets</tt> to rates (<tt>null</tt> on
+     *         the first call or if the counters are not available)
+     */
+    @Override
+    public HashMap<String, Double> getNetworkRates()
+    {
+        return getNetworkRates(System.nanoTime());
+    }
+
+    /**
+     * Get the network rates since the previous sample.
+     *
+     * @param now current <tt>System.nanoTime()</tt>
+     *
+     * @return map of counter name to rate
+     */
+    synchronized HashMap<String, Double> getNetworkRates(long now)
+    {
+        if (netHistory.hasSample() &&
+            now - netHistory.getTime() < MIN_RATE_NANOS)
+        {
+            return netRates;
         }
 
+        if (!updateNetworkIO()) {
+            return null;
+        }
+
+        final String[] rxNames = netReader.getReceiveNames();
+        final String[] txNames = netReader.getTransmitNames();
+        final int rxBytes = indexOf(rxNames, "bytes");
+        final int rxPackets = indexOf(rxNames, "packets");
+        final int txBytes = indexOf(txNames, "bytes");
+        final int txPackets = indexOf(txNames, "packets");
+        if (rxBytes < 0 || rxPackets < 0 || txBytes < 0 || txPackets < 0) {
+            LOG.error("Cannot find byte and packet counters in " +
+                      PND_FILENAME);
+            return null;
+        }
+
+        HashMap<String, Double> map = null;
+        double secs = 0.0;
+        if (netHistory.hasSample()) {
+            map = new HashMap<String, Double>();
+            secs = (double) (now - netHistory.getTime()) / 1000000000.0;
+        }
+
+        final int num = netReader.getNumInterfaces();
+        for (int i = 0; i < num; i++) {
+            final String iface = netReader.getName(i);
+            final long[] cur = netReader.getCounters(i);
+
+            final int prevIdx = netHistory.find(iface, i);
+            if (map != null && prevIdx >= 0) {
+                final long[] prev = netHistory.getValues(prevIdx);
+                final int txOff = rxNames.length;
+
+                map.put(iface + "_rx_bytes",
+                        rate(prev[rxBytes], cur[rxBytes], secs));
+                map.put(iface + "_rx_packets",
+                        rate(prev[rxPackets], cur[rxPackets], secs));
+                map.put(iface + "_tx_bytes",
+                        rate(prev[txOff + txBytes], cur[txOff + txBytes],
+                             secs));
+                map.put(iface + "_tx_packets",
+                        rate(prev[txOff + txPackets],
+                             cur[txOff + txPackets], secs));
+            }
+
+            netHistory.save(i, iface, cur);
+        }
+        netHistory.setSample(num, now);
+
+        netRates = map;
         return map;
     }
 
+    /**
+     * Find a string in an array.
+     *
+     * @param array array to search
+     * @param str string to find
+     *
+     * @return index (<tt>-1</tt> if not found)
+     */
+    private static int indexOf(String[] array, String str)
+    {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].equals(str)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Compute the rate for a cumulative counter.
+     *
+     * @param prev previous value
+     * @param cur current value
+     * @param secs seconds between the values
+     *
+     * @return change per second
+     */
+    private static double rate(long prev, long cur, double secs)
+    {
+        return (double) SampleHistory.counterDelta(prev, cur) / secs;
+    }
+
     /**
      * Get current process ID (warning, this is UGLY).
      *
@@ -501,6 +880,253 @@ public class SystemStatistics
      * @return map of memory segments
      */
     public HashMap<String, Integer> getProcessMemory()
+    {
+        if (hasMaps) {
+            return readMaps();
+        }
+
+        return runPmap();
+    }
+
+    /**
+     * Build the process memory map from <tt>/proc/self/maps</tt>, naming
+     * and combining segments the same way as <tt>pmap -q</tt>.
+     *
+     * @return map of memory segments
+     */
+    private HashMap<String, Integer> readMaps()
+    {
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new FileReader(MAPS_FILE));
+        } catch (FileNotFoundException fnfe) {
+            LOG.error("Couldn't open " + MAPS_FILE);
+            hasMaps = false;
+            return runPmap();
+        }
+
+        HashMap<String, KBytes> allocMap = new HashMap<String, KBytes>();
+        try {
+            while (true) {
+                String line;
+                try {
+                    line = reader.readLine();
+                } catch (IOException ioe) {
+                    LOG.error("Cannot read " + MAPS_FILE, ioe);
+                    break;
+                }
+
+                if (line == null) {
+                    break;
+                }
+
+                // start-end perms offset dev inode [path]
+                final int dash = line.indexOf('-');
+                final int space = line.indexOf(' ');
+                if (dash <= 0 || space <= dash) {
+                    LOG.error("Bogus " + MAPS_FILE + " line \"" + line +
+                              "\"");
+                    continue;
+                }
+
+                final long start = parseAddress(line, 0, dash);
+                final long end = parseAddress(line, dash + 1, space);
+                if (start == -1L || end == -1L) {
+                    LOG.error("Bad address range in \"" + line + "\"");
+                    continue;
+                }
+
+                final int kbytes = (int) ((end - start) / 1024L);
+
+                final String key = getSegmentName(line);
+                if (!allocMap.containsKey(key)) {
+                    allocMap.put(key, new KBytes(kbytes));
+                } else {
+                    allocMap.get(key).add(kbytes);
+                }
+            }
+        } finally {
+            try {
+                reader.close();
+            } catch (Throwable thr) {
+                // ignore errors on close
+            }
+        }
+
+        HashMap<String, Integer> finalMap = new HashMap<String, Integer>();
+        for (Map.Entry<String, KBytes> entry : allocMap.entrySet()) {
+            finalMap.put(entry.getKey(), entry.getValue().value());
+        }
+
+        return finalMap;
+    }
+
+    /**
+     * Parse a hexadecimal address.  Addresses in the top half of the
+     * address space (like <tt>[vsyscall]</tt>) come back negative, which
+     * still gives the right size when subtracted.
+     *
+     * @param str string containing the address
+     * @param from index of the first digit
+     * @param to index after the last digit
+     *
+     * @return address (<tt>-1</tt> if it's not a valid address)
+     */
+    private static long parseAddress(String str, int from, int to)
+    {
+        if (to - from > 16) {
+            return -1L;
+        }
+
+        long val = 0L;
+        for (int i = from; i < to; i++) {
+            final int digit = Character.digit(str.charAt(i), 16);
+            if (digit < 0) {
+                return -1L;
+            }
+
+            val = (val << 4) | digit;
+        }
+
+        return val;
+    }
+
+    /**
+     * Get the name <tt>pmap -q</tt> would use for a
+     * <tt>/proc/self/maps</tt> segment.
+     *
+     * @param line <tt>/proc/self/maps</tt> line
+     *
+     * @return file name, <tt>stack</tt> or <tt>anon</tt>
+     */
+    private static String getSegmentName(String line)
+    {
+        // skip the five fixed fields to find the path
+        int idx = 0;
+        for (int fld = 0; fld < 5 && idx >= 0; fld++) {
+            idx = line.indexOf(' ', idx);
+            if (idx >= 0) {
+                while (idx < line.length() && line.charAt(idx) == ' ') {
+                    idx++;
+                }
+            }
+        }
+
+        if (idx < 0 || idx >= line.length()) {
+            return "anon";
+        }
+
+        String path = line.substring(idx);
+        if (path.startsWith("[")) {
+            return path.equals("[stack]") ? "stack" : "anon";
+        }
+
+        if (path.endsWith(" (deleted)")) {
+            path = path.substring(0, path.length() - 10);
+        }
+
+        final int slash = path.lastIndexOf('/');
+        if (slash >= 0) {
+            path = path.substring(slash + 1);
+        }
+
+        return path;
+    }
+
+    /**
+     * Get the process's memory usage from <tt>/proc/self/status</tt>
+     * and, if available, <tt>/proc/self/smaps_rollup</tt>.  This is much
+     * cheaper than the full memory map.
+     *
+     * @return map of field name (<tt>VmRSS</tt>, <tt>RssAnon</tt>,
+     *         <tt>Pss</tt>, etc.) to kilobytes (<tt>null</tt> if the
+     *         files are not available)
+     */
+    @Override
+    public HashMap<String, Long> getProcessMemoryUsage()
+    {
+        if (!STATUS_FILE.exists()) {
+            return null;
+        }
+
+        HashMap<String, Long> map = new HashMap<String, Long>();
+        readKilobyteFields(STATUS_FILE, map);
+        if (SMAPS_ROLLUP_FILE.exists()) {
+            readKilobyteFields(SMAPS_ROLLUP_FILE, map);
+        }
+
+        return map;
+    }
+
+    /**
+     * Add all the "<tt>Name:   1234 kB</tt>" fields from a file to a map.
+     * Fields which are already in the map are not replaced.
+     *
+     * @param file file to read
+     * @param map map of field name to kilobytes
+     */
+    private void readKilobyteFields(File file, HashMap<String, Long> map)
+    {
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+        } catch (FileNotFoundException fnfe) {
+            LOG.error("Couldn't open " + file);
+            return;
+        }
+
+        try {
+            while (true) {
+                String line;
+                try {
+                    line = reader.readLine();
+                } catch (IOException ioe) {
+                    LOG.error("Cannot read " + file, ioe);
+                    break;
+                }
+
+                if (line == null) {
+                    break;
+                }
+
+                if (!line.endsWith(" kB")) {
+                    continue;
+                }
+
+                final int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+
+                final String name = line.substring(0, colon);
+                if (map.containsKey(name)) {
+                    continue;
+                }
+
+                final String valStr =
+                    line.substring(colon + 1, line.length() - 3).trim();
+                try {
+                    map.put(name, Long.valueOf(valStr));
+                } catch (NumberFormatException nfe) {
+                    LOG.error("Bad " + name + " value \"" + valStr +
+                              "\" in " + file);
+                }
+            }
+        } finally {
+            try {
+                reader.close();
+            } catch (Throwable thr) {
+                // ignore errors on close
+            }
+        }
+    }
+
+    /**
+     * Get the process memory map from <tt>pmap</tt>.
+     *
+     * @return map of memory segments
+     */
+    private HashMap<String, Integer> runPmap()
     {
         if (pmap == null) {
             if (warnedPID) {
@@ -605,6 +1231,79 @@ public class SystemStatistics
         return finalMap;
     }
 
+    /**
+     * Re-read <tt>/proc/stat</tt> into the CPU statistics snapshot.
+     * This doesn't allocate anything once the reader has been created.
+     *
+     * @return <tt>false</tt> if the statistics are not available
+     */
+    synchronized boolean updateCPUStatistics()
+    {
+        if (!hasProcStat) {
+            return false;
+        }
+
+        if (cpuReader == null) {
+            cpuReader = new CPUStatReader(STAT_FILE);
+        }
+
+        boolean valid;
+        try {
+            valid = cpuReader.update();
+        } catch (IOException ioe) {
+            LOG.error("Problem reading CPU stats from " + STAT_FILE, ioe);
+            valid = false;
+        }
+
+        if (valid) {
+            badProcStat = false;
+        } else if (!badProcStat) {
+            // give them one chance to fail
+            LOG.error("Bad CPU statistics in " + STAT_FILE);
+            badProcStat = true;
+        } else {
+            // two strikes and you're out!
+            LOG.error("Giving up on CPU statistics from " + STAT_FILE);
+            cpuReader.close();
+            hasProcStat = false;
+        }
+
+        return valid;
+    }
+
+    /**
+     * Re-read <tt>/proc/net/dev</tt> into the network counter snapshot.
+     * This doesn't allocate anything once the reader has been created
+     * (unless interfaces are added).
+     *
+     * @return <tt>false</tt> if the counters are not available
+     */
+    synchronized boolean updateNetworkIO()
+    {
+        if (netReader == null) {
+            final File pndFile = new File(PND_FILENAME);
+            if (!pndFile.exists()) {
+                LOG.error("Couldn't open " + PND_FILENAME + " on OS: " +
+                          System.getProperty("os.name"));
+                return false;
+            }
+
+            netReader = new NetDevReader(pndFile);
+        }
+
+        try {
+            if (!netReader.update()) {
+                LOG.error("Bogus " + PND_FILENAME + " contents");
+                return false;
+            }
+        } catch (IOException ioe) {
+            LOG.error("Problem reading io stats", ioe);
+            return false;
+        }
+
+        return true;
+    }
+
     /**
      * Return description of current statistics.
      *
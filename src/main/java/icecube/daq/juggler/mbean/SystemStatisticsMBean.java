@@ -1,5 +1,6 @@
 package icecube.daq.juggler.mbean;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -10,7 +11,10 @@ public interface SystemStatisticsMBean
 {
     Map getAvailableDiskSpace();
     Map<String, long[]> getCPUStatistics();
+    HashMap<String, Double> getCPUUsage();
     double[] getLoadAverage();
     //TreeMap<String, String> getNetworkIO();
+    HashMap<String, Double> getNetworkRates();
     //HashMap getProcessMemory();
+    HashMap<String, Long> getProcessMemoryUsage();
 }
@@ -0,0 +1,693 @@
+package icecube.daq.juggler.mbean;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Kernel TCP statistics, from <tt>/proc/net/snmp</tt>,
+ * <tt>/proc/net/netstat</tt> and <tt>/proc/net/tcp</tt>.
+ *
+ * The host-wide counters show retransmits, listen queue overflows and
+ * packets dropped because a socket's receive queue was full.  The
+ * per-socket queue sizes only include sockets whose local port is one of
+ * the component's input ports (see <tt>setInputPorts()</tt>): a
+ * listening socket reports the number of connections waiting to be
+ * accepted, and a connected socket reports the bytes waiting to be read
+ * by the component and the bytes sent but not yet acknowledged by the
+ * other end.  Keys for connected sockets look like
+ * "<tt>localPort/remoteHost:remotePort</tt>".
+ *
+ * As with <tt>DiskStatistics</tt>, all attributes come from a single
+ * sample, which is taken when an attribute is requested at least 100 ms
+ * after the previous sample.  Rates are <tt>null</tt> until there are two
+ * samples.
+ */
+public class TCPStatistics
+    implements TCPStatisticsMBean
+{
+    private static final Logger LOG = Logger.getLogger(TCPStatistics.class);
+
+    /** Path to SNMP counters */
+    public static File SNMP_FILE = new File("/proc/net/snmp");
+    /** Path to extended counters */
+    public static File NETSTAT_FILE = new File("/proc/net/netstat");
+    /** Path to IPv4 socket table */
+    public static File TCP_FILE = new File("/proc/net/tcp");
+    /** Path to IPv6 socket table (which also holds IPv4-mapped sockets) */
+    public static File TCP6_FILE = new File("/proc/net/tcp6");
+
+    /** Counters reported from the "Tcp" section of /proc/net/snmp */
+    private static final String[] SNMP_COUNTERS = {
+        "InSegs", "OutSegs", "RetransSegs", "InErrs", "OutRsts",
+        "EstabResets",
+    };
+    /** Counters reported from the "TcpExt" section of /proc/net/netstat */
+    private static final String[] EXT_COUNTERS = {
+        "ListenOverflows", "ListenDrops", "TCPBacklogDrop", "TCPRcvQDrop",
+        "TCPZeroWindowDrop", "PruneCalled", "RcvPruned", "TCPTimeouts",
+        "TCPLostRetransmit",
+    };
+    /** Total number of counters */
+    private static final int NUM_COUNTERS =
+        SNMP_COUNTERS.length + EXT_COUNTERS.length;
+
+    /** Index of the segments sent counter */
+    private static final int OUT_SEGS = 1;
+    /** Index of the segments retransmitted counter */
+    private static final int RETRANS_SEGS = 2;
+
+    /** Connected socket state in /proc/net/tcp */
+    private static final long STATE_ESTABLISHED = 0x01L;
+    /** Listening socket state in /proc/net/tcp */
+    private static final long STATE_LISTEN = 0x0aL;
+
+    /** Socket identifier fields */
+    private static final int ID_LISTEN = 0;
+    private static final int ID_LOCAL_PORT = 1;
+    private static final int ID_REMOTE_PORT = 2;
+    private static final int ID_REMOTE_ADDR = 3;
+    /** Number of socket identifier fields (address takes four words) */
+    private static final int ID_LEN = ID_REMOTE_ADDR + 4;
+
+    /** Are the kernel's address words little-endian? */
+    private static final boolean LITTLE_ENDIAN =
+        ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    /** "Tcp" section reader (<tt>null</tt> until the first sample) */
+    private NetStatReader snmpReader;
+    /** "TcpExt" section reader (<tt>null</tt> until the first sample) */
+    private NetStatReader extReader;
+    /** IPv4 socket table reader */
+    private ProcFileReader tcpReader;
+    /** IPv6 socket table reader (<tt>null</tt> if IPv6 is disabled) */
+    private ProcFileReader tcp6Reader;
+    /** Set to <tt>true</tt> after reporting missing files */
+    private boolean warnedMissing;
+
+    /** Ports of the component's input connectors */
+    private int[] inputPorts = new int[0];
+
+    /** Index of each counter in its section (<tt>-1</tt> if missing) */
+    private int[] counterIndex;
+    /** Latest counter values */
+    private long[] counters = new long[NUM_COUNTERS];
+    /** Previous counter values */
+    private long[] prevCounters = new long[NUM_COUNTERS];
+    /** Counter rates */
+    private double[] rates = new double[NUM_COUNTERS];
+    /** Percentage of sent segments which were retransmitted */
+    private double retransPct;
+    /** <tt>System.nanoTime()</tt> of the latest sample */
+    private long sampleTime;
+    /** Has a sample been taken? */
+    private boolean hasSample;
+    /** Have rates been computed from two samples? */
+    private boolean hasRates;
+
+    /** Socket identifiers, used to decide when a key must be rebuilt */
+    private long[][] sockIds = new long[0][];
+    /** Socket keys */
+    private String[] sockKeys = new String[0];
+    /** Socket receive queue sizes (or accept backlog) */
+    private long[] recvQueue = new long[0];
+    /** Socket send queue sizes */
+    private long[] sendQueue = new long[0];
+    /** Number of matching sockets */
+    private int numSockets;
+    /** Were the socket tables read by the latest sample? */
+    private boolean hasSockets;
+
+    /** Scratch identifier for the socket being parsed */
+    private long[] scratchId = new long[ID_LEN];
+
+    /**
+     * Build the key for a socket.
+     *
+     * @param id socket identifier
+     *
+     * @return map key
+     */
+    private static String buildKey(long[] id)
+    {
+        final String port = Long.toString(id[ID_LOCAL_PORT]);
+        if (id[ID_LISTEN] != 0) {
+            return port;
+        }
+
+        final boolean isIPv4 = id[ID_REMOTE_ADDR + 1] < 0;
+        final int numWords = isIPv4 ? 1 : 4;
+
+        byte[] bytes = new byte[numWords * 4];
+        for (int w = 0; w < numWords; w++) {
+            final long word = id[ID_REMOTE_ADDR + w];
+            for (int b = 0; b < 4; b++) {
+                final int shift = LITTLE_ENDIAN ? b * 8 : 24 - b * 8;
+                bytes[w * 4 + b] = (byte) (word >> shift);
+            }
+        }
+
+        String host;
+        try {
+            // IPv4-mapped IPv6 addresses come back as IPv4 addresses
+            host = InetAddress.getByAddress(bytes).getHostAddress();
+        } catch (UnknownHostException uhe) {
+            host = "?";
+        }
+
+        return port + "/" + host + ":" + id[ID_REMOTE_PORT];
+    }
+
+    /**
+     * Make sure there's room for <tt>num</tt> sockets.
+     *
+     * @param num number of sockets
+     */
+    private void ensureCapacity(int num)
+    {
+        if (num <= sockIds.length) {
+            return;
+        }
+
+        final int oldLen = sockIds.length;
+        sockIds = Arrays.copyOf(sockIds, num);
+        sockKeys = Arrays.copyOf(sockKeys, num);
+        recvQueue = Arrays.copyOf(recvQueue, num);
+        sendQueue = Arrays.copyOf(sendQueue, num);
+        for (int i = oldLen; i < num; i++) {
+            sockIds[i] = new long[ID_LEN];
+        }
+    }
+
+    /**
+     * Find the index of each reported counter.
+     */
+    private void findCounters()
+    {
+        counterIndex = new int[NUM_COUNTERS];
+        for (int i = 0; i < SNMP_COUNTERS.length; i++) {
+            counterIndex[i] = snmpReader.indexOf(SNMP_COUNTERS[i]);
+        }
+        for (int i = 0; i < EXT_COUNTERS.length; i++) {
+            counterIndex[SNMP_COUNTERS.length + i] =
+                extReader.indexOf(EXT_COUNTERS[i]);
+        }
+    }
+
+    /**
+     * Get the name of a counter.
+     *
+     * @param idx counter index
+     *
+     * @return counter name
+     */
+    private static String getCounterName(int idx)
+    {
+        if (idx < SNMP_COUNTERS.length) {
+            return SNMP_COUNTERS[idx];
+        }
+
+        return EXT_COUNTERS[idx - SNMP_COUNTERS.length];
+    }
+
+    /**
+     * Get the rate of each counter.
+     *
+     * @return map of counter name to events per second
+     */
+    @Override
+    public HashMap<String, Double> getCounterRates()
+    {
+        return getCounterRates(System.nanoTime());
+    }
+
+    /**
+     * Get the rate of each counter.
+     *
+     * @param now current <tt>System.nanoTime()</tt>
+     *
+     * @return map of counter name to events per second
+     */
+    synchronized HashMap<String, Double> getCounterRates(long now)
+    {
+        if (!update(now) || !hasRates) {
+            return null;
+        }
+
+        HashMap<String, Double> map = new HashMap<String, Double>();
+        for (int i = 0; i < NUM_COUNTERS; i++) {
+            if (counterIndex[i] >= 0) {
+                map.put(getCounterName(i), rates[i]);
+            }
+        }
+
+        return map;
+    }
+
+    /**
+     * Get the value of each counter.
+     *
+     * @return map of counter name to total since the host was booted
+     */
+    @Override
+    public HashMap<String, Long> getCounterTotals()
+    {
+        return getCounterTotals(System.nanoTime());
+    }
+
+    /**
+     * Get the value of each counter.
+     *
+     * @param now current <tt>System.nanoTime()</tt>
+     *
+     * @return map of counter name to total since the host was booted
+     */
+    synchronized HashMap<String, Long> getCounterTotals(long now)
+    {
+        if (!update(now)) {
+            return null;
+        }
+
+        HashMap<String, Long> map = new HashMap<String, Long>();
+        for (int i = 0; i < NUM_COUNTERS; i++) {
+            if (counterIndex[i] >= 0) {
+                map.put(getCounterName(i), counters[i]);
+            }
+        }
+
+        return map;
+    }
+
+    /**
+     * Get the number of connections waiting to be accepted on each
+     * listening input port.
+     *
+     * @return map of port to number of connections
+     */
+    @Override
+    public HashMap<String, Long> getListenBacklog()
+    {
+        return getSocketValues(false, true);
+    }
+
+    /**
+     * Get the number of bytes received on each input connection which
+     * have not been read by the component.
+     *
+     * @return map of connection to bytes
+     */
+    @Override
+    public HashMap<String, Long> getReceiveQueueBytes()
+    {
+        return getSocketValues(false, false);
+    }
+
+    /**
+     * Get the percentage of sent segments which were retransmitted.
+     *
+     * @return percentage
+     */
+    @Override
+    public Double getRetransmitPercent()
+    {
+        return getRetransmitPercent(System.nanoTime());
+    }
+
+    /**
+     * Get the percentage of sent segments which were retransmitted.
+     *
+     * @param now current <tt>System.nanoTime()</tt>
+     *
+     * @return percentage
+     */
+    synchronized Double getRetransmitPercent(long now)
+    {
+        if (!update(now) || !hasRates || counterIndex[RETRANS_SEGS] < 0) {
+            return null;
+        }
+
+        return retransPct;
+    }
+
+    /**
+     * Get the number of segments retransmitted per second.
+     *
+     * @return segments per second
+     */
+    @Override
+    public synchronized Double getRetransmitsPerSecond()
+    {
+        if (!update(System.nanoTime()) || !hasRates ||
+            counterIndex[RETRANS_SEGS] < 0)
+        {
+            return null;
+        }
+
+        return rates[RETRANS_SEGS];
+    }
+
+    /**
+     * Get the number of bytes sent on each input connection which have
+     * not been acknowledged.
+     *
+     * @return map of connection to bytes
+     */
+    @Override
+    public HashMap<String, Long> getSendQueueBytes()
+    {
+        return getSocketValues(true, false);
+    }
+
+    /**
+     * Get one value for the listening or the connected sockets.
+     *
+     * @param sendQ <tt>true</tt> for send queue sizes, <tt>false</tt> for
+     *              receive queue sizes
+     * @param listening <tt>true</tt> for listening sockets
+     *
+     * @return map of socket key to value
+     */
+    private synchronized HashMap<String, Long> getSocketValues(boolean sendQ,
+                                                               boolean
+                                                               listening)
+    {
+        if (!update(System.nanoTime()) || !hasSockets) {
+            return null;
+        }
+
+        final long[] vals = (sendQ ? sendQueue : recvQueue);
+
+        HashMap<String, Long> map = new HashMap<String, Long>();
+        for (int i = 0; i < numSockets; i++) {
+            if ((sockIds[i][ID_LISTEN] != 0) == listening) {
+                map.put(sockKeys[i], vals[i]);
+            }
+        }
+
+        return map;
+    }
+
+    /**
+     * Is this one of the input ports?
+     *
+     * @param port local port
+     *
+     * @return <tt>true</tt> if the port belongs to an input connector
+     */
+    private boolean isInputPort(long port)
+    {
+        for (int i = 0; i < inputPorts.length; i++) {
+            if (inputPorts[i] == port) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Read the host-wide counters.
+     *
+     * @return <tt>false</tt> if the counters could not be read
+     */
+    private boolean readCounters()
+    {
+        if (snmpReader == null) {
+            if (!SNMP_FILE.exists() || !NETSTAT_FILE.exists() ||
+                !TCP_FILE.exists())
+            {
+                if (!warnedMissing) {
+                    LOG.error("Couldn't open " + SNMP_FILE + ", " +
+                              NETSTAT_FILE + " or " + TCP_FILE + " on OS: " +
+                              System.getProperty("os.name"));
+                    warnedMissing = true;
+                }
+                return false;
+            }
+
+            snmpReader = new NetStatReader(SNMP_FILE, "Tcp");
+            extReader = new NetStatReader(NETSTAT_FILE, "TcpExt");
+        }
+
+        try {
+            if (!snmpReader.update() || !extReader.update()) {
+                LOG.error("Bad TCP counters in " + SNMP_FILE + " or " +
+                          NETSTAT_FILE);
+                return false;
+            }
+        } catch (IOException ioe) {
+            LOG.error("Problem reading TCP counters", ioe);
+            return false;
+        }
+
+        if (counterIndex == null) {
+            findCounters();
+        }
+
+        final long[] snmpVals = snmpReader.getValues();
+        final long[] extVals = extReader.getValues();
+        for (int i = 0; i < NUM_COUNTERS; i++) {
+            final int idx = counterIndex[i];
+            if (idx < 0) {
+                counters[i] = 0L;
+            } else if (i < SNMP_COUNTERS.length) {
+                counters[i] = snmpVals[idx];
+            } else {
+                counters[i] = extVals[idx];
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Read one socket table, adding sockets on the input ports.
+     *
+     * @param rdr socket table reader
+     * @param num number of sockets found so far
+     *
+     * @return new number of sockets (<tt>-1</tt> if the table is malformed)
+     *
+     * @throws IOException if the table cannot be read
+     */
+    private int readSockets(ProcFileReader rdr, int num)
+        throws IOException
+    {
+        rdr.read();
+
+        // skip header
+        if (!rdr.skipLine()) {
+            return num;
+        }
+
+        final long[] id = scratchId;
+        do {
+            if (rdr.atLineEnd()) {
+                continue;
+            }
+
+            // skip slot number and local address
+            rdr.skipToken(':');
+            rdr.skipBlanks();
+            rdr.skipToken(':');
+
+            final long localPort = rdr.nextHex();
+            if (localPort == ProcFileReader.NO_VALUE) {
+                return -1;
+            } else if (!isInputPort(localPort)) {
+                continue;
+            }
+
+            rdr.skipBlanks();
+            final int addrStart = rdr.getPosition();
+            final int addrLen = rdr.skipToken(':');
+            final long remotePort = rdr.nextHex();
+            final long state = rdr.nextHex();
+            final long txQueue = rdr.nextHex();
+            rdr.skipToken(':');
+            final long rxQueue = rdr.nextHex();
+            if ((addrLen != 8 && addrLen != 32) ||
+                remotePort == ProcFileReader.NO_VALUE ||
+                txQueue == ProcFileReader.NO_VALUE ||
+                rxQueue == ProcFileReader.NO_VALUE)
+            {
+                return -1;
+            }
+
+            if (state != STATE_ESTABLISHED && state != STATE_LISTEN) {
+                continue;
+            }
+
+            id[ID_LISTEN] = (state == STATE_LISTEN ? 1L : 0L);
+            id[ID_LOCAL_PORT] = localPort;
+            id[ID_REMOTE_PORT] = remotePort;
+            for (int w = 0; w < 4; w++) {
+                if (w * 8 >= addrLen) {
+                    id[ID_REMOTE_ADDR + w] = ProcFileReader.NO_VALUE;
+                } else {
+                    id[ID_REMOTE_ADDR + w] =
+                        rdr.hexValue(addrStart + w * 8, 8);
+                }
+            }
+
+            ensureCapacity(num + 1);
+            if (sockKeys[num] == null || !Arrays.equals(id, sockIds[num])) {
+                System.arraycopy(id, 0, sockIds[num], 0, ID_LEN);
+                sockKeys[num] = buildKey(id);
+            }
+
+            // a listening socket reports its accept backlog as rx_queue
+            recvQueue[num] = rxQueue;
+            sendQueue[num] = (state == STATE_LISTEN ? 0L : txQueue);
+            num++;
+        } while (rdr.skipLine());
+
+        return num;
+    }
+
+    /**
+     * Read the socket tables.
+     *
+     * @return <tt>false</tt> if the tables could not be read
+     */
+    private boolean readSockets()
+    {
+        if (tcpReader == null) {
+            tcpReader = new ProcFileReader(TCP_FILE);
+            if (TCP6_FILE.exists()) {
+                tcp6Reader = new ProcFileReader(TCP6_FILE);
+            }
+        }
+
+        numSockets = 0;
+        if (inputPorts.length == 0) {
+            return true;
+        }
+
+        int num;
+        try {
+            num = readSockets(tcpReader, 0);
+            if (num >= 0 && tcp6Reader != null) {
+                num = readSockets(tcp6Reader, num);
+            }
+        } catch (IOException ioe) {
+            LOG.error("Problem reading TCP sockets", ioe);
+            return false;
+        }
+
+        if (num < 0) {
+            LOG.error("Bad socket entry in " + TCP_FILE + " or " +
+                      TCP6_FILE);
+            return false;
+        }
+
+        numSockets = num;
+        return true;
+    }
+
+    /**
+     * Set the ports used by the component's input connectors.  Only
+     * sockets on these ports are included in the per-socket attributes.
+     *
+     * @param ports input ports
+     */
+    public synchronized void setInputPorts(int[] ports)
+    {
+        inputPorts = Arrays.copyOf(ports, ports.length);
+
+        // take a new sample the next time an attribute is requested
+        hasSockets = false;
+    }
+
+    /**
+     * Take a new sample, unless the previous one is recent.
+     *
+     * @param now current <tt>System.nanoTime()</tt>
+     *
+     * @return <tt>false</tt> if the statistics are not available
+     */
+    private boolean update(long now)
+    {
+        if (hasSample && now - sampleTime < SystemStatistics.MIN_RATE_NANOS) {
+            if (!hasSockets) {
+                // input ports changed since the last sample
+                hasSockets = readSockets();
+            }
+            return true;
+        }
+
+        long[] tmp = prevCounters;
+        prevCounters = counters;
+        counters = tmp;
+
+        if (!readCounters()) {
+            counters = prevCounters;
+            prevCounters = tmp;
+            return false;
+        }
+
+        hasSockets = readSockets();
+
+        if (hasSample) {
+            final double secs = (double) (now - sampleTime) / 1.0E9;
+            for (int i = 0; i < NUM_COUNTERS; i++) {
+                rates[i] = (double) delta(i) / secs;
+            }
+
+            final long sent = delta(OUT_SEGS);
+            if (sent == 0) {
+                retransPct = 0.0;
+            } else {
+                retransPct =
+                    100.0 * (double) delta(RETRANS_SEGS) / (double) sent;
+            }
+
+            hasRates = true;
+        }
+
+        sampleTime = now;
+        hasSample = true;
+
+        return true;
+    }
+
+    /**
+     * Get the change in one counter since the previous sample.
+     *
+     * @param idx counter index
+     *
+     * @return change in the counter
+     */
+    private long delta(int idx)
+    {
+        return SampleHistory.counterDelta(prevCounters[idx], counters[idx]);
+    }
+
+    /**
+     * Return description of current statistics.
+     *
+     * @return description of current statistics
+     */
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder buf = new StringBuilder("tcp: {");
+        if (hasRates) {
+            buf.append(String.format("retrans %.1f/s (%.2f%%)",
+                                     rates[RETRANS_SEGS], retransPct));
+        }
+        for (int i = 0; i < numSockets; i++) {
+            buf.append(", ").append(sockKeys[i]).append(": [rx ").
+                append(recvQueue[i]).append(", tx ").append(sendQueue[i]).
+                append(']');
+        }
+
+        return buf.append("}").toString();
+    }
+}
@@ -0,0 +1,17 @@
+package icecube.daq.juggler.mbean;
+
+import java.util.HashMap;
+
+/**
+ * TCP stack statistics monitor.
+ */
+public interface TCPStatisticsMBean
+{
+    HashMap<String, Double> getCounterRates();
+    HashMap<String, Long> getCounterTotals();
+    HashMap<String, Long> getListenBacklog();
+    HashMap<String, Long> getReceiveQueueBytes();
+    Double getRetransmitPercent();
+    Double getRetransmitsPerSecond();
+    HashMap<String, Long> getSendQueueBytes();
+}
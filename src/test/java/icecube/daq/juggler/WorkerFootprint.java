@@ -0,0 +1,118 @@
+package icecube.daq.juggler;
+
+import icecube.daq.juggler.alert.AlertException;
+import icecube.daq.juggler.alert.AlertQueue;
+import icecube.daq.juggler.alert.ZMQThreadedAlerter;
+import icecube.daq.juggler.test.MockAlerter;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Compare the footprint of idle background workers in each
+ * <tt>WorkerThreads</tt> mode.
+ *
+ * Starts a number of alert queues and threaded alerters (which spend
+ * almost all their time blocked, like the workers in a quiet component),
+ * then reports the number of live platform threads and the process's
+ * resident set size.  Run each mode in a fresh JVM so the RSS numbers are
+ * comparable:
+ *
+ * <pre>
+ * java ... WorkerFootprint platform 500
+ * java ... WorkerFootprint virtual 500
+ * </pre>
+ */
+public class WorkerFootprint
+{
+    /** Time to let the workers settle before measuring */
+    private static final long SETTLE_MILLIS = 2000L;
+    /** Maximum number of alerts held by each threaded alerter */
+    private static final int QUEUE_SIZE = 100;
+
+    /**
+     * Get the resident set size of this process.
+     *
+     * @return RSS in kilobytes (<tt>-1</tt> if it's not available)
+     */
+    private static long getRSS()
+    {
+        BufferedReader rdr;
+        try {
+            rdr = new BufferedReader(new FileReader("/proc/self/status"));
+        } catch (IOException ioe) {
+            return -1L;
+        }
+
+        try {
+            String line;
+            while ((line = rdr.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    final String[] flds = line.trim().split("\\s+");
+                    return Long.parseLong(flds[1]);
+                }
+            }
+        } catch (IOException ioe) {
+            // fall through
+        } finally {
+            try {
+                rdr.close();
+            } catch (IOException ioe) {
+                // ignore errors on close
+            }
+        }
+
+        return -1L;
+    }
+
+    private static void report(String descr)
+    {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        System.out.format("%-8s platform threads %5d (peak %5d)," +
+                          " RSS %8d kB%n", descr, bean.getThreadCount(),
+                          bean.getPeakThreadCount(), getRSS());
+    }
+
+    public static void main(String[] args)
+        throws AlertException, InterruptedException
+    {
+        WorkerThreads.Mode mode = WorkerThreads.Mode.PLATFORM;
+        if (args.length > 0) {
+            mode = WorkerThreads.Mode.valueOf(args[0].toUpperCase());
+        }
+
+        int num = 500;
+        if (args.length > 1) {
+            num = Integer.parseInt(args[1]);
+        }
+
+        WorkerThreads.setMode(mode);
+        System.out.println("Starting " + num + " alert queues and " + num +
+                           " threaded alerters on " + mode + " threads");
+
+        report("before");
+
+        AlertQueue[] queues = new AlertQueue[num];
+        ZMQThreadedAlerter[] alerters = new ZMQThreadedAlerter[num];
+        for (int i = 0; i < num; i++) {
+            queues[i] = new AlertQueue("Queue#" + i, new MockAlerter());
+            queues[i].start();
+
+            alerters[i] = new ZMQThreadedAlerter("footprint", QUEUE_SIZE);
+            alerters[i].start();
+        }
+
+        Thread.sleep(SETTLE_MILLIS);
+        report("running");
+
+        // alerters are daemons, and closing each one waits for its
+        // sending loop to notice, so just stop the queues
+        for (int i = 0; i < num; i++) {
+            queues[i].stop(1000);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package icecube.daq.juggler;
+
+import icecube.daq.common.MockAppender;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.BasicConfigurator;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class WorkerThreadsTest
+{
+    private static final MockAppender appender =
+        new MockAppender(org.apache.log4j.Level.WARN).setVerbose(false);
+
+    private WorkerThreads.Mode origMode;
+
+    /**
+     * Remember the thread which ran the task and its name.
+     */
+    class NameRecorder
+        implements Runnable
+    {
+        Thread thread;
+        String name;
+        boolean daemon;
+
+        @Override
+        public void run()
+        {
+            thread = Thread.currentThread();
+            name = thread.getName();
+            daemon = thread.isDaemon();
+        }
+    }
+
+    private NameRecorder runWorker(String name, boolean daemon)
+        throws Exception
+    {
+        NameRecorder rec = new NameRecorder();
+
+        Future<?> future = WorkerThreads.start(name, daemon, rec);
+        future.get();
+
+        assertTrue("Worker did not finish", future.isDone());
+        assertEquals("Bad thread name", name, rec.name);
+
+        return rec;
+    }
+
+    @Before
+    public void setUp()
+    {
+        BasicConfigurator.resetConfiguration();
+        BasicConfigurator.configure(appender);
+
+        origMode = WorkerThreads.getMode();
+    }
+
+    @After
+    public void tearDown()
+    {
+        WorkerThreads.setMode(origMode);
+
+        appender.assertNoLogMessages();
+    }
+
+    @Test
+    public void testPlatform()
+        throws Exception
+    {
+        WorkerThreads.setMode(WorkerThreads.Mode.PLATFORM);
+
+        NameRecorder rec = runWorker("PlatformWorker", false);
+        assertFalse("Worker should not be a daemon", rec.daemon);
+
+        rec = runWorker("DaemonWorker", true);
+        assertTrue("Worker should be a daemon", rec.daemon);
+    }
+
+    @Test
+    public void testVirtual()
+        throws Exception
+    {
+        if (!WorkerThreads.isVirtualSupported()) {
+            try {
+                WorkerThreads.setMode(WorkerThreads.Mode.VIRTUAL);
+                fail("Should not be able to use virtual threads");
+            } catch (Error err) {
+                // expected
+            }
+
+            return;
+        }
+
+        WorkerThreads.setMode(WorkerThreads.Mode.VIRTUAL);
+
+        NameRecorder rec = runWorker("VirtualWorker", true);
+        assertTrue("Virtual threads are always daemons", rec.daemon);
+
+        // non-daemon workers must keep the JVM alive, so they still get
+        // a platform thread
+        rec = runWorker("NonDaemonWorker", false);
+        assertFalse("Worker should not be a daemon", rec.daemon);
+    }
+
+    @Test
+    public void testFailure()
+        throws Exception
+    {
+        WorkerThreads.setMode(WorkerThreads.Mode.PLATFORM);
+
+        Future<?> future =
+            WorkerThreads.start("BadWorker", true, new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        throw new IllegalStateException("Expected failure");
+                    }
+                });
+
+        try {
+            future.get();
+            fail("Worker failure was not reported");
+        } catch (ExecutionException ee) {
+            assertTrue("Bad cause " + ee.getCause(),
+                       ee.getCause() instanceof IllegalStateException);
+        }
+
+        appender.assertLogMessage("Worker BadWorker failed");
+    }
+}
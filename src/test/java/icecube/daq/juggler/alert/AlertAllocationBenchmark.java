@@ -0,0 +1,164 @@
+package icecube.daq.juggler.alert;
+
+import icecube.daq.juggler.test.MockUTCTime;
+import icecube.daq.payload.IUTCTime;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measure the heap allocated for each alert pushed through an
+ * <tt>AlertQueue</tt>, comparing envelopes built as <tt>HashMap</tt>s
+ * (the way callers and the queue used to build them) with pooled
+ * <tt>AlertRecord</tt>s.
+ *
+ * Run with <tt>java ... AlertAllocationBenchmark [numPushes]</tt>.  This
+ * relies on <tt>com.sun.management.ThreadMXBean</tt>, so it needs a
+ * HotSpot-based JVM.
+ */
+public class AlertAllocationBenchmark
+{
+    /** Number of pushes between flushes, well under the queue size */
+    private static final int FLUSH_INTERVAL = 1000;
+
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Get the total number of bytes allocated by all live threads.
+     *
+     * @return allocated bytes
+     */
+    private static long getAllocatedBytes()
+    {
+        final long[] ids = THREAD_BEAN.getAllThreadIds();
+        final long[] bytes = THREAD_BEAN.getThreadAllocatedBytes(ids);
+
+        long total = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] > 0) {
+                total += bytes[i];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Push alerts and report the number of bytes allocated per push.
+     *
+     * @param aq alert queue
+     * @param numPushes number of alerts to push
+     * @param useMaps if <tt>true</tt>, push pre-built <tt>HashMap</tt>
+     *                envelopes instead of letting the queue build records
+     *
+     * @return bytes allocated per push
+     */
+    private static double run(AlertQueue aq, int numPushes, boolean useMaps)
+        throws AlertException
+    {
+        final IUTCTime utc = new MockUTCTime(123456789L);
+
+        aq.flush(10000);
+        final long before = getAllocatedBytes();
+
+        for (int i = 0; i < numPushes; i++) {
+            if (useMaps) {
+                HashMap<String, Object> map = new HashMap<String, Object>();
+                map.put("service", Alerter.DEFAULT_SERVICE);
+                map.put("varname", "bench");
+                map.put("prio", Alerter.Priority.DEBUG.value());
+                map.put("t", AlertTimeFormatter.format(utc));
+                aq.push(map);
+            } else {
+                aq.push("bench", Alerter.Priority.DEBUG, utc, null);
+            }
+
+            if (i % FLUSH_INTERVAL == FLUSH_INTERVAL - 1) {
+                aq.flush(10000);
+            }
+        }
+        aq.flush(10000);
+
+        return (double) (getAllocatedBytes() - before) / (double) numPushes;
+    }
+
+    public static void main(String[] args)
+        throws AlertException
+    {
+        final int numPushes;
+        if (args.length > 0) {
+            numPushes = Integer.parseInt(args[0]);
+        } else {
+            numPushes = 1000000;
+        }
+
+        AlertQueue aq = new AlertQueue(new DiscardAlerter());
+        aq.start();
+
+        // warm up both paths
+        run(aq, numPushes / 10, true);
+        run(aq, numPushes / 10, false);
+
+        final double mapBytes = run(aq, numPushes, true);
+        final double recBytes = run(aq, numPushes, false);
+
+        aq.stop(10000);
+
+        System.out.format("HashMap envelope: %8.1f bytes/push%n", mapBytes);
+        System.out.format("AlertRecord:      %8.1f bytes/push%n", recBytes);
+        System.out.format("Sent %d, dropped %d%n", aq.getNumSent(),
+                          aq.getNumDropped());
+    }
+
+    /**
+     * Alerter which serializes alerts as JSON and throws them away
+     */
+    static class DiscardAlerter
+        implements SerializingAlerter
+    {
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public String getService()
+        {
+            return DEFAULT_SERVICE;
+        }
+
+        @Override
+        public boolean isActive()
+        {
+            return true;
+        }
+
+        @Override
+        public void sendObject(Object obj)
+        {
+            AlertEncoder.getEncoder(Format.JSON).writeObject(obj);
+        }
+
+        @Override
+        public void sendObjects(List<?> list)
+        {
+            final AlertEncoder enc = AlertEncoder.getEncoder(Format.JSON);
+            for (Object obj : list) {
+                enc.writeObject(obj);
+                enc.endMessage();
+            }
+        }
+
+        @Override
+        public void setAddress(String host, int port)
+        {
+        }
+
+        @Override
+        public void setFormat(Format format)
+        {
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package icecube.daq.juggler.alert;
+
+import icecube.daq.juggler.test.MockUTCTime;
+import icecube.daq.payload.IUTCTime;
+
+import java.util.Arrays;
+
+/**
+ * Measure <tt>AlertQueue.push()</tt> latency as the number of producer
+ * threads grows, and the heap held by a newly created (empty) queue.
+ *
+ * Each producer times every push it makes, and the median and 99th
+ * percentile over all producers are reported for each thread count.
+ * With a lock-free queue both should stay roughly flat until there are
+ * more producers than cores.
+ *
+ * Run with <tt>java ... AlertContentionBenchmark [pushesPerThread]
+ * [maxThreads]</tt>.
+ */
+public class AlertContentionBenchmark
+{
+    /** Number of queues created when measuring the empty footprint */
+    private static final int NUM_EMPTY_QUEUES = 20;
+
+    /**
+     * Get the number of heap bytes in use after a garbage collection.
+     *
+     * @return used bytes
+     */
+    private static long getUsedHeap()
+    {
+        final Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ie) {
+                // ignore interrupts
+            }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * Get a percentile from a sorted array.
+     *
+     * @param sorted sorted values
+     * @param pct percentile
+     *
+     * @return value
+     */
+    private static long percentile(long[] sorted, double pct)
+    {
+        final int idx = (int) ((sorted.length - 1) * pct / 100.0);
+        return sorted[idx];
+    }
+
+    /**
+     * Push alerts from several threads at once.
+     *
+     * @param numThreads number of producer threads
+     * @param numPushes number of pushes made by each thread
+     *
+     * @return push times for all threads, sorted
+     */
+    private static long[] run(int numThreads, final int numPushes)
+        throws InterruptedException
+    {
+        final AlertQueue aq =
+            new AlertQueue(new AlertAllocationBenchmark.DiscardAlerter());
+        aq.start();
+
+        final long[][] times = new long[numThreads][numPushes];
+
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final long[] myTimes = times[t];
+            threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        final IUTCTime utc = new MockUTCTime(123456789L);
+                        for (int i = 0; i < numPushes; i++) {
+                            final long start = System.nanoTime();
+                            try {
+                                aq.push("bench", Alerter.Priority.DEBUG, utc,
+                                        null);
+                            } catch (AlertException ae) {
+                                throw new Error("Cannot push alert", ae);
+                            }
+                            myTimes[i] = System.nanoTime() - start;
+                        }
+                    }
+                });
+            threads[t].setName("Producer#" + t);
+        }
+
+        for (int t = 0; t < numThreads; t++) {
+            threads[t].start();
+        }
+        for (int t = 0; t < numThreads; t++) {
+            threads[t].join();
+        }
+
+        aq.stop(10000);
+        if (aq.getNumDropped() > 0) {
+            System.out.println("  (dropped " + aq.getNumDropped() +
+                               " alerts)");
+        }
+
+        long[] all = new long[numThreads * numPushes];
+        for (int t = 0; t < numThreads; t++) {
+            System.arraycopy(times[t], 0, all, t * numPushes, numPushes);
+        }
+        Arrays.sort(all);
+
+        return all;
+    }
+
+    public static void main(String[] args)
+        throws InterruptedException
+    {
+        int numPushes = 100000;
+        if (args.length > 0) {
+            numPushes = Integer.parseInt(args[0]);
+        }
+
+        int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+        if (args.length > 1) {
+            maxThreads = Integer.parseInt(args[1]);
+        }
+
+        final long before = getUsedHeap();
+        AlertQueue[] queues = new AlertQueue[NUM_EMPTY_QUEUES];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new AlertQueue("Empty#" + i,
+                                       new AlertAllocationBenchmark.
+                                       DiscardAlerter());
+        }
+        final long after = getUsedHeap();
+        System.out.format("Empty queue: %d KB%n",
+                          (after - before) / NUM_EMPTY_QUEUES / 1024);
+        if (queues[0].getNumQueued() != 0) {
+            // keep the queues reachable until they have been measured
+            throw new Error("Empty queue is not empty");
+        }
+
+        // warm up
+        run(1, numPushes);
+
+        System.out.println("Threads  median ns  p99 ns");
+        for (int n = 1; n <= maxThreads; n *= 2) {
+            final long[] times = run(n, numPushes);
+            System.out.format("%7d  %9d  %6d%n", n, percentile(times, 50.0),
+                              percentile(times, 99.0));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package icecube.daq.juggler.alert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class AlertHistogramTest
+{
+    private static void assertClose(String descr, long expected, long actual)
+    {
+        // buckets are 1/16th of a power of two wide
+        final long slop = Math.max(1L, expected / 16L);
+        assertTrue(descr + " " + actual + " is not close to " + expected,
+                   Math.abs(expected - actual) <= slop);
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        AlertHistogram hist = new AlertHistogram();
+        assertEquals("Bad count", 0L, hist.getCount());
+        assertEquals("Bad max", 0L, hist.getMax());
+        assertEquals("Bad median", 0L, hist.getPercentile(50.0));
+        assertTrue("Bad summary",
+                   Arrays.equals(new long[3], hist.getSummary()));
+    }
+
+    @Test
+    public void testSmallValues()
+    {
+        AlertHistogram hist = new AlertHistogram();
+        for (long i = 1; i <= 10; i++) {
+            hist.record(i);
+        }
+
+        assertEquals("Bad count", 10L, hist.getCount());
+        assertEquals("Bad max", 10L, hist.getMax());
+        assertEquals("Bad median", 5L, hist.getPercentile(50.0));
+        assertEquals("Bad 90th percentile", 9L, hist.getPercentile(90.0));
+        assertEquals("Bad 100th percentile", 10L, hist.getPercentile(100.0));
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        AlertHistogram hist = new AlertHistogram();
+
+        Random rand = new Random(12345L);
+
+        final int num = 100000;
+        long[] vals = new long[num];
+        for (int i = 0; i < num; i++) {
+            // spread values across several orders of magnitude
+            vals[i] = (long) Math.exp(rand.nextDouble() * 25.0);
+            hist.record(vals[i]);
+        }
+        Arrays.sort(vals);
+
+        assertEquals("Bad count", (long) num, hist.getCount());
+        assertEquals("Bad max", vals[num - 1], hist.getMax());
+
+        final double[] pcts = new double[] { 1.0, 25.0, 50.0, 90.0, 99.0 };
+        for (double pct : pcts) {
+            final long expected = vals[(int) Math.ceil(num * pct / 100.0) - 1];
+            assertClose("Bad " + pct + "th percentile", expected,
+                        hist.getPercentile(pct));
+        }
+    }
+
+    @Test
+    public void testExtremes()
+    {
+        AlertHistogram hist = new AlertHistogram();
+        hist.record(-5L);
+        hist.record(Long.MAX_VALUE);
+
+        assertEquals("Bad count", 2L, hist.getCount());
+        assertEquals("Negative value should be recorded as zero", 0L,
+                     hist.getPercentile(50.0));
+        assertEquals("Bad max", Long.MAX_VALUE, hist.getPercentile(100.0));
+    }
+
+    @Test
+    public void testSummary()
+    {
+        AlertHistogram hist = new AlertHistogram();
+        for (int i = 0; i < 100; i++) {
+            hist.record(1000000L);
+        }
+        hist.record(50000000L);
+
+        final long[] summary = hist.getSummary();
+        assertEquals("Bad summary length", 3, summary.length);
+        assertClose("Bad median", 1000L, summary[0]);
+        assertClose("Bad 99th percentile", 1000L, summary[1]);
+        assertEquals("Bad max", 50000L, summary[2]);
+    }
+
+    @Test
+    public void testThreads()
+        throws InterruptedException
+    {
+        final AlertHistogram hist = new AlertHistogram();
+
+        final int numThreads = 4;
+        final int numValues = 25000;
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numThreads; t++) {
+            final long base = t * 1000L;
+            threads.add(new Thread() {
+                    @Override
+                    public void run()
+                    {
+                        for (int i = 0; i < numValues; i++) {
+                            hist.record(base + i);
+                        }
+                    }
+                });
+        }
+
+        for (Thread thrd : threads) {
+            thrd.start();
+        }
+        for (Thread thrd : threads) {
+            thrd.join();
+        }
+
+        assertEquals("Bad count", (long) numThreads * numValues,
+                     hist.getCount());
+        assertEquals("Bad max", (numThreads - 1) * 1000L + numValues - 1,
+                     hist.getMax());
+    }
+}
@@ -0,0 +1,287 @@
+package icecube.daq.juggler.alert;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class AlertJournalTest
+{
+    private File tmpDir;
+
+    private static byte[] getBytes(String str)
+        throws IOException
+    {
+        return str.getBytes("UTF-8");
+    }
+
+    private static int countSegments(File dir)
+    {
+        return dir.listFiles().length;
+    }
+
+    private static void deleteAll(File file)
+    {
+        if (file.isDirectory()) {
+            for (File f : file.listFiles()) {
+                deleteAll(f);
+            }
+        }
+        file.delete();
+    }
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        tmpDir = File.createTempFile("jnl", "");
+        tmpDir.delete();
+    }
+
+    @After
+    public void tearDown()
+    {
+        deleteAll(tmpDir);
+    }
+
+    @Test
+    public void testAppendRead()
+        throws IOException
+    {
+        AlertJournal jnl = new AlertJournal(tmpDir, 64, 10);
+        assertFalse("Empty journal should not be spilling", jnl.isSpilling());
+
+        byte[] bytes = getBytes("{\"x\":1}");
+        assertFalse("Append should fail if not spilling",
+                    jnl.append(bytes, 0, bytes.length, false));
+        assertEquals("Bad number of records", 0, jnl.getNumRecords());
+
+        final int numRecs = 20;
+        for (int i = 0; i < numRecs; i++) {
+            bytes = getBytes("{\"alert\":" + i + "}");
+            assertTrue("Cannot append #" + i,
+                       jnl.append(bytes, 0, bytes.length, true));
+        }
+
+        assertTrue("Journal should be spilling", jnl.isSpilling());
+        assertEquals("Bad number of records", numRecs, jnl.getNumRecords());
+        assertTrue("Journal should have rotated", countSegments(tmpDir) > 1);
+
+        ArrayList<EncodedAlert> list = new ArrayList<EncodedAlert>();
+        assertEquals("Bad number of records read", 5, jnl.read(list, 5));
+
+        // rewind and read everything
+        jnl.rewind();
+        list.clear();
+        assertEquals("Bad number of records read", numRecs,
+                     jnl.read(list, numRecs * 2));
+        for (int i = 0; i < numRecs; i++) {
+            assertEquals("Bad record #" + i, "{\"alert\":" + i + "}",
+                         list.get(i).toString());
+        }
+
+        jnl.commit();
+        assertEquals("Bad number of records", 0, jnl.getNumRecords());
+        assertFalse("Journal should have stopped spilling", jnl.isSpilling());
+        assertEquals("Segments should have been deleted", 0,
+                     countSegments(tmpDir));
+    }
+
+    @Test
+    public void testFull()
+        throws IOException
+    {
+        AlertJournal jnl = new AlertJournal(tmpDir, 32, 2);
+
+        byte[] bytes = getBytes("0123456789");
+        for (int i = 0; i < 10; i++) {
+            jnl.append(bytes, 0, bytes.length, true);
+        }
+
+        // each 32-byte segment holds two 14-byte records
+        assertEquals("Bad number of records", 4, jnl.getNumRecords());
+        assertEquals("Bad number of dropped records", 6, jnl.getNumDropped());
+    }
+
+    @Test
+    public void testUnmapped()
+        throws IOException
+    {
+        final File maps = new File("/proc/self/maps");
+        if (!maps.exists()) {
+            System.err.println("Skipping journal unmap test on " +
+                               System.getProperty("os.name"));
+            return;
+        }
+
+        AlertJournal jnl = new AlertJournal(tmpDir, 64, 10);
+
+        final int numRecs = 20;
+        for (int i = 0; i < numRecs; i++) {
+            byte[] bytes = getBytes("{\"alert\":" + i + "}");
+            jnl.append(bytes, 0, bytes.length, true);
+        }
+
+        ArrayList<EncodedAlert> list = new ArrayList<EncodedAlert>();
+        jnl.read(list, numRecs);
+        jnl.commit();
+
+        // deleted segments must not stay mapped until the next GC
+        final String path = tmpDir.getPath();
+        BufferedReader rdr = new BufferedReader(new FileReader(maps));
+        try {
+            String line;
+            while ((line = rdr.readLine()) != null) {
+                assertFalse("Deleted segment is still mapped: " + line,
+                            line.contains(path));
+            }
+        } finally {
+            rdr.close();
+        }
+    }
+
+    @Test
+    public void testRecover()
+        throws IOException
+    {
+        AlertJournal jnl = new AlertJournal(tmpDir, 64, 10);
+
+        final int numRecs = 10;
+        for (int i = 0; i < numRecs; i++) {
+            byte[] bytes = getBytes("{\"alert\":" + i + "}");
+            jnl.append(bytes, 0, bytes.length, true);
+        }
+
+        // consume the first few records
+        ArrayList<EncodedAlert> list = new ArrayList<EncodedAlert>();
+        jnl.read(list, 3);
+        jnl.commit();
+
+        AlertJournal recovered = new AlertJournal(tmpDir, 64, 10);
+        assertTrue("Recovered journal should be spilling",
+                   recovered.isSpilling());
+        assertEquals("Committed records were recovered", numRecs - 3,
+                     recovered.getNumRecords());
+
+        // consume records from the next segment as well
+        list.clear();
+        assertEquals("Bad number of records read", 3,
+                     recovered.read(list, 3));
+        assertEquals("Bad first record", "{\"alert\":3}",
+                     list.get(0).toString());
+        recovered.commit();
+
+        AlertJournal again = new AlertJournal(tmpDir, 64, 10);
+        assertEquals("Committed records were recovered", numRecs - 6,
+                     again.getNumRecords());
+
+        list.clear();
+        assertEquals("Bad number of records read", numRecs - 6,
+                     again.read(list, numRecs));
+        for (int i = 0; i < list.size(); i++) {
+            assertEquals("Bad record #" + i, "{\"alert\":" + (i + 6) + "}",
+                         list.get(i).toString());
+        }
+    }
+
+    @Test
+    public void testDropFailing()
+        throws IOException
+    {
+        AlertJournal jnl = new AlertJournal(tmpDir, 64, 10);
+
+        final int numRecs = 4;
+        for (int i = 0; i < numRecs; i++) {
+            byte[] bytes = getBytes("{\"alert\":" + i + "}");
+            jnl.append(bytes, 0, bytes.length, true);
+        }
+
+        // the first record can never be sent
+        ArrayList<EncodedAlert> list = new ArrayList<EncodedAlert>();
+        for (int i = 0; i < 2 * AlertJournal.MAX_REPLAY_FAILURES; i++) {
+            list.clear();
+            assertTrue("Nothing to read", jnl.read(list, numRecs) > 0);
+            assertEquals("Bad first record", "{\"alert\":0}",
+                         list.get(0).toString());
+            if (i >= AlertJournal.MAX_REPLAY_FAILURES) {
+                assertEquals("Failing record was not isolated", 1,
+                             list.size());
+            }
+            jnl.failed();
+        }
+
+        assertEquals("Failing record was not dropped", 1,
+                     jnl.getNumDropped());
+        assertEquals("Bad number of records", numRecs - 1,
+                     jnl.getNumRecords());
+
+        // the rest are read in batches again
+        list.clear();
+        assertEquals("Bad number of records read", numRecs - 1,
+                     jnl.read(list, numRecs));
+        assertEquals("Bad first record", "{\"alert\":1}",
+                     list.get(0).toString());
+    }
+
+    @Test
+    public void testDelivered()
+        throws IOException
+    {
+        AlertJournal jnl = new AlertJournal(tmpDir, 64, 10);
+
+        final int numRecs = 4;
+        for (int i = 0; i < numRecs; i++) {
+            byte[] bytes = getBytes("{\"alert\":" + i + "}");
+            jnl.append(bytes, 0, bytes.length, true);
+        }
+
+        ArrayList<EncodedAlert> list = new ArrayList<EncodedAlert>();
+        assertEquals("Bad number of records read", numRecs,
+                     jnl.read(list, numRecs));
+
+        // records #0 and #2 were sent, the others failed
+        assertTrue("Record #0 was not delivered",
+                   jnl.delivered(list.get(0)));
+        assertTrue("Record #2 was not delivered",
+                   jnl.delivered(list.get(2)));
+        assertFalse("Unknown record was delivered",
+                    jnl.delivered(new EncodedAlert(getBytes("{}"))));
+        jnl.failed();
+
+        assertEquals("Bad number of records", numRecs - 2,
+                     jnl.getNumRecords());
+
+        // only the failed records are read again
+        list.clear();
+        assertEquals("Bad number of records reread", numRecs - 2,
+                     jnl.read(list, numRecs));
+        assertEquals("Bad first record", "{\"alert\":1}",
+                     list.get(0).toString());
+        assertEquals("Bad second record", "{\"alert\":3}",
+                     list.get(1).toString());
+
+        // a later run doesn't see the delivered records either
+        jnl.rewind();
+        AlertJournal next = new AlertJournal(tmpDir, 64, 10);
+        assertEquals("Bad number of recovered records", numRecs - 2,
+                     next.getNumRecords());
+
+        list.clear();
+        assertEquals("Bad number of records recovered", numRecs - 2,
+                     next.read(list, numRecs));
+        assertEquals("Bad first recovered record", "{\"alert\":1}",
+                     list.get(0).toString());
+
+        // once everything has been delivered, the journal is empty
+        for (EncodedAlert alert : list) {
+            assertTrue("Record was not delivered", next.delivered(alert));
+        }
+        next.failed();
+        assertEquals("Journal should be empty", 0, next.getNumRecords());
+        assertFalse("Journal should not be spilling", next.isSpilling());
+    }
+}
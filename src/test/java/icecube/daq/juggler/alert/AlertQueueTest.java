@@ -6,8 +6,14 @@ import icecube.daq.juggler.test.MockAlerter;
 import icecube.daq.juggler.test.MockUTCTime;
 import icecube.daq.util.LocatePDAQ;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.BasicConfigurator;
 
@@ -43,6 +49,21 @@ public class AlertQueueTest
         }
     }
 
+    /**
+     * Wait until the sender thread has taken all queued alerts (and is
+     * presumably stuck in the alerter's send delay).
+     */
+    private void waitForSender(AlertQueue aq)
+    {
+        for (int i = 0; i < 1000 && aq.getNumQueued() > 0; i++) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+    }
+
     @Before
     public void setUp()
         throws Exception
@@ -86,6 +107,29 @@ public class AlertQueueTest
         }
     }
 
+    /**
+     * Start a queue whose receiver is down, and wait for it to park.
+     * (a parked queue is never idle, so <tt>startQueue()</tt> can't be used)
+     */
+    private void startParked(AlertQueue aq)
+    {
+        aq.start();
+        for (int i = 0; i < 1000; i++) {
+            if (aq.getNumParked() > 0) {
+                break;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+
+        if (aq.getNumParked() == 0) {
+            throw new Error("Cannot park " + aq);
+        }
+    }
+
     @After
     public void tearDown()
         throws Exception
@@ -202,7 +246,7 @@ public class AlertQueueTest
 
         // should only receive one error
         final String front = "Disabled alert queue " +
-            AlertQueue.DEFAULT_NAME + " containing ";
+            AlertQueue.DEFAULT_NAME + "[DEBUG] containing ";
         appender.assertLogMessage(front);
         appender.assertNoLogMessages();
 
@@ -226,8 +270,8 @@ public class AlertQueueTest
 
         // the previous push should cause a 'reenabled' log message
         final String reMsg = "Reenabled alert queue " +
-            AlertQueue.DEFAULT_NAME + " containing 0 messages (dropped " +
-            aq.getNumDropped() + ")";
+            AlertQueue.DEFAULT_NAME + "[DEBUG] containing 0 messages" +
+            " (dropped " + aq.getNumDropped() + ")";
         appender.assertLogMessage(reMsg);
         appender.assertNoLogMessages();
 
@@ -239,4 +283,1191 @@ public class AlertQueueTest
         assertEquals("Bad number of alerts sent",
                      sent - aq.getNumDropped(), aq.getNumSent());
     }
+
+    @Test
+    public void testMaxQueueBytes()
+        throws AlertException
+    {
+        AlertQueue aq = new AlertQueue(alerter);
+
+        // each alert holds a 1000-character string (about 2000 bytes)
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            buf.append((char) ('a' + i % 26));
+        }
+        final String bigStr = buf.toString();
+
+        final long maxBytes = 10000;
+        aq.setMaxQueueBytes(maxBytes);
+        alerter.setSendDelay(500);
+
+        startQueue(aq);
+
+        final int numAlerts = 20;
+        for (int i = 0; i < numAlerts; i++) {
+            HashMap<String, Object> map = new HashMap<String, Object>();
+            map.put("alert", i);
+            map.put("data", bigStr);
+            aq.push(map);
+
+            if (i == 0) {
+                // hold up the sender so the rest are queued
+                waitForSender(aq);
+            }
+        }
+
+        final String front = "Disabled alert queue " +
+            AlertQueue.DEFAULT_NAME + "[DEBUG] containing ";
+        appender.assertLogMessage(front);
+        appender.assertNoLogMessages();
+
+        assertTrue("Queued bytes " + aq.getQueuedBytes() +
+                   " exceeds budget " + maxBytes,
+                   aq.getQueuedBytes() <= maxBytes);
+        assertEquals("Bad DEBUG queued bytes", aq.getQueuedBytes(),
+                     aq.getQueuedBytes(Priority.DEBUG));
+        assertTrue("Expected alerts to be dropped", aq.getNumDropped() > 0);
+
+        flushQueue(aq);
+        aq.stopAndWait();
+
+        assertEquals("Queue should be empty", 0, aq.getQueuedBytes());
+        assertEquals("Bad number of alerts sent",
+                     numAlerts - aq.getNumDropped(), aq.getNumSent());
+    }
+
+    @Test
+    public void testBatchSend()
+        throws AlertException
+    {
+        AlertQueue aq = new AlertQueue(alerter);
+        aq.setMaxBatchSize(20);
+
+        // first alert will hold up the sender while the rest are queued
+        alerter.setSendDelay(500);
+
+        startQueue(aq);
+
+        final int numAlerts = 51;
+        for (int i = 0; i < numAlerts; i++) {
+            HashMap<String, Object> map = new HashMap<String, Object>();
+            map.put("alert", i);
+            aq.push(map);
+        }
+
+        flushQueue(aq);
+        aq.stopAndWait();
+
+        assertEquals("Bad number of alerts sent", numAlerts,
+                     aq.getNumSent());
+        assertEquals("Bad number of alerts sent", numAlerts,
+                     alerter.getNumSent());
+        assertTrue("Expected queued alerts to be sent in batches",
+                   alerter.getNumBatches() >= (numAlerts - 1) / 20);
+    }
+
+    @Test
+    public void testPriorityLanes()
+        throws AlertException
+    {
+        AlertQueue aq = new AlertQueue(alerter);
+
+        final int maxSize = 4;
+
+        aq.setMaxQueueSize(maxSize);
+        alerter.setSendDelay(500);
+
+        startQueue(aq);
+
+        // flood the DEBUG queue
+        final int numFlood = maxSize * 3;
+        for (int i = 0; i < numFlood; i++) {
+            aq.push("moni", Priority.DEBUG, null);
+
+            if (i == 0) {
+                // hold up the sender so the rest are queued
+                waitForSender(aq);
+            }
+        }
+
+        // should only receive one error
+        final String front = "Disabled alert queue " +
+            AlertQueue.DEFAULT_NAME + "[DEBUG] containing ";
+        appender.assertLogMessage(front);
+        appender.assertNoLogMessages();
+
+        // high-priority alerts should still get through
+        final int numUrgent = maxSize - 1;
+        for (int i = 0; i < numUrgent; i++) {
+            aq.push("alert", Priority.EMAIL, null);
+        }
+
+        assertEquals("Bad number of EMAIL alerts queued", numUrgent,
+                     aq.getNumQueued(Priority.EMAIL));
+
+        flushQueue(aq);
+        aq.stopAndWait();
+
+        assertEquals("Bad number of EMAIL alerts dropped", 0,
+                     aq.getNumDropped(Priority.EMAIL));
+        assertTrue("DEBUG alerts should have been dropped",
+                   aq.getNumDropped(Priority.DEBUG) > 0);
+        assertEquals("Bad total number of dropped alerts",
+                     aq.getNumDropped(Priority.DEBUG), aq.getNumDropped());
+        assertEquals("Bad EMAIL high-water mark", numUrgent,
+                     aq.getHighWaterMark(Priority.EMAIL));
+        assertEquals("Bad DEBUG high-water mark", maxSize,
+                     aq.getHighWaterMark(Priority.DEBUG));
+        assertEquals("Bad ITS high-water mark", 0,
+                     aq.getHighWaterMark(Priority.ITS));
+        assertEquals("Bad number of alerts sent",
+                     numFlood + numUrgent - aq.getNumDropped(),
+                     aq.getNumSent());
+    }
+
+    @Test
+    public void testCoalesce()
+        throws AlertException
+    {
+        AlertQueue aq = new AlertQueue(alerter);
+        aq.setCoalesceWindow(200);
+
+        startQueue(aq);
+
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        values.put("condition", "Something happened");
+
+        final int numRepeats = 50;
+        for (int i = 0; i <= numRepeats; i++) {
+            aq.push("alert", Priority.EMAIL, new MockUTCTime(i),
+                    new HashMap<String, Object>(values));
+        }
+
+        // a different alert should not be coalesced
+        aq.push("other", Priority.EMAIL, values);
+
+        assertEquals("Bad number of coalesced alerts", numRepeats,
+                     aq.getNumCoalesced());
+
+        for (int i = 0; i < 100 && alerter.getNumSent() < 3; i++) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+
+        flushQueue(aq);
+        aq.stopAndWait();
+
+        assertEquals("Bad number of alerts sent", 3, aq.getNumSent());
+
+        Map summary = null;
+        for (Object obj : alerter.getSentObjects()) {
+            Map map = (Map) obj;
+            Map vals = (Map) map.get("value");
+            if (vals.containsKey(AlertCoalescer.REPEAT_COUNT)) {
+                assertNull("Found multiple summaries", summary);
+                summary = vals;
+            }
+        }
+
+        assertNotNull("No summary alert was sent", summary);
+        assertEquals("Bad repeat count", numRepeats,
+                     summary.get(AlertCoalescer.REPEAT_COUNT));
+        assertEquals("Bad first time", new MockUTCTime(0).toDateString(),
+                     summary.get(AlertCoalescer.FIRST_TIME));
+        assertEquals("Bad last time",
+                     new MockUTCTime(numRepeats).toDateString(),
+                     summary.get(AlertCoalescer.LAST_TIME));
+        assertEquals("Bad condition", values.get("condition"),
+                     summary.get("condition"));
+    }
+
+    @Test
+    public void testCoalesceReusedMap()
+        throws AlertException
+    {
+        AlertQueue aq = new AlertQueue(alerter);
+        aq.setCoalesceWindow(200);
+
+        startQueue(aq);
+
+        // caller reuses one map for every push
+        HashMap<String, Object> values = new HashMap<String, Object>();
+
+        final int numRepeats = 10;
+        for (int i = 0; i <= numRepeats; i++) {
+            values.clear();
+            values.put("condition", "First");
+            aq.push("alert", Priority.EMAIL, new MockUTCTime(i), values);
+        }
+
+        values.clear();
+        values.put("condition", "Second");
+        aq.push("alert", Priority.EMAIL, new MockUTCTime(99), values);
+
+        assertEquals("Bad number of coalesced alerts", numRepeats,
+                     aq.getNumCoalesced());
+
+        for (int i = 0; i < 100 && alerter.getNumSent() < 3; i++) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+
+        flushQueue(aq);
+        aq.stopAndWait();
+
+        Map summary = null;
+        for (Object obj : alerter.getSentObjects()) {
+            Map vals = (Map) ((Map) obj).get("value");
+            if (vals.containsKey(AlertCoalescer.REPEAT_COUNT)) {
+                summary = vals;
+            }
+        }
+
+        assertNotNull("No summary alert was sent", summary);
+        assertEquals("Summary used the caller's changed map", "First",
+                     summary.get("condition"));
+    }
+
+    @Test
+    public void testRateLimit()
+        throws AlertException
+    {
+        AlertQueue aq = new AlertQueue(alerter);
+
+        // one push per hour after a burst of 5
+        final int burst = 5;
+        aq.setRateLimit(Priority.DEBUG, 1.0 / 3600.0, burst);
+        aq.setRateLimit("chatty*", 1.0 / 3600.0, 1);
+
+        startQueue(aq);
+
+        final int numPushes = 20;
+        for (int i = 0; i < numPushes; i++) {
+            aq.push("moni", Priority.DEBUG, null);
+            aq.push("other", Priority.DEBUG, null);
+            aq.push("chattyMoni", Priority.DEBUG, null);
+            aq.push("alert", Priority.EMAIL, null);
+        }
+
+        flushQueue(aq);
+        aq.stopAndWait();
+
+        assertEquals("Bad number of alerts sent",
+                     burst * 2 + 1 + numPushes, aq.getNumSent());
+        assertEquals("Bad number of suppressed alerts",
+                     (numPushes - burst) * 2 + numPushes - 1,
+                     aq.getNumSuppressed());
+
+        Map<String, Long> counts = aq.getSuppressedCounts();
+        assertEquals("Bad number of suppressed varnames", 3, counts.size());
+        assertEquals("Bad moni count", Long.valueOf(numPushes - burst),
+                     counts.get("moni"));
+        assertEquals("Bad other count", Long.valueOf(numPushes - burst),
+                     counts.get("other"));
+        assertEquals("Bad chattyMoni count", Long.valueOf(numPushes - 1),
+                     counts.get("chattyMoni"));
+        assertNull("EMAIL alerts should not be limited", counts.get("alert"));
+    }
+
+    @Test
+    public void testRateLimitManyVarnames()
+    {
+        AlertRateLimiter limiter = new AlertRateLimiter();
+        limiter.setLimit("limited*", 1.0 / 3600.0, 1);
+
+        // varnames without a limit don't use up tracking slots
+        for (int i = 0; i < AlertRateLimiter.MAX_TRACKED * 2; i++) {
+            assertTrue("Unlimited push was rejected",
+                       limiter.allow("free" + i, Priority.DEBUG));
+        }
+        for (int i = 0; i < AlertRateLimiter.MAX_TRACKED; i++) {
+            assertTrue("First push was rejected",
+                       limiter.allow("limited" + i, Priority.DEBUG));
+            assertFalse("Second push was allowed",
+                        limiter.allow("limited" + i, Priority.DEBUG));
+        }
+
+        // new varnames share a single bucket once the map is full
+        assertTrue("First overflow push was rejected",
+                   limiter.allow("limitedNew", Priority.DEBUG));
+        assertFalse("Second overflow push was allowed",
+                    limiter.allow("limitedOther", Priority.DEBUG));
+
+        Map<String, Long> counts = limiter.getSuppressedCounts();
+        assertEquals("Bad overflow count", Long.valueOf(1L),
+                     counts.get(AlertRateLimiter.OVERFLOW_NAME));
+        assertEquals("Bad number of suppressed pushes",
+                     AlertRateLimiter.MAX_TRACKED + 1,
+                     limiter.getNumSuppressed());
+    }
+
+    @Test
+    public void testOverflowJournal()
+        throws AlertException, java.io.IOException
+    {
+        File tmpDir = File.createTempFile("aqjnl", "");
+        tmpDir.delete();
+
+        AlertQueue aq = new AlertQueue(alerter);
+
+        final int maxSize = 4;
+
+        aq.setMaxQueueSize(maxSize);
+        aq.setOverflowJournal(tmpDir);
+        alerter.setSendDelay(500);
+
+        startQueue(aq);
+
+        final int numAlerts = maxSize * 5;
+        for (int i = 0; i < numAlerts; i++) {
+            HashMap<String, Object> map = new HashMap<String, Object>();
+            map.put("alert", i);
+            aq.push(map);
+        }
+
+        assertTrue("No alerts were spilled", aq.getNumSpilled() > 0);
+
+        flushQueue(aq);
+        aq.stopAndWait();
+
+        final File jnlDir = new File(tmpDir, Priority.DEBUG.toString());
+        appender.assertLogMessage("Spilling alerts to " + jnlDir);
+        appender.assertLogMessage("Finished replaying alerts from " + jnlDir);
+        appender.assertNoLogMessages();
+
+        assertEquals("Bad number of alerts dropped", 0, aq.getNumDropped());
+        assertEquals("Bad number of alerts spilled", 0, aq.getNumSpilled());
+        assertEquals("Bad number of alerts sent", numAlerts, aq.getNumSent());
+
+        // alerts should have been sent in order
+        int num = 0;
+        for (Object obj : alerter.getSentObjects()) {
+            final String expected = "{\"alert\":" + num + "}";
+            if (obj instanceof EncodedAlert) {
+                assertEquals("Bad journaled alert", expected, obj.toString());
+            } else {
+                assertEquals("Bad queued alert", num, ((Map) obj).get("alert"));
+            }
+            num++;
+        }
+
+        assertEquals("Journal files were not deleted", 0,
+                     jnlDir.listFiles().length);
+
+        for (Priority prio : Priority.values()) {
+            new File(tmpDir, prio.toString()).delete();
+        }
+        tmpDir.delete();
+    }
+
+    @Test
+    public void testJournalWakesSender()
+        throws AlertException, java.io.IOException, InterruptedException
+    {
+        File tmpDir = File.createTempFile("aqjnl", "");
+        tmpDir.delete();
+
+        AlertQueue aq = new AlertQueue(alerter);
+
+        // every alert is too big for the queue, so it goes straight to
+        // the journal while the sender is idle
+        aq.setMaxQueueBytes(1);
+        aq.setOverflowJournal(tmpDir);
+
+        startQueue(aq);
+
+        // 'idle' is set just before the sender parks, so give it time to
+        // fall asleep
+        Thread.sleep(100);
+
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("alert", 0);
+        aq.push(map);
+
+        // nothing else is pushed, so the spill itself must wake the sender
+        for (int i = 0; i < 200 && aq.getNumSent() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("Journaled alert was not replayed", 1, aq.getNumSent());
+
+        aq.stopAndWait();
+
+        final File jnlDir = new File(tmpDir, Priority.DEBUG.toString());
+        appender.assertLogMessage("Spilling alerts to " + jnlDir);
+        appender.assertLogMessage("Finished replaying alerts from " + jnlDir);
+        appender.assertNoLogMessages();
+
+        for (Priority prio : Priority.values()) {
+            new File(tmpDir, prio.toString()).delete();
+        }
+        tmpDir.delete();
+    }
+
+    @Test
+    public void testDroppedRecordNotReleased()
+        throws AlertException
+    {
+        AlertQueue aq = new AlertQueue(alerter);
+
+        // every alert is too big for the queue, so each one is dropped
+        aq.setMaxQueueBytes(1);
+
+        startQueue(aq);
+
+        AlertRecord rec =
+            AlertRecord.acquire(this, "pdaq", "callerOwned", Priority.SCP,
+                                "2026-10-17 00:00:00.000000", null);
+
+        aq.push(rec);
+        assertEquals("Alert was not dropped", 1, aq.getNumDropped());
+        assertTrue("Caller's record was released", rec.isInUse());
+        assertEquals("Caller's record was cleared", "callerOwned",
+                     rec.getVarname());
+
+        aq.stopAndWait();
+
+        appender.assertLogMessage("Disabled alert queue " +
+                                  AlertQueue.DEFAULT_NAME + "[SCP]");
+        appender.assertNoLogMessages();
+
+        AlertRecord.release(this, rec);
+    }
+
+    @Test
+    public void testRingReusesChunks()
+    {
+        final int chunk = AlertRingBuffer.MAX_CHUNK_SIZE;
+        AlertRingBuffer<Integer> ring =
+            new AlertRingBuffer<Integer>(4 * chunk, new AlertWaiter());
+        assertEquals("Bad capacity", 4 * chunk, ring.capacity());
+        assertEquals("Chunks allocated before use", 0, ring.getNumChunks());
+
+        // each chunk is allocated the first time the ring reaches it
+        for (int i = 0; i < 10 * chunk; i++) {
+            assertTrue("Cannot add #" + i, ring.offer(i));
+            assertEquals("Bad entry", Integer.valueOf(i), ring.poll());
+        }
+        assertEquals("Bad number of chunks", 4, ring.getNumChunks());
+
+        // fill the ring, then make sure it wraps around in order
+        for (int i = 0; i < 4 * chunk; i++) {
+            assertTrue("Cannot add #" + i, ring.offer(i));
+        }
+        assertFalse("Added to full ring", ring.offer(-1));
+
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        assertEquals("Bad number drained", 4 * chunk,
+                     ring.drainTo(list, Integer.MAX_VALUE));
+        for (int i = 0; i < list.size(); i++) {
+            assertEquals("Bad drained entry", Integer.valueOf(i),
+                         list.get(i));
+        }
+        assertEquals("Chunks were not reused", 4, ring.getNumChunks());
+        assertTrue("Ring should be empty", ring.isEmpty());
+    }
+
+    @Test
+    public void testManyProducers()
+        throws AlertException, InterruptedException
+    {
+        final AlertQueue aq = new AlertQueue(alerter);
+
+        startQueue(aq);
+
+        final int numThreads = 8;
+        final int numAlerts = 5000;
+
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int threadNum = t;
+            threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        for (int i = 0; i < numAlerts; i++) {
+                            HashMap<String, Object> map =
+                                new HashMap<String, Object>();
+                            map.put("alert", threadNum * numAlerts + i);
+                            try {
+                                aq.push(map);
+                            } catch (AlertException ae) {
+                                throw new Error("Cannot push alert", ae);
+                            }
+                        }
+                    }
+                });
+            threads[t].setName("Producer#" + t);
+            threads[t].start();
+        }
+
+        for (int t = 0; t < numThreads; t++) {
+            threads[t].join();
+        }
+
+        aq.stopAndWait();
+
+        assertEquals("Bad number of alerts queued", 0, aq.getNumQueued());
+        assertEquals("Bad number of alerts dropped", 0, aq.getNumDropped());
+        assertEquals("Bad number of alerts sent", numThreads * numAlerts,
+                     aq.getNumSent());
+        assertEquals("Bad number of alerts sent", numThreads * numAlerts,
+                     alerter.getNumSent());
+    }
+
+    @Test
+    public void testStatistics()
+        throws AlertException
+    {
+        AlertQueue aq = new AlertQueue(alerter);
+        AlertQueueStatistics stats = new AlertQueueStatistics(aq);
+
+        long[] latency = stats.getLatency();
+        assertEquals("Bad number of latency values", 3, latency.length);
+        assertEquals("Latency should be empty", 0L, latency[2]);
+
+        // first alert will hold up the sender while the rest are queued
+        final long delay = 100;
+        alerter.setSendDelay(delay);
+
+        startQueue(aq);
+
+        final int numAlerts = 10;
+        for (int i = 0; i < numAlerts; i++) {
+            aq.push("stats", Priority.EMAIL, new MockUTCTime(i), null);
+            if (i == 0) {
+                waitForSender(aq);
+            }
+        }
+
+        flushQueue(aq);
+        aq.stopAndWait();
+
+        assertEquals("Bad number of alerts sent", (long) numAlerts,
+                     stats.getNumSent());
+        assertEquals("Bad number of queued alerts", 0, stats.getNumQueued());
+        assertEquals("Bad queued bytes", 0L, stats.getQueuedBytes());
+        assertEquals("Bad number of spilled alerts", 0L,
+                     stats.getNumSpilled());
+
+        assertEquals("Bad number of drop counts", Priority.values().length,
+                     stats.getNumDropped().size());
+        assertEquals("Bad EMAIL drops", Long.valueOf(0),
+                     stats.getNumDropped().get("EMAIL"));
+        assertTrue("Bad EMAIL high-water mark",
+                   stats.getHighWaterMarks().get("EMAIL") >= 1);
+
+        final long delayMicros = delay * 1000L;
+
+        latency = stats.getLatency();
+        assertTrue("Latency median " + latency[0] + " > max " + latency[2],
+                   latency[0] <= latency[2]);
+        assertTrue("Latency p99 " + latency[1] + " > max " + latency[2],
+                   latency[1] <= latency[2]);
+        assertTrue("Max latency " + latency[2] + " should include " +
+                   delayMicros + " us send delay", latency[2] >= delayMicros);
+
+        final long[] sendTime = stats.getSendTime();
+        assertTrue("Max send time " + sendTime[2] + " should include " +
+                   delayMicros + " us send delay", sendTime[2] >= delayMicros);
+
+        // mock alerter doesn't serialize anything
+        assertTrue("Bad serialization time",
+                   Arrays.equals(new long[3], stats.getSerializationTime()));
+    }
+
+    @Test
+    public void testWouldBlock()
+        throws AlertException
+    {
+        AlertQueue aq = new AlertQueue(alerter);
+
+        final int numBlocked = 3;
+        alerter.setNumBlocked(numBlocked);
+
+        startQueue(aq);
+
+        final int numAlerts = 20;
+        for (int i = 0; i < numAlerts; i++) {
+            HashMap<String, Object> map = new HashMap<String, Object>();
+            map.put("alert", i);
+            aq.push(map);
+        }
+
+        flushQueue(aq);
+        aq.stopAndWait();
+
+        appender.assertLogMessage("Alert queue " + aq +
+                                  " is waiting for a slow receiver");
+        appender.assertLogMessage("Alert queue " + aq +
+                                  " receiver has caught up");
+        appender.assertNoLogMessages();
+
+        assertEquals("Bad number of blocked sends", (long) numBlocked,
+                     aq.getNumBlocked());
+        assertEquals("Bad number of alerts dropped", 0, aq.getNumDropped());
+        assertEquals("Bad number of alerts sent", numAlerts, aq.getNumSent());
+
+        // blocked alerts should have been resent in order
+        int num = 0;
+        for (Object obj : alerter.getSentObjects()) {
+            assertEquals("Bad alert", num, ((Map) obj).get("alert"));
+            num++;
+        }
+        assertEquals("Bad number of sent objects", numAlerts, num);
+    }
+
+    @Test
+    public void testWouldBlockWhileStopping()
+        throws AlertException, java.io.IOException
+    {
+        File tmpDir = File.createTempFile("aqjnl", "");
+        tmpDir.delete();
+
+        AlertQueue aq = new AlertQueue(alerter);
+        aq.setOverflowJournal(tmpDir);
+
+        // receiver never catches up
+        alerter.setNumBlocked(Integer.MAX_VALUE);
+
+        startQueue(aq);
+
+        final int numAlerts = 10;
+        for (int i = 0; i < numAlerts; i++) {
+            HashMap<String, Object> map = new HashMap<String, Object>();
+            map.put("alert", i);
+            aq.push(map);
+        }
+
+        aq.stopAndWait();
+
+        final File jnlDir = new File(tmpDir, Priority.DEBUG.toString());
+        appender.assertLogMessage("Alert queue " + aq +
+                                  " is waiting for a slow receiver");
+        appender.assertLogMessage("Spilling alerts to " + jnlDir);
+        appender.assertNoLogMessages();
+
+        assertEquals("Bad number of alerts sent", 0, aq.getNumSent());
+        assertEquals("Bad number of alerts dropped", 0, aq.getNumDropped());
+        assertEquals("Unsent alerts were not journaled", numAlerts,
+                     aq.getNumSpilled());
+
+        // journaled alerts are sent by the next queue
+        alerter.setNumBlocked(0);
+
+        AlertQueue next = new AlertQueue(alerter);
+        next.setOverflowJournal(tmpDir);
+        assertEquals("Journaled alerts were not recovered", numAlerts,
+                     next.getNumSpilled());
+
+        startQueue(next);
+        flushQueue(next);
+        next.stopAndWait();
+
+        appender.assertLogMessage("Recovered " + numAlerts +
+                                  " alerts from " + jnlDir);
+        appender.assertLogMessage("Finished replaying alerts from " + jnlDir);
+        appender.assertNoLogMessages();
+
+        assertEquals("Bad number of alerts sent", numAlerts,
+                     next.getNumSent());
+        assertEquals("Bad number of alerts spilled", 0, next.getNumSpilled());
+
+        for (Priority prio : Priority.values()) {
+            new File(tmpDir, prio.toString()).delete();
+        }
+        tmpDir.delete();
+    }
+
+    @Test
+    public void testParked()
+        throws AlertException, InterruptedException
+    {
+        AlertQueue aq = new AlertQueue(alerter);
+
+        alerter.setDown(true);
+        startParked(aq);
+
+        final int numAlerts = 10;
+        for (int i = 0; i < numAlerts; i++) {
+            HashMap<String, Object> map = new HashMap<String, Object>();
+            map.put("alert", i);
+            aq.push(map);
+        }
+
+        // give the sender time to notice the alerts
+        Thread.sleep(200);
+
+        assertEquals("Alerts were sent to a receiver which is down", 0,
+                     alerter.getNumSent());
+        assertEquals("Bad number of queued alerts", numAlerts,
+                     aq.getNumQueued());
+        assertTrue("Sender did not park", aq.getNumParked() > 0);
+
+        AlertQueueStatistics stats = new AlertQueueStatistics(aq);
+        assertEquals("Bad alerter state", "DOWN", stats.getAlerterState());
+
+        alerter.setDown(false);
+        flushQueue(aq);
+        aq.stopAndWait();
+
+        appender.assertLogMessage("Alert queue " + aq +
+                                  " is holding alerts; " + alerter +
+                                  " is down");
+        appender.assertLogMessage("Alert queue " + aq +
+                                  " resumed sending to " + alerter);
+        appender.assertNoLogMessages();
+
+        assertEquals("Bad alerter state", "CONNECTED",
+                     stats.getAlerterState());
+        assertEquals("Bad number of state changes", 2L,
+                     stats.getAlerterStateChanges());
+        assertEquals("Bad number of alerts dropped", 0, aq.getNumDropped());
+        assertEquals("Bad number of alerts sent", numAlerts, aq.getNumSent());
+
+        // held alerts should have been sent in order
+        int num = 0;
+        for (Object obj : alerter.getSentObjects()) {
+            assertEquals("Bad alert", num, ((Map) obj).get("alert"));
+            num++;
+        }
+        assertEquals("Bad number of sent objects", numAlerts, num);
+    }
+
+    /**
+     * Stop a queue whose receiver is down, after changing the batch size.
+     *
+     * @param startSize batch size when the queue is started
+     * @param stopSize batch size when the queue is stopped
+     */
+    private void checkParkedWhileStopping(int startSize, int stopSize)
+        throws AlertException, java.io.IOException
+    {
+        File tmpDir = File.createTempFile("aqjnl", "");
+        tmpDir.delete();
+
+        AlertQueue aq = new AlertQueue(alerter);
+        aq.setOverflowJournal(tmpDir);
+        aq.setMaxBatchSize(startSize);
+
+        alerter.setDown(true);
+        startParked(aq);
+
+        aq.setMaxBatchSize(stopSize);
+
+        final int numAlerts = 10;
+        for (int i = 0; i < numAlerts; i++) {
+            HashMap<String, Object> map = new HashMap<String, Object>();
+            map.put("alert", i);
+            aq.push(map);
+        }
+
+        aq.stopAndWait();
+
+        final File jnlDir = new File(tmpDir, Priority.DEBUG.toString());
+        appender.assertLogMessage("Alert queue " + aq +
+                                  " is holding alerts; " + alerter +
+                                  " is down");
+        appender.assertLogMessage("Spilling alerts to " + jnlDir);
+        appender.assertNoLogMessages();
+
+        assertEquals("Alerts were sent to a receiver which is down", 0,
+                     alerter.getNumSent());
+        assertEquals("Bad number of alerts dropped", 0, aq.getNumDropped());
+        assertEquals("Unsent alerts were not journaled", numAlerts,
+                     aq.getNumSpilled());
+
+        for (Priority prio : Priority.values()) {
+            File dir = new File(tmpDir, prio.toString());
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            dir.delete();
+        }
+        tmpDir.delete();
+    }
+
+    @Test
+    public void testParkedWhileStopping()
+        throws AlertException, java.io.IOException
+    {
+        checkParkedWhileStopping(100, 100);
+    }
+
+    @Test
+    public void testParkedWhileStoppingBiggerBatch()
+        throws AlertException, java.io.IOException
+    {
+        checkParkedWhileStopping(1, 20);
+    }
+
+    @Test
+    public void testParkedRoute()
+        throws AlertException, InterruptedException
+    {
+        MockAlerter moni = new MockAlerter();
+
+        AlertQueue aq = new AlertQueue(alerter);
+        aq.addRoute(null, "moni*", moni);
+
+        alerter.setDown(true);
+        startQueue(aq);
+
+        aq.push("alert", Priority.EMAIL, new MockUTCTime(1), null);
+        aq.push("moniRate", Priority.DEBUG, new MockUTCTime(2), null);
+
+        // give the sender time to notice the alerts
+        Thread.sleep(200);
+
+        assertEquals("Routed alert was not sent", 1, moni.getNumSent());
+        assertEquals("Alerts were sent to a receiver which is down", 0,
+                     alerter.getNumSent());
+        assertTrue("Sender did not park", aq.getNumParked() > 0);
+        assertEquals("Sender should not treat a receiver which is down" +
+                     " as slow", 0, aq.getNumBlocked());
+
+        alerter.setDown(false);
+        flushQueue(aq);
+        aq.stopAndWait();
+
+        appender.assertNoLogMessages();
+
+        assertEquals("Held alert was not sent", 1, alerter.getNumSent());
+        assertEquals("Bad number of alerts sent", 2, aq.getNumSent());
+    }
+
+    @Test
+    public void testParkedAllRoutes()
+        throws AlertException, InterruptedException
+    {
+        MockAlerter moni = new MockAlerter();
+
+        AlertQueue aq = new AlertQueue(alerter);
+        aq.addRoute(null, "moni*", moni);
+
+        alerter.setDown(true);
+        moni.setDown(true);
+        startParked(aq);
+
+        aq.push("alert", Priority.EMAIL, new MockUTCTime(1), null);
+        aq.push("moniRate", Priority.DEBUG, new MockUTCTime(2), null);
+
+        // give the sender time to notice the alerts
+        Thread.sleep(200);
+
+        assertEquals("Bad number of queued alerts", 2, aq.getNumQueued());
+        assertEquals("Bad number of alerts sent", 0, aq.getNumSent());
+
+        alerter.setDown(false);
+        moni.setDown(false);
+        flushQueue(aq);
+        aq.stopAndWait();
+
+        appender.assertLogMessage("Alert queue " + aq +
+                                  " is holding alerts; " + alerter +
+                                  " is down");
+        appender.assertLogMessage("Alert queue " + aq +
+                                  " resumed sending to " + alerter);
+        appender.assertNoLogMessages();
+
+        assertEquals("Bad number of alerts sent", 2, aq.getNumSent());
+        assertEquals("Bad number of routed alerts", 1, moni.getNumSent());
+    }
+
+    @Test
+    public void testRoutedReplayFailure()
+        throws AlertException, java.io.IOException, InterruptedException
+    {
+        File tmpDir = File.createTempFile("aqjnl", "");
+        tmpDir.delete();
+
+        MockAlerter moni = new MockAlerter();
+
+        AlertQueue aq = new AlertQueue(alerter);
+        aq.addRoute(null, "moni*", moni);
+
+        // every alert is too big for the queue, so each one is journaled
+        aq.setMaxQueueBytes(1);
+        aq.setOverflowJournal(tmpDir);
+
+        // hold the alerts until both are in the journal
+        alerter.setDown(true);
+        moni.setDown(true);
+        startParked(aq);
+
+        aq.push("moniRate", Priority.DEBUG, new MockUTCTime(1), null);
+        aq.push("chatter", Priority.DEBUG, new MockUTCTime(2), null);
+
+        // the default alerter fails the first replay
+        alerter.setNumFailed(1);
+        alerter.setDown(false);
+        moni.setDown(false);
+
+        for (int i = 0; i < 300 && aq.getNumSent() < 2; i++) {
+            Thread.sleep(10);
+        }
+
+        aq.stopAndWait();
+
+        final File jnlDir = new File(tmpDir, Priority.DEBUG.toString());
+        appender.assertLogMessage("Alert queue " + aq +
+                                  " is holding alerts; " + alerter +
+                                  " is down");
+        appender.assertLogMessage("Spilling alerts to " + jnlDir);
+        appender.assertLogMessage("Alert queue " + aq +
+                                  " resumed sending to " + alerter);
+        appender.assertLogMessage("Alert queue " + aq + " cannot send ");
+        appender.assertLogMessage("Finished replaying alerts from " +
+                                  jnlDir);
+        appender.assertNoLogMessages();
+
+        assertEquals("Routed alert was sent more than once", 1,
+                     moni.getNumSent());
+        assertEquals("Failed alert was not replayed", 1,
+                     alerter.getNumSent());
+        assertEquals("Bad number of alerts sent", 2, aq.getNumSent());
+
+        for (Priority prio : Priority.values()) {
+            new File(tmpDir, prio.toString()).delete();
+        }
+        tmpDir.delete();
+    }
+
+    @Test
+    public void testRoutes()
+        throws AlertException
+    {
+        MockAlerter debug = new MockAlerter();
+        MockAlerter moni = new MockAlerter();
+
+        AlertQueue aq = new AlertQueue(alerter);
+        aq.addRoute(null, "moni*", moni);
+        aq.addRoute(Priority.DEBUG, null, debug);
+
+        startQueue(aq);
+
+        aq.push("alert", Priority.EMAIL, new MockUTCTime(1), null);
+        aq.push("moniRate", Priority.DEBUG, new MockUTCTime(2), null);
+        aq.push("chatter", Priority.DEBUG, new MockUTCTime(3), null);
+        aq.push("moniCount", Priority.SCP, new MockUTCTime(4), null);
+        aq.push("other", Priority.SCP, new MockUTCTime(5), null);
+
+        flushQueue(aq);
+        aq.stopAndWait();
+
+        assertEquals("Bad number of alerts sent", 5, aq.getNumSent());
+
+        final String[][] expected = new String[][] {
+            { "alert", "other" },
+            { "moniRate", "moniCount" },
+            { "chatter" },
+        };
+        final MockAlerter[] mocks = new MockAlerter[] {
+            alerter, moni, debug,
+        };
+
+        for (int m = 0; m < mocks.length; m++) {
+            List<Object> sent = mocks[m].getSentObjects();
+
+            // alerts are sent in priority order
+            ArrayList<String> names = new ArrayList<String>();
+            for (Object obj : sent) {
+                names.add((String) ((Map) obj).get("varname"));
+            }
+            java.util.Collections.sort(names);
+
+            ArrayList<String> expNames =
+                new ArrayList<String>(Arrays.asList(expected[m]));
+            java.util.Collections.sort(expNames);
+
+            assertEquals("Bad alerts for alerter #" + m, expNames, names);
+            assertTrue("Alerter #" + m + " was not closed",
+                       mocks[m].isClosed());
+        }
+    }
+
+    @Test
+    public void testPushAsync()
+        throws Exception
+    {
+        AlertQueue aq = new AlertQueue(alerter);
+        aq.setMaxQueueSize(1);
+        aq.setRateLimit("limited", 1.0, 1);
+
+        // hold up the sender so the queue fills
+        alerter.setSendDelay(200);
+
+        startQueue(aq);
+
+        AlertFuture first =
+            aq.pushAsync("first", Priority.DEBUG, new MockUTCTime(1), null);
+        waitForSender(aq);
+
+        AlertFuture queued =
+            aq.pushAsync("queued", Priority.DEBUG, new MockUTCTime(2), null);
+        AlertFuture dropped =
+            aq.pushAsync("dropped", Priority.DEBUG, new MockUTCTime(3), null);
+        assertEquals("Bad dropped status", AlertFuture.Status.DROPPED,
+                     dropped.getStatus());
+
+        aq.pushAsync("limited", Priority.DEBUG, new MockUTCTime(4), null);
+        AlertFuture limited =
+            aq.pushAsync("limited", Priority.DEBUG, new MockUTCTime(5), null);
+        assertEquals("Bad rate-limited status", AlertFuture.Status.SUPPRESSED,
+                     limited.getStatus());
+
+        assertFalse("Queued alert should not be done", queued.isDone());
+
+        assertEquals("Bad first status", AlertFuture.Status.SENT,
+                     first.get(1, java.util.concurrent.TimeUnit.SECONDS));
+        assertEquals("Bad queued status", AlertFuture.Status.SENT,
+                     queued.get());
+        assertFalse("Alerts cannot be cancelled", queued.cancel(true));
+
+        aq.stopAndWait();
+
+        appender.assertLogMessage("Disabled alert queue");
+        appender.clear();
+    }
+
+    @Test
+    public void testFlush()
+        throws AlertException
+    {
+        AlertQueue aq = new AlertQueue(alerter);
+        aq.setMaxBatchSize(1);
+
+        startQueue(aq);
+
+        alerter.setSendDelay(100);
+
+        final int numAlerts = 5;
+        for (int i = 0; i < numAlerts; i++) {
+            aq.push("flush", Priority.SCP, new MockUTCTime(i), null);
+        }
+
+        assertEquals("Bad number of alerts flushed", (long) numAlerts,
+                     aq.flush(10000));
+        assertEquals("Queue was not flushed", 0, aq.getNumQueued());
+        assertEquals("Bad number of alerts sent", numAlerts,
+                     alerter.getNumSent());
+
+        assertEquals("Empty queue should not send anything", 0L,
+                     aq.flush(10000));
+
+        assertEquals("Nothing should have been abandoned", 0L,
+                     aq.stop(1000));
+        assertTrue("Queue was not stopped", aq.isStopped());
+    }
+
+    @Test
+    public void testStopAbandons()
+        throws Exception
+    {
+        AlertQueue aq = new AlertQueue(alerter);
+        aq.setMaxBatchSize(1);
+
+        // first send takes longer than stop() is willing to wait
+        alerter.setSendDelay(500);
+
+        startQueue(aq);
+
+        final int numAlerts = 5;
+        AlertFuture[] futures = new AlertFuture[numAlerts];
+        for (int i = 0; i < numAlerts; i++) {
+            futures[i] = aq.pushAsync("stop", Priority.SCP,
+                                      new MockUTCTime(i), null);
+            if (i == 0) {
+                waitForSender(aq);
+            }
+        }
+
+        final long start = System.currentTimeMillis();
+        final long abandoned = aq.stop(100);
+        final long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("Queue was not stopped", aq.isStopped());
+        assertTrue("Stopping took " + elapsed + " ms", elapsed < 2000);
+
+        assertEquals("Bad number of abandoned alerts", (long) numAlerts - 1,
+                     abandoned);
+        assertEquals("Bad total abandoned", abandoned, aq.getNumAbandoned());
+        assertEquals("Bad number of alerts sent", 1, aq.getNumSent());
+
+        assertEquals("First alert should have been sent",
+                     AlertFuture.Status.SENT, futures[0].get());
+        for (int i = 1; i < numAlerts; i++) {
+            assertEquals("Bad status for alert #" + i,
+                         AlertFuture.Status.ABANDONED, futures[i].getStatus());
+        }
+    }
+
+    @Test
+    public void testRecordsRecycled()
+        throws Exception
+    {
+        AlertQueue aq = new AlertQueue(alerter);
+        startQueue(aq);
+
+        final int numAlerts = 3;
+        for (int i = 0; i < numAlerts; i++) {
+            aq.push("kept#" + i, Priority.SCP, new MockUTCTime(i), null);
+        }
+        aq.flush(10000);
+
+        // the mock alerter keeps the records, so they can't be recycled
+        List<Object> sent = alerter.getSentObjects();
+        assertEquals("Bad number of alerts sent", numAlerts, sent.size());
+        for (int i = 0; i < numAlerts; i++) {
+            AlertRecord rec = (AlertRecord) sent.get(i);
+            assertTrue("Record #" + i + " was recycled", rec.isInUse());
+            assertEquals("Bad varname #" + i, "kept#" + i, rec.get("varname"));
+        }
+
+        aq.stop(1000);
+
+        File tmpFile = File.createTempFile("alerts", ".log");
+        try {
+            FileAlerter fa = new FileAlerter(tmpFile);
+
+            AlertQueue fq = new AlertQueue(fa);
+            startQueue(fq);
+
+            final int numFile = 500;
+            for (int i = 0; i < numFile; i++) {
+                fq.push("file#" + i, Priority.SCP, new MockUTCTime(i), null);
+            }
+            fq.flush(10000);
+            fq.stop(1000);
+
+            assertTrue("No records were recycled",
+                       AlertRecord.getPoolSize() > 0);
+
+            // recycled records must not have been reused before they
+            // were written
+            BufferedReader rdr = new BufferedReader(new FileReader(tmpFile));
+            try {
+                for (int i = 0; i < numFile; i++) {
+                    final String line = rdr.readLine();
+                    assertNotNull("Missing alert #" + i, line);
+                    assertTrue("Bad alert #" + i + ": " + line,
+                               line.contains("\"varname\":\"file#" + i +
+                                             "\""));
+                }
+                assertNull("Extra alerts in file", rdr.readLine());
+            } finally {
+                rdr.close();
+            }
+        } finally {
+            tmpFile.delete();
+        }
+    }
 }
@@ -0,0 +1,138 @@
+package icecube.daq.juggler.alert;
+
+import com.google.gson.Gson;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class AlertRecordTest
+{
+    private static HashMap<String, Object> buildEnvelope(String service,
+                                                         String varname,
+                                                         int prio,
+                                                         String dateStr,
+                                                         Map values)
+    {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("service", service);
+        map.put("varname", varname);
+        map.put("prio", prio);
+        map.put("t", dateStr);
+        if (values != null && values.size() > 0) {
+            map.put("value", values);
+        }
+        return map;
+    }
+
+    @Test
+    public void testMapView()
+    {
+        HashMap<String, Object> vars = new HashMap<String, Object>();
+        vars.put("condition", "Something happened");
+        vars.put("count", 17);
+
+        final String dateStr = "2026-10-16 12:34:56.789000";
+
+        Map[] valueCases = new Map[] { vars, null, new HashMap() };
+        for (Map values : valueCases) {
+            AlertRecord rec =
+                AlertRecord.acquire(this, "pdaq", "alert",
+                                    Alerter.Priority.SCP, dateStr, values);
+
+            HashMap<String, Object> map =
+                buildEnvelope("pdaq", "alert",
+                              Alerter.Priority.SCP.value(), dateStr, values);
+
+            assertEquals("Bad size", map.size(), rec.size());
+            assertEquals("Record does not match map", map, rec);
+            assertEquals("Map does not match record", rec, map);
+            assertEquals("Bad hash code", map.hashCode(), rec.hashCode());
+            for (String key : map.keySet()) {
+                assertTrue("Missing " + key, rec.containsKey(key));
+                assertEquals("Bad " + key, map.get(key), rec.get(key));
+            }
+
+            assertEquals("Bad priority", Alerter.Priority.SCP,
+                         rec.getPriority());
+
+            AlertRecord.release(this, rec);
+        }
+    }
+
+    @Test
+    public void testEncoding()
+        throws Exception
+    {
+        HashMap<String, Object> vars = new HashMap<String, Object>();
+        vars.put("count", 17);
+
+        AlertRecord rec =
+            AlertRecord.acquire(this, "pdaq", "moni",
+                                Alerter.Priority.DEBUG,
+                                "2026-10-16 00:00:00.000000", vars);
+        HashMap<String, Object> map =
+            buildEnvelope("pdaq", "moni", Alerter.Priority.DEBUG.value(),
+                          "2026-10-16 00:00:00.000000", vars);
+
+        JSONEncoder jenc = JSONEncoder.getEncoder();
+        jenc.writeObject(rec);
+        assertEquals("Bad JSON", new Gson().toJson(map), jenc.toString());
+
+        // CBOR integers are decoded as longs
+        vars.put("count", 17L);
+        map.put("prio", (long) Alerter.Priority.DEBUG.value());
+
+        CBOREncoder cenc = CBOREncoder.getEncoder();
+        cenc.writeObject(rec);
+        assertEquals("Bad CBOR", map,
+                     AlertDecoder.decode(cenc.toByteArray()));
+
+        AlertRecord.release(this, rec);
+    }
+
+    @Test
+    public void testRecycle()
+    {
+        AlertRecord rec =
+            AlertRecord.acquire(this, "pdaq", "first",
+                                Alerter.Priority.EMAIL, "x", null);
+        assertTrue("New record should be in use", rec.isInUse());
+
+        AlertRecord.release(this, rec);
+        assertFalse("Released record should not be in use", rec.isInUse());
+        assertNull("Released record kept its varname", rec.getVarname());
+
+        final int poolSize = AlertRecord.getPoolSize();
+        AlertRecord.release(this, rec);
+        assertEquals("Record was released twice", poolSize,
+                     AlertRecord.getPoolSize());
+
+        // ignore anything which isn't a record
+        AlertRecord.release(this, new HashMap<String, Object>());
+        assertEquals("Map was added to the pool", poolSize,
+                     AlertRecord.getPoolSize());
+    }
+
+    @Test
+    public void testReleaseByOwner()
+    {
+        final Object other = new Object();
+
+        AlertRecord rec =
+            AlertRecord.acquire(other, "pdaq", "owned",
+                                Alerter.Priority.SCP, "x", null);
+
+        final int poolSize = AlertRecord.getPoolSize();
+        AlertRecord.release(this, rec);
+        assertTrue("Record was released by someone else", rec.isInUse());
+        assertEquals("Bad varname", "owned", rec.getVarname());
+        assertEquals("Record was added to the pool", poolSize,
+                     AlertRecord.getPoolSize());
+
+        AlertRecord.release(other, rec);
+        assertFalse("Owner could not release record", rec.isInUse());
+    }
+}
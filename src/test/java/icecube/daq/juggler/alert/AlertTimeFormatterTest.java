@@ -0,0 +1,202 @@
+package icecube.daq.juggler.alert;
+
+import icecube.daq.juggler.test.MockUTCTime;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class AlertTimeFormatterTest
+{
+    private static final long TICKS_PER_SECOND = 10000000000L;
+
+    private static String expected(Calendar date)
+    {
+        return String.format("%tF %tT.%tL000", date, date, date);
+    }
+
+    private static void checkCalendar(Calendar date)
+    {
+        assertEquals("Bad date string for " + date.getTimeInMillis(),
+                     expected(date), AlertTimeFormatter.format(date));
+    }
+
+    @Test
+    public void testCalendar()
+    {
+        Calendar date = Calendar.getInstance();
+        checkCalendar(date);
+
+        // walk across several seconds so the cached prefix is reused
+        final long start = date.getTimeInMillis();
+        for (long ms = 0; ms < 5000; ms += 7) {
+            date.setTimeInMillis(start + ms);
+            checkCalendar(date);
+        }
+    }
+
+    @Test
+    public void testCalendarZones()
+    {
+        final long millis = 1300000000123L;
+
+        final String[] zones = new String[] {
+            "UTC", "America/Chicago", "Pacific/Auckland", "Asia/Kolkata",
+        };
+
+        // same instant in several zones must not share a cached prefix
+        for (int i = 0; i < 3; i++) {
+            for (String zone : zones) {
+                Calendar date =
+                    new GregorianCalendar(TimeZone.getTimeZone(zone));
+                date.setTimeInMillis(millis);
+                checkCalendar(date);
+            }
+        }
+    }
+
+    @Test
+    public void testCalendarDST()
+    {
+        Calendar date =
+            new GregorianCalendar(TimeZone.getTimeZone("America/Chicago"));
+        date.clear();
+        date.set(2021, Calendar.NOVEMBER, 7, 0, 59, 58);
+
+        // wall clock repeats 01:00-02:00 when daylight time ends
+        final long start = date.getTimeInMillis();
+        for (long ms = 0; ms < 2L * 3600 * 1000; ms += 499) {
+            date.setTimeInMillis(start + ms);
+            checkCalendar(date);
+        }
+    }
+
+    @Test
+    public void testCalendarNegative()
+    {
+        Calendar date = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        for (long ms = -2500; ms < 2500; ms += 3) {
+            date.setTimeInMillis(ms);
+            checkCalendar(date);
+        }
+    }
+
+    @Test
+    public void testUTCTime()
+    {
+        final long base = 123456L * TICKS_PER_SECOND;
+        for (long i = 0; i < 5000; i++) {
+            MockUTCTime utc = new MockUTCTime(base + i * 12345679L);
+            assertEquals("Bad date string for " + utc.longValue(),
+                         utc.toDateString(), AlertTimeFormatter.format(utc));
+        }
+    }
+
+    @Test
+    public void testUTCTimeOtherFormats()
+    {
+        final long base = 98765L * TICKS_PER_SECOND;
+
+        // shorter fraction
+        for (long i = 0; i < 100; i++) {
+            MockUTCTime utc = new MockUTCTime(base + i * 1234567L) {
+                    @Override
+                    public String toDateString()
+                    {
+                        final long frac = longValue() % TICKS_PER_SECOND;
+                        return String.format("day %d.%06d",
+                                             longValue() / TICKS_PER_SECOND,
+                                             frac / 10000L);
+                    }
+                };
+            assertEquals("Bad short date string", utc.toDateString(),
+                         AlertTimeFormatter.format(utc));
+        }
+
+        // fraction which doesn't match the tick value can't be cached
+        for (long i = 0; i < 100; i++) {
+            MockUTCTime utc = new MockUTCTime(base + i * 1234567L) {
+                    @Override
+                    public String toDateString()
+                    {
+                        return "odd." + (longValue() % 7L);
+                    }
+                };
+            assertEquals("Bad odd date string", utc.toDateString(),
+                         AlertTimeFormatter.format(utc));
+        }
+
+        // no fraction
+        MockUTCTime utc = new MockUTCTime(base) {
+                @Override
+                public String toDateString()
+                {
+                    return "no fraction";
+                }
+            };
+        assertEquals("Bad date string", utc.toDateString(),
+                     AlertTimeFormatter.format(utc));
+
+        // normal times are still correct after other formats
+        MockUTCTime normal = new MockUTCTime(base + 17L);
+        assertEquals("Bad date string", normal.toDateString(),
+                     AlertTimeFormatter.format(normal));
+    }
+
+    @Test
+    public void testThreads()
+        throws InterruptedException
+    {
+        final int numThreads = 4;
+        final List<String> errors = new ArrayList<String>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numThreads; t++) {
+            final long seed = t;
+            threads.add(new Thread() {
+                    @Override
+                    public void run()
+                    {
+                        Random rand = new Random(seed);
+                        Calendar date = Calendar.getInstance();
+                        final long start = date.getTimeInMillis();
+
+                        for (int i = 0; i < 5000; i++) {
+                            date.setTimeInMillis(start + rand.nextInt(4000));
+                            final String cstr =
+                                AlertTimeFormatter.format(date);
+
+                            MockUTCTime utc =
+                                new MockUTCTime(rand.nextLong() >>> 8);
+                            final String ustr =
+                                AlertTimeFormatter.format(utc);
+
+                            if (!expected(date).equals(cstr) ||
+                                !utc.toDateString().equals(ustr))
+                            {
+                                synchronized (errors) {
+                                    errors.add(cstr + "/" + ustr);
+                                }
+                                break;
+                            }
+                        }
+                    }
+                });
+        }
+
+        for (Thread thrd : threads) {
+            thrd.start();
+        }
+        for (Thread thrd : threads) {
+            thrd.join();
+        }
+
+        assertEquals("Mismatched date strings: " + errors, 0, errors.size());
+    }
+}
@@ -0,0 +1,265 @@
+package icecube.daq.juggler.alert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class CBOREncoderTest
+{
+    private static Object roundTrip(Object obj)
+        throws AlertException
+    {
+        CBOREncoder enc = CBOREncoder.getEncoder();
+        enc.writeObject(obj);
+
+        final byte[] bytes = enc.toByteArray();
+        assertTrue("Missing CBOR tag",
+                   AlertDecoder.isCBOR(bytes, 0, bytes.length));
+
+        return AlertDecoder.decode(bytes);
+    }
+
+    private static void assertRoundTrip(String descr, Object obj)
+        throws AlertException
+    {
+        assertEquals("Bad " + descr, obj, roundTrip(obj));
+    }
+
+    @Test
+    public void testScalars()
+        throws Exception
+    {
+        assertRoundTrip("null", null);
+        assertRoundTrip("string", "abc");
+        assertRoundTrip("empty string", "");
+        assertRoundTrip("zero", 0L);
+        assertRoundTrip("small", 23L);
+        assertRoundTrip("byte", 24L);
+        assertRoundTrip("short", 65535L);
+        assertRoundTrip("int", 65536L);
+        assertRoundTrip("big", 0x100000000L);
+        assertRoundTrip("negative", -1L);
+        assertRoundTrip("negative byte", -25L);
+        assertRoundTrip("min long", Long.MIN_VALUE);
+        assertRoundTrip("max long", Long.MAX_VALUE);
+        assertRoundTrip("double", 123.456);
+        assertRoundTrip("float-sized double", 0.5);
+        assertRoundTrip("tiny double", -1.5e-9);
+        assertRoundTrip("infinity", Double.POSITIVE_INFINITY);
+        assertRoundTrip("true", Boolean.TRUE);
+        assertRoundTrip("false", Boolean.FALSE);
+
+        assertEquals("Bad integer", 123L, roundTrip(123));
+        assertEquals("Bad short", -7L, roundTrip((short) -7));
+        assertEquals("Bad float", 1.25, roundTrip(1.25f));
+        assertEquals("Bad char", "x", roundTrip('x'));
+        assertEquals("Bad enum", "EMAIL", roundTrip(Alerter.Priority.EMAIL));
+    }
+
+    @Test
+    public void testStrings()
+        throws Exception
+    {
+        assertRoundTrip("escapes", "\"quoted\" \\ back\tslash\n\r\b\f");
+        assertRoundTrip("html", "<a href='x'>&amp;=</a>");
+        assertRoundTrip("control", "\u0000\u0001\u001f\u007f");
+        assertRoundTrip("latin", "caf\u00e9 na\u00efve");
+        assertRoundTrip("cjk", "\u65e5\u672c");
+        assertRoundTrip("surrogates", "smile \ud83d\ude00!");
+        assertEquals("Bad lone surrogate", "x?y", roundTrip("x\ud83dy"));
+
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            buf.append((char) ('a' + (i % 26)));
+        }
+        assertRoundTrip("long string", buf.toString());
+    }
+
+    @Test
+    public void testContainers()
+        throws Exception
+    {
+        HashMap<String, Object> inner = new HashMap<String, Object>();
+        inner.put("int", 123L);
+        inner.put("real", 123.456);
+        inner.put("str", "foo");
+        inner.put("list", Arrays.asList((Object) 1L, null, "x"));
+        inner.put("empty", new ArrayList());
+
+        HashMap<String, Object> outer = new HashMap<String, Object>();
+        outer.put("inner", inner);
+        outer.put("emptyMap", new HashMap());
+
+        assertRoundTrip("nested map", outer);
+        assertRoundTrip("list of maps", Arrays.asList(outer, inner));
+
+        // entries with null values are dropped, just like Gson does
+        HashMap<String, Object> withNull = new HashMap<String, Object>();
+        withNull.put("a", 1L);
+        withNull.put("b", null);
+
+        HashMap<String, Object> noNull = new HashMap<String, Object>();
+        noNull.put("a", 1L);
+        assertEquals("Null value was not dropped", noNull,
+                     roundTrip(withNull));
+    }
+
+    @Test
+    public void testArrays()
+        throws Exception
+    {
+        assertEquals("Bad ints", Arrays.asList(1L, -2L, 3L),
+                     roundTrip(new int[] { 1, -2, 3 }));
+        assertEquals("Bad longs", Arrays.asList(Long.MAX_VALUE, 0L),
+                     roundTrip(new long[] { Long.MAX_VALUE, 0 }));
+        assertEquals("Bad doubles", Arrays.asList(0.5, -1.1),
+                     roundTrip(new double[] { 0.5, -1.1 }));
+        assertEquals("Bad objects", Arrays.asList("a", 1L, null),
+                     roundTrip(new Object[] { "a", 1, null }));
+        assertEquals("Bad booleans", Arrays.asList(true, false),
+                     roundTrip(new boolean[] { true, false }));
+
+        final byte[] bytes = new byte[] { 0, 1, -1, 127, -128 };
+        assertArrayEquals("Bad bytes", bytes, (byte[]) roundTrip(bytes));
+    }
+
+    @Test
+    public void testEnvelope()
+        throws Exception
+    {
+        HashMap<String, Object> vars = new HashMap<String, Object>();
+        vars.put("condition", "Something <bad> happened");
+        vars.put("count", 17L);
+
+        CBOREncoder enc = CBOREncoder.getEncoder();
+        enc.writeAlert("pdaq", "alert", 1, "2026-10-16 12:34:56.789000",
+                       vars);
+
+        HashMap<String, Object> expected = new HashMap<String, Object>();
+        expected.put("service", "pdaq");
+        expected.put("varname", "alert");
+        expected.put("prio", 1L);
+        expected.put("t", "2026-10-16 12:34:56.789000");
+        expected.put("value", vars);
+
+        assertEquals("Bad envelope", expected,
+                     AlertDecoder.decode(enc.toByteArray()));
+
+        // missing fields and empty values are omitted
+        enc = CBOREncoder.getEncoder();
+        enc.writeAlert(null, null, 3, null, new HashMap<String, Object>());
+
+        HashMap<String, Object> minimal = new HashMap<String, Object>();
+        minimal.put("prio", 3L);
+
+        assertEquals("Bad minimal envelope", minimal,
+                     AlertDecoder.decode(enc.toByteArray()));
+    }
+
+    @Test
+    public void testEncodedAlert()
+        throws Exception
+    {
+        final EncodedAlert json =
+            new EncodedAlert("{\"a\":\"b\"}".getBytes("UTF-8"));
+
+        // a serialized alert is sent unchanged
+        CBOREncoder enc = CBOREncoder.getEncoder();
+        enc.writeObject(json);
+        assertArrayEquals("Bad JSON message", json.getBytes(),
+                          enc.toByteArray());
+
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("a", "b");
+        assertEquals("Bad JSON round trip", map,
+                     AlertDecoder.decode(enc.toByteArray()));
+
+        // ...unless it's embedded in another object
+        List<Object> list = new ArrayList<Object>();
+        list.add(json);
+        list.add("c");
+        assertEquals("Bad embedded JSON", Arrays.asList(map, "c"),
+                     roundTrip(list));
+    }
+
+    @Test
+    public void testSmallerThanJSON()
+        throws Exception
+    {
+        final double[] vals = new double[256];
+        final long[] counts = new long[256];
+        for (int i = 0; i < vals.length; i++) {
+            vals[i] = i * 1.1;
+            counts[i] = i * 1000L;
+        }
+
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("vals", vals);
+        map.put("counts", counts);
+
+        JSONEncoder json = JSONEncoder.getEncoder();
+        json.writeObject(map);
+
+        CBOREncoder cbor = CBOREncoder.getEncoder();
+        cbor.writeObject(map);
+
+        assertTrue("CBOR message (" + cbor.getLength() +
+                   " bytes) should be smaller than JSON (" +
+                   json.getLength() + " bytes)",
+                   cbor.getLength() < json.getLength());
+    }
+
+    @Test
+    public void testMultipleMessages()
+        throws Exception
+    {
+        AlertEncoder enc = AlertEncoder.getEncoder(Alerter.Format.CBOR);
+
+        final String[] strs = new String[] { "first", "second", "third" };
+        for (String str : strs) {
+            enc.writeObject(str);
+            enc.endMessage();
+        }
+
+        assertEquals("Bad number of messages", strs.length,
+                     enc.getNumberOfMessages());
+
+        final byte[] buf = enc.getBuffer();
+        for (int i = 0; i < strs.length; i++) {
+            final int start = enc.getStart(i);
+            assertEquals("Bad message #" + i, strs[i],
+                         AlertDecoder.decode(buf, start,
+                                             enc.getEnd(i) - start));
+        }
+    }
+
+    @Test
+    public void testBadMessages()
+    {
+        final byte[][] bad = new byte[][] {
+            // truncated string
+            { (byte) 0xd9, (byte) 0xd9, (byte) 0xf7, 0x63, 'a', 'b' },
+            // extra bytes
+            { (byte) 0xd9, (byte) 0xd9, (byte) 0xf7, 0x01, 0x02 },
+            // indefinite-length array
+            { (byte) 0xd9, (byte) 0xd9, (byte) 0xf7, (byte) 0x9f },
+            // map with absurd length
+            { (byte) 0xd9, (byte) 0xd9, (byte) 0xf7, (byte) 0xbb,
+              0x7f, 0, 0, 0, 0, 0, 0, 0 },
+        };
+
+        for (int i = 0; i < bad.length; i++) {
+            try {
+                AlertDecoder.decode(bad[i]);
+                fail("Bad message #" + i + " was decoded");
+            } catch (AlertException ae) {
+                // expected
+            }
+        }
+    }
+}
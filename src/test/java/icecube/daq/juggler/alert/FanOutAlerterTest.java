@@ -0,0 +1,223 @@
+package icecube.daq.juggler.alert;
+
+import icecube.daq.common.MockAppender;
+import icecube.daq.juggler.test.MockAlerter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.BasicConfigurator;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static icecube.daq.juggler.test.TestUtil.makeAlert;
+
+public class FanOutAlerterTest
+{
+    private static final MockAppender appender =
+        new MockAppender(org.apache.log4j.Level.WARN).setVerbose(false);
+
+    private static void waitForSent(FanOutAlerter fan, int index, int num)
+    {
+        for (int i = 0; i < 1000 && fan.getNumSent(index) < num; i++) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        BasicConfigurator.resetConfiguration();
+        BasicConfigurator.configure(appender);
+    }
+
+    @After
+    public void tearDown()
+    {
+        appender.assertNoLogMessages();
+    }
+
+    @Test
+    public void testSendToAll()
+        throws AlertException
+    {
+        MockAlerter first = new MockAlerter();
+        MockAlerter second = new MockAlerter();
+
+        FanOutAlerter fan = new FanOutAlerter();
+        assertFalse("Alerter without endpoints should not be active",
+                    fan.isActive());
+
+        assertEquals("Bad first index", 0, fan.addAlerter(first));
+        assertEquals("Bad second index", 1, fan.addAlerter(second));
+        assertTrue("Alerter should be active", fan.isActive());
+
+        final int numAlerts = 10;
+        for (int i = 0; i < numAlerts / 2; i++) {
+            fan.sendObject(makeAlert(i));
+        }
+
+        List<Object> list = new ArrayList<Object>();
+        for (int i = numAlerts / 2; i < numAlerts; i++) {
+            list.add(makeAlert(i));
+        }
+        fan.sendObjects(list);
+
+        fan.close();
+        assertFalse("Closed alerter should not be active", fan.isActive());
+
+        MockAlerter[] mocks = new MockAlerter[] { first, second };
+        for (int m = 0; m < mocks.length; m++) {
+            assertTrue("Endpoint #" + m + " was not closed",
+                       mocks[m].isClosed());
+            assertEquals("Bad number sent to endpoint #" + m,
+                         (long) numAlerts, fan.getNumSent(m));
+            assertEquals("Bad health for endpoint #" + m,
+                         FanOutAlerter.Health.HEALTHY, fan.getHealth(m));
+
+            List<Object> sent = mocks[m].getSentObjects();
+            assertEquals("Bad number received by endpoint #" + m,
+                         numAlerts, sent.size());
+            for (int i = 0; i < numAlerts; i++) {
+                assertEquals("Bad alert #" + i + " for endpoint #" + m,
+                             "{\"alert\":" + i + "}",
+                             sent.get(i).toString());
+            }
+        }
+
+        // both endpoints should have been given the same bytes
+        final List<Object> firstSent = first.getSentObjects();
+        final List<Object> secondSent = second.getSentObjects();
+        for (int i = 0; i < numAlerts; i++) {
+            assertSame("Alert #" + i + " was serialized twice",
+                       firstSent.get(i), secondSent.get(i));
+        }
+
+        try {
+            fan.sendObject(makeAlert(0));
+            fail("Send after close should not succeed");
+        } catch (AlertException ae) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSlowEndpoint()
+        throws AlertException
+    {
+        MockAlerter fast = new MockAlerter();
+        MockAlerter slow = new MockAlerter();
+
+        final int queueSize = 4;
+
+        FanOutAlerter fan = new FanOutAlerter("test", queueSize);
+        fan.addAlerter(fast);
+        fan.addAlerter(slow);
+
+        // slow endpoint takes a while to send the first alert
+        slow.setSendDelay(500);
+        fan.sendObject(makeAlert(0));
+        for (int i = 0; i < 100 && fan.getNumQueued(1) > 0; i++) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+
+        final int numAlerts = queueSize * 3;
+        for (int i = 1; i < numAlerts; i++) {
+            fan.sendObject(makeAlert(i));
+
+            // give the fast endpoint time to keep up
+            waitForSent(fan, 0, i + 1);
+        }
+
+        assertEquals("Fast endpoint was held up", (long) numAlerts,
+                     fan.getNumSent(0));
+        assertEquals("Fast endpoint should not drop alerts", 0L,
+                     fan.getNumDropped(0));
+        assertEquals("Bad fast health", FanOutAlerter.Health.HEALTHY,
+                     fan.getHealth(0));
+
+        assertEquals("Bad slow health", FanOutAlerter.Health.SLOW,
+                     fan.getHealth(1));
+        assertTrue("Slow endpoint should have dropped alerts",
+                   fan.getNumDropped(1) > 0);
+
+        fan.close();
+
+        assertEquals("Bad number of slow alerts", (long) numAlerts,
+                     fan.getNumSent(1) + fan.getNumDropped(1));
+    }
+
+    @Test
+    public void testBlockedEndpoint()
+        throws AlertException
+    {
+        MockAlerter mock = new MockAlerter();
+
+        FanOutAlerter fan = new FanOutAlerter();
+        fan.addAlerter(mock);
+
+        mock.setNumBlocked(3);
+
+        final int numAlerts = 5;
+        for (int i = 0; i < numAlerts; i++) {
+            fan.sendObject(makeAlert(i));
+        }
+
+        waitForSent(fan, 0, numAlerts);
+        fan.close();
+
+        assertEquals("Blocked alerts were not resent", (long) numAlerts,
+                     fan.getNumSent(0));
+        assertEquals("Bad number of failed alerts", 0L, fan.getNumFailed(0));
+        assertEquals("Bad health", FanOutAlerter.Health.HEALTHY,
+                     fan.getHealth(0));
+    }
+
+    @Test
+    public void testCloseStuckEndpoint()
+        throws AlertException, InterruptedException
+    {
+        MockAlerter fast = new MockAlerter();
+        MockAlerter stuck = new MockAlerter();
+
+        FanOutAlerter fan = new FanOutAlerter();
+        fan.setCloseTimeout(100);
+        fan.addAlerter(fast);
+        fan.addAlerter(stuck);
+
+        // the first send to the stuck endpoint never finishes on its own
+        stuck.setSendDelay(60000);
+        fan.sendObject(makeAlert(0));
+
+        // give the endpoint time to start the first send
+        Thread.sleep(100);
+
+        final int numQueued = 5;
+        for (int i = 1; i <= numQueued; i++) {
+            fan.sendObject(makeAlert(i));
+        }
+        waitForSent(fan, 0, numQueued + 1);
+
+        final long start = System.currentTimeMillis();
+        fan.close();
+        final long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("Close took " + elapsed + " ms", elapsed < 5000);
+        assertTrue("Stuck endpoint was not closed", stuck.isClosed());
+        assertEquals("Bad number sent to fast endpoint",
+                     (long) numQueued + 1, fan.getNumSent(0));
+        assertEquals("Fast endpoint should not abandon alerts", 0L,
+                     fan.getNumAbandoned(0));
+        assertEquals("Bad number of abandoned alerts", (long) numQueued,
+                     fan.getNumAbandoned(1));
+    }
+}
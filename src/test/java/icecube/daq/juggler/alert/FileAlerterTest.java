@@ -0,0 +1,125 @@
+package icecube.daq.juggler.alert;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static icecube.daq.juggler.test.TestUtil.makeAlert;
+
+public class FileAlerterTest
+{
+    private File tmpFile;
+
+    private static byte[] readFile(File file)
+        throws IOException
+    {
+        byte[] bytes = new byte[(int) file.length()];
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            while (off < bytes.length) {
+                final int num = in.read(bytes, off, bytes.length - off);
+                if (num < 0) {
+                    break;
+                }
+                off += num;
+            }
+        } finally {
+            in.close();
+        }
+
+        return bytes;
+    }
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        tmpFile = File.createTempFile("alerts", ".log");
+    }
+
+    @After
+    public void tearDown()
+    {
+        tmpFile.delete();
+    }
+
+    @Test
+    public void testJSON()
+        throws AlertException, IOException
+    {
+        FileAlerter alerter = new FileAlerter(tmpFile);
+        assertTrue("Alerter should be active", alerter.isActive());
+
+        alerter.sendObject(makeAlert(0));
+
+        List<Object> list = new ArrayList<Object>();
+        list.add(makeAlert(1));
+        list.add(makeAlert(2));
+        alerter.sendObjects(list);
+
+        alerter.close();
+        assertFalse("Closed alerter should not be active",
+                    alerter.isActive());
+
+        // reopening the file should append to it
+        alerter = new FileAlerter(tmpFile);
+        alerter.sendObject(makeAlert(3));
+        alerter.close();
+
+        BufferedReader rdr = new BufferedReader(new FileReader(tmpFile));
+        try {
+            for (int i = 0; i < 4; i++) {
+                assertEquals("Bad line #" + i, "{\"alert\":" + i + "}",
+                             rdr.readLine());
+            }
+            assertNull("Found extra lines", rdr.readLine());
+        } finally {
+            rdr.close();
+        }
+
+        try {
+            alerter.sendObject(makeAlert(4));
+            fail("Send after close should not succeed");
+        } catch (AlertException ae) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCBOR()
+        throws AlertException, IOException
+    {
+        FileAlerter alerter = new FileAlerter(tmpFile);
+        alerter.setFormat(Alerter.Format.CBOR);
+
+        final int numAlerts = 3;
+
+        List<Object> list = new ArrayList<Object>();
+        for (int i = 0; i < numAlerts; i++) {
+            list.add(makeAlert(i));
+        }
+        alerter.sendObjects(list);
+        alerter.close();
+
+        // each message is a single byte map entry plus the CBOR header
+        final byte[] bytes = readFile(tmpFile);
+        final int msgLen = bytes.length / numAlerts;
+        assertEquals("Bad file length", msgLen * numAlerts, bytes.length);
+
+        for (int i = 0; i < numAlerts; i++) {
+            Map map = (Map) AlertDecoder.decode(bytes, i * msgLen, msgLen);
+            assertEquals("Bad alert #" + i, Long.valueOf(i),
+                         map.get("alert"));
+        }
+    }
+}
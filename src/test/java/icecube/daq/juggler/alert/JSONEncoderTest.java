@@ -0,0 +1,168 @@
+package icecube.daq.juggler.alert;
+
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class JSONEncoderTest
+{
+    private Gson gson = new Gson();
+
+    private void assertSameAsGson(String descr, Object obj)
+        throws Exception
+    {
+        JSONEncoder enc = JSONEncoder.getEncoder();
+        enc.writeObject(obj);
+
+        final byte[] expected = gson.toJson(obj).getBytes("UTF-8");
+        assertEquals("Bad " + descr + " length", expected.length,
+                     enc.getLength());
+        assertEquals("Bad " + descr, new String(expected, "UTF-8"),
+                     enc.toString());
+        assertArrayEquals("Bad " + descr + " bytes", expected,
+                          enc.toByteArray());
+    }
+
+    private static HashMap<String, Object> buildEnvelope(String service,
+                                                         String varname,
+                                                         int prio,
+                                                         String dateStr,
+                                                         Map values)
+    {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("service", service);
+        map.put("varname", varname);
+        map.put("prio", prio);
+        map.put("t", dateStr);
+        if (values != null && values.size() > 0) {
+            map.put("value", values);
+        }
+        return map;
+    }
+
+    @Test
+    public void testScalars()
+        throws Exception
+    {
+        assertSameAsGson("null", null);
+        assertSameAsGson("string", "abc");
+        assertSameAsGson("empty string", "");
+        assertSameAsGson("int", 123);
+        assertSameAsGson("negative int", -123);
+        assertSameAsGson("zero", 0L);
+        assertSameAsGson("min long", Long.MIN_VALUE);
+        assertSameAsGson("max long", Long.MAX_VALUE);
+        assertSameAsGson("short", (short) -7);
+        assertSameAsGson("byte", (byte) 12);
+        assertSameAsGson("double", 123.456);
+        assertSameAsGson("big double", 1.0e20);
+        assertSameAsGson("tiny double", -1.5e-9);
+        assertSameAsGson("float", 1.1f);
+        assertSameAsGson("true", Boolean.TRUE);
+        assertSameAsGson("false", Boolean.FALSE);
+        assertSameAsGson("char", 'x');
+    }
+
+    @Test
+    public void testStrings()
+        throws Exception
+    {
+        assertSameAsGson("escapes", "\"quoted\" \\ back\tslash\n\r\b\f");
+        assertSameAsGson("html", "<a href='x'>&amp;=</a>");
+        assertSameAsGson("control", "\u0000\u0001\u001f\u007f");
+        assertSameAsGson("latin", "caf\u00e9 na\u00efve");
+        assertSameAsGson("cjk", "\u65e5\u672c");
+        assertSameAsGson("separators", "a\u2028b\u2029c");
+        assertSameAsGson("surrogates", "smile \ud83d\ude00! \ud83d lone");
+    }
+
+    @Test
+    public void testContainers()
+        throws Exception
+    {
+        HashMap<String, Object> inner = new HashMap<String, Object>();
+        inner.put("int", 123);
+        inner.put("real", 123.456);
+        inner.put("str", "foo");
+        inner.put("null", null);
+        inner.put("list", Arrays.asList(1, null, "x"));
+        inner.put("ints", new int[] { 1, -2, 3 });
+        inner.put("longs", new long[] { Long.MAX_VALUE, 0 });
+        inner.put("doubles", new double[] { 0.5, -1.25 });
+        inner.put("objs", new Object[] { "a", 1, null });
+        inner.put("empty", new ArrayList());
+
+        TreeMap<Object, Object> keyed = new TreeMap<Object, Object>();
+        keyed.put(1, "one");
+        keyed.put(2, inner);
+
+        HashMap<String, Object> outer = new HashMap<String, Object>();
+        outer.put("inner", inner);
+        outer.put("keyed", keyed);
+        outer.put("emptyMap", new HashMap());
+
+        assertSameAsGson("nested map", outer);
+        assertSameAsGson("list of maps", Arrays.asList(outer, inner));
+    }
+
+    @Test
+    public void testEnvelope()
+        throws Exception
+    {
+        HashMap<String, Object> vars = new HashMap<String, Object>();
+        vars.put("condition", "Something <bad> happened");
+        vars.put("count", 17);
+
+        Object[][] cases = new Object[][] {
+            { "pdaq", "alert", 1, "2026-10-16 12:34:56.789000", vars },
+            { "pdaq", "moni", 4, "2026-10-16 12:34:56.789000", null },
+            { "svc", "empty", 2, "x", new HashMap() },
+            { null, null, 3, null, vars },
+        };
+
+        for (Object[] c : cases) {
+            JSONEncoder enc = JSONEncoder.getEncoder();
+            enc.writeAlert((String) c[0], (String) c[1], (Integer) c[2],
+                           (String) c[3], (Map) c[4]);
+
+            HashMap<String, Object> map =
+                buildEnvelope((String) c[0], (String) c[1], (Integer) c[2],
+                              (String) c[3], (Map) c[4]);
+            assertEquals("Bad envelope", gson.toJson(map), enc.toString());
+        }
+    }
+
+    @Test
+    public void testMultipleMessages()
+        throws Exception
+    {
+        JSONEncoder enc = JSONEncoder.getEncoder();
+
+        final String[] strs = new String[] { "first", "second", "third" };
+        for (String str : strs) {
+            enc.writeObject(str);
+            enc.endMessage();
+        }
+
+        assertEquals("Bad number of messages", strs.length,
+                     enc.getNumberOfMessages());
+
+        final String all = enc.toString();
+        for (int i = 0; i < strs.length; i++) {
+            assertEquals("Bad message #" + i, gson.toJson(strs[i]),
+                         all.substring(enc.getStart(i), enc.getEnd(i)));
+        }
+
+        // next user should get an empty encoder
+        enc = JSONEncoder.getEncoder();
+        assertEquals("Encoder was not reset", 0, enc.getLength());
+        assertEquals("Encoder was not reset", 0, enc.getNumberOfMessages());
+    }
+}
@@ -0,0 +1,88 @@
+package icecube.daq.juggler.alert;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class SharedZMQContextTest
+{
+    @Test
+    public void testLazyContext()
+        throws AlertException
+    {
+        assertEquals("Context should not be in use", 0,
+                     SharedZMQContext.getReferenceCount());
+
+        ZMQAlerter alerter = new ZMQAlerter();
+        assertFalse("Context should not be created by constructor",
+                    SharedZMQContext.isCreated());
+
+        alerter.setAddress("127.0.0.1", 9999);
+        assertTrue("Context should have been created",
+                   SharedZMQContext.isCreated());
+        assertEquals("Bad reference count", 1,
+                     SharedZMQContext.getReferenceCount());
+
+        // setting the address again should not leak a reference
+        alerter.setAddress("127.0.0.1", 9998);
+        assertEquals("Bad reference count", 1,
+                     SharedZMQContext.getReferenceCount());
+
+        ZMQAlerter other = new ZMQAlerter();
+        other.setAddress("127.0.0.1", 9999);
+        assertEquals("Bad reference count", 2,
+                     SharedZMQContext.getReferenceCount());
+
+        alerter.close();
+        assertTrue("Context should still be alive",
+                   SharedZMQContext.isCreated());
+
+        // closing twice should not release the context twice
+        alerter.close();
+        assertEquals("Bad reference count", 1,
+                     SharedZMQContext.getReferenceCount());
+
+        other.close();
+        assertFalse("Context should have been terminated",
+                    SharedZMQContext.isCreated());
+
+        try {
+            alerter.setAddress("127.0.0.1", 9999);
+            fail("Should not be able to reuse a closed alerter");
+        } catch (AlertException ae) {
+            // expected
+        }
+        assertFalse("Alerter should not be active", alerter.isActive());
+    }
+
+    @Test
+    public void testUnusedAlerter()
+    {
+        ZMQAlerter alerter = new ZMQAlerter();
+        alerter.close();
+
+        assertFalse("Context should not have been created",
+                    SharedZMQContext.isCreated());
+        assertEquals("Context should not be in use", 0,
+                     SharedZMQContext.getReferenceCount());
+    }
+
+    @Test
+    public void testIOThreads()
+    {
+        final int orig = SharedZMQContext.getIOThreads();
+        try {
+            SharedZMQContext.setIOThreads(3);
+            assertEquals("Bad number of I/O threads", 3,
+                         SharedZMQContext.getIOThreads());
+
+            try {
+                SharedZMQContext.setIOThreads(0);
+                fail("Should not be able to set zero I/O threads");
+            } catch (Error err) {
+                // expected
+            }
+        } finally {
+            SharedZMQContext.setIOThreads(orig);
+        }
+    }
+}
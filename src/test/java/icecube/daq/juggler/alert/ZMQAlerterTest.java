@@ -1,11 +1,10 @@
 package icecube.daq.juggler.alert;
 
-import com.google.gson.Gson;
-
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import junit.framework.Test;
@@ -221,9 +220,6 @@ class ZMQServer
     private Thread thread;
     private boolean running;
 
-    /** Google JSON conversion object */
-    private Gson gson = new Gson();
-
     /** List of expected requests */
     private ArrayList<LiveRequest> expected;
 
@@ -347,29 +343,51 @@ class ZMQServer
             byte[] data = socket.recv(0);
             if (data == null) continue;
 
-            HashMap map = gson.fromJson(new String(data), HashMap.class);
-            if (map == null) {
+            Object obj;
+            try {
+                obj = AlertDecoder.decode(data);
+            } catch (AlertException ae) {
                 final String errMsg =
-                    String.format("Could not unpack %d byte string \"%s\"",
-                                  data.length, new String(data));
+                    String.format("Could not unpack %d byte message: %s",
+                                  data.length, ae.getMessage());
                 addError(errMsg);
                 continue;
             }
 
-            boolean found = false;
-            if (expected != null) {
-                for (LiveRequest req : expected) {
-                    if (req.equals(map)) {
-                        expected.remove(req);
-                        found = true;
-                        break;
-                    }
+            if (obj instanceof List) {
+                for (Object elem : (List) obj) {
+                    findExpected(new HashMap((Map) elem));
                 }
+                continue;
             }
 
-            if (!found) {
-                addError("Unexpected request " + map);
+            if (!(obj instanceof Map)) {
+                final String errMsg =
+                    String.format("Could not unpack %d byte message \"%s\"",
+                                  data.length, obj);
+                addError(errMsg);
+                continue;
             }
+
+            findExpected(new HashMap((Map) obj));
+        }
+    }
+
+    private void findExpected(HashMap map)
+    {
+        boolean found = false;
+        if (expected != null) {
+            for (LiveRequest req : expected) {
+                if (req.equals(map)) {
+                    expected.remove(req);
+                    found = true;
+                    break;
+                }
+            }
+        }
+
+        if (!found) {
+            addError("Unexpected request " + map);
         }
     }
 
@@ -436,6 +454,52 @@ public class ZMQAlerterTest
         alerter.close();
     }
 
+    public void testHealth()
+    {
+        ZMQAlerter alerter = new ZMQAlerter();
+        assertEquals("Bad initial state", HealthReportingAlerter.State.CONNECTED,
+                     alerter.getState());
+
+        final long now = System.currentTimeMillis();
+        synchronized (alerter) {
+            // failures which are close together only degrade the receiver
+            alerter.recordFailure(now - 2000L);
+            alerter.recordFailure(now - 1900L);
+            assertEquals("Bad state after two failures",
+                         HealthReportingAlerter.State.DEGRADED,
+                         alerter.getState());
+            assertEquals("Should not wait while degraded", 0L,
+                         alerter.getMillisUntilRetry());
+
+            alerter.recordFailure(now);
+            assertEquals("Bad state after repeated failures",
+                         HealthReportingAlerter.State.DOWN,
+                         alerter.getState());
+
+            final long firstWait = alerter.getMillisUntilRetry();
+            assertTrue("Bad retry time " + firstWait, firstWait > 0L &&
+                       firstWait <= ZMQAlerter.INITIAL_RETRY_MILLIS);
+
+            // failed probe doubles the wait
+            alerter.recordFailure(now);
+            final long secondWait = alerter.getMillisUntilRetry();
+            assertTrue("Retry time " + secondWait + " did not back off",
+                       secondWait > ZMQAlerter.INITIAL_RETRY_MILLIS);
+
+            alerter.recordSuccess();
+            assertEquals("Bad state after success",
+                         HealthReportingAlerter.State.CONNECTED,
+                         alerter.getState());
+            assertEquals("Should not wait after success", 0L,
+                         alerter.getMillisUntilRetry());
+        }
+
+        assertEquals("Bad number of state changes", 3L,
+                     alerter.getNumStateChanges());
+
+        alerter.close();
+    }
+
     public void testNullHost()
         throws AlertException
     {
@@ -548,7 +612,7 @@ public class ZMQAlerterTest
         alerter.close();
     }
 
-    public void testSendVars()
+    private void sendVars(Alerter.Format format)
         throws AlertException
     {
         try {
@@ -559,6 +623,7 @@ public class ZMQAlerterTest
 
         ZMQAlerter alerter = new ZMQAlerter();
         alerter.setAddress("127.0.0.1", server.getPort());
+        alerter.setFormat(format);
 
         final ZMQAlerter.Priority prio = ZMQAlerter.Priority.ITS;
         final Calendar date = Calendar.getInstance();
@@ -580,6 +645,149 @@ public class ZMQAlerterTest
         alerter.close();
     }
 
+    private void sendBatch(boolean asArray, Alerter.Format format)
+        throws AlertException
+    {
+        try {
+            server = new ZMQServer("127.0.0.1");
+        } catch (IOException ioe) {
+            fail("Couldn't create 0MQ server: " + ioe.getMessage());
+        }
+
+        ZMQAlerter alerter = new ZMQAlerter();
+        alerter.setAddress("127.0.0.1", server.getPort());
+        alerter.setBatchAsArray(asArray);
+        alerter.setFormat(format);
+
+        final ZMQAlerter.Priority prio = ZMQAlerter.Priority.EMAIL;
+        final Calendar date = Calendar.getInstance();
+        final String dateStr =
+            String.format("%tF %tT.%tL000", date, date, date);
+
+        ArrayList<Map<String, Object>> list =
+            new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 5; i++) {
+            final String condition = "Batch #" + i;
+
+            addExpectedAlert(server, alerter.getService(), prio, date,
+                             condition, null, null);
+
+            HashMap<String, Object> values = new HashMap<String, Object>();
+            values.put("condition", condition);
+
+            HashMap<String, Object> map = new HashMap<String, Object>();
+            map.put("service", alerter.getService());
+            map.put("varname", "alert");
+            map.put("prio", prio.value());
+            map.put("t", dateStr);
+            map.put("value", values);
+            list.add(map);
+        }
+
+        alerter.sendObjects(list);
+
+        server.waitForMessages();
+
+        alerter.close();
+    }
+
+    public void testSendVars()
+        throws AlertException
+    {
+        sendVars(Alerter.Format.JSON);
+    }
+
+    public void testSendVarsCBOR()
+        throws AlertException
+    {
+        sendVars(Alerter.Format.CBOR);
+    }
+
+    public void testSendBatch()
+        throws AlertException
+    {
+        sendBatch(false, Alerter.Format.JSON);
+    }
+
+    public void testSendBatchAsArray()
+        throws AlertException
+    {
+        sendBatch(true, Alerter.Format.JSON);
+    }
+
+    public void testSendBatchCBOR()
+        throws AlertException
+    {
+        sendBatch(false, Alerter.Format.CBOR);
+    }
+
+    public void testSendBatchAsArrayCBOR()
+        throws AlertException
+    {
+        sendBatch(true, Alerter.Format.CBOR);
+    }
+
+    public void testSendLimits()
+    {
+        ZMQAlerter alerter = new ZMQAlerter();
+        assertEquals("Bad default high-water mark",
+                     ZMQAlerter.DEFAULT_SEND_HWM,
+                     alerter.getSendHighWaterMark());
+        assertEquals("Bad default timeout", ZMQAlerter.DEFAULT_SEND_TIMEOUT,
+                     alerter.getSendTimeout());
+
+        alerter.setSendLimits(10, 20);
+        assertEquals("Bad high-water mark", 10,
+                     alerter.getSendHighWaterMark());
+        assertEquals("Bad timeout", 20, alerter.getSendTimeout());
+
+        try {
+            alerter.setSendLimits(-1, 0);
+            fail("Negative high-water mark should not succeed");
+        } catch (Error err) {
+            // expected
+        }
+
+        try {
+            alerter.setSendLimits(0, -1);
+            fail("Negative timeout should not succeed");
+        } catch (Error err) {
+            // expected
+        }
+
+        alerter.close();
+    }
+
+    public void testWouldBlock()
+        throws AlertException, IOException
+    {
+        // find a port where nobody is listening
+        java.net.ServerSocket sock = new java.net.ServerSocket(0);
+        final int port = sock.getLocalPort();
+        sock.close();
+
+        ZMQAlerter alerter = new ZMQAlerter();
+        alerter.setSendLimits(1, 0);
+        alerter.setAddress("127.0.0.1", port);
+
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("abc", 123);
+
+        boolean blocked = false;
+        for (int i = 0; i < 100; i++) {
+            try {
+                alerter.sendObject(map);
+            } catch (AlertWouldBlockException awbe) {
+                blocked = true;
+                break;
+            }
+        }
+
+        assertTrue("Send to missing receiver should have blocked", blocked);
+
+        alerter.close();
+    }
+
     public static void main(String argv[])
     {
         junit.textui.TestRunner.run(suite());
@@ -0,0 +1,263 @@
+package icecube.daq.juggler.alert;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class ZMQThreadedAlerterTest
+    extends TestCase
+{
+    private ZMQServer server;
+
+    public ZMQThreadedAlerterTest(String name)
+    {
+        super(name);
+    }
+
+    private ZMQThreadedAlerter createAlerter()
+        throws AlertException
+    {
+        try {
+            server = new ZMQServer("127.0.0.1");
+        } catch (IOException ioe) {
+            fail("Couldn't create 0MQ server: " + ioe.getMessage());
+        }
+
+        ZMQThreadedAlerter alerter = new ZMQThreadedAlerter();
+        alerter.setAddress("127.0.0.1", server.getPort());
+        alerter.start();
+
+        return alerter;
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(ZMQThreadedAlerterTest.class);
+    }
+
+    @Override
+    protected void tearDown()
+        throws AlertException
+    {
+        if (server != null) {
+            server.close();
+
+            if (server.hasError()) fail(server.getNextError());
+            assertEquals("Not all log messages were received",
+                         0, server.getNumberOfExpectedMessages());
+        }
+    }
+
+    public void testSimple()
+    {
+        ZMQThreadedAlerter alerter = new ZMQThreadedAlerter();
+        assertFalse("New Alerter should not be active", alerter.isActive());
+        alerter.close();
+    }
+
+    public void testNotStarted()
+        throws AlertException
+    {
+        ZMQThreadedAlerter alerter = new ZMQThreadedAlerter();
+        alerter.setAddress("127.0.0.1", 9999);
+
+        try {
+            alerter.sendObject("foo");
+            fail("Should not be able to send before alerter is started");
+        } catch (AlertException ae) {
+            // expected
+        }
+
+        alerter.close();
+    }
+
+    public void testSendVars()
+        throws AlertException
+    {
+        ZMQThreadedAlerter alerter = createAlerter();
+        assertTrue("Alerter should be active", alerter.isActive());
+
+        final ZMQAlerter.Priority prio = ZMQAlerter.Priority.ITS;
+        final Calendar date = Calendar.getInstance();
+        final String condition = "Send Vars";
+        final String notify = "foo@bar.baz";
+
+        final Map<String, Object> vars = new HashMap<String, Object>();
+        vars.put("int", 123);
+        vars.put("real", 123.456);
+        vars.put("str", "foo");
+
+        server.addExpected(alerter.getService(), prio, date, condition,
+                           notify, vars);
+
+        alerter.sendAlert(date, prio, condition, notify, vars);
+
+        server.waitForMessages();
+
+        alerter.close();
+
+        assertEquals("Bad number of alerts sent", 1, alerter.getNumSent());
+        assertEquals("Bad number of alerts dropped", 0,
+                     alerter.getNumDropped());
+        assertFalse("Closed alerter should not be active", alerter.isActive());
+    }
+
+    public void testSendObjects()
+        throws AlertException
+    {
+        ZMQThreadedAlerter alerter = createAlerter();
+
+        final ZMQAlerter.Priority prio = ZMQAlerter.Priority.EMAIL;
+        final Calendar date = Calendar.getInstance();
+        final String dateStr =
+            String.format("%tF %tT.%tL000", date, date, date);
+
+        final int numAlerts = 250;
+
+        ArrayList<Map<String, Object>> list =
+            new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < numAlerts; i++) {
+            final String condition = "Threaded #" + i;
+
+            server.addExpected(alerter.getService(), prio, date, condition,
+                               null, null);
+
+            HashMap<String, Object> values = new HashMap<String, Object>();
+            values.put("condition", condition);
+
+            HashMap<String, Object> map = new HashMap<String, Object>();
+            map.put("service", alerter.getService());
+            map.put("varname", "alert");
+            map.put("prio", prio.value());
+            map.put("t", dateStr);
+            map.put("value", values);
+            list.add(map);
+        }
+
+        alerter.sendObjects(list);
+
+        server.waitForMessages();
+
+        alerter.close();
+
+        assertEquals("Bad number of alerts sent", numAlerts,
+                     alerter.getNumSent());
+        assertEquals("Bad number of failed alerts", 0, alerter.getNumFailed());
+        assertEquals("Alerts left in queue", 0, alerter.getNumQueued());
+    }
+
+    public void testCloseDeadReceiver()
+        throws AlertException
+    {
+        ZMQThreadedAlerter alerter = new ZMQThreadedAlerter();
+
+        // nothing is listening, and 0MQ won't queue any messages
+        alerter.setAddress("127.0.0.1", 9999);
+        alerter.setSendLimits(1, 0);
+        alerter.setCloseTimeout(100L);
+        alerter.start();
+
+        final int numAlerts = 10;
+        for (int i = 0; i < numAlerts; i++) {
+            alerter.sendObject("Dead #" + i);
+        }
+
+        final long start = System.currentTimeMillis();
+        alerter.close();
+        final long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("Close took " + elapsed + " ms", elapsed < 2000L);
+        assertFalse("Closed alerter should not be active", alerter.isActive());
+        assertEquals("Bad number of alerts sent", 0, alerter.getNumSent());
+        assertEquals("Bad number of abandoned alerts", numAlerts,
+                     alerter.getNumAbandoned());
+    }
+
+    private static ArrayList<Object> makeBatch(String prefix, int num)
+    {
+        ArrayList<Object> list = new ArrayList<Object>();
+        for (int i = 0; i < num; i++) {
+            list.add(prefix + " #" + i);
+        }
+        return list;
+    }
+
+    public void testBatchOverflow()
+        throws AlertException, InterruptedException
+    {
+        final int queueSize = 4;
+
+        ZMQThreadedAlerter alerter =
+            new ZMQThreadedAlerter("test", queueSize);
+
+        // nothing is listening, and 0MQ won't queue any messages
+        alerter.setAddress("127.0.0.1", 9999);
+        alerter.setSendLimits(1, 0);
+        alerter.setCloseTimeout(100L);
+        alerter.setOverflowPolicy(ZMQThreadedAlerter.OverflowPolicy.
+                                  DROP_NEWEST, 0L);
+        alerter.start();
+
+        ZMQThreadedAlerterStatistics stats =
+            new ZMQThreadedAlerterStatistics(alerter);
+
+        // wait for the sending loop to get stuck on the first alert
+        alerter.sendObject("Stuck");
+        for (int i = 0; i < 100 && alerter.getNumQueued() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("Sender did not take first alert", 0,
+                     stats.getNumQueued());
+
+        alerter.sendObjects(makeBatch("Fits", queueSize - 1));
+        assertEquals("Bad number queued", queueSize - 1,
+                     stats.getNumQueued());
+
+        try {
+            alerter.sendObjects(makeBatch("Newest", 2));
+            fail("Dropped batch should have been reported");
+        } catch (AlertWouldBlockException awbe) {
+            // expected
+        }
+        assertEquals("Part of a dropped batch was queued", queueSize - 1,
+                     stats.getNumQueued());
+        assertEquals("Bad number dropped", 2L, stats.getNumDropped());
+
+        alerter.setOverflowPolicy(ZMQThreadedAlerter.OverflowPolicy.BLOCK,
+                                  100L);
+        try {
+            alerter.sendObjects(makeBatch("Block", 2));
+            fail("Blocked batch should have timed out");
+        } catch (AlertWouldBlockException awbe) {
+            fail("Timeout should not be reported as a dropped batch");
+        } catch (AlertException ae) {
+            // expected
+        }
+        assertEquals("Part of a timed-out batch was queued", queueSize - 1,
+                     stats.getNumQueued());
+        assertEquals("Bad number dropped", 4L, stats.getNumDropped());
+
+        alerter.setOverflowPolicy(ZMQThreadedAlerter.OverflowPolicy.
+                                  DROP_OLDEST, 0L);
+        alerter.sendObjects(makeBatch("Oldest", 2));
+        assertEquals("Bad number queued", queueSize, stats.getNumQueued());
+        assertEquals("Bad number dropped", 5L, stats.getNumDropped());
+
+        alerter.close();
+
+        assertEquals("Bad number of alerts sent", 0L, stats.getNumSent());
+        assertEquals("Bad number of abandoned alerts", (long) queueSize + 1,
+                     stats.getNumAbandoned());
+    }
+
+    public static void main(String argv[])
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,185 @@
+package icecube.daq.juggler.mbean;
+
+import icecube.daq.juggler.test.LoggingCase;
+import icecube.daq.juggler.test.TestUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+public class DiskStatisticsTest
+    extends LoggingCase
+{
+    private static final long SECOND = 1000000000L;
+
+    private File origFile;
+    private File tmpFile;
+
+    public DiskStatisticsTest(String name)
+    {
+        super(name);
+    }
+
+    private void write(String text)
+        throws IOException
+    {
+        TestUtil.write(tmpFile, text);
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        origFile = DiskStatistics.DISKSTATS_FILE;
+        tmpFile = File.createTempFile("diskstats", ".txt");
+        DiskStatistics.DISKSTATS_FILE = tmpFile;
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(DiskStatisticsTest.class);
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        DiskStatistics.DISKSTATS_FILE = origFile;
+        tmpFile.delete();
+
+        super.tearDown();
+    }
+
+    public void testRates()
+        throws IOException
+    {
+        // older kernels only have the first 11 fields
+        write("   7       0 loop0 5 0 10 1 0 0 0 0 0 1 1\n" +
+              "   8       0 sda 1000 10 80000 2000 500 20 40000 3000 0 4000" +
+              " 5000 0 0 0 0\n" +
+              "   8       1 sda1 1000 10 80000 2000 500 20 40000 3000 0 4000" +
+              " 5000\n" +
+              "   8      16 sdb 0 0 0 0 0 0 0 0 0 0 0\n");
+
+        DiskStatistics stats = new DiskStatistics();
+
+        final long start = 10 * SECOND;
+        assertNull("First sample should not have rates",
+                   stats.getRates(DiskStatistics.RATE_READS, start));
+
+        // two seconds later, sda did 200 reads and 100 writes
+        write("   7       0 loop0 9 0 20 1 0 0 0 0 0 1 1\n" +
+              "   8       0 sda 1200 10 96000 2400 600 20 48000 3500 3 5000" +
+              " 7000 0 0 0 0\n" +
+              "   8       1 sda1 1000 10 80000 2000 500 20 40000 3000 0 4000" +
+              " 5000\n" +
+              "   8      16 sdb 0 0 0 0 0 0 0 0 0 0 0\n");
+
+        final long now = start + 2 * SECOND;
+        HashMap<String, Double> map =
+            stats.getRates(DiskStatistics.RATE_READS, now);
+        assertFalse("Loop device should be ignored",
+                    map.containsKey("loop0"));
+        assertFalse("Idle device should be ignored", map.containsKey("sdb"));
+        assertEquals("Bad number of devices in " + map, 2, map.size());
+
+        assertEquals("Bad reads", 100.0, map.get("sda").doubleValue(),
+                     0.0001);
+        assertEquals("Bad idle partition reads", 0.0,
+                     map.get("sda1").doubleValue(), 0.0001);
+
+        map = stats.getRates(DiskStatistics.RATE_WRITES, now);
+        assertEquals("Bad writes", 50.0, map.get("sda").doubleValue(),
+                     0.0001);
+
+        map = stats.getRates(DiskStatistics.RATE_READ_BYTES, now);
+        assertEquals("Bad read bytes", 16000.0 * 512.0 / 2.0,
+                     map.get("sda").doubleValue(), 0.0001);
+
+        map = stats.getRates(DiskStatistics.RATE_WRITE_BYTES, now);
+        assertEquals("Bad write bytes", 8000.0 * 512.0 / 2.0,
+                     map.get("sda").doubleValue(), 0.0001);
+
+        // 900 ms of I/O for 300 requests
+        map = stats.getRates(DiskStatistics.RATE_AWAIT, now);
+        assertEquals("Bad await", 3.0, map.get("sda").doubleValue(), 0.0001);
+
+        // 2000 weighted ms over 2000 ms
+        map = stats.getRates(DiskStatistics.RATE_QUEUE_DEPTH, now);
+        assertEquals("Bad queue depth", 1.0, map.get("sda").doubleValue(),
+                     0.0001);
+
+        // busy for 1000 of 2000 ms
+        map = stats.getRates(DiskStatistics.RATE_UTILIZATION, now);
+        assertEquals("Bad utilization", 50.0, map.get("sda").doubleValue(),
+                     0.0001);
+    }
+
+    public void testWrap()
+        throws IOException
+    {
+        // 32-bit kernels use 32-bit counters
+        write("   8       0 sda 4294967000 0 0 0 10 0 0 0 0 0 0\n");
+
+        DiskStatistics stats = new DiskStatistics();
+
+        final long start = 10 * SECOND;
+        assertNull("First sample should not have rates",
+                   stats.getRates(DiskStatistics.RATE_READS, start));
+
+        write("   8       0 sda 704 0 0 0 10 0 0 0 0 0 0\n");
+
+        HashMap<String, Double> map =
+            stats.getRates(DiskStatistics.RATE_READS, start + SECOND);
+        assertEquals("Bad wrapped reads", 1000.0,
+                     map.get("sda").doubleValue(), 0.0001);
+    }
+
+    public void testMissing()
+    {
+        tmpFile.delete();
+
+        DiskStatistics stats = new DiskStatistics();
+        assertNull("Missing file should not have rates",
+                   stats.getReadsPerSecond());
+        assertNull("Missing file should not have rates",
+                   stats.getWritesPerSecond());
+
+        // the missing file is only reported once
+        assertLogMessage("Couldn't open " + tmpFile);
+    }
+
+    public void testLive()
+        throws InterruptedException
+    {
+        DiskStatistics.DISKSTATS_FILE = origFile;
+        if (!origFile.exists()) {
+            System.err.println("Skipping live disk statistics on " +
+                               System.getProperty("os.name"));
+            return;
+        }
+
+        DiskStatistics stats = new DiskStatistics();
+        assertNull("First sample should not have rates",
+                   stats.getUtilization());
+
+        Thread.sleep(200);
+
+        HashMap<String, Double> map = stats.getUtilization();
+        assertNotNull("No utilization", map);
+        for (Double val : map.values()) {
+            assertTrue("Bad utilization " + val,
+                       val.doubleValue() >= 0.0 && val.doubleValue() <= 100.0);
+        }
+    }
+
+    public static void main(String argv[])
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,107 @@
+package icecube.daq.juggler.mbean;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measure the heap allocated and the time taken by each poll of
+ * <tt>/proc/stat</tt> and <tt>/proc/net/dev</tt>, comparing the
+ * <tt>SystemStatistics</tt> map-building methods with the snapshot
+ * readers they are built on.
+ *
+ * Run with <tt>java ... ProcReaderBenchmark [numPolls]</tt>.  This relies
+ * on <tt>com.sun.management.ThreadMXBean</tt>, so it needs a HotSpot-based
+ * JVM.
+ */
+public class ProcReaderBenchmark
+{
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Poll being measured
+     */
+    interface Poll
+    {
+        void run(SystemStatistics stats);
+    }
+
+    private static final Poll CPU_MAP = new Poll() {
+            @Override
+            public void run(SystemStatistics stats)
+            {
+                stats.getCPUStatistics();
+            }
+        };
+
+    private static final Poll CPU_SNAPSHOT = new Poll() {
+            @Override
+            public void run(SystemStatistics stats)
+            {
+                stats.updateCPUStatistics();
+            }
+        };
+
+    private static final Poll NET_MAP = new Poll() {
+            @Override
+            public void run(SystemStatistics stats)
+            {
+                stats.getNetworkIO();
+            }
+        };
+
+    private static final Poll NET_SNAPSHOT = new Poll() {
+            @Override
+            public void run(SystemStatistics stats)
+            {
+                stats.updateNetworkIO();
+            }
+        };
+
+    /**
+     * Run a poll repeatedly and report allocations and time per poll.
+     *
+     * @param name description
+     * @param poll poll to run
+     * @param stats statistics object
+     * @param numPolls number of polls
+     */
+    private static void measure(String name, Poll poll,
+                                SystemStatistics stats, int numPolls)
+    {
+        // warm up
+        for (int i = 0; i < numPolls / 10; i++) {
+            poll.run(stats);
+        }
+
+        final long tid = Thread.currentThread().getId();
+        final long startBytes = THREAD_BEAN.getThreadAllocatedBytes(tid);
+        final long startNanos = System.nanoTime();
+
+        for (int i = 0; i < numPolls; i++) {
+            poll.run(stats);
+        }
+
+        final long nanos = System.nanoTime() - startNanos;
+        final long bytes = THREAD_BEAN.getThreadAllocatedBytes(tid) -
+            startBytes;
+
+        System.out.format("%-16s %10.1f bytes/poll %8.1f us/poll%n", name,
+                          (double) bytes / (double) numPolls,
+                          (double) nanos / (double) numPolls / 1000.0);
+    }
+
+    public static void main(String[] args)
+    {
+        int numPolls = 10000;
+        if (args.length > 0) {
+            numPolls = Integer.parseInt(args[0]);
+        }
+
+        SystemStatistics stats = new SystemStatistics();
+
+        measure("cpu map", CPU_MAP, stats, numPolls);
+        measure("cpu snapshot", CPU_SNAPSHOT, stats, numPolls);
+        measure("net map", NET_MAP, stats, numPolls);
+        measure("net snapshot", NET_SNAPSHOT, stats, numPolls);
+    }
+}
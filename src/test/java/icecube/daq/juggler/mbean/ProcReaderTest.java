@@ -0,0 +1,198 @@
+package icecube.daq.juggler.mbean;
+
+import icecube.daq.juggler.test.TestUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class ProcReaderTest
+    extends TestCase
+{
+    private static final String NETDEV_HEADER =
+        "Inter-|   Receive                                                |" +
+        "  Transmit\n" +
+        " face |bytes    packets errs drop fifo frame compressed multicast|" +
+        "bytes    packets errs drop fifo colls carrier compressed\n";
+
+    private File tmpFile;
+
+    public ProcReaderTest(String name)
+    {
+        super(name);
+    }
+
+    private void write(String text)
+        throws IOException
+    {
+        TestUtil.write(tmpFile, text);
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        tmpFile = File.createTempFile("proc", ".txt");
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(ProcReaderTest.class);
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        tmpFile.delete();
+
+        super.tearDown();
+    }
+
+    public void testCPUStat()
+        throws IOException
+    {
+        write("cpu  10 1 20 300 4 5 6 7 8 9\n" +
+              "cpu0 5 1 10 150 2 3 3 4 4 5\n" +
+              "cpu1 5 0 10 150 2 2 3 3 4 4\n" +
+              "intr 12345 0 0 1\n" +
+              "ctxt 999\n");
+
+        CPUStatReader rdr = new CPUStatReader(tmpFile);
+        assertTrue("Update failed", rdr.update());
+
+        assertEquals("Bad number of entries", 3, rdr.getNumEntries());
+        assertEquals("Bad name", "cpu", rdr.getName(0));
+        assertEquals("Bad name", "cpu1", rdr.getName(2));
+
+        // guest and guest_nice are already included in user and nice
+        assertTrue("Bad times " + Arrays.toString(rdr.getTimes(0)),
+                   Arrays.equals(new long[] { 10, 1, 20, 300, 4, 5, 6, 7 },
+                                 rdr.getTimes(0)));
+
+        final long[] times = rdr.getTimes(1);
+        final String name = rdr.getName(1);
+
+        write("cpu  11 1 21 310 4 5 6 7\n" +
+              "cpu0 6 1 11 155 2 3 3 4\n" +
+              "cpu1 5 0 10 155 2 2 3 3\n");
+        assertTrue("Second update failed", rdr.update());
+
+        assertSame("Times were not reused", times, rdr.getTimes(1));
+        assertSame("Name was not reused", name, rdr.getName(1));
+        assertTrue("Bad times " + Arrays.toString(times),
+                   Arrays.equals(new long[] { 6, 1, 11, 155, 2, 3, 3, 4 },
+                                 times));
+
+        write("cpu  11 1 21\n");
+        assertFalse("Short line was accepted", rdr.update());
+
+        write("cpu  11 1 x 310 4 5 6 7\n");
+        assertFalse("Bad value was accepted", rdr.update());
+
+        rdr.close();
+    }
+
+    public void testNetDev()
+        throws IOException
+    {
+        write(NETDEV_HEADER +
+              "    lo: 1234     10    0    0    0     0          0" +
+              "         0     1234      10    0    0    0     0       0" +
+              "          0\n" +
+              "  eth0:99999999999 2000 1 2 3 4 5 6 88888888888 1500" +
+              " 7 8 9 10 11 12\n");
+
+        NetDevReader rdr = new NetDevReader(tmpFile);
+        assertTrue("Update failed", rdr.update());
+
+        final String[] rxNames = rdr.getReceiveNames();
+        final String[] txNames = rdr.getTransmitNames();
+        assertEquals("Bad number of receive counters", 8, rxNames.length);
+        assertEquals("Bad receive name", "multicast", rxNames[7]);
+        assertEquals("Bad number of transmit counters", 8, txNames.length);
+        assertEquals("Bad transmit name", "bytes", txNames[0]);
+        assertEquals("Bad transmit name", "compressed", txNames[7]);
+
+        assertEquals("Bad number of interfaces", 2, rdr.getNumInterfaces());
+        assertEquals("Bad name", "lo", rdr.getName(0));
+        assertEquals("Bad name", "eth0", rdr.getName(1));
+
+        final long[] eth0 = rdr.getCounters(1);
+        assertEquals("Bad rx bytes", 99999999999L, eth0[0]);
+        assertEquals("Bad rx multicast", 6L, eth0[7]);
+        assertEquals("Bad tx bytes", 88888888888L, eth0[8]);
+        assertEquals("Bad tx compressed", 12L, eth0[15]);
+
+        // interface added in the middle
+        write(NETDEV_HEADER +
+              "    lo: 1 1 0 0 0 0 0 0 1 1 0 0 0 0 0 0\n" +
+              "  eth1: 2 2 0 0 0 0 0 0 2 2 0 0 0 0 0 0\n" +
+              "  eth0: 3 3 0 0 0 0 0 0 3 3 0 0 0 0 0 0\n");
+        assertTrue("Second update failed", rdr.update());
+
+        assertEquals("Bad number of interfaces", 3, rdr.getNumInterfaces());
+        assertEquals("Bad name", "eth1", rdr.getName(1));
+        assertEquals("Bad rx bytes", 2L, rdr.getCounters(1)[0]);
+        assertEquals("Bad name", "eth0", rdr.getName(2));
+        assertEquals("Bad tx bytes", 3L, rdr.getCounters(2)[8]);
+
+        write(NETDEV_HEADER +
+              "    lo: 1 1 0 0 0 0 0 0 1\n");
+        assertFalse("Short line was accepted", rdr.update());
+
+        rdr.close();
+    }
+
+    public void testCounterDelta()
+    {
+        assertEquals("Bad delta", 5L, SampleHistory.counterDelta(10L, 15L));
+
+        // 32-bit counter wrapped
+        assertEquals("Bad wrapped delta", 20L,
+                     SampleHistory.counterDelta(0xfffffff0L, 4L));
+
+        // 64-bit counter was reset
+        assertEquals("Bad reset delta", 7L,
+                     SampleHistory.counterDelta(0x100000000L, 7L));
+
+        // small counters which go backward were reset, not wrapped
+        assertEquals("Bad small reset delta", 3L,
+                     SampleHistory.counterDelta(1000L, 3L));
+        assertEquals("Bad 32-bit reset delta", 0x7fff0000L,
+                     SampleHistory.counterDelta(0xfffffff0L, 0x7fff0000L));
+    }
+
+    public void testLargeFile()
+        throws IOException
+    {
+        StringBuilder buf = new StringBuilder("cpu  1 2 3 4 5 6 7 8\n");
+        final int numCPUs = 1000;
+        for (int i = 0; i < numCPUs; i++) {
+            buf.append("cpu").append(i).append(" 1 2 3 4 5 6 7 ").append(i).
+                append('\n');
+        }
+        write(buf.toString());
+
+        CPUStatReader rdr = new CPUStatReader(tmpFile);
+        assertTrue("Update failed", rdr.update());
+        assertEquals("Bad number of entries", numCPUs + 1,
+                     rdr.getNumEntries());
+        assertEquals("Bad name", "cpu" + (numCPUs - 1),
+                     rdr.getName(numCPUs));
+        assertEquals("Bad last value", (long) numCPUs - 1,
+                     rdr.getTimes(numCPUs)[7]);
+        rdr.close();
+    }
+
+    public static void main(String argv[])
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,140 @@
+package icecube.daq.juggler.mbean;
+
+import java.util.Arrays;
+
+/**
+ * Compare the time taken by each <tt>SystemStatistics</tt> poll when the
+ * values are read from <tt>/proc</tt> and when they come from forking
+ * <tt>uptime</tt>, <tt>df</tt> and <tt>pmap</tt>.
+ *
+ * Run with <tt>java ... SystemStatisticsBenchmark [numPolls [heapMB]]</tt>.
+ * Forking gets slower as the JVM grows, so the optional second argument
+ * allocates (and touches) that much heap before timing anything.
+ */
+public class SystemStatisticsBenchmark
+{
+    /** Number of warm-up polls for each collector */
+    private static final int WARMUP_POLLS = 10;
+
+    /** Memory held to make the JVM larger */
+    private static byte[][] ballast;
+
+    /**
+     * Collector being timed
+     */
+    interface Poll
+    {
+        Object run(SystemStatistics stats);
+    }
+
+    private static final Poll LOAD = new Poll() {
+            @Override
+            public Object run(SystemStatistics stats)
+            {
+                return stats.getLoadAverage();
+            }
+        };
+
+    private static final Poll DISK = new Poll() {
+            @Override
+            public Object run(SystemStatistics stats)
+            {
+                return stats.getAvailableDiskSpace();
+            }
+        };
+
+    private static final Poll MEMORY = new Poll() {
+            @Override
+            public Object run(SystemStatistics stats)
+            {
+                return stats.getProcessMemory();
+            }
+        };
+
+    /**
+     * Touch the requested amount of heap.
+     *
+     * @param megabytes number of megabytes
+     */
+    private static void grow(int megabytes)
+    {
+        ballast = new byte[megabytes][];
+        for (int i = 0; i < megabytes; i++) {
+            ballast[i] = new byte[1024 * 1024];
+            Arrays.fill(ballast[i], (byte) i);
+        }
+    }
+
+    /**
+     * Time a collector and report the median and maximum poll times.
+     *
+     * @param name collector name
+     * @param poll collector
+     * @param stats statistics object
+     * @param numPolls number of polls to time
+     *
+     * @return median time in microseconds
+     */
+    private static long time(String name, Poll poll, SystemStatistics stats,
+                             int numPolls)
+    {
+        for (int i = 0; i < WARMUP_POLLS; i++) {
+            poll.run(stats);
+        }
+
+        long[] micros = new long[numPolls];
+        for (int i = 0; i < numPolls; i++) {
+            final long start = System.nanoTime();
+            if (poll.run(stats) == null) {
+                throw new Error(name + " returned null");
+            }
+            micros[i] = (System.nanoTime() - start) / 1000L;
+        }
+
+        Arrays.sort(micros);
+        final long median = micros[numPolls / 2];
+        System.out.format("  %-8s median %8d us, max %8d us%n", name, median,
+                          micros[numPolls - 1]);
+        return median;
+    }
+
+    public static void main(String[] args)
+    {
+        int numPolls = 100;
+        if (args.length > 0) {
+            numPolls = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            grow(Integer.parseInt(args[1]));
+        }
+
+        System.out.format("%d polls, %d MB heap in use%n", numPolls,
+                          (Runtime.getRuntime().totalMemory() -
+                           Runtime.getRuntime().freeMemory()) >> 20);
+
+        SystemStatistics cmdStats = new SystemStatistics(true);
+        SystemStatistics procStats = new SystemStatistics();
+
+        final String[] names = { "load", "disk", "memory" };
+        final Poll[] polls = { LOAD, DISK, MEMORY };
+
+        long[] cmdTimes = new long[polls.length];
+        System.out.println("Forked commands:");
+        for (int i = 0; i < polls.length; i++) {
+            cmdTimes[i] = time(names[i], polls[i], cmdStats, numPolls);
+        }
+
+        long[] procTimes = new long[polls.length];
+        System.out.println("/proc and FileStore:");
+        for (int i = 0; i < polls.length; i++) {
+            procTimes[i] = time(names[i], polls[i], procStats, numPolls);
+        }
+
+        System.out.println("Speedup (median):");
+        for (int i = 0; i < polls.length; i++) {
+            System.out.format("  %-8s %8.1fx%n", names[i],
+                              (double) cmdTimes[i] /
+                              (double) Math.max(1L, procTimes[i]));
+        }
+    }
+}
@@ -2,8 +2,12 @@ package icecube.daq.juggler.mbean;
 
 import icecube.daq.juggler.test.LoggingCase;
 
+import static icecube.daq.juggler.test.TestUtil.write;
+
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.TreeMap;
 
 import junit.framework.Test;
@@ -92,6 +96,202 @@ public class SystemStatisticsTest
         }
     }
 
+    public void testProcMatchesCommands()
+    {
+        if (!SystemStatistics.LOADAVG_FILE.exists() ||
+            !SystemStatistics.MOUNTS_FILE.exists() ||
+            !SystemStatistics.MAPS_FILE.exists())
+        {
+            System.err.println("Skipping /proc comparison on " +
+                               System.getProperty("os.name"));
+            return;
+        }
+
+        SystemStatistics procStat = new SystemStatistics();
+        SystemStatistics cmdStat = new SystemStatistics(true);
+
+        double[] cmdLoad = cmdStat.getLoadAverage();
+        double[] procLoad = procStat.getLoadAverage();
+        if (cmdLoad != null) {
+            assertEquals("Bad number of load averages", cmdLoad.length,
+                         procLoad.length);
+            for (int i = 0; i < cmdLoad.length; i++) {
+                // the kernel may have updated the averages in between
+                assertEquals("Bad load average #" + i, cmdLoad[i],
+                             procLoad[i], 0.5);
+            }
+        }
+
+        HashMap cmdDisk = cmdStat.getAvailableDiskSpace();
+        HashMap procDisk = procStat.getAvailableDiskSpace();
+        if (cmdDisk != null) {
+            assertEquals("Bad filesystems", cmdDisk.keySet(),
+                         procDisk.keySet());
+            for (Object key : cmdDisk.keySet()) {
+                final long cmdAvail = ((Long) cmdDisk.get(key)).longValue();
+                final long procAvail = ((Long) procDisk.get(key)).longValue();
+
+                // allow for other processes writing files
+                assertTrue("Available space for " + key + " was " +
+                           procAvail + ", not " + cmdAvail,
+                           Math.abs(cmdAvail - procAvail) < 100 * 1024);
+            }
+        }
+
+        HashMap<String, Integer> cmdMem = cmdStat.getProcessMemory();
+        HashMap<String, Integer> procMem = procStat.getProcessMemory();
+        assertTrue("No anonymous memory found", procMem.containsKey("anon"));
+        if (cmdMem != null) {
+            // thread stacks come and go, but mapped files should match
+            for (Map.Entry<String, Integer> entry : cmdMem.entrySet()) {
+                if (entry.getKey().equals("anon") ||
+                    entry.getKey().equals("stack"))
+                {
+                    continue;
+                }
+
+                assertEquals("Bad size for " + entry.getKey(),
+                             entry.getValue(), procMem.get(entry.getKey()));
+            }
+        }
+
+        HashMap<String, Long> usage = procStat.getProcessMemoryUsage();
+        assertNotNull("No process memory usage", usage);
+        assertTrue("No resident set size", usage.containsKey("VmRSS"));
+        assertTrue("Bad resident set size " + usage.get("VmRSS"),
+                   usage.get("VmRSS").longValue() > 0);
+
+        // ignore errors from commands which aren't installed
+        clearMessages();
+    }
+
+    public void testCPUUsage()
+        throws IOException
+    {
+        final File origFile = SystemStatistics.STAT_FILE;
+        File tmpFile = File.createTempFile("stat", ".txt");
+        try {
+            SystemStatistics.STAT_FILE = tmpFile;
+
+            write(tmpFile, "cpu  100 0 100 800 0 0 0 0\n" +
+                  "cpu0 50 0 50 400 0 0 0 0\n" +
+                  "cpu1 50 0 50 400 0 0 0 0\n");
+
+            SystemStatistics sysStat = new SystemStatistics();
+
+            final long start = 1000000000L;
+            final long step = 2 * SystemStatistics.MIN_RATE_NANOS;
+            assertNull("First sample should not have usage",
+                       sysStat.getCPUUsage(start));
+
+            // cpu0 is busy, cpu1 is idle or waiting (and its iowait
+            // counter went backward, which some kernels do)
+            write(tmpFile, "cpu  200 0 100 850 0 0 0 0\n" +
+                  "cpu0 150 0 50 400 0 0 0 0\n" +
+                  "cpu1 50 0 50 450 0 0 0 0\n");
+
+            // too soon, so the (empty) previous result is returned
+            assertNull("Usage should not be recomputed so soon",
+                       sysStat.getCPUUsage(start + 1000L));
+
+            HashMap<String, Double> usage = sysStat.getCPUUsage(start + step);
+            assertEquals("Bad total usage", 100.0 * 100.0 / 150.0,
+                         usage.get("cpu").doubleValue(), 0.0001);
+            assertEquals("Bad cpu0 usage", 100.0,
+                         usage.get("cpu0").doubleValue(), 0.0001);
+            assertEquals("Bad cpu1 usage", 0.0,
+                         usage.get("cpu1").doubleValue(), 0.0001);
+
+            // cpu1 went offline and cpu2 appeared
+            write(tmpFile, "cpu  300 0 100 850 0 0 0 0\n" +
+                  "cpu0 200 0 50 400 0 0 0 0\n" +
+                  "cpu2 50 0 50 400 0 0 0 0\n");
+
+            usage = sysStat.getCPUUsage(start + 2 * step);
+            assertEquals("Bad number of CPUs in " + usage, 2, usage.size());
+            assertEquals("Bad cpu0 usage", 100.0,
+                         usage.get("cpu0").doubleValue(), 0.0001);
+            assertFalse("New CPU should not have usage",
+                        usage.containsKey("cpu2"));
+
+            // CPUs are listed in a different order, and guest time (which
+            // is already counted as user time) is reported
+            write(tmpFile, "cpu  400 0 100 950 0 0 0 0 100 0\n" +
+                  "cpu2 100 0 50 450 0 0 0 0 0 0\n" +
+                  "cpu0 250 0 50 450 0 0 0 0 50 0\n");
+
+            usage = sysStat.getCPUUsage(start + 3 * step);
+            assertEquals("Bad number of CPUs in " + usage, 3, usage.size());
+            assertEquals("Bad total usage", 50.0,
+                         usage.get("cpu").doubleValue(), 0.0001);
+            assertEquals("Bad cpu0 usage", 50.0,
+                         usage.get("cpu0").doubleValue(), 0.0001);
+            assertEquals("Bad cpu2 usage", 50.0,
+                         usage.get("cpu2").doubleValue(), 0.0001);
+        } finally {
+            SystemStatistics.STAT_FILE = origFile;
+            tmpFile.delete();
+        }
+    }
+
+    public void testNetworkRates()
+        throws IOException
+    {
+        final String header =
+            "Inter-|   Receive                              |  Transmit\n" +
+            " face |bytes packets errs drop fifo frame compressed multicast|" +
+            "bytes packets errs drop fifo colls carrier compressed\n";
+
+        final String origName = SystemStatistics.PND_FILENAME;
+        File tmpFile = File.createTempFile("netdev", ".txt");
+        try {
+            SystemStatistics.PND_FILENAME = tmpFile.getPath();
+
+            // eth1 is a 32-bit counter which is about to wrap
+            write(tmpFile, header +
+                  "  eth0: 1000 10 0 0 0 0 0 0 5000 50 0 0 0 0 0 0\n" +
+                  "  eth1: 4294967000 100 0 0 0 0 0 0 0 0 0 0 0 0 0 0\n");
+
+            SystemStatistics sysStat = new SystemStatistics();
+
+            final long start = 5000000000L;
+            assertNull("First sample should not have rates",
+                       sysStat.getNetworkRates(start));
+
+            write(tmpFile, header +
+                  "  eth0: 3000 30 0 0 0 0 0 0 9000 90 0 0 0 0 0 0\n" +
+                  "  eth1: 704 110 0 0 0 0 0 0 0 0 0 0 0 0 0 0\n");
+
+            // samples were two seconds apart
+            HashMap<String, Double> rates =
+                sysStat.getNetworkRates(start + 2000000000L);
+            assertEquals("Bad rx bytes", 1000.0,
+                         rates.get("eth0_rx_bytes").doubleValue(), 0.0001);
+            assertEquals("Bad rx packets", 10.0,
+                         rates.get("eth0_rx_packets").doubleValue(), 0.0001);
+            assertEquals("Bad tx bytes", 2000.0,
+                         rates.get("eth0_tx_bytes").doubleValue(), 0.0001);
+            assertEquals("Bad tx packets", 20.0,
+                         rates.get("eth0_tx_packets").doubleValue(), 0.0001);
+            assertEquals("Bad wrapped rx bytes", 500.0,
+                         rates.get("eth1_rx_bytes").doubleValue(), 0.0001);
+
+            // late poll is averaged over the real interval
+            write(tmpFile, header +
+                  "  eth0: 6000 60 0 0 0 0 0 0 9000 90 0 0 0 0 0 0\n" +
+                  "  eth1: 704 110 0 0 0 0 0 0 0 0 0 0 0 0 0 0\n");
+
+            rates = sysStat.getNetworkRates(start + 5000000000L);
+            assertEquals("Bad rx bytes", 1000.0,
+                         rates.get("eth0_rx_bytes").doubleValue(), 0.0001);
+            assertEquals("Bad tx bytes", 0.0,
+                         rates.get("eth0_tx_bytes").doubleValue(), 0.0001);
+        } finally {
+            SystemStatistics.PND_FILENAME = origName;
+            tmpFile.delete();
+        }
+    }
+
     public static void main(String argv[])
     {
         junit.textui.TestRunner.run(suite());
@@ -0,0 +1,255 @@
+package icecube.daq.juggler.mbean;
+
+import icecube.daq.juggler.test.LoggingCase;
+
+import static icecube.daq.juggler.test.TestUtil.write;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+public class TCPStatisticsTest
+    extends LoggingCase
+{
+    private static final long SECOND = 1000000000L;
+
+    private static final String TCP_HEADER =
+        "  sl  local_address rem_address   st tx_queue rx_queue tr" +
+        " tm->when retrnsmt   uid  timeout inode\n";
+    private static final String TCP_TRAILER =
+        " 00:00000000 00000000  1000        0 12345 1 0000000000000000" +
+        " 20 4 0 10 -1\n";
+
+    private File origSnmp;
+    private File origNetstat;
+    private File origTcp;
+    private File origTcp6;
+
+    private File snmpFile;
+    private File netstatFile;
+    private File tcpFile;
+    private File tcp6File;
+
+    public TCPStatisticsTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Format four address bytes the way the kernel prints them.
+     */
+    private static String word(int b0, int b1, int b2, int b3)
+    {
+        final long val;
+        if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            val = ((long) b3 << 24) | (b2 << 16) | (b1 << 8) | b0;
+        } else {
+            val = ((long) b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+        }
+        return String.format("%08X", val);
+    }
+
+    private static String socket(int slot, String local, int localPort,
+                                 String remote, int remotePort, int state,
+                                 int txQueue, int rxQueue)
+    {
+        return String.format("%4d: %s:%04X %s:%04X %02X %08X:%08X", slot,
+                             local, localPort, remote, remotePort, state,
+                             txQueue, rxQueue) + TCP_TRAILER;
+    }
+
+    private void writeCounters(long outSegs, long retrans, long overflows)
+        throws IOException
+    {
+        write(snmpFile,
+              "Ip: Forwarding DefaultTTL\n" +
+              "Ip: 2 64\n" +
+              "Tcp: RtoAlgorithm RtoMin RtoMax MaxConn ActiveOpens" +
+              " PassiveOpens AttemptFails EstabResets CurrEstab InSegs" +
+              " OutSegs RetransSegs InErrs OutRsts InCsumErrors\n" +
+              "Tcp: 1 200 120000 -1 17 17 0 20 6 18805 " + outSegs + " " +
+              retrans + " 0 9 0\n" +
+              "Udp: InDatagrams NoPorts\n" +
+              "Udp: 4 0\n");
+
+        // older kernels don't report TCPRcvQDrop
+        write(netstatFile,
+              "TcpExt: SyncookiesSent PruneCalled RcvPruned ListenOverflows" +
+              " ListenDrops TCPBacklogDrop\n" +
+              "TcpExt: 0 1 2 " + overflows + " " + overflows + " 5\n" +
+              "IpExt: InNoRoutes InTruncatedPkts\n" +
+              "IpExt: 0 0\n");
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        origSnmp = TCPStatistics.SNMP_FILE;
+        origNetstat = TCPStatistics.NETSTAT_FILE;
+        origTcp = TCPStatistics.TCP_FILE;
+        origTcp6 = TCPStatistics.TCP6_FILE;
+
+        snmpFile = File.createTempFile("snmp", ".txt");
+        netstatFile = File.createTempFile("netstat", ".txt");
+        tcpFile = File.createTempFile("tcp", ".txt");
+        tcp6File = File.createTempFile("tcp6", ".txt");
+
+        TCPStatistics.SNMP_FILE = snmpFile;
+        TCPStatistics.NETSTAT_FILE = netstatFile;
+        TCPStatistics.TCP_FILE = tcpFile;
+        TCPStatistics.TCP6_FILE = tcp6File;
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(TCPStatisticsTest.class);
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        TCPStatistics.SNMP_FILE = origSnmp;
+        TCPStatistics.NETSTAT_FILE = origNetstat;
+        TCPStatistics.TCP_FILE = origTcp;
+        TCPStatistics.TCP6_FILE = origTcp6;
+
+        snmpFile.delete();
+        netstatFile.delete();
+        tcpFile.delete();
+        tcp6File.delete();
+
+        super.tearDown();
+    }
+
+    public void testCounters()
+        throws IOException
+    {
+        writeCounters(10000L, 100L, 3L);
+        write(tcpFile, TCP_HEADER);
+        write(tcp6File, TCP_HEADER);
+
+        TCPStatistics stats = new TCPStatistics();
+
+        final long start = 10 * SECOND;
+        assertNull("First sample should not have rates",
+                   stats.getCounterRates(start));
+
+        HashMap<String, Long> totals = stats.getCounterTotals(start);
+        assertEquals("Bad retransmit total", Long.valueOf(100L),
+                     totals.get("RetransSegs"));
+        assertEquals("Bad overflow total", Long.valueOf(3L),
+                     totals.get("ListenOverflows"));
+        assertFalse("Missing counter was reported",
+                    totals.containsKey("TCPRcvQDrop"));
+
+        writeCounters(12000L, 150L, 7L);
+
+        final long now = start + 2 * SECOND;
+        HashMap<String, Double> map = stats.getCounterRates(now);
+        assertEquals("Bad retransmit rate", 25.0,
+                     map.get("RetransSegs").doubleValue(), 0.0001);
+        assertEquals("Bad overflow rate", 2.0,
+                     map.get("ListenOverflows").doubleValue(), 0.0001);
+        assertEquals("Bad backlog drop rate", 0.0,
+                     map.get("TCPBacklogDrop").doubleValue(), 0.0001);
+        assertFalse("Missing counter was reported",
+                    map.containsKey("TCPRcvQDrop"));
+
+        assertEquals("Bad retransmit percentage", 2.5,
+                     stats.getRetransmitPercent(now).doubleValue(), 0.0001);
+    }
+
+    public void testSockets()
+        throws IOException
+    {
+        final String any = word(0, 0, 0, 0);
+        final String local = word(127, 0, 0, 1);
+        final String remote = word(10, 0, 0, 2);
+
+        writeCounters(0L, 0L, 0L);
+        write(tcpFile, TCP_HEADER +
+              socket(0, any, 4001, any, 0, 0x0a, 50, 3) +
+              socket(1, local, 4001, local, 60208, 0x01, 0x10, 0x200) +
+              socket(2, local, 60208, local, 4001, 0x01, 0x99, 0x99) +
+              socket(3, local, 22, remote, 5555, 0x01, 0x1, 0x1) +
+              socket(4, local, 4001, remote, 4444, 0x06, 0x1, 0x1));
+
+        final String any6 = any + any + any + any;
+        final String mapped = any + any + word(0, 0, 0xff, 0xff) + remote;
+        write(tcp6File, TCP_HEADER +
+              socket(0, any6, 4002, any6, 0, 0x0a, 50, 0) +
+              socket(1, mapped, 4002, mapped, 33333, 0x01, 0, 0x1000));
+
+        TCPStatistics stats = new TCPStatistics();
+        assertEquals("Sockets reported before ports were set", 0,
+                     stats.getReceiveQueueBytes().size());
+
+        stats.setInputPorts(new int[] { 4001, 4002 });
+
+        HashMap<String, Long> backlog = stats.getListenBacklog();
+        assertEquals("Bad backlog map " + backlog, 2, backlog.size());
+        assertEquals("Bad backlog", Long.valueOf(3L), backlog.get("4001"));
+        assertEquals("Bad backlog", Long.valueOf(0L), backlog.get("4002"));
+
+        HashMap<String, Long> recv = stats.getReceiveQueueBytes();
+        assertEquals("Bad receive map " + recv, 2, recv.size());
+        assertEquals("Bad receive queue", Long.valueOf(0x200L),
+                     recv.get("4001/127.0.0.1:60208"));
+        assertEquals("Bad mapped receive queue", Long.valueOf(0x1000L),
+                     recv.get("4002/10.0.0.2:33333"));
+
+        HashMap<String, Long> send = stats.getSendQueueBytes();
+        assertEquals("Bad send queue", Long.valueOf(0x10L),
+                     send.get("4001/127.0.0.1:60208"));
+    }
+
+    public void testMissing()
+    {
+        snmpFile.delete();
+
+        TCPStatistics stats = new TCPStatistics();
+        assertNull("Missing file should not have totals",
+                   stats.getCounterTotals());
+        assertNull("Missing file should not have queues",
+                   stats.getReceiveQueueBytes());
+
+        // the missing file is only reported once
+        assertLogMessage("Couldn't open " + snmpFile + ", " + netstatFile +
+                         " or " + tcpFile + " on OS: " +
+                         System.getProperty("os.name"));
+    }
+
+    public void testLive()
+        throws InterruptedException
+    {
+        TCPStatistics.SNMP_FILE = origSnmp;
+        TCPStatistics.NETSTAT_FILE = origNetstat;
+        TCPStatistics.TCP_FILE = origTcp;
+        TCPStatistics.TCP6_FILE = origTcp6;
+        if (!origSnmp.exists()) {
+            System.err.println("Skipping live TCP statistics on " +
+                               System.getProperty("os.name"));
+            return;
+        }
+
+        TCPStatistics stats = new TCPStatistics();
+        assertNotNull("No totals", stats.getCounterTotals());
+
+        Thread.sleep(200);
+
+        assertNotNull("No retransmit rate", stats.getRetransmitsPerSecond());
+    }
+
+    public static void main(String argv[])
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+}
@@ -1,27 +1,61 @@
 package icecube.daq.juggler.test;
 
 import icecube.daq.juggler.alert.AlertException;
+import icecube.daq.juggler.alert.AlertWouldBlockException;
 import icecube.daq.juggler.alert.Alerter;
+import icecube.daq.juggler.alert.HealthReportingAlerter;
 import icecube.daq.payload.IUTCTime;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.*;
 
 public class MockAlerter
-    implements Alerter
+    implements HealthReportingAlerter
 {
+    /** Time until the next probe reported while the receiver is down */
+    private static final long DOWN_RETRY_MILLIS = 10L;
+
     private boolean inactive;
     private boolean closed;
+    private Format format = Format.JSON;
 
     private long sendDelay;
+    private int numToBlock;
+    private int numToFail;
     private int numSent;
+    private int numBatches;
+
+    private volatile boolean down;
+    private long numStateChanges;
+
+    private ArrayList<Object> sentList = new ArrayList<Object>();
 
     public MockAlerter()
     {
     }
 
+    private synchronized void checkBlocked()
+        throws AlertWouldBlockException
+    {
+        if (numToBlock > 0) {
+            numToBlock--;
+            throw new AlertWouldBlockException("Receiver is blocked");
+        }
+    }
+
+    private synchronized void checkFailed()
+        throws AlertException
+    {
+        if (numToFail > 0) {
+            numToFail--;
+            throw new AlertException("Receiver failed");
+        }
+    }
+
     @Override
     public void close()
     {
@@ -33,17 +67,50 @@ public class MockAlerter
         inactive = true;
     }
 
+    public Format getFormat()
+    {
+        return format;
+    }
+
+    @Override
+    public long getMillisUntilRetry()
+    {
+        return down ? DOWN_RETRY_MILLIS : 0L;
+    }
+
+    public int getNumBatches()
+    {
+        return numBatches;
+    }
+
     public int getNumSent()
     {
         return numSent;
     }
 
+    public synchronized List<Object> getSentObjects()
+    {
+        return new ArrayList<Object>(sentList);
+    }
+
     @Override
     public String getService()
     {
         return DEFAULT_SERVICE;
     }
 
+    @Override
+    public synchronized long getNumStateChanges()
+    {
+        return numStateChanges;
+    }
+
+    @Override
+    public State getState()
+    {
+        return down ? State.DOWN : State.CONNECTED;
+    }
+
     @Override
     public boolean isActive()
     {
@@ -59,19 +126,31 @@ public class MockAlerter
     public void sendObject(Object obj)
         throws AlertException
     {
-        if (sendDelay > 0) {
-            try {
-                Thread.sleep(sendDelay);
-            } catch (InterruptedException ie) {
-                // ignore interrupts
-            } finally {
-                sendDelay = 0;
-            }
-        }
+        waitForDelay();
+        checkBlocked();
+        checkFailed();
 
+        synchronized (this) {
+            sentList.add(obj);
+        }
         numSent++;
     }
 
+    @Override
+    public void sendObjects(List<?> list)
+        throws AlertException
+    {
+        waitForDelay();
+        checkBlocked();
+        checkFailed();
+
+        synchronized (this) {
+            sentList.addAll(list);
+        }
+        numSent += list.size();
+        numBatches++;
+    }
+
     @Override
     public void setAddress(String host, int port)
         throws AlertException
@@ -79,8 +158,45 @@ public class MockAlerter
         // ignored
     }
 
+    public synchronized void setDown(boolean down)
+    {
+        if (down != this.down) {
+            this.down = down;
+            numStateChanges++;
+        }
+    }
+
+    @Override
+    public void setFormat(Format format)
+    {
+        this.format = format;
+    }
+
+    public synchronized void setNumBlocked(int num)
+    {
+        numToBlock = num;
+    }
+
+    public synchronized void setNumFailed(int num)
+    {
+        numToFail = num;
+    }
+
     public void setSendDelay(long millis)
     {
         sendDelay = millis;
     }
+
+    private void waitForDelay()
+    {
+        if (sendDelay > 0) {
+            try {
+                Thread.sleep(sendDelay);
+            } catch (InterruptedException ie) {
+                // ignore interrupts
+            } finally {
+                sendDelay = 0;
+            }
+        }
+    }
 }
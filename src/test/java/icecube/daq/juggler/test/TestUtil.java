@@ -0,0 +1,49 @@
+package icecube.daq.juggler.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Helper methods shared by several tests
+ */
+public final class TestUtil
+{
+    private TestUtil()
+    {
+    }
+
+    /**
+     * Build a simple alert object.
+     *
+     * @param num value stored under the <tt>alert</tt> key
+     *
+     * @return alert map
+     */
+    public static HashMap<String, Object> makeAlert(int num)
+    {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("alert", num);
+        return map;
+    }
+
+    /**
+     * Replace the contents of a file.
+     *
+     * @param file file to overwrite
+     * @param text new contents
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(File file, String text)
+        throws IOException
+    {
+        FileWriter out = new FileWriter(file);
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+    }
+}